@@ -26,6 +26,7 @@
 package dr.app.beagle.evomodel.substmodel;
 
 import dr.evolution.datatype.DataType;
+import dr.evomodel.substmodel.SubstitutionModelCache;
 import dr.inference.model.AbstractModel;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
@@ -269,6 +270,28 @@ public abstract class BaseSubstitutionModel extends AbstractModel
 
         double normalization = setupMatrix();
 
+        if (cache != null) {
+            // the decomposition depends only on the unnormalized matrix and the normalization
+            double[] key = new double[stateCount * stateCount + 1];
+            for (int i = 0; i < stateCount; i++) {
+                System.arraycopy(q[i], 0, key, i * stateCount, stateCount);
+            }
+            key[key.length - 1] = normalization;
+
+            EigenDecomposition cached = cache.getEigenSystem(key);
+            if (cached != null) {
+                eigenDecomposition = cached.copy();
+            } else {
+                eigenDecomposition = eigenSystem.decomposeMatrix(q);
+                if (eigenDecomposition != null) {
+                    eigenDecomposition.normalizeEigenValues(normalization);
+                    cache.putEigenSystem(key, eigenDecomposition.copy());
+                }
+            }
+            updateMatrix = false;
+            return;
+        }
+
         eigenDecomposition = eigenSystem.decomposeMatrix(q);
 
         if (eigenDecomposition != null)
@@ -277,6 +300,29 @@ public abstract class BaseSubstitutionModel extends AbstractModel
         updateMatrix = false;
     }
 
+    /**
+     * Installs a cache of eigen decompositions that is consulted whenever the rate matrix changes.
+     * The SubstitutionModelDelegate of a BEAGLE likelihood takes its decompositions from here.
+     *
+     * @param cache the cache or null to switch caching off
+     */
+    public void setSubstitutionModelCache(SubstitutionModelCache<EigenDecomposition> cache) {
+        this.cache = cache;
+        updateMatrix = true;
+    }
+
+    public SubstitutionModelCache<EigenDecomposition> getSubstitutionModelCache() {
+        return cache;
+    }
+
+    /**
+     * @return whether getEigenDecomposition decomposes the rate matrix here, so that a cache of
+     * eigen decompositions is used
+     */
+    public boolean isCacheable() {
+        return true;
+    }
+
     private double setupMatrix() {
         setupRelativeRates(relativeRates);
         double[] pi = freqModel.getFrequencies();
@@ -403,4 +449,6 @@ public abstract class BaseSubstitutionModel extends AbstractModel
     protected EigenDecomposition eigenDecomposition;
     private EigenDecomposition storedEigenDecomposition;
 
+    private SubstitutionModelCache<EigenDecomposition> cache = null;
+
 }
\ No newline at end of file
@@ -128,6 +128,11 @@ public class HKY extends BaseSubstitutionModel {
         rates[5] = 1.0;
     }
 
+    public boolean isCacheable() {
+        // the eigen decomposition has a closed form
+        return false;
+    }
+
     public EigenDecomposition getEigenDecomposition() {
 
         if (eigenDecomposition == null) {
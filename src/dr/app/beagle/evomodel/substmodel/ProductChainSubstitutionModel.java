@@ -118,6 +118,11 @@ public class ProductChainSubstitutionModel extends BaseSubstitutionModel impleme
         return citations;
     }
 
+    public boolean isCacheable() {
+        // the eigen decomposition is built from those of the chains
+        return false;
+    }
+
     public EigenDecomposition getEigenDecomposition() {
         synchronized (this) {
             if (updateMatrix) {
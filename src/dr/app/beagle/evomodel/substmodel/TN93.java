@@ -76,6 +76,11 @@ public class TN93 extends BaseSubstitutionModel {
         rates[5] = 1.0;
     }
 
+    public boolean isCacheable() {
+        // the eigen decomposition has a closed form
+        return false;
+    }
+
     public EigenDecomposition getEigenDecomposition() {
 
         if (eigenDecomposition == null) {
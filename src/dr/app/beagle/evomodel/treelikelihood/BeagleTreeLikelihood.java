@@ -32,6 +32,7 @@ import dr.app.beagle.evomodel.branchmodel.HomogeneousBranchModel;
 import dr.app.beagle.evomodel.parsers.BeagleTreeLikelihoodParser;
 import dr.app.beagle.evomodel.sitemodel.GammaSiteRateModel;
 import dr.app.beagle.evomodel.sitemodel.SiteRateModel;
+import dr.app.beagle.evomodel.substmodel.EigenDecomposition;
 import dr.app.beagle.evomodel.substmodel.FrequencyModel;
 import dr.app.beagle.evomodel.substmodel.HKY;
 import dr.app.beagle.evomodel.substmodel.SubstitutionModel;
@@ -50,7 +51,10 @@ import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.branchratemodel.DefaultBranchRateModel;
 import dr.evomodel.branchratemodel.StrictClockBranchRates;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.BranchLengthGradientDelegate;
+import dr.evomodel.treelikelihood.BranchLengthGradientProvider;
 import dr.evomodel.treelikelihood.TipStatesModel;
+import dr.evomodel.treelikelihood.TreeLikelihoodComponents;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.ThreadAwareLikelihood;
@@ -69,7 +73,8 @@ import java.util.logging.Logger;
  */
 
 @SuppressWarnings("serial")
-public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood implements ThreadAwareLikelihood {
+public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood implements ThreadAwareLikelihood,
+        BranchLengthGradientProvider, TreeLikelihoodComponents.Provider {
 
     // This property is a comma-delimited list of resource numbers (0 == CPU) to
     // allocate each BEAGLE instance to. If less than the number of instances then
@@ -954,6 +959,150 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
         beagle.setPartials(partialBufferHelper.getOffsetIndex(number), partials);
     }
 
+    /**
+     * Calculates the derivative of the log likelihood with respect to the length of each branch
+     * by reading back the post-order partials from BEAGLE and doing a pre-order pass in Java.
+     *
+     * @return d logL / d (rate * time) indexed by node number
+     */
+    public double[] getBranchLengthGradient() {
+
+        final TreeLikelihoodComponents components = getLikelihoodComponents();
+
+        getLogLikelihood(); // Ensure the post-order partials are up-to-date
+
+        if (gradientDelegate == null) {
+            gradientDelegate = new BranchLengthGradientDelegate(components);
+        }
+
+        double[] gradient = new double[nodeCount];
+        gradientDelegate.calculateBranchLengthGradient(treeModel, gradient);
+        return gradient;
+    }
+
+    public TreeLikelihoodComponents getLikelihoodComponents() {
+
+        if (branchModel.getSubstitutionModels().size() > 1 || branchModel.requiresMatrixConvolution()) {
+            throw new UnsupportedOperationException("A single substitution model across the tree is required");
+        }
+        if (branchModel.getRootSubstitutionModel().canReturnComplexDiagonalization()) {
+            throw new UnsupportedOperationException("A real eigen decomposition is required");
+        }
+        if (ascertainedSitePatterns) {
+            throw new UnsupportedOperationException("Ascertained site patterns are not supported");
+        }
+
+        if (components == null) {
+            components = new BeagleComponents();
+        }
+        return components;
+    }
+
+    private class BeagleComponents implements TreeLikelihoodComponents {
+
+        BeagleComponents() {
+            tipBuffer = new double[patternCount * stateCount];
+            tipStateBuffer = new int[patternCount];
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        public int getPatternCount() {
+            return patternCount;
+        }
+
+        public int getStateCount() {
+            return stateCount;
+        }
+
+        public int getCategoryCount() {
+            return categoryCount;
+        }
+
+        public void getPostOrderPartials(Tree tree, NodeRef node, double[] partials) {
+            final int nodeNum = node.getNumber();
+            if (tree.isExternal(node)) {
+                getTipPartials(nodeNum);
+                final int n = tipBuffer.length;
+                for (int c = 0; c < categoryCount; c++) {
+                    System.arraycopy(tipBuffer, 0, partials, c * n, n);
+                }
+            } else {
+                beagle.getPartials(partialBufferHelper.getOffsetIndex(nodeNum), Beagle.NONE, partials);
+            }
+        }
+
+        private void getTipPartials(int nodeNum) {
+            if (tipStatesModel != null && tipStatesModel.getModelType() == TipStatesModel.Type.PARTIALS) {
+                tipStatesModel.getTipPartials(nodeNum, tipBuffer);
+                return;
+            }
+
+            if (tipStatesModel != null) {
+                tipStatesModel.getTipStates(nodeNum, tipStateBuffer);
+            } else {
+                final int index = patternList.getTaxonIndex(treeModel.getTaxonId(nodeNum));
+                if (index == -1) {
+                    // a taxon missing from the patterns has partials of one for every state
+                    Arrays.fill(tipBuffer, 1.0);
+                    return;
+                }
+                for (int i = 0; i < patternCount; i++) {
+                    tipStateBuffer[i] = patternList.getPatternState(index, i);
+                }
+            }
+
+            int v = 0;
+            for (int i = 0; i < patternCount; i++) {
+                final int state = tipStateBuffer[i];
+                if (useAmbiguities) {
+                    boolean[] stateSet = dataType.getStateSet(state);
+                    for (int j = 0; j < stateCount; j++) {
+                        tipBuffer[v] = stateSet[j] ? 1.0 : 0.0;
+                        v++;
+                    }
+                } else {
+                    for (int j = 0; j < stateCount; j++) {
+                        tipBuffer[v] = (state >= stateCount || state == j) ? 1.0 : 0.0;
+                        v++;
+                    }
+                }
+            }
+        }
+
+        public double getBranchRate(Tree tree, NodeRef node) {
+            return branchRateModel.getBranchRate(tree, node);
+        }
+
+        public void getEigenDecomposition(double[] eigenVectors, double[] inverseEigenVectors, double[] eigenValues) {
+            EigenDecomposition ed = branchModel.getRootSubstitutionModel().getEigenDecomposition();
+            System.arraycopy(ed.getEigenVectors(), 0, eigenVectors, 0, eigenVectors.length);
+            System.arraycopy(ed.getInverseEigenVectors(), 0, inverseEigenVectors, 0, inverseEigenVectors.length);
+            System.arraycopy(ed.getEigenValues(), 0, eigenValues, 0, eigenValues.length);
+        }
+
+        public double[] getCategoryRates() {
+            return siteRateModel.getCategoryRates();
+        }
+
+        public double[] getCategoryProportions() {
+            return siteRateModel.getCategoryProportions();
+        }
+
+        public double[] getRootFrequencies() {
+            return substitutionModelDelegate.getRootStateFrequencies();
+        }
+
+        public double[] getPatternWeights() {
+            return patternWeights;
+        }
+
+        private final double[] tipBuffer;
+        private final int[] tipStateBuffer;
+    }
+
     private void restrictNodePartials(int nodeIndex) {
 
         Parameter restrictionParameter = partialsMap[nodeIndex];
@@ -1139,6 +1288,9 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
     private int[] scaleBufferIndices;
     private int[] storedScaleBufferIndices;
 
+    private TreeLikelihoodComponents components = null;
+    private BranchLengthGradientDelegate gradientDelegate = null;
+
     private int[][] operations;
     private int operationListCount;
     private int[] operationCount;
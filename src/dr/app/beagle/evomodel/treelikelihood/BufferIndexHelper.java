@@ -45,7 +45,9 @@ public class BufferIndexHelper {
     }
 
     public void flipOffset(int i) {
-        if (i >= minIndexValue) {
+        // a buffer only moves off its stored copy once between a store and the next, so that
+        // evaluating more than once before a restore leaves the stored copy as it is
+        if (i >= minIndexValue && indexOffsets[i - minIndexValue] == storedIndexOffsets[i - minIndexValue]) {
             indexOffsets[i - minIndexValue] = offsetCount - indexOffsets[i - minIndexValue];
         } // else do nothing
     }
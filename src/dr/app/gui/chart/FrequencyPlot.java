@@ -43,6 +43,9 @@ public class FrequencyPlot extends Plot.AbstractPlot {
 
     private boolean hasQuantiles = false;
     private double quantiles = 0;
+    // the quantiles sort the data, so they are kept until the data or the setting changes
+    private boolean hasQuantileBounds = false;
+    private double quantileLower, quantileUpper;
 
     private boolean hasIntervals = false;
     private double upperInterval = 0.0;
@@ -107,6 +110,7 @@ public class FrequencyPlot extends Plot.AbstractPlot {
     public void setData(Variate.D data, int minimumBinCount) {
 
         this.raw = data;
+        hasQuantileBounds = false;
         FrequencyDistribution frequency = getFrequencyDistribution(data, minimumBinCount);
 
         Variate.D xData = new Variate.D();
@@ -134,6 +138,7 @@ public class FrequencyPlot extends Plot.AbstractPlot {
 
     public void setRawData(Variate raw) {
         this.raw = raw;
+        hasQuantileBounds = false;
     }
 
     /**
@@ -189,6 +194,7 @@ public class FrequencyPlot extends Plot.AbstractPlot {
      */
     public void setQuantiles(double quantiles) {
         this.quantiles = quantiles;
+        hasQuantileBounds = false;
         hasQuantiles = (quantiles > 0.0);
         hasIntervals = false;
     }
@@ -229,8 +235,13 @@ public class FrequencyPlot extends Plot.AbstractPlot {
         int n = xData.getCount();
 
         if (hasQuantiles) {
-            lower = raw.getQuantile(quantiles);
-            upper = raw.getQuantile(1.0 - quantiles);
+            if (!hasQuantileBounds) {
+                hasQuantileBounds = true;
+                quantileLower = raw.getQuantile(quantiles);
+                quantileUpper = raw.getQuantile(1.0 - quantiles);
+            }
+            lower = quantileLower;
+            upper = quantileUpper;
         } else if (hasIntervals) {
             lower = lowerInterval;
             upper = upperInterval;
@@ -41,6 +41,12 @@ import java.util.List;
 
 public class LinePlot extends Plot.AbstractPlot {
 
+    /**
+     * Lines through more points than this, with increasing x, are drawn with a few segments for
+     * each pixel column.
+     */
+    public static final int ENVELOPE_THRESHOLD = 4096;
+
 
     /**
      * Constructor
@@ -61,6 +67,28 @@ public class LinePlot extends Plot.AbstractPlot {
      */
     protected void paintData(Graphics2D g2, Variate.N xData, Variate.N yData) {
 
+        if (xData.getCount() > ENVELOPE_THRESHOLD && setupEnvelope(xData, yData)) {
+            Rectangle clip = g2.getClipBounds();
+            double left = clip != null ? clip.getMinX() : Double.NEGATIVE_INFINITY;
+            double right = clip != null ? clip.getMaxX() : Double.POSITIVE_INFINITY;
+
+            GeneralPath path = envelope.createPath(new TraceEnvelope.Projection() {
+                public double getX(int index) {
+                    return transformX(envelopeX[index]);
+                }
+
+                public double getY(double value) {
+                    return transformY(value);
+                }
+            }, left, right);
+
+            g2.setPaint(linePaint);
+            g2.setStroke(lineStroke);
+
+            g2.draw(path);
+            return;
+        }
+
         double x = transformX(((Number) xData.get(0)).doubleValue());
         double y = transformY(((Number) yData.get(0)).doubleValue());
 
@@ -89,5 +117,37 @@ public class LinePlot extends Plot.AbstractPlot {
         g2.draw(path);
 	}
 
+    /**
+     * Builds the envelope of the data, once for each data set.
+     *
+     * @return whether the x values increase so that the envelope can be used
+     */
+    private boolean setupEnvelope(Variate.N<?> xData, Variate.N<?> yData) {
+        if (xData != envelopeXData || yData != envelopeYData || xData.getCount() != envelopeCount) {
+            envelopeXData = xData;
+            envelopeYData = yData;
+            envelopeCount = xData.getCount();
+
+            double[] x = new double[envelopeCount];
+            double[] y = new double[envelopeCount];
+            boolean increasing = true;
+            for (int i = 0; i < envelopeCount; i++) {
+                x[i] = ((Number) xData.get(i)).doubleValue();
+                y[i] = ((Number) yData.get(i)).doubleValue();
+                if (!(i == 0 || x[i] >= x[i - 1])) {
+                    increasing = false;
+                }
+            }
+            envelopeX = increasing ? x : null;
+            envelope = increasing ? new TraceEnvelope(y) : null;
+        }
+        return envelope != null;
+    }
+
+    private Variate.N<?> envelopeXData = null;
+    private Variate.N<?> envelopeYData = null;
+    private int envelopeCount = 0;
+    private double[] envelopeX = null;
+    private TraceEnvelope envelope = null;
 }
 
@@ -0,0 +1,205 @@
+/*
+ * TraceEnvelope.java
+ *
+ * Copyright (C) 2002-2009 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.gui.chart;
+
+import java.awt.geom.GeneralPath;
+
+/**
+ * Description:	The minima and maxima of a series of values over blocks of 2, 4, 8... values, so
+ * that a line through a long series can be drawn with a few segments for each pixel column: the
+ * first value in the column, the range of the values in it and the last value. This covers the
+ * same pixels as a line through every value, and the minimum and maximum of any run of values are
+ * found in O(log n).
+ *
+ * @version $Id$
+ */
+public class TraceEnvelope {
+
+    /**
+     * The pixel coordinates of the values. The x coordinates must not decrease with the index.
+     */
+    public interface Projection {
+        double getX(int index);
+
+        double getY(double value);
+    }
+
+    public TraceEnvelope(double[] values) {
+        this.values = values;
+
+        int levelCount = 0;
+        for (int size = values.length; size > 1; size = (size + 1) / 2) {
+            levelCount++;
+        }
+        minima = new double[levelCount + 1][];
+        maxima = new double[levelCount + 1][];
+        for (int level = 1; level <= levelCount; level++) {
+            final int size = (getSize(level - 1) + 1) / 2;
+            minima[level] = new double[size];
+            maxima[level] = new double[size];
+            for (int i = 0; i < size; i++) {
+                final int first = 2 * i;
+                final int second = Math.min(first + 1, getSize(level - 1) - 1);
+                minima[level][i] = min(getBlockMinimum(level - 1, first), getBlockMinimum(level - 1, second));
+                maxima[level][i] = max(getBlockMaximum(level - 1, first), getBlockMaximum(level - 1, second));
+            }
+        }
+    }
+
+    public int getCount() {
+        return values.length;
+    }
+
+    /**
+     * @return the smallest value from index from up to but not including index to, ignoring NaNs
+     */
+    public double getMinimum(int from, int to) {
+        double minimum = Double.POSITIVE_INFINITY;
+        for (int level = 0; from < to; level++) {
+            if ((from & 1) == 1) {
+                minimum = min(minimum, getBlockMinimum(level, from));
+                from++;
+            }
+            if ((to & 1) == 1) {
+                to--;
+                minimum = min(minimum, getBlockMinimum(level, to));
+            }
+            from >>= 1;
+            to >>= 1;
+        }
+        return minimum;
+    }
+
+    /**
+     * @return the largest value from index from up to but not including index to, ignoring NaNs
+     */
+    public double getMaximum(int from, int to) {
+        double maximum = Double.NEGATIVE_INFINITY;
+        for (int level = 0; from < to; level++) {
+            if ((from & 1) == 1) {
+                maximum = max(maximum, getBlockMaximum(level, from));
+                from++;
+            }
+            if ((to & 1) == 1) {
+                to--;
+                maximum = max(maximum, getBlockMaximum(level, to));
+            }
+            from >>= 1;
+            to >>= 1;
+        }
+        return maximum;
+    }
+
+    /**
+     * Creates a line through the values with x coordinates between left and right, and on to the
+     * values either side of them. Values that project to infinite or NaN coordinates break the line.
+     */
+    public GeneralPath createPath(Projection projection, double left, double right) {
+        final GeneralPath path = new GeneralPath();
+        final int n = values.length;
+        if (n == 0) {
+            return path;
+        }
+
+        final int from = Math.max(findFirst(projection, left, 0, n) - 1, 0);
+        final int to = Math.min(findFirst(projection, right, from, n) + 1, n);
+
+        boolean penDown = false;
+        int i = from;
+        while (i < to) {
+            final double x = projection.getX(i);
+            final int next = Math.max(findFirst(projection, Math.floor(x) + 1.0, i + 1, to), i + 1);
+
+            penDown = addPoint(path, penDown, x, projection.getY(values[i]));
+            if (next - i > 2) {
+                penDown = addPoint(path, penDown, x, projection.getY(getMinimum(i + 1, next - 1)));
+                penDown = addPoint(path, penDown, x, projection.getY(getMaximum(i + 1, next - 1)));
+            }
+            if (next - i > 1) {
+                penDown = addPoint(path, penDown, projection.getX(next - 1), projection.getY(values[next - 1]));
+            }
+            i = next;
+        }
+        return path;
+    }
+
+    /**
+     * @return whether the line continues from the point
+     */
+    private static boolean addPoint(GeneralPath path, boolean penDown, double x, double y) {
+        if (Double.isNaN(x) || Double.isNaN(y) || Double.isInfinite(x) || Double.isInfinite(y)) {
+            return false;
+        }
+        if (penDown) {
+            path.lineTo((float) x, (float) y);
+        } else {
+            path.moveTo((float) x, (float) y);
+        }
+        return true;
+    }
+
+    /**
+     * @return the first index from from up to to with an x coordinate of at least x, or to
+     */
+    private int findFirst(Projection projection, double x, int from, int to) {
+        int lower = from;
+        int upper = to;
+        while (lower < upper) {
+            final int middle = (lower + upper) >>> 1;
+            if (projection.getX(middle) < x) {
+                lower = middle + 1;
+            } else {
+                upper = middle;
+            }
+        }
+        return lower;
+    }
+
+    private int getSize(int level) {
+        return level == 0 ? values.length : minima[level].length;
+    }
+
+    private double getBlockMinimum(int level, int index) {
+        return level == 0 ? values[index] : minima[level][index];
+    }
+
+    private double getBlockMaximum(int level, int index) {
+        return level == 0 ? values[index] : maxima[level][index];
+    }
+
+    private static double min(double a, double b) {
+        return b < a || Double.isNaN(a) ? b : a;
+    }
+
+    private static double max(double a, double b) {
+        return b > a || Double.isNaN(a) ? b : a;
+    }
+
+    private final double[] values;
+    // the minima and maxima of blocks of 2^level values; the values themselves are level 0
+    private final double[][] minima;
+    private final double[][] maxima;
+}
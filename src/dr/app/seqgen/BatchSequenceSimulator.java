@@ -0,0 +1,426 @@
+package dr.app.seqgen;
+
+import cern.jet.random.engine.RandomEngine;
+import dr.evolution.datatype.DataType;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.sitemodel.SiteModel;
+import dr.evomodel.substmodel.SubstitutionEpochModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.math.MathUtils;
+import dr.math.ReplicateRandomEngine;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Simulates many replicate alignments on a tree, for posterior predictive checks and the like.
+ * The transition probabilities of each branch are calculated once for all the replicates of a
+ * tree, and the sites are drawn in blocks, walking the tree iteratively, each block of each
+ * replicate on its own thread and with its own random number generator. The generators are seeded
+ * from the replicate and the block, so the alignments do not depend on the number of threads.
+ * Finished replicates are handed to a ReplicateWriter in order, without building alignments.
+ *
+ * @version $Id$
+ */
+public class BatchSequenceSimulator {
+
+    /**
+     * The number of sites drawn by one task.
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Receives the leaf sequences of each replicate, in the order of the replicates.
+     */
+    public interface ReplicateWriter {
+        void writeReplicate(int replicate, Taxon[] taxa, int[][] sequences, DataType dataType) throws IOException;
+    }
+
+    /**
+     * @param siteModel       the substitution and among-site rate model
+     * @param branchRateModel the branch rates
+     * @param sequenceLength  the number of sites of each replicate
+     * @param threadCount     the number of threads to simulate with
+     * @param seed            the seed from which the seeds of the replicates are derived
+     */
+    public BatchSequenceSimulator(SiteModel siteModel, BranchRateModel branchRateModel, int sequenceLength,
+                                  int threadCount, long seed) {
+        this.siteModel = siteModel;
+        this.branchRateModel = branchRateModel;
+        this.sequenceLength = sequenceLength;
+        this.threadCount = threadCount;
+        this.seed = seed;
+
+        dataType = siteModel.getFrequencyModel().getDataType();
+        stateCount = dataType.getStateCount();
+        categoryCount = siteModel.getCategoryCount();
+    }
+
+    /**
+     * Fixes the sequence of the root, as state indices, instead of drawing it from the frequencies.
+     */
+    public void setAncestralStates(int[] ancestralStates) {
+        if (ancestralStates != null && ancestralStates.length != sequenceLength) {
+            throw new IllegalArgumentException("Ancestral sequence has " + ancestralStates.length +
+                    " sites, expecting " + sequenceLength);
+        }
+        this.ancestralStates = ancestralStates;
+    }
+
+    /**
+     * Simulates replicates on the tree with the current values of the models. Replicates are
+     * numbered on from those of the previous calls, so each has its own random numbers.
+     */
+    public void simulate(Tree tree, int replicateCount, ReplicateWriter writer) throws IOException {
+        final Tables tables = new Tables(tree);
+        final int blockCount = (sequenceLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        final ExecutorService pool = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        try {
+            // keep a few replicates ahead of the writer, but not all of them in memory
+            final LinkedList<PendingReplicate> pending = new LinkedList<PendingReplicate>();
+            for (int r = 0; r < replicateCount; r++) {
+                final int replicate = nextReplicate++;
+                final int[][] sequences = new int[tables.taxa.length][sequenceLength];
+                final PendingReplicate next = new PendingReplicate(replicate, sequences);
+
+                for (int b = 0; b < blockCount; b++) {
+                    final int block = b;
+                    final Callable<Object> task = new Callable<Object>() {
+                        public Object call() {
+                            simulateBlock(tables, replicate, block, sequences);
+                            return null;
+                        }
+                    };
+                    if (pool != null) {
+                        next.blocks.add(pool.submit(task));
+                    } else {
+                        simulateBlock(tables, replicate, block, sequences);
+                    }
+                }
+                pending.add(next);
+
+                if (pending.size() > 2 * threadCount) {
+                    write(pending.removeFirst(), tables, writer);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst(), tables, writer);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private void write(PendingReplicate replicate, Tables tables, ReplicateWriter writer) throws IOException {
+        try {
+            for (Future<?> block : replicate.blocks) {
+                block.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while simulating sequences");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        writer.writeReplicate(replicate.replicate, tables.taxa, replicate.sequences, dataType);
+    }
+
+    private void simulateBlock(Tables tables, int replicate, int block, int[][] sequences) {
+        final RandomEngine random = new ReplicateRandomEngine(seed, replicate, block);
+
+        final int matrixSize = stateCount * stateCount;
+        final int[] states = new int[tables.parents.length];
+        final int[] order = tables.order;
+        final int[] parents = tables.parents;
+        final int[] leaves = tables.leaves;
+        final int root = tables.root;
+
+        final int end = Math.min(sequenceLength, (block + 1) * BLOCK_SIZE);
+        for (int site = block * BLOCK_SIZE; site < end; site++) {
+            final int category = draw(random, tables.categories, 0, categoryCount);
+            final int categoryOffset = category * matrixSize;
+
+            states[root] = ancestralStates != null ? ancestralStates[site] :
+                    draw(random, tables.frequencies, 0, stateCount);
+            for (int node : order) {
+                states[node] = draw(random, tables.matrices[node],
+                        categoryOffset + states[parents[node]] * stateCount, stateCount);
+            }
+            for (int i = 0; i < leaves.length; i++) {
+                sequences[i][site] = states[leaves[i]];
+            }
+        }
+    }
+
+    /**
+     * Draws from the cumulative probabilities at the offset, taking the last state for anything
+     * above the rounding error of the last sum.
+     */
+    private static int draw(RandomEngine random, double[] cumulative, int offset, int count) {
+        final double r = random.nextDouble();
+        for (int j = 0; j < count - 1; j++) {
+            if (r < cumulative[offset + j]) {
+                return j;
+            }
+        }
+        return count - 1;
+    }
+
+    /**
+     * The tree, and the cumulative transition probabilities of its branches, in arrays.
+     */
+    private class Tables {
+
+        Tables(Tree tree) {
+            final int nodeCount = tree.getNodeCount();
+            root = tree.getRoot().getNumber();
+
+            parents = new int[nodeCount];
+            matrices = new double[nodeCount][];
+            order = new int[nodeCount - 1];
+
+            // parents before their children
+            int k = 0;
+            final LinkedList<NodeRef> stack = new LinkedList<NodeRef>();
+            stack.add(tree.getRoot());
+            while (!stack.isEmpty()) {
+                final NodeRef node = stack.removeLast();
+                for (int i = 0; i < tree.getChildCount(node); i++) {
+                    final NodeRef child = tree.getChild(node, i);
+                    parents[child.getNumber()] = node.getNumber();
+                    matrices[child.getNumber()] = cumulativeTransitionProbabilities(tree, child);
+                    order[k++] = child.getNumber();
+                    stack.add(child);
+                }
+            }
+
+            leaves = new int[tree.getExternalNodeCount()];
+            taxa = new Taxon[leaves.length];
+            for (int i = 0; i < leaves.length; i++) {
+                final NodeRef node = tree.getExternalNode(i);
+                leaves[i] = node.getNumber();
+                taxa[i] = tree.getNodeTaxon(node);
+            }
+
+            frequencies = cumulate(siteModel.getFrequencyModel().getFrequencies(), 0, stateCount);
+            categories = cumulate(siteModel.getCategoryProportions(), 0, categoryCount);
+        }
+
+        private double[] cumulativeTransitionProbabilities(Tree tree, NodeRef node) {
+            final NodeRef parent = tree.getParent(node);
+            final SubstitutionModel substitutionModel = siteModel.getSubstitutionModel();
+            final int matrixSize = stateCount * stateCount;
+
+            final double branchRate = branchRateModel.getBranchRate(tree, node);
+            final double branchTime = branchRate * (tree.getNodeHeight(parent) - tree.getNodeHeight(node));
+            if (branchTime < 0.0) {
+                throw new RuntimeException("Negative branch length: " + branchTime);
+            }
+
+            final double[] matrix = new double[categoryCount * matrixSize];
+            final double[] probabilities = new double[matrixSize];
+            for (int i = 0; i < categoryCount; i++) {
+                final double branchLength = siteModel.getRateForCategory(i) * branchTime;
+                if (substitutionModel instanceof SubstitutionEpochModel) {
+                    ((SubstitutionEpochModel) substitutionModel).getTransitionProbabilities(
+                            tree.getNodeHeight(node), tree.getNodeHeight(parent), branchLength, probabilities);
+                } else {
+                    substitutionModel.getTransitionProbabilities(branchLength, probabilities);
+                }
+                for (int j = 0; j < stateCount; j++) {
+                    final double[] row = cumulate(probabilities, j * stateCount, stateCount);
+                    System.arraycopy(row, 0, matrix, i * matrixSize + j * stateCount, stateCount);
+                }
+            }
+            return matrix;
+        }
+
+        private double[] cumulate(double[] values, int offset, int count) {
+            final double[] cumulative = new double[count];
+            double sum = 0.0;
+            for (int j = 0; j < count; j++) {
+                sum += values[offset + j];
+                cumulative[j] = sum;
+            }
+            // the rows need not sum to exactly one
+            for (int j = 0; j < count; j++) {
+                cumulative[j] /= sum;
+            }
+            return cumulative;
+        }
+
+        final int root;
+        final int[] parents;
+        final int[] order;
+        final int[] leaves;
+        final Taxon[] taxa;
+        final double[][] matrices;
+        final double[] frequencies;
+        final double[] categories;
+    }
+
+    private static class PendingReplicate {
+        PendingReplicate(int replicate, int[][] sequences) {
+            this.replicate = replicate;
+            this.sequences = sequences;
+        }
+
+        final int replicate;
+        final int[][] sequences;
+        final List<Future<?>> blocks = new ArrayList<Future<?>>();
+    }
+
+    /**
+     * Writes each replicate to its own file, named by the stem, the replicate number and the extension.
+     */
+    public static abstract class ReplicateFileWriter implements ReplicateWriter {
+
+        protected ReplicateFileWriter(String fileStem, String extension) {
+            this.fileStem = fileStem;
+            this.extension = extension;
+        }
+
+        public void writeReplicate(int replicate, Taxon[] taxa, int[][] sequences, DataType dataType)
+                throws IOException {
+            final PrintWriter writer = new PrintWriter(new BufferedWriter(
+                    new FileWriter(fileStem + replicate + extension)));
+            try {
+                write(writer, taxa, sequences, dataType);
+            } finally {
+                writer.close();
+            }
+            if (writer.checkError()) {
+                throw new IOException("Unable to write replicate " + replicate);
+            }
+        }
+
+        protected abstract void write(PrintWriter writer, Taxon[] taxa, int[][] sequences, DataType dataType);
+
+        protected static void writeSequence(PrintWriter writer, int[] sequence, DataType dataType) {
+            for (int state : sequence) {
+                writer.print(dataType.getCode(state));
+            }
+        }
+
+        private final String fileStem;
+        private final String extension;
+    }
+
+    public static class FastaWriter extends ReplicateFileWriter {
+
+        public FastaWriter(String fileStem) {
+            super(fileStem, ".fasta");
+        }
+
+        protected void write(PrintWriter writer, Taxon[] taxa, int[][] sequences, DataType dataType) {
+            for (int i = 0; i < taxa.length; i++) {
+                writer.print('>');
+                writer.println(taxa[i].getId());
+                writeSequence(writer, sequences[i], dataType);
+                writer.println();
+            }
+        }
+    }
+
+    public static class NexusWriter extends ReplicateFileWriter {
+
+        public NexusWriter(String fileStem) {
+            super(fileStem, ".nex");
+        }
+
+        protected void write(PrintWriter writer, Taxon[] taxa, int[][] sequences, DataType dataType) {
+            final String nexusType;
+            switch (dataType.getType()) {
+                case DataType.NUCLEOTIDES:
+                    nexusType = "DNA";
+                    break;
+                case DataType.AMINO_ACIDS:
+                    nexusType = "PROTEIN";
+                    break;
+                default:
+                    nexusType = "STANDARD";
+            }
+            int characterCount = 0;
+            if (sequences.length > 0) {
+                for (int state : sequences[0]) {
+                    characterCount += dataType.getCode(state).length();
+                }
+            }
+
+            writer.println("#NEXUS");
+            writer.println();
+            writer.println("BEGIN DATA;");
+            writer.println("\tDIMENSIONS NTAX=" + taxa.length + " NCHAR=" + characterCount + ";");
+            writer.println("\tFORMAT DATATYPE=" + nexusType + " MISSING=? GAP=-;");
+            writer.println("\tMATRIX");
+            for (int i = 0; i < taxa.length; i++) {
+                final String name = taxa[i].getId();
+                writer.print('\t');
+                writer.print(name.matches("\\w+") ? name : "'" + name.replace("'", "''") + "'");
+                writer.print('\t');
+                writeSequence(writer, sequences[i], dataType);
+                writer.println();
+            }
+            writer.println(";");
+            writer.println("END;");
+        }
+    }
+
+    private final SiteModel siteModel;
+    private final BranchRateModel branchRateModel;
+    private final int sequenceLength;
+    private final int threadCount;
+    private final long seed;
+
+    private final DataType dataType;
+    private final int stateCount;
+    private final int categoryCount;
+
+    private int[] ancestralStates = null;
+    private int nextReplicate = 0;
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java " + BatchSequenceSimulator.class.getName() +
+                    " <newick tree file> <output file stem> <replicates> [<length> [<threads> [fasta|nexus]]]");
+            System.exit(1);
+        }
+
+        final int replicateCount = Integer.parseInt(args[2]);
+        final int length = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        final int threadCount = args.length > 4 ? Integer.parseInt(args[4]) :
+                Runtime.getRuntime().availableProcessors();
+        final boolean nexus = args.length > 5 && args[5].equalsIgnoreCase("nexus");
+
+        try {
+            final Reader reader = new BufferedReader(new FileReader(args[0]));
+            final NewickImporter importer = new NewickImporter(reader);
+            final List<Tree> trees = new ArrayList<Tree>();
+            while (importer.hasTree()) {
+                trees.add(importer.importNextTree());
+            }
+            reader.close();
+
+            final BatchSequenceSimulator simulator = new BatchSequenceSimulator(
+                    SequenceSimulator.getDefaultSiteModel(), new DefaultBranchRateModel(), length, threadCount,
+                    MathUtils.getSeed());
+            final ReplicateWriter writer = nexus ? new NexusWriter(args[1]) : new FastaWriter(args[1]);
+            for (Tree tree : trees) {
+                simulator.simulate(tree, replicateCount, writer);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -31,6 +31,7 @@ import dr.evolution.io.Importer;
 import dr.evolution.io.NexusImporter;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.geo.BinnedKernelDensityEstimator2D;
 import dr.geo.KMLCoordinates;
 import dr.geo.KernelDensityEstimator2D;
 import dr.geo.contouring.*;
@@ -580,6 +581,8 @@ public class AntigenicPlotter {
                 contourMaker = new ContourWithR(x, y, GRIDSIZE);
             else if (CONTOUR_MODE == ContourMode.SNYDER)
                 contourMaker = new ContourWithSynder(x, y, GRIDSIZE);
+            else if (CONTOUR_MODE == ContourMode.BINNED)
+                contourMaker = new BinnedKernelDensityEstimator2D(x, y, GRIDSIZE);
             else
                 throw new RuntimeException("Unimplemented ContourModel!");
 
@@ -27,13 +27,12 @@ package dr.app.tools;
 
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
+import dr.evolution.io.CompactTreeImporter;
 import dr.evolution.io.Importer;
-import dr.evolution.io.NexusImporter;
-import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.CompactTree;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
-import dr.evolution.util.Taxon;
 import dr.util.Version;
 import jam.console.ConsoleApplication;
 
@@ -41,10 +40,16 @@ import javax.swing.*;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -67,10 +72,40 @@ public class LogCombiner {
 
         PrintWriter writer = new PrintWriter(new FileOutputStream(outputFileName));
 
+        stateCount = (renumberOutput ? -1 : 0);
+        stateStep = -1;
+
+        // the trees only need to be parsed if they are to be reformatted, otherwise their lines are
+        // copied with new state numbers, with the files read ahead concurrently
+        TreeLineReader[] treeLineReaders = null;
+        if (treeFiles && !convertToDecimal && !useScale && haveTranslateBlocks(inputFileNames)) {
+            treeLineReaders = new TreeLineReader[inputFileNames.length];
+            for (int i = 0; i < inputFileNames.length; i++) {
+                treeLineReaders[i] = new TreeLineReader(new File(inputFileNames[i]));
+                Thread thread = new Thread(treeLineReaders[i], "LogCombiner reader " + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        try {
+            combine(burnins, resample, inputFileNames, treeFiles, convertToDecimal, renumberOutput, useScale, scale,
+                    writer, treeLineReaders);
+        } finally {
+            if (treeLineReaders != null) {
+                for (TreeLineReader reader : treeLineReaders) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    private void combine(long[] burnins, long resample, String[] inputFileNames, boolean treeFiles,
+                         boolean convertToDecimal, boolean renumberOutput, boolean useScale, double scale,
+                         PrintWriter writer, TreeLineReader[] treeLineReaders) throws IOException {
+
         boolean firstFile = true;
         boolean firstTree = true;
-        long stateCount = (renumberOutput ? -1 : 0);
-        long stateStep = -1;
         int columnCount = 0;
 
         String[] titles = null;
@@ -108,12 +143,18 @@ public class LogCombiner {
                 System.out.println();
             }
 
-            if (treeFiles) {
+            if (treeLineReaders != null) {
 
-                TreeImporter importer = new NexusImporter(new FileReader(inputFile));
+                if (!combineTreeLines(treeLineReaders[i], burnin, resample, renumberOutput, writer)) {
+                    return;
+                }
+
+            } else if (treeFiles) {
+
+                CompactTreeImporter importer = new CompactTreeImporter(new FileInputStream(inputFile));
+                CompactTree tree = new CompactTree();
                 try {
-                    while (importer.hasTree()) {
-                        Tree tree = importer.importNextTree();
+                    while (importer.readNextTree(tree)) {
                         if (firstTree) {
                             startLog(tree, writer);
                             firstTree = false;
@@ -134,43 +175,15 @@ public class LogCombiner {
                         }
 
                         if (state >= burnin) {
-                            if (stateStep > 0) {
-                                if (!renumberOutput) {
-                                    stateCount += stateStep;
-                                } else {
-                                    stateCount += 1;
-                                }
-                            }
-
-                            if (resample >= 0) {
-                                if (resample % stateStep != 0) {
-                                    System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
-                                    return;
-                                }
-                            }
-
-                            boolean logThis;
-                            if (resample < 0) {
-                                // not resampling, log every state
-                                logThis=true;
-                            } else if (!renumberOutput) {
-                                // resampling but not renumbering
-                                logThis=(stateCount % resample == 0);
-                            } else {
-                                logThis=(stateCount*stateStep % resample == 0);
-                            }
+                            countState(renumberOutput);
 
-                            long stateLineEntry;
-                            if (!renumberOutput){
-                                stateLineEntry=stateCount;
-                            } else {
-                                stateLineEntry=stateCount/(resample/stateStep);
+                            if (!checkResampleFrequency(resample)) {
+                                return;
                             }
 
-                            if (logThis){
-                                writeTree(stateLineEntry, tree, convertToDecimal, writer);
+                            if (isLogged(resample, renumberOutput)) {
+                                writeTree(getStateLineEntry(resample, renumberOutput), tree, convertToDecimal, writer);
                             }
-
                         }
                     }
                 } catch (Importer.ImportException e) {
@@ -319,6 +332,372 @@ public class LogCombiner {
         writer.close();
     }
 
+    /**
+     * Copies the tree lines of one file with new state numbers, and the taxa renumbered if the
+     * translate block of the file differs from that of the first.
+     *
+     * @return false if the combining should stop
+     */
+    private boolean combineTreeLines(TreeLineReader reader, long burnin, long resample, boolean renumberOutput,
+                                     PrintWriter writer) {
+        Map<String, String> taxonNumbers = null;
+        boolean firstLine = true;
+
+        String line;
+        while ((line = reader.nextTree()) != null) {
+            if (firstLine) {
+                final Map<String, String> translation = reader.getTranslation();
+                if (taxonMap.isEmpty()) {
+                    startLog(new ArrayList<String>(translation.values()), writer);
+                }
+                taxonNumbers = getTaxonNumbers(translation);
+                if (taxonNumbers == null) {
+                    return false;
+                }
+                firstLine = false;
+            }
+
+            // tree STATE_xxxx [&attributes] = [&R] (...);
+            int nameStart = 4;
+            while (nameStart < line.length() && Character.isWhitespace(line.charAt(nameStart))) {
+                nameStart++;
+            }
+            int nameEnd = nameStart;
+            while (nameEnd < line.length() && !Character.isWhitespace(line.charAt(nameEnd)) &&
+                    line.charAt(nameEnd) != '=' && line.charAt(nameEnd) != '[') {
+                nameEnd++;
+            }
+
+            // split on underscore in STATE_xxxx
+            String[] bits = line.substring(nameStart, nameEnd).split("_");
+            if (bits.length < 2) {
+                System.err.println("ERROR: Trees do not give state numbers as tree attributes.");
+                return false;
+            }
+            long state = Long.parseLong(bits[1]);
+
+            if (stateStep < 0 && state > 0) {
+                stateStep = state;
+            }
+
+            if (state >= burnin) {
+                countState(renumberOutput);
+
+                if (!checkResampleFrequency(resample)) {
+                    return false;
+                }
+
+                if (isLogged(resample, renumberOutput)) {
+                    String rest = line.substring(nameEnd);
+                    if (!taxonNumbers.isEmpty()) {
+                        rest = renumberTaxa(rest, taxonNumbers);
+                    }
+                    writer.println("tree STATE_" + getStateLineEntry(resample, renumberOutput) + rest);
+                }
+            }
+        }
+
+        if (reader.getError() != null) {
+            System.err.println("Error reading input trees: " + reader.getError().getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the numbers of the taxa in the output for those of a file that differ, or null if a
+     *         taxon is not in the first file
+     */
+    private Map<String, String> getTaxonNumbers(Map<String, String> translation) {
+        Map<String, String> taxonNumbers = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : translation.entrySet()) {
+            Integer taxonNo = taxonMap.get(entry.getValue());
+            if (taxonNo == null) {
+                System.err.println("ERROR: Taxon, " + entry.getValue() + ", not recognized from first tree file");
+                return null;
+            }
+            if (!entry.getKey().equals(taxonNo.toString())) {
+                taxonNumbers.put(entry.getKey(), taxonNo.toString());
+            }
+        }
+        if (!taxonNumbers.isEmpty()) {
+            // every number must be rewritten, as the new ones may clash with the old
+            for (Map.Entry<String, String> entry : translation.entrySet()) {
+                taxonNumbers.put(entry.getKey(), taxonMap.get(entry.getValue()).toString());
+            }
+        }
+        return taxonNumbers;
+    }
+
+    /**
+     * Replaces the taxon numbers of a tree, i.e., the labels following an open bracket or a comma
+     * outside comments.
+     */
+    private static String renumberTaxa(String tree, Map<String, String> taxonNumbers) {
+        StringBuilder builder = new StringBuilder(tree.length());
+        int commentDepth = 0;
+        char previous = 0;
+        int i = 0;
+        while (i < tree.length()) {
+            char c = tree.charAt(i);
+            if (c == '[') {
+                commentDepth++;
+            } else if (c == ']') {
+                commentDepth--;
+            } else if (commentDepth == 0 && (previous == '(' || previous == ',') && Character.isDigit(c)) {
+                int end = i;
+                while (end < tree.length() && Character.isDigit(tree.charAt(end))) {
+                    end++;
+                }
+                String number = tree.substring(i, end);
+                String newNumber = taxonNumbers.get(number);
+                builder.append(newNumber != null ? newNumber : number);
+                previous = tree.charAt(end - 1);
+                i = end;
+                continue;
+            }
+            if (commentDepth == 0 && c != ']' && !Character.isWhitespace(c)) {
+                previous = c;
+            }
+            builder.append(c);
+            i++;
+        }
+        return builder.toString();
+    }
+
+    private void countState(boolean renumberOutput) {
+        if (stateStep > 0) {
+            if (!renumberOutput) {
+                stateCount += stateStep;
+            } else {
+                stateCount += 1;
+            }
+        }
+    }
+
+    private boolean checkResampleFrequency(long resample) {
+        if (resample >= 0) {
+            if (resample % stateStep != 0) {
+                System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isLogged(long resample, boolean renumberOutput) {
+        if (resample < 0) {
+            // not resampling, log every state
+            return true;
+        } else if (!renumberOutput) {
+            // resampling but not renumbering
+            return (stateCount % resample == 0);
+        } else {
+            return (stateCount * stateStep % resample == 0);
+        }
+    }
+
+    private long getStateLineEntry(long resample, boolean renumberOutput) {
+        if (!renumberOutput) {
+            return stateCount;
+        } else {
+            return stateCount / (resample / stateStep);
+        }
+    }
+
+    /**
+     * @return true if all the files exist and give a translate block before their first tree
+     */
+    private static boolean haveTranslateBlocks(String[] inputFileNames) throws IOException {
+        for (String inputFileName : inputFileNames) {
+            File inputFile = new File(inputFileName);
+            if (!inputFile.isFile()) {
+                return false;
+            }
+            BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+            try {
+                boolean hasTranslate = false;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String trimmed = line.trim().toLowerCase();
+                    if (trimmed.startsWith("translate")) {
+                        hasTranslate = true;
+                        break;
+                    } else if (trimmed.startsWith("tree ")) {
+                        break;
+                    }
+                }
+                if (!hasTranslate) {
+                    return false;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the translate block and the tree lines of a tree file on its own thread, keeping a
+     * limited number of lines ahead of the writer.
+     */
+    private static class TreeLineReader implements Runnable {
+
+        private static final int QUEUE_SIZE = 256;
+        private static final String END = new String("END");
+
+        TreeLineReader(File file) {
+            this.file = file;
+        }
+
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+                try {
+                    read(reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // closed
+            } finally {
+                try {
+                    put(END);
+                } catch (InterruptedException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void read(BufferedReader reader) throws IOException, InterruptedException {
+            StringBuilder translate = null;
+            StringBuilder tree = null;
+            String line;
+            while ((line = reader.readLine()) != null && !closed) {
+                String trimmed = line.trim();
+                if (translate != null) {
+                    translate.append(' ').append(trimmed);
+                    if (trimmed.endsWith(";")) {
+                        parseTranslation(translate.toString());
+                        translate = null;
+                    }
+                } else if (tree != null) {
+                    tree.append(trimmed);
+                    if (trimmed.endsWith(";")) {
+                        put(tree.toString());
+                        tree = null;
+                    }
+                } else if (trimmed.toLowerCase().startsWith("translate")) {
+                    translate = new StringBuilder(trimmed.substring("translate".length()));
+                    if (trimmed.endsWith(";")) {
+                        parseTranslation(translate.toString());
+                        translate = null;
+                    }
+                } else if (trimmed.toLowerCase().startsWith("tree ")) {
+                    if (trimmed.endsWith(";")) {
+                        put(trimmed);
+                    } else {
+                        tree = new StringBuilder(trimmed);
+                    }
+                }
+            }
+        }
+
+        private void parseTranslation(String block) throws IOException {
+            // pairs of number and name separated by commas, with the names possibly quoted
+            List<String> tokens = new ArrayList<String>();
+            StringBuilder token = new StringBuilder();
+            char quote = 0;
+            for (int i = 0; i < block.length(); i++) {
+                char c = block.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        if (i + 1 < block.length() && block.charAt(i + 1) == quote) {
+                            token.append(c);
+                            i++;
+                        } else {
+                            quote = 0;
+                        }
+                    } else {
+                        token.append(c);
+                    }
+                } else if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (Character.isWhitespace(c) || c == ',' || c == ';') {
+                    if (token.length() > 0) {
+                        tokens.add(token.toString());
+                        token.setLength(0);
+                    }
+                } else {
+                    token.append(c);
+                }
+            }
+            if (token.length() > 0) {
+                tokens.add(token.toString());
+            }
+            if (tokens.size() % 2 != 0) {
+                throw new IOException("Unable to read the translate block of " + file.getName());
+            }
+
+            Map<String, String> translation = new LinkedHashMap<String, String>();
+            for (int i = 0; i < tokens.size(); i += 2) {
+                translation.put(tokens.get(i), tokens.get(i + 1));
+            }
+            this.translation = translation;
+        }
+
+        private void put(String line) throws InterruptedException {
+            while (!closed) {
+                if (lines.offer(line, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the next tree line, or null at the end of the file or on an error
+         */
+        String nextTree() {
+            if (finished) {
+                return null;
+            }
+            try {
+                String line = lines.take();
+                if (line == END) {
+                    finished = true;
+                    return null;
+                }
+                return line;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading " + file.getName());
+            }
+        }
+
+        Map<String, String> getTranslation() {
+            return translation;
+        }
+
+        IOException getError() {
+            return error;
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        private final File file;
+        private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+        private volatile boolean closed = false;
+        private boolean finished = false;
+
+        // set before the lines are queued
+        private Map<String, String> translation = null;
+        private IOException error = null;
+    }
+
     private void rescaleTree(Tree tree, double scale) {
         if (tree instanceof MutableTree) {
             MutableTree mutableTree = (MutableTree) tree;
@@ -338,15 +717,23 @@ public class LogCombiner {
     private final Map<String, Integer> taxonMap = new HashMap<String, Integer>();
 
     private void startLog(Tree tree, PrintWriter writer) {
+        List<String> taxonIds = new ArrayList<String>();
+        for (int i = 0; i < tree.getTaxonCount(); i++) {
+            taxonIds.add(tree.getTaxon(i).getId());
+        }
+        startLog(taxonIds, writer);
+    }
 
-        int taxonCount = tree.getTaxonCount();
+    private void startLog(List<String> taxonIds, PrintWriter writer) {
+
+        int taxonCount = taxonIds.size();
         writer.println("#NEXUS");
         writer.println("");
         writer.println("Begin taxa;");
         writer.println("\tDimensions ntax=" + taxonCount + ";");
         writer.println("\tTaxlabels");
         for (int i = 0; i < taxonCount; i++) {
-            String id = tree.getTaxon(i).getId();
+            String id = taxonIds.get(i);
             if (id.matches(NexusExporter.SPECIAL_CHARACTERS_REGEX)) {
                 id = "'" + id + "'";
             }
@@ -361,9 +748,8 @@ public class LogCombiner {
         writer.println("\tTranslate");
         for (int i = 0; i < taxonCount; i++) {
             int k = i + 1;
-            Taxon taxon = tree.getTaxon(i);
-            taxonMap.put(taxon.getId(), k);
-            String id = taxon.getId();
+            String id = taxonIds.get(i);
+            taxonMap.put(id, k);
             if (id.matches(NexusExporter.SPECIAL_CHARACTERS_REGEX)) {
                 id = "'" + id + "'";
             }
@@ -476,6 +862,9 @@ public class LogCombiner {
         writer.println("End;");
     }
 
+    private long stateCount;
+    private long stateStep;
+
     private static final DecimalFormat decimalFormatter = new DecimalFormat("#.############", new DecimalFormatSymbols(Locale.US));
     private static final DecimalFormat scientificFormatter = new DecimalFormat("#.############E0", new DecimalFormatSymbols(Locale.US));
 
@@ -2,12 +2,15 @@ package dr.app.tools;
 
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
+import dr.evolution.io.CompactTreeImporter;
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
 import dr.evolution.io.NexusImporter;
 import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.CompactTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.geo.BinnedKernelDensityEstimator2D;
 import dr.geo.KMLCoordinates;
 import dr.geo.KernelDensityEstimator2D;
 import dr.geo.Polygon2D;
@@ -15,6 +18,7 @@ import dr.geo.contouring.*;
 import dr.geo.math.SphericalPolarCoordinates;
 import dr.inference.trace.TraceDistribution;
 import dr.inference.trace.TraceFactory;
+import dr.math.MathUtils;
 import dr.math.distributions.MultivariateNormalDistribution;
 import dr.util.DataTable;
 import dr.util.HeapSort;
@@ -27,6 +31,11 @@ import java.awt.geom.Point2D;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Marc A. Suchard
@@ -107,6 +116,8 @@ public class TimeSlicer {
     public static final boolean GREATCIRCLEDISTANCE = true;
     public static final String SUBSTITUTION = "N";
     public static final String DESCENDENTS = "descendents";
+    public static final String THREADS = "threads";
+    public static final String MAX_POINTS = "maxpoints";
 
     public static final String[] falseTrue = {"false", "true"};
 
@@ -117,7 +128,8 @@ public class TimeSlicer {
                       boolean trueNoise, double mrsd, ContourMode contourMode, SliceMode sliceMode,
                       final boolean summarizeRoot, final boolean summarizeTips, Normalization normalize, boolean getSDR, boolean getSNR,
                       String progress, boolean branchNormalization, BranchSet branchset, Set taxaSet, int grid,
-                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString) {
+                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString,
+                      int threadCount, int maxPointsPerSlice) {
 
         this.traits = traits;
         traitCount = traits.length;
@@ -146,6 +158,7 @@ public class TimeSlicer {
         rateAttributeString = rateString;
 
         gridSize = grid;
+        this.threadCount = threadCount;
 
         if (progress != null) {
             if (progress.equalsIgnoreCase("true")) {
@@ -167,14 +180,9 @@ public class TimeSlicer {
             }
         }
 
-        values = new ArrayList<List<List<Trait>>>(sliceCount);
+        values = new ArrayList<SliceValues>(sliceCount);
         for (int i = 0; i < sliceCount; i++) {
-            List<List<Trait>> thisSlice = new ArrayList<List<Trait>>(traitCount);
-            values.add(thisSlice);
-            for (int j = 0; j < traitCount; j++) {
-                List<Trait> thisTraitSlice = new ArrayList<Trait>();
-                thisSlice.add(thisTraitSlice);
-            }
+            values.add(new SliceValues(traitCount, maxPointsPerSlice));
         }
         if (summarizeRoot) {
             rootValues = new ArrayList<List<Trait>>(traitCount);
@@ -343,6 +351,12 @@ public class TimeSlicer {
                 rootElement.addContent(documentElement);
             }
 
+            ExecutorService contourPool = null;
+            if (threadCount > 1 && contours && outputFormat != OutputFormat.TAB && contourMode != ContourMode.R) {
+                contourPool = Executors.newFixedThreadPool(threadCount);
+                startSliceContours(contourPool, hpdValues);
+            }
+
             if (sliceHeights == null) {
                 for (double hpdValue : hpdValues) {
                     summarizeSlice(0, Double.NaN, contours, points, outputFormat, hpdValue);
@@ -362,6 +376,11 @@ public class TimeSlicer {
                 }
             }
 
+            if (contourPool != null) {
+                contourPool.shutdown();
+                sliceContourPaths = null;
+            }
+
             if (summarizeRoot) {
                 for (double hpdValue : hpdValues) {
                     summarizeRoot(contours, points, outputFormat, hpdValue);
@@ -725,7 +744,7 @@ public class TimeSlicer {
 
                         if (contourElement != null) {
                             String name = "root_hpd" + (hpdValue * 100);
-                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue, null);
                         }
 
                         if (pointsElement != null) {
@@ -810,7 +829,7 @@ public class TimeSlicer {
 
                             if (contourElement != null) {
                                 String name = tipNames.get(tipIndex) + "_hpd";
-                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue, null);
                             }
 
                             if (pointsElement != null) {
@@ -870,8 +889,7 @@ public class TimeSlicer {
             }
         }
 
-        List<List<Trait>> thisSlice = values.get(slice);
-        int traitCount = thisSlice.size();
+        SliceValues thisSlice = values.get(slice);
 
         for (int traitIndex = 0; traitIndex < traitCount; traitIndex++) {
 
@@ -881,7 +899,7 @@ public class TimeSlicer {
 //                        hpdValue);
 //
 //            } else {
-            summarizeSliceTrait(contourElement, pointsElement, slice, thisSlice.get(traitIndex), traitIndex, sliceValue,
+            summarizeSliceTrait(contourElement, pointsElement, slice, thisSlice, traitIndex, sliceValue,
                     outputFormat,
                     hpdValue);
 
@@ -907,17 +925,17 @@ public class TimeSlicer {
         }
     }
 
-    private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, List<Trait> thisTrait, int traitIndex, double sliceValue,
+    private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, SliceValues thisSlice, int traitIndex, double sliceValue,
                                      OutputFormat outputFormat,
                                      double hpdValue) {
 
-        if (thisTrait.size() == 0) {
+        if (thisSlice.size() == 0) {
             return;
         }
 
-        boolean isNumber = thisTrait.get(0).isNumber();
-        boolean isMultivariate = thisTrait.get(0).isMultivariate();
-        int dim = thisTrait.get(0).getDim();
+        boolean isNumber = thisSlice.isNumber(traitIndex);
+        boolean isMultivariate = thisSlice.isMultivariate(traitIndex);
+        int dim = thisSlice.getDim(traitIndex);
         boolean isBivariate = isMultivariate && dim == 2;
         if (sliceProgressReport) {
             progressStream.print("slice " + sliceValue + "\t");
@@ -943,16 +961,7 @@ public class TimeSlicer {
                 }
             }
 
-            int count = thisTrait.size();
-//            System.out.println("count = "+count+", dim = "+dim);
-            double[][] y = new double[dim][count];
-            for (int i = 0; i < count; i++) {
-                Trait trait = thisTrait.get(i);
-                double[] value = trait.getValue();
-                for (int j = 0; j < dim; j++) {
-                    y[j][i] = value[j];
-                }
-            }
+            double[][] y = thisSlice.getValues(traitIndex);
 //            System.out.println(y.length+"\t"+y[0].length);
 
             if (outputFormat == OutputFormat.XML || outputFormat == OutputFormat.TAB) {
@@ -1019,7 +1028,8 @@ public class TimeSlicer {
 
                 if (contourElement != null) {
                     String name = "" + date + "_hpd" + hpdValue;
-                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue);
+                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue,
+                            getSliceContourPaths(slice, traitIndex, hpdValue));
                 }
 
             }
@@ -1090,24 +1100,15 @@ public class TimeSlicer {
         }
     }
 
-    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue) {
+    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue,
+                                  ContourPath[] paths) {
         //to test how much points are within the polygons
         double numberOfPointsInPolygons = 0;
         double totalArea = 0;
 
-        ContourMaker contourMaker;
-        if (contourMode == ContourMode.JAVA)
-//            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
-            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
-        else if (contourMode == ContourMode.R)
-            contourMaker = new ContourWithR(y[0], y[1], gridSize);
-        else if (contourMode == ContourMode.SNYDER)
-//            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
-            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
-        else
-            throw new RuntimeException("Unimplemented ContourModel!");
-
-        ContourPath[] paths = contourMaker.getContourPaths(hpdValue);
+        if (paths == null) {
+            paths = createContourMaker(y).getContourPaths(hpdValue);
+        }
         int pathCounter = 1;
         for (ContourPath path : paths) {
 
@@ -1156,6 +1157,69 @@ public class TimeSlicer {
         }
     }
 
+    private ContourMaker createContourMaker(double[][] y) {
+        ContourMaker contourMaker;
+        if (contourMode == ContourMode.JAVA)
+//            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
+            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
+        else if (contourMode == ContourMode.R)
+            contourMaker = new ContourWithR(y[0], y[1], gridSize);
+        else if (contourMode == ContourMode.SNYDER)
+//            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
+            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
+        else if (contourMode == ContourMode.BINNED)
+            contourMaker = new BinnedKernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
+        else
+            throw new RuntimeException("Unimplemented ContourModel!");
+        return contourMaker;
+    }
+
+    /**
+     * Starts the contouring of the bivariate traits of every slice on the thread pool, so that it
+     * runs concurrently across slices while the summaries are written in order.
+     */
+    private void startSliceContours(ExecutorService pool, double[] hpdValues) {
+        sliceContourPaths = new HashMap<String, Future<ContourPath[]>>();
+        for (int i = 0; i < values.size(); i++) {
+            final SliceValues thisSlice = values.get(i);
+            if (thisSlice.size() == 0) {
+                continue;
+            }
+            for (int j = 0; j < traitCount; j++) {
+                if (!thisSlice.isNumber(j) || !thisSlice.isMultivariate(j) || thisSlice.getDim(j) != 2) {
+                    continue;
+                }
+                final int traitIndex = j;
+                for (final double hpdValue : hpdValues) {
+                    sliceContourPaths.put(i + "_" + j + "_" + hpdValue, pool.submit(new Callable<ContourPath[]>() {
+                        public ContourPath[] call() {
+                            return createContourMaker(thisSlice.getValues(traitIndex)).getContourPaths(hpdValue);
+                        }
+                    }));
+                }
+            }
+        }
+    }
+
+    private ContourPath[] getSliceContourPaths(int slice, int traitIndex, double hpdValue) {
+        if (sliceContourPaths == null) {
+            return null;
+        }
+        Future<ContourPath[]> future = sliceContourPaths.remove(slice + "_" + traitIndex + "_" + hpdValue);
+        return future == null ? null : getResult(future);
+    }
+
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     public static int getNumberOfPointsInPolygon(double[][] pointsArray, Polygon2D testPolygon) {
         int numberOfPointsInPolygon = 0;
         for (int x = 0; x < pointsArray[0].length; x++) {
@@ -1412,9 +1476,9 @@ public class TimeSlicer {
         StringBuffer sb = new StringBuffer("slice");
         for (int i = 0; i < traits.length; i++) {
             // Load first value to check dimensionality
-            Trait trait = values.get(0).get(i).get(0);
-            if (trait.isMultivariate()) {
-                int dim = trait.getDim();
+            SliceValues slice = values.get(0);
+            if (slice.isMultivariate(i)) {
+                int dim = slice.getDim(i);
                 for (int j = 1; j <= dim; j++)
                     sb.append(sep).append(traits[i]).append(j);
             } else
@@ -1462,9 +1526,9 @@ public class TimeSlicer {
 //    }
 
     private void readAndAnalyzeTrees(String treeFileName, int burnin, int skipEvery,
-                                     String[] traits, double[] slices,
-                                     boolean impute, boolean trueNoise, Normalization normalize,
-                                     boolean divideByBranchLength, BranchSet branchset, Set taxaSet)
+                                     final String[] traits, final double[] slices,
+                                     final boolean impute, final boolean trueNoise, final Normalization normalize,
+                                     final boolean divideByBranchLength, final BranchSet branchset, final Set taxaSet)
             throws IOException, Importer.ImportException {
 
         int totalTrees = 10000;
@@ -1477,23 +1541,45 @@ public class TimeSlicer {
         int stepSize = totalTrees / 60;
         if (stepSize < 1) stepSize = 1;
 
-        BufferedReader reader1 = new BufferedReader(new FileReader(treeFileName));
+        // reads either NEXUS or Newick trees, refilling the same few trees as they are analyzed
+        FileInputStream inputStream = new FileInputStream(treeFileName);
+        CompactTreeImporter importer1 = new CompactTreeImporter(inputStream);
+        totalTrees = 0;
 
-        String line1 = reader1.readLine();
-        TreeImporter importer1;
-        if (line1.toUpperCase().startsWith("#NEXUS")) {
-            importer1 = new NexusImporter(new FileReader(treeFileName));
-        } else {
-            importer1 = new NewickImporter(new FileReader(treeFileName));
+        // trees are sliced by the pool while the next ones are read, and added in the order read
+        ExecutorService pool = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        final int maxPending = pool == null ? 1 : 2 * threadCount;
+        CompactTree[] trees = new CompactTree[maxPending];
+        for (int i = 0; i < maxPending; i++) {
+            trees[i] = new CompactTree();
         }
-        totalTrees = 0;
+        LinkedList<Future<TreeSlices>> pending = new LinkedList<Future<TreeSlices>>();
+        int nextTree = 0;
 
-        while (importer1.hasTree()) {
-            Tree treeTime = importer1.importNextTree();
+        while (true) {
+            if (pending.size() == maxPending) {
+                // the oldest tree is the one to be refilled
+                addTreeSlices(getResult(pending.removeFirst()));
+            }
+            final CompactTree treeTime = trees[nextTree];
+            if (!importer1.readNextTree(treeTime)) {
+                break;
+            }
             if (totalTrees % skipEvery == 0) {
                 treesRead++;
                 if (totalTrees >= burnin) {
-                    analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet);
+                    // the noise of each tree is drawn from its own seed, taken in the order the trees are read
+                    final long seed = impute && trueNoise ? MathUtils.nextLong() : 0;
+                    if (pool == null) {
+                        addTreeSlices(analyzeTree(seed, treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet));
+                    } else {
+                        pending.add(pool.submit(new Callable<TreeSlices>() {
+                            public TreeSlices call() {
+                                return analyzeTree(seed, treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet);
+                            }
+                        }));
+                        nextTree = (nextTree + 1) % maxPending;
+                    }
                 }
             }
             if (totalTrees > 0 && totalTrees % stepSize == 0) {
@@ -1505,6 +1591,13 @@ public class TimeSlicer {
             }
             totalTrees++;
         }
+        while (!pending.isEmpty()) {
+            addTreeSlices(getResult(pending.removeFirst()));
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        inputStream.close();
         progressStream.print("\n");
     }
 
@@ -1586,16 +1679,156 @@ public class TimeSlicer {
         }
     }
 
-    private List<List<List<Trait>>> values;
+    /**
+     * The values of the traits in a slice, one row of values for each branch (or node) in the slice.
+     * Numerical traits are kept as coordinates in primitive arrays. If the number of rows is capped,
+     * the rows kept are a uniform (reservoir) sample of all the rows added.
+     */
+    class SliceValues {
+
+        SliceValues(int traitCount, int maxRowCount) {
+            columns = new Column[traitCount];
+            this.maxRowCount = maxRowCount;
+        }
+
+        void add(Trait[] row) {
+            if (rowCount == 0 && columns[0] == null) {
+                for (int j = 0; j < columns.length; j++) {
+                    columns[j] = new Column(row[j]);
+                }
+            }
+            addedCount++;
+
+            int index = rowCount;
+            if (maxRowCount > 0 && rowCount == maxRowCount) {
+                // replaces a random row with probability maxRowCount / addedCount
+                final long sample = (long) (MathUtils.nextDouble() * addedCount);
+                if (sample >= maxRowCount) {
+                    return;
+                }
+                index = (int) sample;
+            }
+            for (int j = 0; j < columns.length; j++) {
+                columns[j].set(index, row[j]);
+            }
+            if (index == rowCount) {
+                rowCount++;
+            }
+        }
+
+        int size() {
+            return rowCount;
+        }
+
+        boolean isNumber(int trait) {
+            return columns[trait] != null && columns[trait].numbers != null;
+        }
+
+        boolean isMultivariate(int trait) {
+            return columns[trait] != null && columns[trait].isMultivariate;
+        }
+
+        int getDim(int trait) {
+            return columns[trait] == null ? 1 : columns[trait].dim;
+        }
+
+        /**
+         * @return the values of a numerical trait, indexed by dimension and then row
+         */
+        double[][] getValues(int trait) {
+            final Column column = columns[trait];
+            final int dim = column.dim;
+            double[][] y = new double[dim][rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                for (int j = 0; j < dim; j++) {
+                    y[j][i] = column.numbers[i * dim + j];
+                }
+            }
+            return y;
+        }
+
+        String toString(int row, int trait) {
+            final Column column = columns[trait];
+            if (column.numbers == null) {
+                return column.traits.get(row).toString();
+            }
+            StringBuffer sb = new StringBuffer(Double.toString(column.numbers[row * column.dim]));
+            for (int j = 1; j < column.dim; j++)
+                sb.append(sep).append(column.numbers[row * column.dim + j]);
+            return sb.toString();
+        }
+
+        private class Column {
+
+            Column(Trait first) {
+                isMultivariate = first.isMultivariate();
+                dim = first.getDim();
+                if (first.isNumber()) {
+                    numbers = new double[dim * 16];
+                } else {
+                    traits = new ArrayList<Trait>();
+                }
+            }
+
+            void set(int index, Trait trait) {
+                if (numbers != null && !(trait.isNumber() && trait.isMultivariate() == isMultivariate && trait.getDim() == dim)) {
+                    // not like the first value, so keep the values as they are
+                    traits = new ArrayList<Trait>(rowCount + 16);
+                    for (int i = 0; i < rowCount; i++) {
+                        traits.add(getTrait(i));
+                    }
+                    numbers = null;
+                }
+
+                if (numbers == null) {
+                    if (index < traits.size()) {
+                        traits.set(index, trait);
+                    } else {
+                        traits.add(trait);
+                    }
+                    return;
+                }
+
+                if ((index + 1) * dim > numbers.length) {
+                    double[] newNumbers = new double[numbers.length * 3 / 2 + dim];
+                    System.arraycopy(numbers, 0, newNumbers, 0, index * dim);
+                    numbers = newNumbers;
+                }
+                System.arraycopy(trait.getValue(), 0, numbers, index * dim, dim);
+            }
+
+            private Trait getTrait(int index) {
+                if (!isMultivariate) {
+                    return new Trait(numbers[index]);
+                }
+                Object[] array = new Object[dim];
+                for (int j = 0; j < dim; j++) {
+                    array[j] = numbers[index * dim + j];
+                }
+                return new Trait(array);
+            }
+
+            private final boolean isMultivariate;
+            private final int dim;
+            private double[] numbers;
+            private List<Trait> traits;
+        }
+
+        private final Column[] columns;
+        private final int maxRowCount;
+        private int rowCount = 0;
+        private long addedCount = 0;
+    }
+
+    private List<SliceValues> values;
     private List<List<Trait>> rootValues;
     private List<List<List<Trait>>> tipValues;
     private List<String> tipNames;
 
     private void outputSlice(int slice, double sliceValue) {
 
-        List<List<Trait>> thisSlice = values.get(slice);
-        int traitCount = thisSlice.size();
-        int valueCount = thisSlice.get(0).size();
+        SliceValues thisSlice = values.get(slice);
+        int valueCount = thisSlice.size();
 
         StringBuffer sb = new StringBuffer();
 
@@ -1606,7 +1839,7 @@ public class TimeSlicer {
                 sb.append(sliceValue);
             for (int t = 0; t < traitCount; t++) {
                 sb.append(sep);
-                sb.append(thisSlice.get(t).get(v));
+                sb.append(thisSlice.toString(v, t));
             }
             sb.append("\n");
         }
@@ -1668,10 +1901,35 @@ public class TimeSlicer {
         } else return false;
     }
 
-    private void analyzeTree(Tree treeTime, String[] traits, double[] slices, boolean impute,
+    /**
+     * Slices a tree with the random numbers for its noise drawn from the given seed, so that the
+     * values found do not depend on the thread it is sliced in.
+     */
+    private TreeSlices analyzeTree(long seed, Tree treeTime, String[] traits, double[] slices, boolean impute,
+                                   boolean trueNoise, Normalization normalize, boolean divideByBranchlength,
+                                   BranchSet branchset, Set taxaSet) {
+        if (!(impute && trueNoise)) {
+            return analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchlength,
+                    branchset, taxaSet);
+        }
+        MathUtils.setThreadSeed(seed);
+        try {
+            return analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchlength,
+                    branchset, taxaSet);
+        } finally {
+            MathUtils.removeThreadRandom();
+        }
+    }
+
+    /**
+     * Slices a tree. Only reads the fields of the TimeSlicer, so trees can be analyzed concurrently;
+     * the values found are added by addTreeSlices.
+     */
+    private TreeSlices analyzeTree(Tree treeTime, String[] traits, double[] slices, boolean impute,
                              boolean trueNoise, Normalization normalize, boolean divideByBranchlength,
                              BranchSet branchset, Set taxaSet) {
 
+        TreeSlices result = new TreeSlices(sliceCount);
         double[][] precision = null;
 
         if (impute) {
@@ -1699,19 +1957,12 @@ public class TimeSlicer {
         }
 
 
-        if (tipValues != null && tipValues.size() == 0) {
-            // this is the first tree so initialize the tip value lists
+        if (tipValues != null) {
+            result.tipNames = new String[treeTime.getExternalNodeCount()];
+            result.tipTraits = new Trait[treeTime.getExternalNodeCount()][traitCount];
             for (int i = 0; i < treeTime.getExternalNodeCount(); i++) {
-                List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
-                tipValues.add(thisTip);
-                for (int j = 0; j < traitCount; j++) {
-                    List<Trait> thisTipTrait = new ArrayList<Trait>();
-                    thisTip.add(thisTipTrait);
-                }
-
-                tipNames.add(treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId());
+                result.tipNames[i] = treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId();
             }
-
         }
 
 //  employed to get dispersal rates across the whole tree
@@ -1732,7 +1983,7 @@ public class TimeSlicer {
         double[][] treeSliceDiffusionCoefficients = new double[sliceCount][treeTime.getNodeCount() - 1];
         double[] treeSliceBranchCount = new double[sliceCount];
 
-        treeLengths.add(Tree.Utils.getTreeLength(treeTime, treeTime.getRoot()));
+        result.treeLength = Tree.Utils.getTreeLength(treeTime, treeTime.getRoot());
 
         for (int x = 0; x < treeTime.getNodeCount(); x++) {
 
@@ -1884,10 +2135,9 @@ public class TimeSlicer {
 
                         if (proceed) {
 
-                            List<List<Trait>> thisSlice = values.get(i);
+                            Trait[] row = new Trait[traitCount];
                             for (int j = 0; j < traitCount; j++) {
 
-                                List<Trait> thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                                 if (tmpTrait == null) {
                                     System.err.println("Trait '" + traits[j] + "' not found on branch.");
@@ -1904,10 +2154,7 @@ public class TimeSlicer {
                                         Double rateAttribute = (Double) treeTime.getNodeAttribute(node, rateAttributeString);
                                         if (rateAttribute != null) {
                                             rate = rateAttribute;
-                                            if (outputRateWarning) {
-                                                progressStream.println("Warning: using "+rateAttributeString+" as rate attribute during imputation!");
-                                                outputRateWarning = false;
-                                            }
+                                            result.usedRateAttribute = true;
                                         }
                                     }
                                     if (trueNoise && precision == null) {
@@ -1924,7 +2171,7 @@ public class TimeSlicer {
 //                                } else if (impute && (sliceMode == SliceMode.NODES)) {
 //                                    progressStream.println("no imputation for slice mode = nodes");
                                 }
-                                thisTraitSlice.add(trait);
+                                row[j] = trait;
                                 //System.out.println("trees "+treesAnalyzed+"\tslice "+slices[i]+"\t"+trait.toString());
 
                                 treeSliceTime[i] += (parentHeight - slices[i]);
@@ -1962,20 +2209,19 @@ public class TimeSlicer {
 
                                 }
                             }
+                            result.sliceRows.get(i).add(row);
                         }
                     }
                 }
 
                 if (tipValues != null && treeTime.isExternal(node)) {
-                    List<List<Trait>> thisTip = tipValues.get(x);
-
                     for (int j = 0; j < traitCount; j++) {
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                         if (tmpTrait == null) {
                             System.err.println("Trait '" + traits[j] + "' not found for tip.");
                             System.exit(-1);
                         }
-                        thisTip.get(j).add(new Trait(tmpTrait, treeTime.getNodeHeight(node)));
+                        result.tipTraits[x][j] = new Trait(tmpTrait, treeTime.getNodeHeight(node));
 
                     }
                 }
@@ -1989,18 +2235,18 @@ public class TimeSlicer {
                             height = slices[i + 1];
                         }
                         if ((slices[i] < nodeHeight && height >= nodeHeight)){
-                            List<List<Trait>> thisSlice = values.get(i);
+                            Trait[] row = new Trait[traitCount];
                             for (int j = 0; j < traitCount; j++) {
-                                List<Trait> thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                                 if (tmpTrait == null) {
                                     System.err.println("Trait '" + traits[j] + "' not found on node.");
                                     System.exit(-1);
                                 }
                                 Trait trait = new Trait(tmpTrait);
-                                thisTraitSlice.add(trait);
+                                row[j] = trait;
 
                             }
+                            result.sliceRows.get(i).add(row);
 
                         }
 
@@ -2008,15 +2254,15 @@ public class TimeSlicer {
                 }
 
                 if (rootValues != null) {
+                    result.rootTraits = new Trait[traitCount];
                     for (int j = 0; j < traitCount; j++) {
-                        List<Trait> thisRootTrait = rootValues.get(j);
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                         if (tmpTrait == null) {
                             System.err.println("Trait '" + traits[j] + "' not found on root node.");
                             System.exit(-1);
                         }
                         Trait trait = new Trait(tmpTrait, treeTime.getNodeHeight(node));
-                        thisRootTrait.add(trait);
+                        result.rootTraits[j] = trait;
 
                     }
                 }
@@ -2026,12 +2272,12 @@ public class TimeSlicer {
         //System.out.println(Tree.Utils.getTreeLength(treeTime, treeTime.getRoot())+"\t"+test);
 
         if (sdr || snr) {
-            sliceTreeDistanceArrays.add(treeSliceDistance);
-            sliceTreeTimeArrays.add(treeSliceTime);
+            result.treeSliceDistance = treeSliceDistance;
+            result.treeSliceTime = treeSliceTime;
             if (sdr){
-                sliceTreeMaxPathDistanceArrays.add(treeSliceMaxDistance);
-                sliceTreeMaxDistanceFromRootArrays.add(maxDistanceFromRoot);
-                sliceTreeTimeFromRootArrays.add(treeTimeFromRoot);
+                result.treeSliceMaxDistance = treeSliceMaxDistance;
+                result.maxDistanceFromRoot = maxDistanceFromRoot;
+                result.treeTimeFromRoot = treeTimeFromRoot;
                 for (int i = 0; i < treeSliceDiffusionCoefficientA.length; i++) {
                     //treeSliceDiffusionCoefficientWA[i] = treeSliceDiffusionCoefficientWA[i]/treeSliceTime[i];
                     treeSliceDiffusionCoefficientA[i] = treeSliceDiffusionCoefficientA[i] / treeSliceBranchCount[i];
@@ -2041,8 +2287,8 @@ public class TimeSlicer {
                     treeSliceDiffusionCoefficientV[i] = treeSliceDiffusionCoefficientV[i] / treeSliceBranchCount[i];
                     //System.out.println(treeSliceTime[i]+"\t"+treeLengths.get(i));
                 }
-                sliceTreeDiffusionCoefficientArrays.add(treeSliceDiffusionCoefficientA);
-                sliceTreeDiffusionCoefficientVarianceArrays.add(treeSliceDiffusionCoefficientV);
+                result.treeSliceDiffusionCoefficientA = treeSliceDiffusionCoefficientA;
+                result.treeSliceDiffusionCoefficientV = treeSliceDiffusionCoefficientV;
             }
         }
 
@@ -2056,8 +2302,95 @@ public class TimeSlicer {
 //            dispersalrates.add(dispersalNativeRate+"\t"+dispersalKilometerRate);
 //        }
 
+        return result;
+    }
+
+    /**
+     * Adds the values found in a tree by analyzeTree. Trees are added in the order they were read.
+     */
+    private void addTreeSlices(TreeSlices treeSlices) {
+        for (int i = 0; i < sliceCount; i++) {
+            SliceValues thisSlice = values.get(i);
+            for (Trait[] row : treeSlices.sliceRows.get(i)) {
+                thisSlice.add(row);
+            }
+        }
+
+        if (rootValues != null && treeSlices.rootTraits != null) {
+            for (int j = 0; j < traitCount; j++) {
+                rootValues.get(j).add(treeSlices.rootTraits[j]);
+            }
+        }
+
+        if (tipValues != null) {
+            if (tipValues.size() == 0) {
+                // this is the first tree so initialize the tip value lists
+                for (int i = 0; i < treeSlices.tipNames.length; i++) {
+                    List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
+                    tipValues.add(thisTip);
+                    for (int j = 0; j < traitCount; j++) {
+                        List<Trait> thisTipTrait = new ArrayList<Trait>();
+                        thisTip.add(thisTipTrait);
+                    }
+
+                    tipNames.add(treeSlices.tipNames[i]);
+                }
+            }
+            for (int i = 0; i < treeSlices.tipTraits.length; i++) {
+                for (int j = 0; j < traitCount; j++) {
+                    tipValues.get(i).get(j).add(treeSlices.tipTraits[i][j]);
+                }
+            }
+        }
+
+        if (treeSlices.usedRateAttribute && outputRateWarning) {
+            progressStream.println("Warning: using "+rateAttributeString+" as rate attribute during imputation!");
+            outputRateWarning = false;
+        }
+
+        treeLengths.add(treeSlices.treeLength);
+
+        if (sdr || snr) {
+            sliceTreeDistanceArrays.add(treeSlices.treeSliceDistance);
+            sliceTreeTimeArrays.add(treeSlices.treeSliceTime);
+            if (sdr){
+                sliceTreeMaxPathDistanceArrays.add(treeSlices.treeSliceMaxDistance);
+                sliceTreeMaxDistanceFromRootArrays.add(treeSlices.maxDistanceFromRoot);
+                sliceTreeTimeFromRootArrays.add(treeSlices.treeTimeFromRoot);
+                sliceTreeDiffusionCoefficientArrays.add(treeSlices.treeSliceDiffusionCoefficientA);
+                sliceTreeDiffusionCoefficientVarianceArrays.add(treeSlices.treeSliceDiffusionCoefficientV);
+            }
+        }
+
         treesAnalyzed++;
+    }
+
+    /**
+     * The values found in one tree.
+     */
+    private class TreeSlices {
+
+        TreeSlices(int sliceCount) {
+            sliceRows = new ArrayList<List<Trait[]>>(sliceCount);
+            for (int i = 0; i < sliceCount; i++) {
+                sliceRows.add(new ArrayList<Trait[]>());
+            }
+        }
 
+        final List<List<Trait[]>> sliceRows;
+        Trait[] rootTraits;
+        String[] tipNames;
+        Trait[][] tipTraits;
+        boolean usedRateAttribute = false;
+        double treeLength;
+
+        double[] treeSliceDistance;
+        double[] treeSliceTime;
+        double[] treeSliceMaxDistance;
+        double[] maxDistanceFromRoot;
+        double[] treeTimeFromRoot;
+        double[] treeSliceDiffusionCoefficientA;
+        double[] treeSliceDiffusionCoefficientV;
     }
 
     private static double getNativeDistance(double[] location1, double[] location2) {
@@ -2126,6 +2459,8 @@ public class TimeSlicer {
     private boolean doSlices;
     private int treesRead = 0;
     private int treesAnalyzed = 0;
+    private int threadCount;
+    private Map<String, Future<ContourPath[]>> sliceContourPaths = null;
     private double mostRecentSamplingDate;
     private ContourMode contourMode;
     private SliceMode sliceMode;
@@ -2633,6 +2968,8 @@ public class TimeSlicer {
         double longMin = -Double.MAX_VALUE;
         String rateString = "location.rate";
         Set descendents = null;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int maxPoints = 0;
 
 //        if (args.length == 0) {
 //          // TODO Make flash GUI
@@ -2685,7 +3022,9 @@ public class TimeSlicer {
                         new Arguments.RealOption(LONGMAX, "specifies the maximum longitude for a child node for a branch to be included in the summary [default=MAX_VALUE]"),
                         new Arguments.RealOption(LONGMIN, "specifies the minimum longitude for a child node for a branch to be included in the summary [default=MIN_VALUE]"),
                         new Arguments.IntegerOption(GRIDSIZE, "the grid size for contouring [default=200]"),
-                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]")
+                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads for slicing trees and contouring [default=number of processors]"),
+                        new Arguments.IntegerOption(MAX_POINTS, "the maximum number of points to keep per slice, sampled at random [default=all points]")
 
                 });
 
@@ -2955,6 +3294,14 @@ public class TimeSlicer {
                 grid = arguments.getIntegerOption(GRIDSIZE);
             }
 
+            if (arguments.hasOption(THREADS)) {
+                threadCount = arguments.getIntegerOption(THREADS);
+            }
+
+            if (arguments.hasOption(MAX_POINTS)) {
+                maxPoints = arguments.getIntegerOption(MAX_POINTS);
+            }
+
 
 
         } catch (Arguments.ArgumentException e) {
@@ -2986,7 +3333,8 @@ public class TimeSlicer {
 
         TimeSlicer timeSlicer = new TimeSlicer(inputFileName, burnin, skipEvery, traitNames, sliceHeights, impute,
                 trueNoise, mrsd, contourMode, sliceMode,summarizeRoot, summarizeTips, normalize, getSDR, getSNR, progress,
-                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString);
+                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString,
+                threadCount, maxPoints);
         timeSlicer.output(outputFileName, summaryOnly, summarizeRoot, summarizeTips, contours, points, outputFormat, hpdValues, outputFileSDR, outputFileSNR);
 
         System.exit(0);
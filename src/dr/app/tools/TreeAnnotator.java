@@ -27,14 +27,17 @@ package dr.app.tools;
 
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
+import dr.evolution.io.CompactTreeImporter;
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
 import dr.evolution.io.NexusImporter;
 import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.CompactTree;
 import dr.evolution.tree.FlexibleTree;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxa;
 import dr.evolution.util.TaxonList;
 import dr.geo.contouring.ContourMaker;
 import dr.geo.contouring.ContourPath;
@@ -48,6 +51,7 @@ import org.rosuda.JRI.RVector;
 import org.rosuda.JRI.Rengine;
 
 import javax.swing.*;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -137,12 +141,12 @@ public class TreeAnnotator {
 
         if (targetOption != Target.USER_TARGET_TREE) {
             cladeSystem = new CladeSystem();
-            FileReader fileReader = new FileReader(inputFileName);
-            TreeImporter importer = new NexusImporter(fileReader);
+            FileInputStream inputStream = new FileInputStream(inputFileName);
+            CompactTreeImporter importer = new CompactTreeImporter(inputStream);
+            CompactTree tree = new CompactTree();
             try {
                 totalTrees = 0;
-                while (importer.hasTree()) {
-                    Tree tree = importer.importNextTree();
+                while (importer.readNextTree(tree)) {
 
                     if (totalTrees >= burnin) {
                         cladeSystem.add(tree, false);
@@ -161,7 +165,7 @@ public class TreeAnnotator {
                 System.err.println("Error Parsing Input Tree: " + e.getMessage());
                 return;
             }
-            fileReader.close();
+            inputStream.close();
             progressStream.println();
             progressStream.println();
 
@@ -234,8 +238,9 @@ public class TreeAnnotator {
         stepSize = totalTrees / 60;
         if (stepSize < 1) stepSize = 1;
 
-        FileReader fileReader = new FileReader(inputFileName);
-        NexusImporter importer = new NexusImporter(fileReader);
+        FileInputStream inputStream = new FileInputStream(inputFileName);
+        CompactTreeImporter importer = new CompactTreeImporter(inputStream);
+        CompactTree tree = new CompactTree();
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
@@ -244,8 +249,7 @@ public class TreeAnnotator {
         try {
             boolean firstTree = true;
             int counter = 0;
-            while (importer.hasTree()) {
-                Tree tree = importer.importNextTree();
+            while (importer.readNextTree(tree)) {
 
                 if (counter >= burnin) {
                     if (firstTree) {
@@ -272,7 +276,7 @@ public class TreeAnnotator {
         }
         progressStream.println();
         progressStream.println();
-        fileReader.close();
+        inputStream.close();
 
         progressStream.println("Annotating target tree...");
 
@@ -335,16 +339,17 @@ public class TreeAnnotator {
 
         int counter = 0;
         int bestTreeNumber = 0;
-        TreeImporter importer = new NexusImporter(new FileReader(inputFileName));
+        CompactTreeImporter importer = new CompactTreeImporter(new FileInputStream(inputFileName));
+        CompactTree tree = new CompactTree();
         try {
-            while (importer.hasTree()) {
-                Tree tree = importer.importNextTree();
+            while (importer.readNextTree(tree)) {
 
                 if (counter >= burnin) {
                     double score = scoreTree(tree, cladeSystem, useSumCladeCredibility);
 //                    progressStream.println(score);
                     if (score > bestScore) {
-                        bestTree = tree;
+                        // the tree is refilled with the next one so keep a copy
+                        bestTree = new CompactTree(tree);
                         bestScore = score;
                         bestTreeNumber = counter + 1;
                     }
@@ -401,7 +406,8 @@ public class TreeAnnotator {
          */
         public void add(Tree tree, boolean includeTips) {
             if (taxonList == null) {
-                taxonList = tree;
+                // a copy as the tree may be refilled by the importer
+                taxonList = new Taxa(tree);
             }
 
             // Recurse over the tree and add all the clades (or increment their
@@ -1445,8 +1451,9 @@ public class TreeAnnotator {
         int reportStepSize = totalTrees / 60;
         if (reportStepSize < 1) reportStepSize = 1;
 
-        final FileReader fileReader = new FileReader(inputFileName);
-        final NexusImporter importer = new NexusImporter(fileReader);
+        final FileInputStream inputStream = new FileInputStream(inputFileName);
+        final CompactTreeImporter importer = new CompactTreeImporter(inputStream);
+        final CompactTree tree = new CompactTree();
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
@@ -1474,8 +1481,7 @@ public class TreeAnnotator {
         totalTreesUsed = 0;
 
         int counter = 0;
-        while (importer.hasTree()) {
-            final Tree tree = importer.importNextTree();
+        while (importer.readNextTree(tree)) {
 
             if (counter >= burnin) {
                 Tree.Utils.preOrderTraversalList(tree, postOrderList);
@@ -1506,7 +1512,7 @@ public class TreeAnnotator {
             final NodeRef node = targetTree.getNode(k);
             targetTree.setNodeHeight(node, ths[k]);
         }
-        fileReader.close();
+        inputStream.close();
 
         progressStream.println();
         progressStream.println();
@@ -28,6 +28,7 @@ package dr.app.tracer.traces;
 import dr.app.gui.chart.Axis;
 import dr.app.gui.chart.DiscreteJChart;
 import dr.app.gui.chart.Plot;
+import dr.app.gui.chart.TraceEnvelope;
 import dr.stats.Variate;
 
 import java.awt.*;
@@ -53,6 +54,9 @@ public class JTraceChart extends DiscreteJChart {
         List<Double> states = new ArrayList<Double>();
         List<Double> values;
 
+        // draws the line with a few segments for each pixel column however long the trace
+        TraceEnvelope envelope;
+
         Trace(int stateStart, int stateStep, List<Double> values) {
 
             this.stateStart = stateStart;
@@ -60,6 +64,12 @@ public class JTraceChart extends DiscreteJChart {
 
             this.values = values;
 
+            double[] valueArray = new double[values.size()];
+            for (int j = 0; j < valueArray.length; j++) {
+                valueArray[j] = values.get(j);
+            }
+            envelope = new TraceEnvelope(valueArray);
+
             sampleCount = values.size();
             sampleStep = 1;
             while (sampleCount > SAMPLE_POINTS) {
@@ -173,7 +183,27 @@ public class JTraceChart extends DiscreteJChart {
 
     }
 
-    private void paintTrace(Graphics2D g2, Trace trace, Paint paint, int sampleFrequency) {
+    private void paintTrace(Graphics2D g2, final Trace trace, Paint paint, int sampleFrequency) {
+        if (isLinePlot && sampleFrequency == 1) {
+            Rectangle clip = g2.getClipBounds();
+            double left = clip != null ? clip.getMinX() : Double.NEGATIVE_INFINITY;
+            double right = clip != null ? clip.getMaxX() : Double.POSITIVE_INFINITY;
+
+            GeneralPath path = trace.envelope.createPath(new TraceEnvelope.Projection() {
+                public double getX(int index) {
+                    return transformX(trace.stateStart + ((double) index * trace.stateStep));
+                }
+
+                public double getY(double value) {
+                    return transformY(value);
+                }
+            }, left, right);
+
+            g2.setPaint(paint);
+            g2.draw(path);
+            return;
+        }
+
         float x = (float) transformX(trace.states.get(0));
         float y = (float) transformY(trace.values.get(0));
 
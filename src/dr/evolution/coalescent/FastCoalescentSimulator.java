@@ -0,0 +1,200 @@
+/*
+ * FastCoalescentSimulator.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.coalescent;
+
+import cern.jet.random.engine.RandomEngine;
+import dr.evolution.tree.CompactTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeSimulator;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.util.HeapSort;
+
+/**
+ * Simulates coalescent trees of many, possibly serially sampled, tips under a demographic function.
+ * Unlike CoalescentSimulator it keeps the lineages in an array, so that each coalescence takes
+ * constant time and a tree takes O(n log n) for sorting the tips. The times of the coalescences
+ * come from the inverse intensity of the demographic function; where that is not implemented
+ * the intensity is inverted numerically. Trees are built as CompactTrees.
+ * <p/>
+ * Batches of trees can be drawn on several threads if the demographic function can be called
+ * concurrently, as the closed forms (e.g., ConstantPopulation, ExponentialGrowth) can.
+ *
+ * @version $Id$
+ */
+public class FastCoalescentSimulator extends TreeSimulator {
+
+    private static final int MAX_BISECTIONS = 200;
+
+    /**
+     * @param taxa        the taxa of the tips, with dates if they are serially sampled
+     * @param demographic the demographic function
+     */
+    public FastCoalescentSimulator(TaxonList taxa, DemographicFunction demographic) {
+        this.demographic = demographic;
+
+        final int taxonCount = taxa.getTaxonCount();
+        if (taxonCount == 0) {
+            throw new IllegalArgumentException("No taxa to simulate a tree of");
+        }
+
+        final boolean usingDates = Taxon.getMostRecentDate() != null;
+        final double[] heights = new double[taxonCount];
+        this.taxa = new Taxon[taxonCount];
+        for (int i = 0; i < taxonCount; i++) {
+            this.taxa[i] = taxa.getTaxon(i);
+            // assume contemporaneous tips without dates
+            heights[i] = usingDates ? this.taxa[i].getHeight() : 0.0;
+        }
+
+        tipOrder = new int[taxonCount];
+        HeapSort.sort(heights, tipOrder);
+        tipHeights = new double[taxonCount];
+        for (int i = 0; i < taxonCount; i++) {
+            tipHeights[i] = heights[tipOrder[i]];
+        }
+
+        hasInverseIntensity = hasInverseIntensity(demographic);
+    }
+
+    private static boolean hasInverseIntensity(DemographicFunction demographic) {
+        try {
+            return !Double.isNaN(demographic.getInverseIntensity(demographic.getIntensity(0.0)));
+        } catch (RuntimeException e) {
+            // not implemented
+            return false;
+        }
+    }
+
+    public Tree simulateTree(RandomEngine random) {
+        final int tipCount = taxa.length;
+        final int nodeCount = 2 * tipCount - 1;
+        final int[] parents = new int[nodeCount];
+        final double[] heights = new double[nodeCount];
+        for (int i = 0; i < tipCount; i++) {
+            heights[tipOrder[i]] = tipHeights[i];
+        }
+
+        final int[] lineages = new int[tipCount];
+        int lineageCount = 0;
+        int nextTip = 0;
+        int nextNode = tipCount;
+
+        double height = tipHeights[0];
+        double intensity = demographic.getIntensity(height);
+        while (nextNode < nodeCount) {
+            // sample the tips up to the current height
+            while (nextTip < tipCount && tipHeights[nextTip] <= height) {
+                lineages[lineageCount++] = tipOrder[nextTip++];
+            }
+
+            if (lineageCount < 2) {
+                height = tipHeights[nextTip];
+                intensity = demographic.getIntensity(height);
+                continue;
+            }
+
+            final double pairCount = 0.5 * lineageCount * (lineageCount - 1);
+            final double nextIntensity = intensity + nextExponential(random) / pairCount;
+            final double coalescentHeight = getInverseIntensity(nextIntensity, height, intensity);
+            if (Double.isNaN(coalescentHeight) || Double.isInfinite(coalescentHeight)) {
+                throw new RuntimeException("The demographic function does not allow " + lineageCount +
+                        " lineages to coalesce after height " + height);
+            }
+
+            if (nextTip < tipCount && coalescentHeight >= tipHeights[nextTip]) {
+                // the waiting time is memoryless, so start again from the next sample
+                height = tipHeights[nextTip];
+                intensity = demographic.getIntensity(height);
+                continue;
+            }
+
+            // coalesce two random lineages, moving the last lineages into their places
+            final int first = nextInt(random, lineageCount);
+            final int left = lineages[first];
+            lineages[first] = lineages[--lineageCount];
+            final int second = nextInt(random, lineageCount);
+            final int right = lineages[second];
+            lineages[second] = lineages[--lineageCount];
+
+            final int node = nextNode++;
+            parents[left] = node;
+            parents[right] = node;
+            heights[node] = coalescentHeight;
+            lineages[lineageCount++] = node;
+
+            height = coalescentHeight;
+            intensity = nextIntensity;
+        }
+        parents[nodeCount - 1] = -1;
+
+        final CompactTree tree = buildTree(taxa, parents, heights);
+        tree.setUnits(demographic.getUnits());
+        return tree;
+    }
+
+    /**
+     * @return the height at which the intensity reaches the target, given that it is below it at
+     *         the lower height
+     */
+    private double getInverseIntensity(double target, double lower, double lowerIntensity) {
+        if (hasInverseIntensity) {
+            return Math.max(demographic.getInverseIntensity(target), lower);
+        }
+
+        // bracket the height, starting from a step for the current population size
+        double step = (target - lowerIntensity) * demographic.getDemographic(lower);
+        if (!(step > 0.0) || Double.isInfinite(step)) {
+            step = 1.0;
+        }
+        double upper = lower + step;
+        while (demographic.getIntensity(upper) < target) {
+            lower = upper;
+            step *= 2.0;
+            upper = lower + step;
+            if (Double.isInfinite(upper)) {
+                return upper;
+            }
+        }
+
+        for (int i = 0; i < MAX_BISECTIONS && upper - lower > 1e-14 * upper; i++) {
+            final double middle = 0.5 * (lower + upper);
+            if (demographic.getIntensity(middle) < target) {
+                lower = middle;
+            } else {
+                upper = middle;
+            }
+        }
+        return 0.5 * (lower + upper);
+    }
+
+    private final DemographicFunction demographic;
+    private final boolean hasInverseIntensity;
+
+    private final Taxon[] taxa;
+    private final int[] tipOrder;
+    private final double[] tipHeights;
+}
@@ -0,0 +1,1010 @@
+/*
+ * CompactTreeImporter.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.evolution.tree.CompactTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.util.Attributable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the trees of a NEXUS TREES block, or of a file of Newick trees, into CompactTrees.
+ * <p/>
+ * This reads bytes straight from a buffer and keeps numeric node attributes unboxed, so unlike
+ * NexusImporter it allocates very little per tree; with readNextTree(CompactTree) the same tree
+ * is refilled each time and (once the first tree has been read) reading a typical BEAST tree
+ * allocates nothing beyond the tree's name and any non-numeric attribute values. It is meant for
+ * tools that stream through many trees such as TreeAnnotator, LogCombiner and TimeSlicer.
+ * <p/>
+ * The trees are numbered and annotated as NexusImporter would: tips are numbered by their entry
+ * in the TRANSLATE command, node attributes have the same names and values and tree comments
+ * become tree attributes. Only ASCII (or UTF-8) files are supported.
+ *
+ * @version $Id$
+ */
+public class CompactTreeImporter implements TreeImporter {
+
+    public CompactTreeImporter(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Reads the next tree into the given tree, replacing its contents.
+     *
+     * @return false if there are no more trees
+     */
+    public boolean readNextTree(CompactTree tree) throws IOException, Importer.ImportException {
+        if (nextTree != null) {
+            throw new IllegalStateException("Use either hasTree()/importNextTree() or readNextTree()");
+        }
+
+        if (!started) {
+            started = true;
+            final int c = skipSpace(NONE);
+            if (c == '(') {
+                isNewick = true;
+            } else if (!findTreesBlock()) {
+                return false;
+            }
+        }
+
+        if (isNewick) {
+            final int c = skipSpace(NONE);
+            if (c == -1) {
+                return false;
+            }
+            tree.clear(attributeNames);
+            readNewick(tree);
+            tree.finish();
+            return true;
+        }
+
+        while (inTreesBlock) {
+            if (!readWord()) {
+                return false;
+            }
+            if (tokenEquals("TREE") || tokenEquals("UTREE")) {
+                tree.clear(attributeNames);
+                readTreeCommand(tree);
+                return true;
+            } else if (tokenEquals("TRANSLATE")) {
+                readTranslation();
+            } else if (tokenEquals("END") || tokenEquals("ENDBLOCK")) {
+                inTreesBlock = false;
+            } else if (tokenLength > 0) {
+                skipCommand();
+            }
+        }
+        return false;
+    }
+
+    // **************************************************************
+    // TreeImporter IMPLEMENTATION
+    // **************************************************************
+
+    public boolean hasTree() throws IOException, Importer.ImportException {
+        if (nextTree == null) {
+            CompactTree tree = new CompactTree();
+            if (readNextTree(tree)) {
+                nextTree = tree;
+            }
+        }
+        return nextTree != null;
+    }
+
+    public Tree importNextTree() throws IOException, Importer.ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = nextTree;
+        nextTree = null;
+        return tree;
+    }
+
+    public Tree importTree(TaxonList taxonList) throws IOException, Importer.ImportException {
+        setTaxa(taxonList);
+        return importNextTree();
+    }
+
+    public Tree[] importTrees(TaxonList taxonList) throws IOException, Importer.ImportException {
+        setTaxa(taxonList);
+        List<Tree> trees = new ArrayList<Tree>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        return trees.toArray(new Tree[trees.size()]);
+    }
+
+    private void setTaxa(TaxonList taxonList) {
+        if (taxonList != null) {
+            taxa = new ArrayList<Taxon>();
+            for (int i = 0; i < taxonList.getTaxonCount(); i++) {
+                taxa.add(taxonList.getTaxon(i));
+            }
+        }
+    }
+
+    // **************************************************************
+    // NEXUS commands
+    // **************************************************************
+
+    private boolean findTreesBlock() throws IOException, Importer.ImportException {
+        while (readWord()) {
+            if (tokenEquals("BEGIN")) {
+                if (!readWord()) {
+                    return false;
+                }
+                if (tokenEquals("TREES")) {
+                    skipCommand();
+                    inTreesBlock = true;
+                    return true;
+                }
+                if ((tokenEquals("TAXA") || tokenEquals("DATA")) && taxa == null) {
+                    skipCommand();
+                    readTaxaBlock();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the TAXLABELS of a TAXA block, which name the tips if there is no TRANSLATE command.
+     */
+    private void readTaxaBlock() throws IOException, Importer.ImportException {
+        while (readWord()) {
+            if (tokenEquals("TAXLABELS")) {
+                taxa = new ArrayList<Taxon>();
+                while (skipSpace(NONE) != ';') {
+                    readLabel();
+                    taxa.add(new Taxon(tokenString()));
+                }
+                read();
+            } else if (tokenEquals("END") || tokenEquals("ENDBLOCK")) {
+                skipCommand();
+                return;
+            } else if (tokenLength > 0) {
+                skipCommand();
+            }
+        }
+    }
+
+    private void readTranslation() throws IOException, Importer.ImportException {
+        translation = new LabelTable();
+        translatedTaxa = new ArrayList<Taxon>();
+        translatedNumbers = new ArrayList<Integer>();
+
+        int c;
+        do {
+            if (skipSpace(NONE) == ';') {
+                break;
+            }
+            readLabel();
+            final byte[] key = Arrays.copyOf(token, tokenLength);
+            final int number = parseTipNumber(key);
+
+            if (skipSpace(NONE) == ',' || peek() == ';') {
+                throw new Importer.BadFormatException("Missing taxon label in TRANSLATE command of TREES block");
+            }
+            readLabel();
+            final String name = tokenString();
+            Taxon taxon = null;
+            if (taxa != null) {
+                for (Taxon t : taxa) {
+                    if (t.getId().equals(name)) {
+                        taxon = t;
+                        break;
+                    }
+                }
+                if (taxon == null) {
+                    throw new Importer.UnknownTaxonException(name);
+                }
+            } else {
+                taxon = new Taxon(name);
+            }
+
+            translation.put(key, 0, key.length, translatedTaxa.size());
+            translatedTaxa.add(taxon);
+            translatedNumbers.add(number >= 0 ? number : translatedTaxa.size() - 1);
+
+            c = skipSpace(NONE);
+            if (c != ',' && c != ';') {
+                throw new Importer.BadFormatException("Expecting ',' or ';' after taxon label in TRANSLATE command of TREES block");
+            }
+            read();
+        } while (c != ';');
+    }
+
+    private int parseTipNumber(byte[] label) {
+        int number = 0;
+        for (byte b : label) {
+            if (b < '0' || b > '9' || number > Integer.MAX_VALUE / 10 - 1) {
+                return -1;
+            }
+            number = number * 10 + (b - '0');
+        }
+        return label.length > 0 ? number - 1 : -1;
+    }
+
+    private void readTreeCommand(CompactTree tree) throws IOException, Importer.ImportException {
+        if (skipSpace(NONE) == '*') {
+            // a default tree
+            read();
+        }
+        skipSpace(NONE);
+        readLabel();
+        tree.setId(tokenString());
+
+        // tree attributes come before the '='
+        treeComment = null;
+        if (skipSpace(TREE) != '=') {
+            throw new Importer.BadFormatException("Missing label for tree '" + tree.getId() +
+                    "' or missing '=' in TREE command of TREES block");
+        }
+        read();
+        if (treeComment != null) {
+            try {
+                NexusImporter.parseMetaCommentPairs(treeComment, tree);
+            } catch (Importer.BadFormatException e) {
+                tree.setAttribute("comment", treeComment);
+            }
+        }
+
+        // and special comments such as [&R] or [&W 1/2] after it
+        treeComment = null;
+        if (skipSpace(TREE) != '(') {
+            throw new Importer.BadFormatException("Missing tree definition in TREE command of TREES block");
+        }
+        if (treeComment != null && treeComment.startsWith("W")) {
+            int e = treeComment.indexOf(';');
+            if (e < 0) e = treeComment.length();
+            try {
+                tree.setAttribute("weight", Float.valueOf(treeComment.substring(2, e)));
+            } catch (NumberFormatException ex) {
+                // don't fail, ignore
+            } catch (StringIndexOutOfBoundsException ex) {
+                // ditto
+            }
+        }
+
+        readNewick(tree);
+        tree.finish();
+    }
+
+    private void skipCommand() throws IOException, Importer.ImportException {
+        int c;
+        do {
+            c = skipSpace(NONE);
+            read();
+            if (c == '\'' || c == '"') {
+                // skip quoted strings which may contain ';'
+                int d;
+                do {
+                    d = read();
+                } while (d != c && d != -1);
+            }
+        } while (c != ';' && c != -1);
+    }
+
+    // **************************************************************
+    // Newick
+    // **************************************************************
+
+    /**
+     * Reads a tree up to and including its ';'. This is iterative so that trees of any depth
+     * can be read.
+     */
+    private void readNewick(CompactTree tree) throws IOException, Importer.ImportException {
+        if (skipSpace(NONE) != '(') {
+            throw new Importer.BadFormatException("Missing tree definition");
+        }
+        read();
+        stackSize = 0;
+        push(tree.beginNode(-1));
+
+        int c;
+        while (true) {
+            // read a child of the node on top of the stack
+            final int parent = stack[stackSize - 1];
+            c = skipSpace(NONE);
+            if (c == '(') {
+                read();
+                push(tree.beginNode(parent));
+                continue;
+            }
+            if (c == -1) {
+                throw new Importer.BadFormatException("Unexpected end of file in tree");
+            }
+            final int tip = tree.beginNode(parent);
+            readLabel();
+            setTaxon(tree, tip);
+            readNodeSuffix(tree, tip, false);
+            tree.endNode(tip);
+
+            c = skipSpace(NONE);
+            while (c == ')') {
+                read();
+                final int node = stack[--stackSize];
+                readNodeSuffix(tree, node, true);
+                tree.endNode(node);
+                if (stackSize == 0) {
+                    if (skipSpace(NONE) != ';') {
+                        throw new Importer.BadFormatException("Expecting ';' after tree '" + tree.getId() + "'");
+                    }
+                    read();
+                    return;
+                }
+                c = skipSpace(NONE);
+            }
+            if (c != ',') {
+                throw new Importer.BadFormatException("Missing closing ')' in tree '" + tree.getId() + "'");
+            }
+            read();
+        }
+    }
+
+    private void push(int node) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = node;
+    }
+
+    private void setTaxon(CompactTree tree, int node) throws Importer.ImportException {
+        if (tokenLength == 0) {
+            throw new Importer.BadFormatException("Missing taxon label in tree");
+        }
+        if (translation != null) {
+            final int index = translation.get(token, 0, tokenLength);
+            if (index < 0) {
+                throw new Importer.UnknownTaxonException("Taxon in tree, '" + tokenString() + "' is unknown");
+            }
+            tree.setTaxon(node, translatedTaxa.get(index), translatedNumbers.get(index));
+        } else {
+            if (labels == null) {
+                labels = new LabelTable();
+                labelledTaxa = new ArrayList<Taxon>();
+                if (taxa != null) {
+                    for (Taxon taxon : taxa) {
+                        final byte[] key = taxon.getId().getBytes();
+                        labels.put(key, 0, key.length, labelledTaxa.size());
+                        labelledTaxa.add(taxon);
+                    }
+                }
+            }
+            int index = labels.get(token, 0, tokenLength);
+            if (index < 0) {
+                if (taxa != null) {
+                    throw new Importer.UnknownTaxonException("Taxon in tree, '" + tokenString() + "' is unknown");
+                }
+                index = labelledTaxa.size();
+                labels.put(Arrays.copyOf(token, tokenLength), 0, tokenLength, index);
+                labelledTaxa.add(new Taxon(tokenString()));
+            }
+            tree.setTaxon(node, labelledTaxa.get(index), taxa != null ? index : -1);
+        }
+    }
+
+    /**
+     * Reads what can follow a node: a label (for internal nodes), attribute comments and a
+     * branch length.
+     */
+    private void readNodeSuffix(CompactTree tree, int node, boolean isInternal) throws IOException, Importer.ImportException {
+        int c = skipSpace(node, tree);
+        if (isInternal && c != ':' && c != ',' && c != ')' && c != ';' && c != -1) {
+            // internal node labels (e.g., support values) are ignored, as by NexusImporter
+            readLabel();
+            c = skipSpace(node, tree);
+        }
+        if (c == ':') {
+            read();
+            skipSpace(node, tree);
+            readBareToken();
+            final double length = parseNumber();
+            if (Double.isNaN(length) && !isNaNToken()) {
+                throw new Importer.BadFormatException("Badly formatted branch length '" + tokenString() + "'");
+            }
+            tree.setLength(node, length);
+            skipSpace(node, tree);
+        }
+    }
+
+    // **************************************************************
+    // Attribute comments
+    // **************************************************************
+
+    /**
+     * Reads the body of a [& ... ] comment into node attributes.
+     */
+    private void readNodeComment(final CompactTree tree, final int node) throws IOException, Importer.ImportException {
+        if (peek() == 'B' && peekAhead(1) == ' ') {
+            // a MrBayes annotation
+            readCommentString();
+            NexusImporter.parseMetaCommentPairs(tokenString(), new Attributable() {
+                public void setAttribute(String name, Object value) {
+                    tree.setObjectAttribute(node, getColumn(name), value);
+                }
+
+                public Object getAttribute(String name) {
+                    return null;
+                }
+
+                public Iterator<String> getAttributeNames() {
+                    return null;
+                }
+            });
+            return;
+        }
+
+        int c;
+        while (true) {
+            c = skipBlanks();
+            if (c == ']') {
+                read();
+                return;
+            }
+            if (c == ',') {
+                read();
+                continue;
+            }
+            if (c == -1) {
+                throw new Importer.BadFormatException("Unterminated comment in tree");
+            }
+
+            // the attribute name
+            readAttributeName();
+            int column = attributeColumns.get(token, 0, tokenLength);
+            if (column < 0) {
+                column = getColumn(tokenString());
+            }
+
+            c = skipBlanks();
+            if (c != '=') {
+                tree.setObjectAttribute(node, column, Boolean.TRUE);
+                continue;
+            }
+            read();
+            c = skipBlanks();
+
+            if (c == '{' || c == '"') {
+                readAttributeValue(c == '{' ? '}' : '"');
+                tree.setObjectAttribute(node, column, NexusImporter.parseValue(tokenString()));
+            } else {
+                readAttributeValue(-1);
+                trimToken();
+                final double value = parseNumber();
+                if (!Double.isNaN(value)) {
+                    tree.setNumericAttribute(node, column, value, isIntegerToken());
+                } else {
+                    tree.setObjectAttribute(node, column, NexusImporter.parseValue(tokenString()));
+                }
+            }
+        }
+    }
+
+    private int getColumn(String name) {
+        final byte[] key = name.getBytes();
+        int column = attributeColumns.get(key, 0, key.length);
+        if (column < 0) {
+            column = attributeNames.size();
+            attributeNames.add(name);
+            attributeColumns.put(key, 0, key.length, column);
+        }
+        return column;
+    }
+
+    private void readAttributeName() throws IOException {
+        tokenLength = 0;
+        int c = peek();
+        if (c == '"') {
+            read();
+            while ((c = read()) != '"' && c != -1) {
+                append(c);
+            }
+            return;
+        }
+        while (c != '=' && c != ',' && c != ']' && c != -1 && !isWhitespace(c)) {
+            append(read());
+            c = peek();
+        }
+    }
+
+    /**
+     * Reads a value up to ',' or ']', or up to and including the closing character.
+     */
+    private void readAttributeValue(int close) throws IOException {
+        tokenLength = 0;
+        if (close >= 0) {
+            append(read());
+            int depth = 1;
+            int c;
+            while ((c = read()) != -1) {
+                append(c);
+                if (close == '}' && c == '{') {
+                    depth++;
+                } else if (c == close && --depth == 0) {
+                    break;
+                }
+            }
+            return;
+        }
+        int c = peek();
+        while (c != ',' && c != ']' && c != -1) {
+            append(read());
+            c = peek();
+        }
+    }
+
+    private void readCommentString() throws IOException {
+        tokenLength = 0;
+        int c;
+        while ((c = read()) != ']' && c != -1) {
+            append(c);
+        }
+    }
+
+    // **************************************************************
+    // Tokens
+    // **************************************************************
+
+    /**
+     * Skips whitespace and comments, reading any attribute comments into the given node.
+     *
+     * @return the next character, which is not consumed
+     */
+    private int skipSpace(int node) throws IOException, Importer.ImportException {
+        return skipSpace(node, null);
+    }
+
+    private int skipSpace(int node, CompactTree tree) throws IOException, Importer.ImportException {
+        while (true) {
+            int c = peek();
+            if (isWhitespace(c)) {
+                read();
+            } else if (c == '[') {
+                read();
+                if (peek() == '&') {
+                    read();
+                    if (node == TREE) {
+                        readCommentString();
+                        treeComment = tokenString();
+                    } else if (node >= 0 && tree != null) {
+                        readNodeComment(tree, node);
+                    } else {
+                        skipComment();
+                    }
+                } else {
+                    skipComment();
+                }
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private void skipComment() throws IOException {
+        int depth = 1;
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return;
+            }
+        }
+    }
+
+    private int skipBlanks() throws IOException {
+        int c = peek();
+        while (isWhitespace(c)) {
+            read();
+            c = peek();
+        }
+        return c;
+    }
+
+    /**
+     * Reads a NEXUS word into the token.
+     *
+     * @return false at the end of the file
+     */
+    private boolean readWord() throws IOException, Importer.ImportException {
+        int c = skipSpace(NONE);
+        if (c == -1) {
+            return false;
+        }
+        if (c == ';') {
+            read();
+            tokenLength = 0;
+            return true;
+        }
+        readLabel();
+        return true;
+    }
+
+    /**
+     * Reads a possibly quoted label into the token.
+     */
+    private void readLabel() throws IOException {
+        tokenLength = 0;
+        int c = peek();
+        if (c == '\'' || c == '"') {
+            final int quote = read();
+            while (true) {
+                c = read();
+                if (c == -1) {
+                    return;
+                }
+                if (c == quote) {
+                    if (peek() == quote) {
+                        // a doubled quote stands for itself
+                        read();
+                    } else {
+                        return;
+                    }
+                }
+                append(c);
+            }
+        }
+        while (c != -1 && !isWhitespace(c) && c != '(' && c != ')' && c != ',' && c != ':' &&
+                c != ';' && c != '[' && c != '=') {
+            append(read());
+            c = peek();
+        }
+    }
+
+    /**
+     * Reads a token up to the next delimiter, e.g., a branch length.
+     */
+    private void readBareToken() throws IOException {
+        tokenLength = 0;
+        int c = peek();
+        while (c != -1 && !isWhitespace(c) && c != '(' && c != ')' && c != ',' && c != ':' &&
+                c != ';' && c != '[') {
+            append(read());
+            c = peek();
+        }
+    }
+
+    private void trimToken() {
+        while (tokenLength > 0 && isWhitespace(token[tokenLength - 1])) {
+            tokenLength--;
+        }
+    }
+
+    private boolean tokenEquals(String word) {
+        if (tokenLength != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (Character.toUpperCase((char) token[i]) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private String tokenString() {
+        // the labels are ASCII so avoid the cost of a charset decoder
+        return new String(token, 0, 0, tokenLength);
+    }
+
+    private void append(int c) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, tokenLength * 2);
+        }
+        token[tokenLength++] = (byte) c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    // **************************************************************
+    // Numbers
+    // **************************************************************
+
+    /**
+     * Parses the token as a number. Decimals with up to 15 significant digits and small exponents
+     * are converted directly (and exactly, as a single correctly rounded operation on exact
+     * values); others are handed to Double.parseDouble.
+     *
+     * @return the value or NaN if the token isn't a number
+     */
+    private double parseNumber() {
+        int i = 0;
+        boolean negative = false;
+        if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+            negative = token[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        while (i < tokenLength && token[i] >= '0' && token[i] <= '9') {
+            anyDigits = true;
+            if (mantissa != 0 || token[i] != '0') {
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (token[i] - '0');
+                } else {
+                    exponent++;
+                }
+                digits++;
+            }
+            i++;
+        }
+        if (i < tokenLength && token[i] == '.') {
+            i++;
+            while (i < tokenLength && token[i] >= '0' && token[i] <= '9') {
+                anyDigits = true;
+                if (mantissa != 0 || token[i] != '0') {
+                    if (digits < MAX_DIGITS) {
+                        mantissa = mantissa * 10 + (token[i] - '0');
+                        exponent--;
+                    }
+                    digits++;
+                } else {
+                    exponent--;
+                }
+                i++;
+            }
+        }
+        if (!anyDigits) {
+            return slowParseNumber();
+        }
+        if (i < tokenLength && (token[i] == 'e' || token[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+                negativeExponent = token[i] == '-';
+                i++;
+            }
+            if (i == tokenLength) {
+                return Double.NaN;
+            }
+            int e = 0;
+            while (i < tokenLength && token[i] >= '0' && token[i] <= '9') {
+                if (e < 10000) {
+                    e = e * 10 + (token[i] - '0');
+                }
+                i++;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != tokenLength) {
+            return slowParseNumber();
+        }
+
+        if (digits > MAX_DIGITS || exponent < -22 || exponent > 22) {
+            return slowParseNumber();
+        }
+        double value = (double) mantissa;
+        if (exponent < 0) {
+            value /= POWERS_OF_TEN[-exponent];
+        } else {
+            value *= POWERS_OF_TEN[exponent];
+        }
+        return negative ? -value : value;
+    }
+
+    private double slowParseNumber() {
+        try {
+            return Double.parseDouble(tokenString());
+        } catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+
+    private boolean isNaNToken() {
+        return tokenString().trim().equals("NaN");
+    }
+
+    /**
+     * @return whether the token is an integer as NexusImporter.parseValue would have it
+     */
+    private boolean isIntegerToken() {
+        int i = 0;
+        if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+            i++;
+        }
+        if (i == tokenLength) {
+            return false;
+        }
+        long value = 0;
+        for (; i < tokenLength; i++) {
+            if (token[i] < '0' || token[i] > '9') {
+                return false;
+            }
+            value = value * 10 + (token[i] - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return false;
+            }
+        }
+        return value <= Integer.MAX_VALUE || token[0] == '-';
+    }
+
+    // **************************************************************
+    // Buffered input
+    // **************************************************************
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private int peekAhead(int offset) throws IOException {
+        if (position + offset >= limit) {
+            // keep the unread bytes and top up the buffer
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            final int n = input.read(buffer, limit, buffer.length - limit);
+            if (n > 0) {
+                limit += n;
+            }
+            if (position + offset >= limit) {
+                return -1;
+            }
+        }
+        return buffer[position + offset] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = input.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    /**
+     * An open addressing hash table from byte strings to indices.
+     */
+    private static final class LabelTable {
+
+        int get(byte[] bytes, int offset, int length) {
+            int slot = hash(bytes, offset, length) & (keys.length - 1);
+            while (keys[slot] != null) {
+                if (matches(keys[slot], bytes, offset, length)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            return -1;
+        }
+
+        void put(byte[] bytes, int offset, int length, int value) {
+            if (2 * (size + 1) > keys.length) {
+                final byte[][] oldKeys = keys;
+                final int[] oldValues = values;
+                keys = new byte[oldKeys.length * 2][];
+                values = new int[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) {
+                        put(oldKeys[i], 0, oldKeys[i].length, oldValues[i]);
+                    }
+                }
+            }
+            int slot = hash(bytes, offset, length) & (keys.length - 1);
+            while (keys[slot] != null) {
+                if (matches(keys[slot], bytes, offset, length)) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keys[slot] = Arrays.copyOfRange(bytes, offset, offset + length);
+            values[slot] = value;
+            size++;
+        }
+
+        private static int hash(byte[] bytes, int offset, int length) {
+            int hash = 0x811C9DC5;
+            for (int i = offset; i < offset + length; i++) {
+                hash = (hash ^ bytes[i]) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[][] keys = new byte[64][];
+        private int[] values = new int[64];
+        private int size = 0;
+    }
+
+    private static final int NONE = -1;
+    private static final int TREE = -2;
+
+    private static final int MAX_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final InputStream input;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position = 0;
+    private int limit = 0;
+
+    private byte[] token = new byte[256];
+    private int tokenLength = 0;
+
+    private boolean started = false;
+    private boolean isNewick = false;
+    private boolean inTreesBlock = false;
+    private CompactTree nextTree = null;
+    private String treeComment = null;
+
+    private List<Taxon> taxa = null;
+    private LabelTable translation = null;
+    private List<Taxon> translatedTaxa = null;
+    private List<Integer> translatedNumbers = null;
+    private LabelTable labels = null;
+    private List<Taxon> labelledTaxa = null;
+
+    private final List<String> attributeNames = new ArrayList<String>();
+    private final LabelTable attributeColumns = new LabelTable();
+
+    private int[] stack = new int[64];
+    private int stackSize = 0;
+}
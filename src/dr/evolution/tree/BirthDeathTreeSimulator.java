@@ -0,0 +1,157 @@
+/*
+ * BirthDeathTreeSimulator.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree;
+
+import cern.jet.random.engine.RandomEngine;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+
+/**
+ * Simulates reconstructed trees of a constant rate birth-death process with incomplete sampling of
+ * the extant species, given the number of species and the age of the origin or of the root.
+ * Given the age, the times of the speciations are independent (Stadler 2009, J Theor Biol
+ * 261:58-66) and are drawn by inverting their distribution function. The tree is then the
+ * coalescent point process of those times (Lambert and Stadler 2013), built in linear time, with
+ * the taxa placed at random.
+ *
+ * @version $Id$
+ */
+public class BirthDeathTreeSimulator extends TreeSimulator {
+
+    /**
+     * @param taxa             the extant sampled species
+     * @param birthRate        the speciation rate
+     * @param deathRate        the extinction rate
+     * @param samplingFraction the probability of each extant species being sampled
+     * @param age              the age of the origin or of the root
+     * @param conditionOnRoot  whether the age is that of the root rather than of the origin
+     */
+    public BirthDeathTreeSimulator(TaxonList taxa, double birthRate, double deathRate, double samplingFraction,
+                                   double age, boolean conditionOnRoot) {
+        if (!(birthRate > 0.0) || deathRate < 0.0 || !(samplingFraction > 0.0 && samplingFraction <= 1.0) ||
+                !(age > 0.0)) {
+            throw new IllegalArgumentException("The birth rate, sampling fraction and age must be positive, the " +
+                    "death rate not negative, and the sampling fraction at most one");
+        }
+        if (taxa.getTaxonCount() == 0) {
+            throw new IllegalArgumentException("No taxa to simulate a tree of");
+        }
+
+        this.taxa = new Taxon[taxa.getTaxonCount()];
+        for (int i = 0; i < this.taxa.length; i++) {
+            this.taxa[i] = taxa.getTaxon(i);
+        }
+        this.birthRate = birthRate;
+        this.samplingFraction = samplingFraction;
+        this.age = age;
+        this.conditionOnRoot = conditionOnRoot;
+
+        diversificationRate = birthRate - deathRate;
+        c = birthRate * (1.0 - samplingFraction) - deathRate;
+        criticalRate = Math.abs(diversificationRate) < 1e-10 * birthRate;
+        maxCumulative = cumulative(age);
+    }
+
+    public Tree simulateTree(RandomEngine random) {
+        final int tipCount = taxa.length;
+        final int nodeCount = 2 * tipCount - 1;
+
+        // the times between neighbouring tips of the coalescent point process
+        final double[] times = new double[tipCount - 1];
+        final int rootIndex = conditionOnRoot && tipCount > 1 ? nextInt(random, tipCount - 1) : -1;
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i == rootIndex ? age : quantile(random.nextDouble() * maxCumulative);
+        }
+
+        // the taxa in a random order
+        final Taxon[] tipTaxa = taxa.clone();
+        for (int i = tipCount - 1; i > 0; i--) {
+            final int j = nextInt(random, i + 1);
+            final Taxon taxon = tipTaxa[i];
+            tipTaxa[i] = tipTaxa[j];
+            tipTaxa[j] = taxon;
+        }
+
+        // each time joins the tree to its left, up to the first older time, with the tip to its
+        // right; the stack holds the right-most path of the tree so far, oldest at the bottom
+        final int[] parents = new int[nodeCount];
+        final double[] heights = new double[nodeCount];
+        final int[] stack = new int[tipCount];
+        int top = 0;
+        for (int i = 0; i < times.length; i++) {
+            final int node = tipCount + i;
+            heights[node] = times[i];
+
+            int child = i;
+            while (top > 0 && heights[stack[top - 1]] < times[i]) {
+                final int popped = stack[--top];
+                parents[child] = popped;
+                child = popped;
+            }
+            parents[child] = node;
+            stack[top++] = node;
+        }
+        int child = tipCount - 1;
+        while (top > 0) {
+            final int popped = stack[--top];
+            parents[child] = popped;
+            child = popped;
+        }
+        parents[child] = -1;
+
+        return buildTree(tipTaxa, parents, heights);
+    }
+
+    /**
+     * The distribution function of the time of a speciation, without normalising to the age.
+     */
+    private double cumulative(double t) {
+        if (criticalRate) {
+            return t / (1.0 + samplingFraction * birthRate * t);
+        }
+        final double x = Math.exp(-diversificationRate * t);
+        return (1.0 - x) / (samplingFraction * birthRate + c * x);
+    }
+
+    private double quantile(double p) {
+        if (criticalRate) {
+            return p / (1.0 - samplingFraction * birthRate * p);
+        }
+        final double x = (1.0 - p * samplingFraction * birthRate) / (1.0 + p * c);
+        return -Math.log(x) / diversificationRate;
+    }
+
+    private final Taxon[] taxa;
+    private final double birthRate;
+    private final double samplingFraction;
+    private final double age;
+    private final boolean conditionOnRoot;
+
+    private final double diversificationRate;
+    private final double c;
+    private final boolean criticalRate;
+    private final double maxCumulative;
+}
@@ -0,0 +1,704 @@
+/*
+ * CompactTree.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree;
+
+import dr.evolution.util.Taxon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable (to its users) tree held in flat arrays: parent and child indices, heights, branch
+ * lengths and a column per node attribute, with numeric attribute values kept unboxed. It is
+ * intended for reading very many trees, e.g., by CompactTreeImporter, and the same instance can
+ * be refilled for each tree so that the arrays are only allocated once.
+ * <p/>
+ * Nodes are numbered as FlexibleTree numbers them: the external nodes by taxon and then the
+ * internal nodes in post-order. A tree is filled by calling clear(), then beginNode(),
+ * endNode() and the set methods for each node in the order they are read, then finish().
+ *
+ * @version $Id$
+ */
+public class CompactTree implements Tree {
+
+    private static final long serialVersionUID = -3579251395742705574L;
+
+    public CompactTree() {
+        this(16);
+    }
+
+    /**
+     * @param capacity the number of nodes to allocate space for; this will grow as needed
+     */
+    public CompactTree(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /**
+     * copy constructor
+     */
+    public CompactTree(CompactTree tree) {
+        allocate(Math.max(tree.nodeCount, 1));
+        nodeCount = tree.nodeCount;
+        externalNodeCount = tree.externalNodeCount;
+        root = tree.root;
+        System.arraycopy(tree.parents, 0, parents, 0, nodeCount);
+        System.arraycopy(tree.childStarts, 0, childStarts, 0, nodeCount + 1);
+        System.arraycopy(tree.children, 0, children, 0, nodeCount);
+        System.arraycopy(tree.heights, 0, heights, 0, nodeCount);
+        System.arraycopy(tree.lengths, 0, lengths, 0, nodeCount);
+        System.arraycopy(tree.taxa, 0, taxa, 0, nodeCount);
+
+        columnNames = tree.columnNames;
+        columns = new Column[tree.columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (tree.columns[i] != null) {
+                columns[i] = new Column(tree.columns[i], nodeCount);
+            }
+        }
+
+        id = tree.id;
+        units = tree.units;
+        if (tree.attributes != null) {
+            attributes = new HashMap<String, Object>(tree.attributes);
+        }
+    }
+
+    // **************************************************************
+    // Filling the tree
+    // **************************************************************
+
+    /**
+     * Empties the tree ready for refilling.
+     *
+     * @param columnNames the names of the node attribute columns, which may grow while the tree is
+     *                    filled; this list is kept by the tree and must only be appended to
+     */
+    public void clear(List<String> columnNames) {
+        this.columnNames = columnNames;
+        readCount = 0;
+        orderCount = 0;
+        annotationCount = 0;
+        nodeCount = 0;
+        externalNodeCount = 0;
+        root = -1;
+        id = null;
+        if (attributes != null) {
+            attributes.clear();
+        }
+    }
+
+    /**
+     * Starts a node.
+     *
+     * @param parent the index (returned by this method) of the parent of this node or -1 for the root
+     * @return the index by which this node is referred to until finish() is called
+     */
+    public int beginNode(int parent) {
+        if (readCount == readParents.length) {
+            final int capacity = readCount * 2;
+            readParents = Arrays.copyOf(readParents, capacity);
+            readLengths = Arrays.copyOf(readLengths, capacity);
+            readTipNumbers = Arrays.copyOf(readTipNumbers, capacity);
+            readTaxa = Arrays.copyOf(readTaxa, capacity);
+            order = Arrays.copyOf(order, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        readParents[readCount] = parent;
+        readLengths[readCount] = 0.0;
+        readTipNumbers[readCount] = -1;
+        readTaxa[readCount] = null;
+        return readCount++;
+    }
+
+    /**
+     * Makes a node external.
+     *
+     * @param tipNumber the number the node should have (e.g., from a translation table) or -1 to
+     *                  number external nodes in the order they are read
+     */
+    public void setTaxon(int node, Taxon taxon, int tipNumber) {
+        readTaxa[node] = taxon;
+        readTipNumbers[node] = tipNumber;
+    }
+
+    public void setLength(int node, double length) {
+        readLengths[node] = length;
+    }
+
+    /**
+     * Ends a node once all its children have been ended.
+     */
+    public void endNode(int node) {
+        order[orderCount++] = node;
+    }
+
+    /**
+     * Sets a numeric node attribute.
+     *
+     * @param isInteger whether the value should be reported as an Integer rather than a Double
+     */
+    public void setNumericAttribute(int node, int column, double value, boolean isInteger) {
+        final int k = nextAnnotation();
+        annotationNodes[k] = node;
+        annotationColumns[k] = column;
+        annotationKinds[k] = isInteger ? INTEGER : DOUBLE;
+        annotationNumbers[k] = value;
+        annotationObjects[k] = null;
+    }
+
+    public void setObjectAttribute(int node, int column, Object value) {
+        final int k = nextAnnotation();
+        annotationNodes[k] = node;
+        annotationColumns[k] = column;
+        annotationKinds[k] = OBJECT;
+        annotationObjects[k] = value;
+    }
+
+    private int nextAnnotation() {
+        if (annotationCount == annotationNodes.length) {
+            final int capacity = annotationCount * 2;
+            annotationNodes = Arrays.copyOf(annotationNodes, capacity);
+            annotationColumns = Arrays.copyOf(annotationColumns, capacity);
+            annotationKinds = Arrays.copyOf(annotationKinds, capacity);
+            annotationNumbers = Arrays.copyOf(annotationNumbers, capacity);
+            annotationObjects = Arrays.copyOf(annotationObjects, capacity);
+        }
+        return annotationCount++;
+    }
+
+    /**
+     * Numbers the nodes and calculates the heights from the branch lengths.
+     */
+    public void finish() {
+        if (orderCount != readCount || readCount == 0) {
+            throw new IllegalStateException("The tree has unfinished nodes");
+        }
+
+        nodeCount = readCount;
+        if (parents.length < nodeCount) {
+            allocate(Math.max(nodeCount, parents.length * 2));
+        }
+
+        externalNodeCount = 0;
+        for (int i = 0; i < readCount; i++) {
+            if (readTaxa[i] != null) {
+                externalNodeCount++;
+            }
+        }
+
+        // number the nodes as FlexibleTree does
+        int nextExternal = 0;
+        int nextInternal = externalNodeCount;
+        for (int i = 0; i < orderCount; i++) {
+            final int node = order[i];
+            if (readTaxa[node] != null) {
+                final int number = readTipNumbers[node] >= 0 ? readTipNumbers[node] : nextExternal++;
+                if (number >= externalNodeCount) {
+                    throw new IllegalStateException("Taxon number " + (number + 1) + " is out of range for a tree with " +
+                            externalNodeCount + " taxa");
+                }
+                numbers[node] = number;
+            } else {
+                numbers[node] = nextInternal++;
+            }
+        }
+
+        Arrays.fill(childStarts, 0, nodeCount + 1, 0);
+        for (int i = 0; i < readCount; i++) {
+            final int number = numbers[i];
+            final int parent = readParents[i];
+            if (parent < 0) {
+                root = number;
+                parents[number] = -1;
+            } else {
+                parents[number] = numbers[parent];
+                childStarts[numbers[parent] + 1]++;
+            }
+            lengths[number] = readLengths[i];
+            taxa[number] = readTaxa[i];
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            childStarts[i + 1] += childStarts[i];
+        }
+
+        // children in the order they were read, which is the order they are ended in
+        final int[] next = childCursors;
+        System.arraycopy(childStarts, 0, next, 0, nodeCount);
+        for (int i = 0; i < orderCount; i++) {
+            final int number = numbers[order[i]];
+            if (number != root) {
+                children[next[parents[number]]++] = number;
+            }
+        }
+
+        // heights are the distances from the root (ignoring negative lengths) taken from
+        // the greatest such distance; the order is a post-order so go through it backwards
+        double maxDistance = 0.0;
+        for (int i = orderCount - 1; i >= 0; i--) {
+            final int number = numbers[order[i]];
+            double distance = (number == root ? 0.0 : heights[parents[number]]);
+            if (lengths[number] > 0.0) {
+                distance += lengths[number];
+            }
+            heights[number] = distance;
+            if (number < externalNodeCount && distance > maxDistance) {
+                maxDistance = distance;
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            heights[i] = maxDistance - heights[i];
+        }
+        lengths[root] = 0.0;
+
+        for (Column column : columns) {
+            if (column != null) {
+                column.clear(nodeCount);
+            }
+        }
+        for (int k = 0; k < annotationCount; k++) {
+            final Column column = getColumn(annotationColumns[k]);
+            final int number = numbers[annotationNodes[k]];
+            column.kinds[number] = annotationKinds[k];
+            if (annotationKinds[k] == OBJECT) {
+                column.setObject(number, annotationObjects[k]);
+                annotationObjects[k] = null;
+            } else {
+                column.numbers[number] = annotationNumbers[k];
+            }
+        }
+    }
+
+    private Column getColumn(int column) {
+        if (column >= columns.length) {
+            columns = Arrays.copyOf(columns, Math.max(column + 1, columns.length * 2));
+        }
+        if (columns[column] == null) {
+            columns[column] = new Column(parents.length);
+        }
+        return columns[column];
+    }
+
+    private void allocate(int capacity) {
+        parents = new int[capacity];
+        childStarts = new int[capacity + 1];
+        childCursors = new int[capacity + 1];
+        children = new int[capacity];
+        heights = new double[capacity];
+        lengths = new double[capacity];
+        taxa = new Taxon[capacity];
+
+        nodes = new Node[capacity];
+        for (int i = 0; i < capacity; i++) {
+            nodes[i] = new Node(i);
+        }
+
+        if (readParents == null) {
+            readParents = new int[capacity];
+            readLengths = new double[capacity];
+            readTipNumbers = new int[capacity];
+            readTaxa = new Taxon[capacity];
+            order = new int[capacity];
+            numbers = new int[capacity];
+
+            annotationNodes = new int[capacity];
+            annotationColumns = new int[capacity];
+            annotationKinds = new byte[capacity];
+            annotationNumbers = new double[capacity];
+            annotationObjects = new Object[capacity];
+        }
+
+        for (Column column : columns) {
+            if (column != null) {
+                column.ensureCapacity(capacity);
+            }
+        }
+    }
+
+    // **************************************************************
+    // Array access
+    // **************************************************************
+
+    public int getRootIndex() {
+        return root;
+    }
+
+    public int getParentIndex(int node) {
+        return parents[node];
+    }
+
+    public int getChildCount(int node) {
+        return childStarts[node + 1] - childStarts[node];
+    }
+
+    public int getChildIndex(int node, int i) {
+        return children[childStarts[node] + i];
+    }
+
+    public double getNodeHeight(int node) {
+        return heights[node];
+    }
+
+    public double getBranchLength(int node) {
+        return lengths[node];
+    }
+
+    /**
+     * @return the column of the named node attribute or -1 if no node has it
+     */
+    public int getAttributeColumn(String name) {
+        return columnNames == null ? -1 : columnNames.indexOf(name);
+    }
+
+    public boolean hasAttribute(int node, int column) {
+        return column >= 0 && column < columns.length && columns[column] != null &&
+                columns[column].kinds[node] != MISSING;
+    }
+
+    /**
+     * @return the value of a numeric attribute, without boxing it, or NaN if the node doesn't
+     *         have a numeric value for this attribute
+     */
+    public double getNumericAttribute(int node, int column) {
+        if (!hasAttribute(node, column) || columns[column].kinds[node] == OBJECT) {
+            return Double.NaN;
+        }
+        return columns[column].numbers[node];
+    }
+
+    public Object getAttribute(int node, int column) {
+        if (!hasAttribute(node, column)) {
+            return null;
+        }
+        final Column c = columns[column];
+        switch (c.kinds[node]) {
+            case INTEGER:
+                return (int) c.numbers[node];
+            case DOUBLE:
+                return c.numbers[node];
+            default:
+                return c.objects[node];
+        }
+    }
+
+    // **************************************************************
+    // Tree IMPLEMENTATION
+    // **************************************************************
+
+    public NodeRef getRoot() {
+        return nodes[root];
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public NodeRef getNode(int i) {
+        return nodes[i];
+    }
+
+    public NodeRef getInternalNode(int i) {
+        return nodes[externalNodeCount + i];
+    }
+
+    public NodeRef getExternalNode(int i) {
+        return nodes[i];
+    }
+
+    public int getExternalNodeCount() {
+        return externalNodeCount;
+    }
+
+    public int getInternalNodeCount() {
+        return nodeCount - externalNodeCount;
+    }
+
+    public Taxon getNodeTaxon(NodeRef node) {
+        return taxa[node.getNumber()];
+    }
+
+    public boolean hasNodeHeights() {
+        return true;
+    }
+
+    public double getNodeHeight(NodeRef node) {
+        return heights[node.getNumber()];
+    }
+
+    public boolean hasBranchLengths() {
+        return true;
+    }
+
+    public double getBranchLength(NodeRef node) {
+        return lengths[node.getNumber()];
+    }
+
+    public double getNodeRate(NodeRef node) {
+        final int column = getAttributeColumn("rate");
+        final int number = node.getNumber();
+        if (hasAttribute(number, column)) {
+            if (columns[column].kinds[number] != OBJECT) {
+                return columns[column].numbers[number];
+            }
+            if (columns[column].objects[number] instanceof String) {
+                return Double.parseDouble((String) columns[column].objects[number]);
+            }
+        }
+        return 1.0;
+    }
+
+    public Object getNodeAttribute(NodeRef node, String name) {
+        return getAttribute(node.getNumber(), getAttributeColumn(name));
+    }
+
+    public Iterator getNodeAttributeNames(NodeRef node) {
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < columns.length; i++) {
+            if (hasAttribute(node.getNumber(), i)) {
+                names.add(columnNames.get(i));
+            }
+        }
+        return names.iterator();
+    }
+
+    public boolean isExternal(NodeRef node) {
+        return node.getNumber() < externalNodeCount;
+    }
+
+    public boolean isRoot(NodeRef node) {
+        return node.getNumber() == root;
+    }
+
+    public int getChildCount(NodeRef node) {
+        return getChildCount(node.getNumber());
+    }
+
+    public NodeRef getChild(NodeRef node, int j) {
+        return nodes[getChildIndex(node.getNumber(), j)];
+    }
+
+    public NodeRef getParent(NodeRef node) {
+        final int parent = parents[node.getNumber()];
+        return parent < 0 ? null : nodes[parent];
+    }
+
+    public Tree getCopy() {
+        return new CompactTree(this);
+    }
+
+    // **************************************************************
+    // TaxonList IMPLEMENTATION
+    // **************************************************************
+
+    public int getTaxonCount() {
+        return externalNodeCount;
+    }
+
+    public Taxon getTaxon(int taxonIndex) {
+        return taxa[taxonIndex];
+    }
+
+    public String getTaxonId(int taxonIndex) {
+        Taxon taxon = taxa[taxonIndex];
+        return taxon != null ? taxon.getId() : null;
+    }
+
+    public int getTaxonIndex(String id) {
+        for (int i = 0; i < externalNodeCount; i++) {
+            if (taxa[i].getId().equals(id)) return i;
+        }
+        return -1;
+    }
+
+    public int getTaxonIndex(Taxon taxon) {
+        for (int i = 0; i < externalNodeCount; i++) {
+            if (taxa[i] == taxon) return i;
+        }
+        return -1;
+    }
+
+    public List<Taxon> asList() {
+        return Arrays.asList(Arrays.copyOf(taxa, externalNodeCount));
+    }
+
+    public Iterator<Taxon> iterator() {
+        return asList().iterator();
+    }
+
+    public Object getTaxonAttribute(int taxonIndex, String name) {
+        return taxa[taxonIndex].getAttribute(name);
+    }
+
+    // **************************************************************
+    // Units, Identifiable and Attributable IMPLEMENTATION
+    // **************************************************************
+
+    public Type getUnits() {
+        return units;
+    }
+
+    public void setUnits(Type units) {
+        this.units = units;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<String, Object>();
+        }
+        attributes.put(name, value);
+    }
+
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    public Iterator<String> getAttributeNames() {
+        if (attributes == null) {
+            return Collections.<String>emptyList().iterator();
+        }
+        return attributes.keySet().iterator();
+    }
+
+    public String toString() {
+        return Tree.Utils.newick(this);
+    }
+
+    private static final class Node implements NodeRef {
+
+        Node(int number) {
+            this.number = number;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public void setNumber(int n) {
+            throw new UnsupportedOperationException("The nodes of a CompactTree cannot be renumbered");
+        }
+
+        private final int number;
+    }
+
+    private static final class Column {
+
+        Column(int capacity) {
+            kinds = new byte[capacity];
+            numbers = new double[capacity];
+        }
+
+        Column(Column column, int nodeCount) {
+            kinds = Arrays.copyOf(column.kinds, Math.max(nodeCount, 1));
+            numbers = Arrays.copyOf(column.numbers, Math.max(nodeCount, 1));
+            if (column.objects != null) {
+                objects = Arrays.copyOf(column.objects, Math.max(nodeCount, 1));
+            }
+        }
+
+        void clear(int nodeCount) {
+            Arrays.fill(kinds, 0, nodeCount, MISSING);
+            if (objects != null) {
+                Arrays.fill(objects, 0, nodeCount, null);
+            }
+        }
+
+        void setObject(int node, Object value) {
+            if (objects == null) {
+                objects = new Object[kinds.length];
+            }
+            objects[node] = value;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (kinds.length < capacity) {
+                kinds = Arrays.copyOf(kinds, capacity);
+                numbers = Arrays.copyOf(numbers, capacity);
+                if (objects != null) {
+                    objects = Arrays.copyOf(objects, capacity);
+                }
+            }
+        }
+
+        byte[] kinds;
+        double[] numbers;
+        Object[] objects;
+    }
+
+    private static final byte MISSING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+
+    private int nodeCount = 0;
+    private int externalNodeCount = 0;
+    private int root = -1;
+
+    private int[] parents;
+    private int[] childStarts;
+    private int[] childCursors;
+    private int[] children;
+    private double[] heights;
+    private double[] lengths;
+    private Taxon[] taxa;
+    private Node[] nodes;
+
+    private List<String> columnNames = null;
+    private Column[] columns = new Column[0];
+
+    // the nodes as they are read, before they are numbered
+    private int readCount = 0;
+    private int[] readParents;
+    private double[] readLengths;
+    private int[] readTipNumbers;
+    private Taxon[] readTaxa;
+    private int[] order;
+    private int orderCount = 0;
+    private int[] numbers;
+
+    // the node attributes as they are read
+    private int annotationCount = 0;
+    private int[] annotationNodes;
+    private int[] annotationColumns;
+    private byte[] annotationKinds;
+    private double[] annotationNumbers;
+    private Object[] annotationObjects;
+
+    private String id = null;
+    private Type units = Type.SUBSTITUTIONS;
+    private HashMap<String, Object> attributes = null;
+}
@@ -0,0 +1,190 @@
+/*
+ * TreeSimulator.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree;
+
+import cern.jet.random.engine.RandomEngine;
+import dr.evolution.util.Taxon;
+import dr.math.MathUtils;
+import dr.math.ReplicateRandomEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * The base of the simulators of large trees. A simulation fills flat arrays of parents and heights,
+ * with the tips first, and the tree is built from them as a CompactTree, without any node objects.
+ * Single trees are drawn with MathUtils; batches of replicates are drawn on several threads, each
+ * replicate with its own generator seeded from the batch seed and its number, so that a batch does
+ * not depend on the number of threads.
+ *
+ * @version $Id$
+ */
+public abstract class TreeSimulator {
+
+    /**
+     * @return a tree drawn with the random numbers of MathUtils
+     */
+    public Tree simulateTree() {
+        return simulateTree(MATH_UTILS);
+    }
+
+    /**
+     * Draws a batch of replicate trees. With more than one thread the subclass must only read
+     * objects that are safe to read concurrently.
+     */
+    public List<Tree> simulateTrees(int count, int threadCount, final long seed) {
+        final List<Tree> trees = new ArrayList<Tree>(count);
+        if (threadCount <= 1) {
+            for (int i = 0; i < count; i++) {
+                trees.add(simulateTree(new ReplicateRandomEngine(seed, i)));
+            }
+            return trees;
+        }
+
+        final List<Callable<Tree>> tasks = new ArrayList<Callable<Tree>>(count);
+        for (int i = 0; i < count; i++) {
+            final int replicate = i;
+            tasks.add(new Callable<Tree>() {
+                public Tree call() {
+                    return simulateTree(new ReplicateRandomEngine(seed, replicate));
+                }
+            });
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Tree> future : pool.invokeAll(tasks)) {
+                trees.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while simulating trees");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return trees;
+    }
+
+    /**
+     * Draws a tree with the given random numbers.
+     */
+    public abstract Tree simulateTree(RandomEngine random);
+
+    /**
+     * Builds a tree from flat arrays. The nodes are numbered with the tips first and the parent of
+     * the root is -1; internal nodes must have two children.
+     *
+     * @param taxa    the taxa of the tips
+     * @param parents the parent of each node
+     * @param heights the height of each node
+     */
+    protected static CompactTree buildTree(Taxon[] taxa, int[] parents, double[] heights) {
+        final int nodeCount = parents.length;
+        final CompactTree tree = new CompactTree(nodeCount);
+        tree.clear(new ArrayList<String>());
+
+        int root = -1;
+        final int[] left = new int[nodeCount];
+        final int[] right = new int[nodeCount];
+        Arrays.fill(left, -1);
+        for (int i = 0; i < nodeCount; i++) {
+            final int parent = parents[i];
+            if (parent < 0) {
+                root = i;
+            } else if (left[parent] < 0) {
+                left[parent] = i;
+            } else {
+                right[parent] = i;
+            }
+        }
+
+        // a depth first walk without recursion, beginning each node before its children and ending
+        // it after them, so that the nodes are ended in post-order
+        final int[] stack = new int[nodeCount];
+        final int[] indices = new int[nodeCount];
+        final boolean[] expanded = new boolean[nodeCount];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            final int node = stack[top - 1];
+            if (!expanded[node]) {
+                expanded[node] = true;
+                final int parent = parents[node];
+                indices[node] = tree.beginNode(parent < 0 ? -1 : indices[parent]);
+                if (parent >= 0) {
+                    tree.setLength(indices[node], heights[parent] - heights[node]);
+                }
+                if (node < taxa.length) {
+                    tree.setTaxon(indices[node], taxa[node], node);
+                } else {
+                    stack[top++] = right[node];
+                    stack[top++] = left[node];
+                }
+            } else {
+                tree.endNode(indices[node]);
+                top--;
+            }
+        }
+        tree.finish();
+        return tree;
+    }
+
+    /**
+     * @return an exponential variate of rate one
+     */
+    protected static double nextExponential(RandomEngine random) {
+        return -Math.log(random.raw());
+    }
+
+    /**
+     * @return a uniform integer between zero and n - 1
+     */
+    protected static int nextInt(RandomEngine random, int n) {
+        return Math.min((int) (random.nextDouble() * n), n - 1);
+    }
+
+    private static final RandomEngine MATH_UTILS = new RandomEngine() {
+        public int nextInt() {
+            return MathUtils.nextInt();
+        }
+
+        public double nextDouble() {
+            return MathUtils.nextDouble();
+        }
+
+        public double raw() {
+            double u;
+            do {
+                u = MathUtils.nextDouble();
+            } while (u == 0.0);
+            return u;
+        }
+    };
+}
@@ -29,7 +29,6 @@ import dr.evolution.alignment.PatternList;
 import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.sitemodel.SiteModel;
 import dr.evomodel.tree.TreeModel;
-import dr.evomodel.treelikelihood.LikelihoodScalingProvider;
 import dr.evomodel.treelikelihood.ScaleFactorsHelper;
 import dr.evomodel.treelikelihood.TreeLikelihood;
 import dr.inference.model.Model;
@@ -78,7 +77,7 @@ public class ALSTreeLikelihood extends TreeLikelihood {
         System.err.println("TotalTime: "+totalTime);
         System.err.println("RealTime: "+realTime);*/
 
-        scaleFactorsHelper = new ScaleFactorsHelper((LikelihoodScalingProvider) likelihoodCore, this,
+        scaleFactorsHelper = new ScaleFactorsHelper(this, this,
                 treeModel, stateCount, patternCount, categoryCount);
     }
 
@@ -35,7 +35,7 @@ public class ARGDistinctTreeCountStatistic extends Statistic.Abstract{
 		ArrayList<String> listOfTrees = new ArrayList<String>(numberOfPartitions/10);
 		
 		for(int i = 0; i < numberOfPartitions; i++){
-			ARGTree tree = new ARGTree(arg,i);
+			ARGTree tree = arg.getPartitionTree(i);
 			
 			String newick = tree.getUniqueNewick();
 			
@@ -105,7 +105,7 @@ public class ARGDistinctTreeCountStatistic extends Statistic.Abstract{
 		ArrayList<Integer> numbers = new ArrayList<Integer>(numberOfPartitions);
 		
 		for(int i = 0; i < numberOfPartitions; i++){
-			ARGTree tree = new ARGTree(arg,i);
+			ARGTree tree = arg.getPartitionTree(i);
 			
 			String newick = tree.getUniqueNewick();
 			if(!listOfTrees.contains(newick)){
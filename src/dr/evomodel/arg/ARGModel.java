@@ -38,6 +38,7 @@ import dr.evolution.tree.*;
 import dr.evolution.util.MutableTaxonListListener;
 import dr.evolution.util.Taxon;
 import dr.evomodel.arg.likelihood.ARGLikelihood;
+import dr.evomodel.arg.operators.ARGPartitioningOperator;
 import dr.evomodelxml.tree.TreeModelParser;
 import dr.inference.loggers.LogColumn;
 import dr.inference.loggers.Loggable;
@@ -52,6 +53,7 @@ import org.jdom.Document;
 import org.jdom.Element;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -1086,6 +1088,10 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent(TreeChangedEvent event) {
+        if (!event.isNodeParameterChanged() || event.isTraitChanged()) {
+            // anything but a height or rate change may have moved the partitions
+            clearPartitionTrees();
+        }
         if (inEdit) {
             treeChangedEvents.add(event);
         } else {
@@ -1124,9 +1130,51 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
         maxNumberOfPartitions = likelihoodCalculators.size();
         System.err.println("Add calculator for partition #" + len);
         setPartitionRecursively(getRoot(), len);
+        clearPartitionTrees();
         return len;
     }
 
+    /**
+     * The marginal tree of a partition is built when first asked for and then shared until an edit of the
+     * ARG, a change of the partitioning or a restore may have changed it. The trees read their node heights from the
+     * height parameters of the ARG, so height changes do not rebuild them.
+     *
+     * @param partition the partition
+     * @return the marginal tree of the partition
+     */
+    public ARGTree getPartitionTree(int partition) {
+        if (inEdit) {
+            // the structure is in flux until endTreeEdit()
+            return new ARGTree(this, partition);
+        }
+        if (partition >= partitionTrees.length) {
+            partitionTrees = Arrays.copyOf(partitionTrees, Math.max(partition + 1, maxNumberOfPartitions));
+        }
+        if (partitionTrees[partition] == null) {
+            partitionTrees[partition] = new ARGTree(this, partition);
+        }
+        return partitionTrees[partition];
+    }
+
+    private void clearPartitionTrees() {
+        Arrays.fill(partitionTrees, null);
+    }
+
+    public void fireModelChanged(Object object) {
+        if (object instanceof ARGPartitioningOperator.PartitionChangedEvent) {
+            final boolean[] updatePartition =
+                    ((ARGPartitioningOperator.PartitionChangedEvent) object).getUpdatedPartitions();
+            for (int i = 0; i < updatePartition.length && i < partitionTrees.length; i++) {
+                if (updatePartition[i]) {
+                    partitionTrees[i] = null;
+                }
+            }
+        }
+        super.fireModelChanged(object);
+    }
+
+    private ARGTree[] partitionTrees = new ARGTree[0];
+
     public int getMaxPartitionNumber() {
         return maxNumberOfPartitions;
     }
@@ -1323,7 +1371,7 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
         }
 
         public double getDoubleValue() {
-            ARGTree argTree = new ARGTree(argModel, partition);
+            ARGTree argTree = argModel.getPartitionTree(partition);
             return argTree.getNodeHeight(argTree.getRoot());
             // return (new ARGTree(
         }
@@ -1874,6 +1922,7 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
             throw new RuntimeException("Not in edit transaction mode!");
 
         inEdit = false;
+        clearPartitionTrees();
 
         if (root != oldRoot) {
             swapParameterObjects(oldRoot, root);
@@ -1898,6 +1947,7 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
 
     private void endTreeEditFast() {
         inEdit = false;
+        clearPartitionTrees();
     }
 
     public void setNodeHeight(NodeRef n, double height) {
@@ -2037,6 +2087,9 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
 
 
         nullCounter = storedNullCounter;
+
+        // the trees point at nodes that are now the stored copies, which the next store overwrites
+        clearPartitionTrees();
     }
 
     /**
@@ -2616,7 +2669,7 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
      * @return a string containing a newick representation of the tree
      */
     public final String getNewick(int partition) {
-        return Tree.Utils.newick(new ARGTree(this, partition));
+        return Tree.Utils.newick(getPartitionTree(partition));
         // return Tree.Utils.newick(this);
     }
 
@@ -2727,7 +2780,7 @@ public class ARGModel extends AbstractModel implements MutableTree, Loggable {
         // check.
         boolean valid = true;
         for (int i = 0; valid && i < maxNumberOfPartitions; i++) {
-            ARGTree argTree = new ARGTree(this, i);
+            ARGTree argTree = getPartitionTree(i);
             if (argTree.wasRootTrimmed())
                 valid = false;
         }
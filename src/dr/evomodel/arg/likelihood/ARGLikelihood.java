@@ -263,7 +263,7 @@ public class ARGLikelihood extends AbstractARGLikelihood {
               } else {
                   updateAllNodes();
               }
-              reconstructTree = true; // currently the tree is not cached, because the ARG that generates it is cached
+              reconstructTree = true; // the ARG restores its cached partition tree, so pick that up again
               super.restoreState();
           }
 
@@ -283,7 +283,7 @@ public class ARGLikelihood extends AbstractARGLikelihood {
             oldTree = tree;
             oldMapARGNodesToInts = mapARGNodesToInts;
 
-            tree = new ARGTree(treeModel, partition);            
+            tree = treeModel.getPartitionTree(partition);
             reconstructTree = false;
             mapARGNodesToInts = new HashMap<NodeRef,Integer>(tree.getInternalNodeCount());
             mapARGNodesToTreeNodes = tree.getMapping();
@@ -92,6 +92,31 @@ public class ArbitraryBranchRates extends AbstractBranchRateModel {
         return rate;
     }
 
+    /**
+     * @return the derivative of the rate of this branch with respect to its parameter value
+     */
+    public double getBranchRateDifferential(final Tree tree, final NodeRef node) {
+        final double value = rates.getNodeValue(tree, node);
+        double differential = 1.0;
+        double x = value;
+        if (reciprocal) {
+            differential = -1.0 / (value * value);
+            x = 1.0 / value;
+        }
+        if (exp) {
+            differential *= Math.exp(x);
+        }
+        return differential;
+    }
+
+    public Parameter getRateParameter() {
+        return rateParameter;
+    }
+
+    public int getParameterIndexFromNode(final NodeRef node) {
+        return rates.getParameterIndexFromNode(node);
+    }
+
     public boolean usingReciprocal() {
         return reciprocal;
     }
@@ -22,6 +22,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Intended to replace the tree prior; each subtree in the partition is considered a tree in its own right generated by
@@ -39,8 +44,12 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
     private boolean[] recalculateCoalescentFlags;
     private Treelet[] partitionsAsTrees;
     private Treelet[] storedPartitionsAsTrees;
+    private final MaxTMRCACoalescent[] partitionCoalescents;
     private DemographicModel demoModel;
 
+    private final ExecutorService pool;
+    private final List<Callable<Object>> coalescentCallers = new ArrayList<Callable<Object>>();
+
 
     private double infectiousPeriodsLogLikelihood;
     private double storedInfectiousPeriodsLogLikelihood;
@@ -62,6 +71,19 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
                                 Parameter infectiousTimePositions, Parameter maxFirstInfToRoot,
                                 DemographicModel demoModel)
             throws TaxonList.MissingTaxonException {
+        this(virusTree, caseData, startingNetworkFileName, infectionTimeBranchPositions, infectiousTimePositions,
+                maxFirstInfToRoot, demoModel, 1);
+    }
+
+    /**
+     * @param threadCount the number of threads over which the coalescents of the cases are evaluated; the
+     *                    demographic function must then be safe to integrate from several threads at once
+     */
+    public WithinCaseCoalescent(PartitionedTreeModel virusTree, AbstractOutbreak caseData,
+                                String startingNetworkFileName, Parameter infectionTimeBranchPositions,
+                                Parameter infectiousTimePositions, Parameter maxFirstInfToRoot,
+                                DemographicModel demoModel, int threadCount)
+            throws TaxonList.MissingTaxonException {
         super(WITHIN_CASE_COALESCENT, virusTree, caseData, infectionTimeBranchPositions, infectiousTimePositions,
                 maxFirstInfToRoot);
         this.demoModel = demoModel;
@@ -73,7 +95,9 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
         partitionsAsTrees = new Treelet[caseData.size()];
         storedPartitionsAsTrees = new Treelet[caseData.size()];
+        partitionCoalescents = new MaxTMRCACoalescent[caseData.size()];
 
+        pool = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
 
         prepareTree(startingNetworkFileName);
 
@@ -188,36 +212,48 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
         coalescencesLogLikelihood = 0;
 
+        // the dirty cases are evaluated first, perhaps concurrently, then everything is summed in case order
+
+        final DemographicFunction demographicFunction = demoModel.getDemographicFunction();
+        coalescentCallers.clear();
 
         for(AbstractCase aCase : outbreak.getCases()){
 
             //todo weights (and remember if a weight is zero then the return value should be -INF)
 
-            int number = outbreak.getCaseIndex(aCase);
+            final int number = outbreak.getCaseIndex(aCase);
 
             // and then the little tree calculations
 
-            HashSet<AbstractCase> children = getInfectees(aCase);
-
             if(recalculateCoalescentFlags[number]){
-                Treelet treelet = partitionsAsTrees[number];
-
-                if(children.size()!=0){
-                    MaxTMRCACoalescent coalescent = new MaxTMRCACoalescent(treelet, demoModel,
-                            treelet.getRootHeight()+treelet.getRootBranchLength());
-                    partitionTreeLogLikelihoods[number] = coalescent.calculateLogLikelihood();
-                    recalculateCoalescentFlags[number] = false;
-                    coalescencesLogLikelihood += partitionTreeLogLikelihoods[number];
-                    if(partitionTreeLogLikelihoods[number]==Double.POSITIVE_INFINITY){
-                        debugOutputTree("infCoalescent.nex", false);
-                        debugTreelet(treelet, aCase+"_partition.nex");
+                if(getInfectees(aCase).size()!=0){
+                    if(partitionCoalescents[number]==null){
+                        partitionCoalescents[number] = new MaxTMRCACoalescent();
                     }
+                    final MaxTMRCACoalescent coalescent = partitionCoalescents[number];
+                    coalescent.setTreelet(partitionsAsTrees[number]);
+                    coalescentCallers.add(new Callable<Object>() {
+                        public Object call() {
+                            partitionTreeLogLikelihoods[number]
+                                    = coalescent.calculateLogLikelihood(demographicFunction);
+                            return null;
+                        }
+                    });
                 } else {
                     partitionTreeLogLikelihoods[number] = 0.0;
                 }
                 recalculateCoalescentFlags[number] = false;
-            } else {
-                coalescencesLogLikelihood += partitionTreeLogLikelihoods[number];
+            }
+        }
+
+        calculatePartitionTreeLogLikelihoods();
+
+        for(AbstractCase aCase : outbreak.getCases()){
+            int number = outbreak.getCaseIndex(aCase);
+            coalescencesLogLikelihood += partitionTreeLogLikelihoods[number];
+            if(partitionTreeLogLikelihoods[number]==Double.POSITIVE_INFINITY){
+                debugOutputTree("infCoalescent.nex", false);
+                debugTreelet(partitionsAsTrees[number], aCase+"_partition.nex");
             }
         }
 
@@ -233,10 +269,34 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         return logL;
     }
 
+    private void calculatePartitionTreeLogLikelihoods(){
+        if(pool == null || coalescentCallers.size() < 2){
+            for(Callable<Object> caller : coalescentCallers){
+                try {
+                    caller.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } else {
+            try {
+                for(Future<Object> result : pool.invokeAll(coalescentCallers)){
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        coalescentCallers.clear();
+    }
+
     public void storeState(){
         super.storeState();
-        storedPartitionsAsTrees = Arrays.copyOf(partitionsAsTrees, partitionsAsTrees.length);
-        storedPartitionTreeLogLikelihoods = Arrays.copyOf(partitionTreeLogLikelihoods,
+        System.arraycopy(partitionsAsTrees, 0, storedPartitionsAsTrees, 0, partitionsAsTrees.length);
+        System.arraycopy(partitionTreeLogLikelihoods, 0, storedPartitionTreeLogLikelihoods, 0,
                 partitionTreeLogLikelihoods.length);
 
 
@@ -251,8 +311,13 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
     public void restoreState(){
         super.restoreState();
+        Treelet[] tmpTrees = partitionsAsTrees;
         partitionsAsTrees = storedPartitionsAsTrees;
+        storedPartitionsAsTrees = tmpTrees;
+
+        double[] tmp = partitionTreeLogLikelihoods;
         partitionTreeLogLikelihoods = storedPartitionTreeLogLikelihoods;
+        storedPartitionTreeLogLikelihoods = tmp;
 
 
         coalescencesLogLikelihood = storedCoalescencesLogLikelihood;
@@ -431,19 +496,20 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         }
     }
 
-    private class MaxTMRCACoalescent extends Coalescent {
-
-        private double maxHeight;
+    // One per case, and pointed at the case's current treelet whenever that needs recalculating
 
-        private MaxTMRCACoalescent(Tree tree, DemographicModel demographicModel, double maxHeight){
-            super(tree, demographicModel.getDemographicFunction());
+    private class MaxTMRCACoalescent {
 
-            this.maxHeight = maxHeight;
+        private final TreeIntervals intervals = new TreeIntervals();
+        private double maxHeight;
 
+        private void setTreelet(Treelet treelet){
+            intervals.setTree(treelet);
+            maxHeight = treelet.getRootHeight()+treelet.getRootBranchLength();
         }
 
-        public double calculateLogLikelihood() {
-            return calculatePartitionTreeLogLikelihood(getIntervals(), getDemographicFunction(), 0, maxHeight);
+        private double calculateLogLikelihood(DemographicFunction demographicFunction) {
+            return calculatePartitionTreeLogLikelihood(intervals, demographicFunction, 0, maxHeight);
         }
 
     }
@@ -603,6 +669,7 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         public static final String INFECTIOUS_TIMES = "infectiousTimePositions";
         public static final String MAX_FIRST_INF_TO_ROOT = "maxFirstInfToRoot";
         public static final String DEMOGRAPHIC_MODEL = "demographicModel";
+        public static final String THREADS = "threads";
 
         public String getParserName() {
             return WITHIN_CASE_COALESCENT;
@@ -631,9 +698,14 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
             DemographicModel demoModel = (DemographicModel) xo.getElementFirstChild(DEMOGRAPHIC_MODEL);
 
+            int threads = xo.getAttribute(THREADS, 1);
+            if (threads < 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+
             try {
                 likelihood = new WithinCaseCoalescent(virusTree, caseSet, startingNetworkFileName, infectionTimes,
-                        infectiousTimes, earliestFirstInfection, demoModel);
+                        infectiousTimes, earliestFirstInfection, demoModel, threads);
             } catch (TaxonList.MissingTaxonException e) {
                 throw new XMLParseException(e.toString());
             }
@@ -655,6 +727,8 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         }
 
         private final XMLSyntaxRule[] rules = {
+                AttributeRule.newIntegerRule(THREADS, true, "The number of threads over which the within-case " +
+                        "coalescents are evaluated (-1 for one per processor); the default is 1"),
                 new ElementRule(PartitionedTreeModel.class, "The tree"),
                 new ElementRule(CategoryOutbreak.class, "The set of outbreak"),
                 new ElementRule("startingNetwork", String.class, "A CSV file containing a specified starting network",
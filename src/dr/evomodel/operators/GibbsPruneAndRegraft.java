@@ -7,6 +7,7 @@ import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.TreeRearrangementScorer;
 import dr.evomodelxml.operators.GibbsPruneAndRegraftParser;
 import dr.inference.model.Likelihood;
 import dr.inference.operators.OperatorFailedException;
@@ -33,12 +34,26 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 
 	private boolean pruned = true;
 
+	private final TreeRearrangementScorer scorer;
+
 	/**
 	 *
 	 */
 	public GibbsPruneAndRegraft(TreeModel tree, boolean pruned, double weight) {
+		this(tree, pruned, weight, null);
+	}
+
+	/**
+	 * @param scorer
+	 *            if not null, candidates are scored concurrently from the tree
+	 *            likelihoods it holds rather than by evaluating the posterior
+	 *            for each one in turn
+	 */
+	public GibbsPruneAndRegraft(TreeModel tree, boolean pruned, double weight,
+			TreeRearrangementScorer scorer) {
 		this.tree = tree;
 		this.pruned = pruned;
+		this.scorer = scorer;
 		setWeight(weight);
 		scores = new double[tree.getNodeCount()];
 		MAX_DISTANCE = tree.getNodeCount() / 10;
@@ -84,8 +99,6 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 				tree);
 		int offset = (int) -backwardLikelihood;
 		double backward = Math.exp(backwardLikelihood + offset);
-		final NodeRef oldBrother = getOtherChild(tree, iP, i);
-		final NodeRef oldGrandfather = tree.getParent(iP);
 		for (int n = 0; n < nodeCount; n++) {
 			j = tree.getNode(n);
 			if (j != root) {
@@ -94,19 +107,18 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 				if ((i != j) && (tree.getNodeHeight(j) < heightIP)
 						&& (heightIP < tree.getNodeHeight(jP))) {
 					secondNodeIndices.add(n);
-
-					pruneAndRegraft(tree, i, iP, j, jP);
-					double prob = Math.exp(calculateTreeLikelihood(prior,
-							likelihood, tree)
-							+ offset);
-					probabilities.add(prob);
-					sum += prob;
-
-					pruneAndRegraft(tree, i, iP, oldBrother, oldGrandfather);
 				}
 			}
 		}
 
+		final double[] logScores = scoreRegrafts(prior, likelihood, i,
+				secondNodeIndices, backwardLikelihood);
+		for (double logScore : logScores) {
+			double prob = Math.exp(logScore + offset);
+			probabilities.add(prob);
+			sum += prob;
+		}
+
 		if (sum <= 1E-100) {
 			// hack
 			// the proposals have such a small likelihood that they can be
@@ -163,8 +175,6 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 				tree);
 		int offset = (int) -backwardLikelihood;
 		double backward = Math.exp(backwardLikelihood + offset);
-		final NodeRef oldBrother = getOtherChild(tree, iP, i);
-		final NodeRef oldGrandfather = tree.getParent(iP);
 		for (int n = 0; n < nodeCount; n++) {
 			j = tree.getNode(n);
 			if (j != root) {
@@ -174,20 +184,19 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 						&& (heightIP < tree.getNodeHeight(jP))
 						&& getNodeDistance(iP, jP) <= MAX_DISTANCE) {
 					secondNodeIndices.add(n);
-
-					pruneAndRegraft(tree, i, iP, j, jP);
-					double prob = Math.exp(calculateTreeLikelihood(prior,
-							likelihood, tree)
-							+ offset);
-					probabilities.add(prob);
-					scores[n] = prob;
-					sum += prob;
-
-					pruneAndRegraft(tree, i, iP, oldBrother, oldGrandfather);
 				}
 			}
 		}
 
+		final double[] logScores = scoreRegrafts(prior, likelihood, i,
+				secondNodeIndices, backwardLikelihood);
+		for (int k = 0; k < logScores.length; k++) {
+			double prob = Math.exp(logScores[k] + offset);
+			probabilities.add(prob);
+			scores[secondNodeIndices.get(k)] = prob;
+			sum += prob;
+		}
+
 		if (sum <= 1E-100) {
 			// hack
 			// the proposals have such a small likelihood that they can be
@@ -211,8 +220,7 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 
 		// now simulate the backward move
 		double sumBackward = 0.0;
-		final NodeRef newBrother = j;
-		final NodeRef newGrandfather = jP;
+		List<Integer> unscoredIndices = new ArrayList<Integer>();
 		for (int n = 0; n < nodeCount; n++) {
 			j = tree.getNode(n);
 			if (j != root) {
@@ -225,19 +233,21 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 					if (scores[n] != Double.NEGATIVE_INFINITY) {
 						sumBackward += scores[n];
 					} else {
-						pruneAndRegraft(tree, i, iP, j, jP);
-						double prob = Math.exp(calculateTreeLikelihood(prior,
-								likelihood, tree)
-								+ offset);
-						sumBackward += prob;
-
-						pruneAndRegraft(tree, i, iP, newBrother, newGrandfather);
-						evaluate(likelihood, prior);
+						unscoredIndices.add(n);
 					}
 				}
 			}
 		}
 
+		if (unscoredIndices.size() > 0) {
+			final double proposedLikelihood = scorer == null ? 0.0
+					: calculateTreeLikelihood(prior, likelihood, tree);
+			for (double logScore : scoreRegrafts(prior, likelihood, i,
+					unscoredIndices, proposedLikelihood)) {
+				sumBackward += Math.exp(logScore + offset);
+			}
+		}
+
 		double forward = probabilities.get(index);
 
 		final double forwardProb = (forward / sum);
@@ -247,6 +257,49 @@ public class GibbsPruneAndRegraft extends SimpleMetropolizedGibbsOperator {
 		return hastingsRatio;
 	}
 
+	/**
+	 * Scores regrafting the subtree below i onto the branch above each of the
+	 * given nodes, leaving the tree as it was.
+	 *
+	 * @param currentLikelihood
+	 *            the log posterior of the current tree, which is only needed
+	 *            when a scorer is used
+	 * @return the log posterior of each candidate tree
+	 */
+	private double[] scoreRegrafts(Prior prior, Likelihood likelihood,
+			NodeRef i, List<Integer> nodeIndices, double currentLikelihood)
+			throws OperatorFailedException {
+
+		final double[] logScores = new double[nodeIndices.size()];
+
+		if (scorer != null) {
+			// the other terms of the posterior do not depend on the
+			// topology once the node heights are fixed
+			int[] targets = new int[nodeIndices.size()];
+			for (int k = 0; k < targets.length; k++) {
+				targets[k] = nodeIndices.get(k);
+			}
+			scorer.update(tree);
+			final double[] logLikelihoods = scorer.scoreRegrafts(i, targets);
+			final double rest = currentLikelihood - scorer.getLogLikelihood();
+			for (int k = 0; k < targets.length; k++) {
+				logScores[k] = rest + logLikelihoods[k];
+			}
+			return logScores;
+		}
+
+		final NodeRef iP = tree.getParent(i);
+		final NodeRef brother = getOtherChild(tree, iP, i);
+		final NodeRef grandfather = tree.getParent(iP);
+		for (int k = 0; k < logScores.length; k++) {
+			final NodeRef j = tree.getNode(nodeIndices.get(k));
+			pruneAndRegraft(tree, i, iP, j, tree.getParent(j));
+			logScores[k] = calculateTreeLikelihood(prior, likelihood, tree);
+			pruneAndRegraft(tree, i, iP, brother, grandfather);
+		}
+		return logScores;
+	}
+
 	private int getNodeDistance(NodeRef i, NodeRef j) {
 		int count = 0;
 		double heightI = tree.getNodeHeight(i);
@@ -8,6 +8,7 @@ import dr.evolution.tree.MutableTree.InvalidTreeException;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.TreeRearrangementScorer;
 import dr.inference.model.Likelihood;
 import dr.inference.operators.OperatorFailedException;
 import dr.inference.operators.SimpleMetropolizedGibbsOperator;
@@ -31,12 +32,25 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
 
     private boolean pruned = true;
 
+    private final TreeRearrangementScorer scorer;
+
     /**
      *
      */
     public GibbsSubtreeSwap(TreeModel tree, boolean pruned, double weight) {
+        this(tree, pruned, weight, null);
+    }
+
+    /**
+     * @param scorer if not null, candidates are scored concurrently from the tree
+     *               likelihoods it holds rather than by evaluating the posterior for
+     *               each one in turn
+     */
+    public GibbsSubtreeSwap(TreeModel tree, boolean pruned, double weight,
+                            TreeRearrangementScorer scorer) {
         this.tree = tree;
         this.pruned = pruned;
+        this.scorer = scorer;
         setWeight(weight);
         MAX_DISTANCE = tree.getNodeCount() / 10;
         MAX_DISTANCE = 4;
@@ -91,9 +105,9 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         double heightIP = tree.getNodeHeight(iP);
         double heightI = tree.getNodeHeight(i);
         double sum = 0.0;
-        double backward = calculateTreeLikelihood(prior, likelihood, tree);
-        int offset = (int) -backward;
-        backward = Math.exp(backward + offset);
+        final double backwardLikelihood = calculateTreeLikelihood(prior, likelihood, tree);
+        int offset = (int) -backwardLikelihood;
+        double backward = Math.exp(backwardLikelihood + offset);
         for(int n = 0; n < nodeCount; n++) {
             j = tree.getNode(n);
             if( j != root ) {
@@ -102,19 +116,17 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
                 if( (iP != jP) && (tree.getNodeHeight(j) < heightIP)
                         && (heightI < tree.getNodeHeight(jP)) ) {
                     secondNodeIndices.add(n);
-
-                    swap(tree, i, j, iP, jP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    probabilities.add(prob);
-                    swap(tree, i, j, jP, iP);
-                    sum += prob;
-
                 }
             }
         }
 
+        for(double logScore : scoreSwaps(prior, likelihood, i, secondNodeIndices,
+                backwardLikelihood)) {
+            double prob = Math.exp(logScore + offset);
+            probabilities.add(prob);
+            sum += prob;
+        }
+
         if( sum <= 1E-100 ) {
             // hack
             // the proposals have such a small likelihood that they can be
@@ -143,6 +155,7 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         // assuming we would have chosen j first
         double sumForward2 = 0.0;
         NodeRef k, kP;
+        List<Integer> candidateIndices = new ArrayList<Integer>();
         for(int n = 0; n < nodeCount; n++) {
             k = tree.getNode(n);
             if( k != root ) {
@@ -150,23 +163,24 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
 
                 if( (jP != kP) && (tree.getNodeHeight(k) < heightJP)
                         && (heightJ < tree.getNodeHeight(kP)) ) {
-
-                    swap(tree, j, k, jP, kP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    sumForward2 += prob;
-                    swap(tree, j, k, kP, jP);
+                    candidateIndices.add(n);
                 }
             }
         }
+        for(double logScore : scoreSwaps(prior, likelihood, j, candidateIndices,
+                backwardLikelihood)) {
+            sumForward2 += Math.exp(logScore + offset);
+        }
 
         swap(tree, i, j, iP, jP);
         double forward = probabilities.get(index);
+        final double forwardLikelihood = scorer == null ? 0.0
+                : calculateTreeLikelihood(prior, likelihood, tree);
 
         iP = jP;
         heightIP = heightJP;
         double sumBackward = 0.0;
+        candidateIndices.clear();
         for(int n = 0; n < nodeCount; n++) {
             j = tree.getNode(n);
             if( j != root ) {
@@ -174,17 +188,14 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
 
                 if( (iP != jP) && (tree.getNodeHeight(j) < heightIP)
                         && (heightI < tree.getNodeHeight(jP)) ) {
-
-                    swap(tree, i, j, iP, jP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    sumBackward += prob;
-                    swap(tree, i, j, jP, iP);
-
+                    candidateIndices.add(n);
                 }
             }
         }
+        for(double logScore : scoreSwaps(prior, likelihood, i, candidateIndices,
+                forwardLikelihood)) {
+            sumBackward += Math.exp(logScore + offset);
+        }
 
         // *******************************************
         // assuming we would have chosen j first
@@ -193,6 +204,7 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         jP = tree.getParent(j);
         heightJP = tree.getNodeHeight(jP);
         heightJ = tree.getNodeHeight(j);
+        candidateIndices.clear();
         for(int n = 0; n < nodeCount; n++) {
             k = tree.getNode(n);
             if( k != root ) {
@@ -200,16 +212,14 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
 
                 if( (jP != kP) && (tree.getNodeHeight(k) < heightJP)
                         && (heightJ < tree.getNodeHeight(kP)) ) {
-
-                    swap(tree, j, k, jP, kP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    sumBackward2 += prob;
-                    swap(tree, j, k, kP, jP);
+                    candidateIndices.add(n);
                 }
             }
         }
+        for(double logScore : scoreSwaps(prior, likelihood, j, candidateIndices,
+                forwardLikelihood)) {
+            sumBackward2 += Math.exp(logScore + offset);
+        }
 
         double forwardProb = (forward / sum) + (forward / sumForward2);
         double backwardProb = (backward / sumBackward)
@@ -251,9 +261,9 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         double heightIP = tree.getNodeHeight(iP);
         double heightI = tree.getNodeHeight(i);
         double sum = 0.0;
-        double backward = calculateTreeLikelihood(prior, likelihood, tree);
-        int offset = (int) -backward;
-        backward = Math.exp(backward + offset);
+        final double backwardLikelihood = calculateTreeLikelihood(prior, likelihood, tree);
+        int offset = (int) -backwardLikelihood;
+        double backward = Math.exp(backwardLikelihood + offset);
         for(int n = 0; n < nodeCount; n++) {
             j = tree.getNode(n);
             if( j != root ) {
@@ -263,19 +273,17 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
                         && (heightI < tree.getNodeHeight(jP))
                         && getNodeDistance(iP, jP) <= MAX_DISTANCE ) {
                     secondNodeIndices.add(n);
-
-                    swap(tree, i, j, iP, jP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    probabilities.add(prob);
-                    swap(tree, i, j, jP, iP);
-                    sum += prob;
-
                 }
             }
         }
 
+        for(double logScore : scoreSwaps(prior, likelihood, i, secondNodeIndices,
+                backwardLikelihood)) {
+            double prob = Math.exp(logScore + offset);
+            probabilities.add(prob);
+            sum += prob;
+        }
+
         if( sum <= 1E-100 ) {
             // hack
             // the proposals have such a small likelihood that they can be
@@ -301,6 +309,7 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         // assuming we would have chosen j first
         double sumForward2 = 0.0;
         NodeRef k, kP;
+        List<Integer> candidateIndices = new ArrayList<Integer>();
         for(int n = 0; n < nodeCount; n++) {
             k = tree.getNode(n);
             if( k != root ) {
@@ -309,23 +318,24 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
                 if( (jP != kP) && (tree.getNodeHeight(k) < heightJP)
                         && (heightJ < tree.getNodeHeight(kP))
                         && getNodeDistance(kP, jP) <= MAX_DISTANCE ) {
-
-                    swap(tree, j, k, jP, kP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    sumForward2 += prob;
-                    swap(tree, j, k, kP, jP);
+                    candidateIndices.add(n);
                 }
             }
         }
+        for(double logScore : scoreSwaps(prior, likelihood, j, candidateIndices,
+                backwardLikelihood)) {
+            sumForward2 += Math.exp(logScore + offset);
+        }
 
         swap(tree, i, j, iP, jP);
         double forward = probabilities.get(index);
+        final double forwardLikelihood = scorer == null ? 0.0
+                : calculateTreeLikelihood(prior, likelihood, tree);
 
         iP = jP;
         heightIP = heightJP;
         double sumBackward = 0.0;
+        candidateIndices.clear();
         for(int n = 0; n < nodeCount; n++) {
             j = tree.getNode(n);
             if( j != root ) {
@@ -334,17 +344,14 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
                 if( (iP != jP) && (tree.getNodeHeight(j) < heightIP)
                         && (heightI < tree.getNodeHeight(jP))
                         && getNodeDistance(iP, jP) <= MAX_DISTANCE ) {
-
-                    swap(tree, i, j, iP, jP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    sumBackward += prob;
-                    swap(tree, i, j, jP, iP);
-
+                    candidateIndices.add(n);
                 }
             }
         }
+        for(double logScore : scoreSwaps(prior, likelihood, i, candidateIndices,
+                forwardLikelihood)) {
+            sumBackward += Math.exp(logScore + offset);
+        }
 
         // *******************************************
         // assuming we would have chosen j first
@@ -353,6 +360,7 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         jP = tree.getParent(j);
         heightJP = tree.getNodeHeight(jP);
         heightJ = tree.getNodeHeight(j);
+        candidateIndices.clear();
         for(int n = 0; n < nodeCount; n++) {
             k = tree.getNode(n);
             if( k != root ) {
@@ -361,16 +369,14 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
                 if( (jP != kP) && (tree.getNodeHeight(k) < heightJP)
                         && (heightJ < tree.getNodeHeight(kP))
                         && getNodeDistance(kP, jP) <= MAX_DISTANCE ) {
-
-                    swap(tree, j, k, jP, kP);
-                    double prob = Math.exp(calculateTreeLikelihood(prior,
-                            likelihood, tree)
-                            + offset);
-                    sumBackward2 += prob;
-                    swap(tree, j, k, kP, jP);
+                    candidateIndices.add(n);
                 }
             }
         }
+        for(double logScore : scoreSwaps(prior, likelihood, j, candidateIndices,
+                forwardLikelihood)) {
+            sumBackward2 += Math.exp(logScore + offset);
+        }
 
         double forwardProb = (forward / sum) + (forward / sumForward2);
         double backwardProb = (backward / sumBackward)
@@ -384,6 +390,47 @@ public class GibbsSubtreeSwap extends SimpleMetropolizedGibbsOperator {
         return hastingsRatio;
     }
 
+    /**
+     * Scores exchanging the subtree below node with the subtree below each of
+     * the given nodes, leaving the tree as it was.
+     *
+     * @param currentLikelihood the log posterior of the current tree, which is only
+     *                          needed when a scorer is used
+     * @return the log posterior of each candidate tree
+     */
+    private double[] scoreSwaps(Prior prior, Likelihood likelihood, NodeRef node,
+                                List<Integer> nodeIndices, double currentLikelihood)
+            throws OperatorFailedException {
+
+        final double[] logScores = new double[nodeIndices.size()];
+
+        if( scorer != null ) {
+            // the other terms of the posterior do not depend on the topology
+            // once the node heights are fixed
+            int[] targets = new int[nodeIndices.size()];
+            for(int n = 0; n < targets.length; n++) {
+                targets[n] = nodeIndices.get(n);
+            }
+            scorer.update(tree);
+            final double[] logLikelihoods = scorer.scoreSwaps(node, targets);
+            final double rest = currentLikelihood - scorer.getLogLikelihood();
+            for(int n = 0; n < targets.length; n++) {
+                logScores[n] = rest + logLikelihoods[n];
+            }
+            return logScores;
+        }
+
+        final NodeRef nodeP = tree.getParent(node);
+        for(int n = 0; n < logScores.length; n++) {
+            final NodeRef other = tree.getNode(nodeIndices.get(n));
+            final NodeRef otherP = tree.getParent(other);
+            swap(tree, node, other, nodeP, otherP);
+            logScores[n] = calculateTreeLikelihood(prior, likelihood, tree);
+            swap(tree, node, other, otherP, nodeP);
+        }
+        return logScores;
+    }
+
     private double calculateTreeLikelihood(Prior prior, Likelihood likelihood,
                                            TreeModel tree) {
         return evaluate(likelihood, prior);
@@ -28,6 +28,8 @@
  */
 package dr.evomodel.operators;
 
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.MutableTree.InvalidTreeException;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
@@ -39,6 +41,11 @@ import dr.math.MathUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Sebastian Hoehna
@@ -59,6 +66,10 @@ public class ImportancePruneAndRegraft extends AbstractTreeOperator {
 
     private final OperatorSchedule schedule;
 
+    private int threadCount = 1;
+
+    private ExecutorService pool = null;
+
     /**
      *
      */
@@ -166,10 +177,7 @@ public class ImportancePruneAndRegraft extends AbstractTreeOperator {
         double backwardLikelihood = calculateTreeProbability(tree);
         int offset = (int) -backwardLikelihood;
         double backward = Math.exp(backwardLikelihood + offset);
-        final NodeRef oldBrother = getOtherChild(tree, iP, i);
-        final NodeRef oldGrandfather = tree.getParent(iP);
 
-        tree.beginTreeEdit();
         for (int n = 0; n < nodeCount; n++) {
             j = tree.getNode(n);
             if (j != root) {
@@ -179,18 +187,17 @@ public class ImportancePruneAndRegraft extends AbstractTreeOperator {
                         && (tree.getNodeHeight(j) < iParentHeight && iParentHeight < tree
                         .getNodeHeight(jP))) {
                     secondNodeIndices.add(n);
-
-                    pruneAndRegraft(tree, i, iP, j, jP);
-                    double prob = Math.exp(calculateTreeProbability(tree)
-                            + offset);
-                    probabilities.add(prob);
-                    sum += prob;
-
-                    pruneAndRegraft(tree, i, iP, oldBrother, oldGrandfather);
                 }
             }
         }
 
+        tree.beginTreeEdit();
+        for (double logProbability : scoreRegrafts(i, secondNodeIndices)) {
+            double prob = Math.exp(logProbability + offset);
+            probabilities.add(prob);
+            sum += prob;
+        }
+
         double ran = Math.random() * sum;
         int index = 0;
         while (ran > 0.0) {
@@ -229,7 +236,71 @@ public class ImportancePruneAndRegraft extends AbstractTreeOperator {
         return hastingsRatio;
     }
 
-    private void pruneAndRegraft(TreeModel tree, NodeRef i, NodeRef iP,
+    /**
+     * Calculates the log probability of each tree in which the subtree below i has been
+     * regrafted onto the branch above one of the given nodes. The clade probabilities are only
+     * read here, so with more than one thread the candidates are shared out among copies of
+     * the tree rather than being applied to the tree model in turn.
+     */
+    private double[] scoreRegrafts(final NodeRef i, final List<Integer> nodeIndices)
+            throws OperatorFailedException {
+
+        final double[] logProbabilities = new double[nodeIndices.size()];
+
+        if (pool == null || nodeIndices.size() < 2) {
+            scoreRegrafts(tree, i, nodeIndices, 0, 1, logProbabilities);
+            return logProbabilities;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < threadCount; t++) {
+            final int first = t;
+            final MutableTree copy = new FlexibleTree(tree);
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    copy.beginTreeEdit();
+                    scoreRegrafts(copy, copy.getNode(i.getNumber()), nodeIndices, first, threadCount,
+                            logProbabilities);
+                    copy.endTreeEdit();
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new OperatorFailedException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        return logProbabilities;
+    }
+
+    /**
+     * Scores every stride'th candidate from first onwards on the given tree, which must be in an
+     * edit transaction, and leaves the topology as it was.
+     */
+    private void scoreRegrafts(MutableTree tree, NodeRef i, List<Integer> nodeIndices,
+                               int first, int stride, double[] logProbabilities)
+            throws OperatorFailedException {
+
+        final NodeRef iP = tree.getParent(i);
+        final NodeRef oldBrother = getOtherChild(tree, iP, i);
+        final NodeRef oldGrandfather = tree.getParent(iP);
+
+        for (int k = first; k < logProbabilities.length; k += stride) {
+            final NodeRef j = tree.getNode(nodeIndices.get(k));
+            pruneAndRegraft(tree, i, iP, j, tree.getParent(j));
+            logProbabilities[k] = calculateTreeProbability(tree);
+            pruneAndRegraft(tree, i, iP, oldBrother, oldGrandfather);
+        }
+    }
+
+    private void pruneAndRegraft(MutableTree tree, NodeRef i, NodeRef iP,
                                  NodeRef j, NodeRef jP) throws OperatorFailedException {
         // tree.beginTreeEdit();
 
@@ -257,6 +328,17 @@ public class ImportancePruneAndRegraft extends AbstractTreeOperator {
         this.burnin = burnin;
     }
 
+    /**
+     * @param threads the number of threads among which the candidate regrafts are scored
+     */
+    public void setThreadCount(int threads) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        threadCount = Math.max(1, threads);
+        pool = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -166,6 +166,9 @@ public abstract class AbstractSubstitutionModel extends AbstractModel implements
         storedEvec = Evec;
         Evec = tmp2;
 
+        if (cache != null) {
+            cache.clearMatrices();
+        }
     }
 
     protected void acceptState() {
@@ -208,6 +211,11 @@ public abstract class AbstractSubstitutionModel extends AbstractModel implements
             }
         }
 
+        final boolean cacheMatrix = cache != null && cache.isCachingMatrices();
+        if (cacheMatrix && cache.getMatrix(distance, matrix)) {
+            return;
+        }
+
         // implemented a pool of iexp matrices to support multiple threads
         // without creating a new matrix each call. - AJD
         double[][] iexp = popiexp();
@@ -231,6 +239,10 @@ public abstract class AbstractSubstitutionModel extends AbstractModel implements
             }
         }
         pushiexp(iexp);
+
+        if (cacheMatrix) {
+            cache.putMatrix(distance, matrix);
+        }
     }
 
     /**
@@ -300,13 +312,82 @@ public abstract class AbstractSubstitutionModel extends AbstractModel implements
             System.arraycopy(amat[i], 0, q[i], 0, amat[i].length);
         }
 
-        // compute eigenvalues and eigenvectors
+        if (cache != null) {
+            cache.clearMatrices();
+
+            double[] key = new double[stateCount * stateCount];
+            for (i = 0; i < stateCount; i++) {
+                System.arraycopy(amat[i], 0, key, i * stateCount, stateCount);
+            }
+
+            CachedEigenSystem cached = cache.getEigenSystem(key);
+            if (cached != null) {
+                System.arraycopy(cached.eval, 0, Eval, 0, stateCount);
+                for (i = 0; i < stateCount; i++) {
+                    System.arraycopy(cached.evec[i], 0, Evec[i], 0, stateCount);
+                    System.arraycopy(cached.ievc[i], 0, Ievc[i], 0, stateCount);
+                }
+            } else {
+                decomposeMatrix();
+                cache.putEigenSystem(key, new CachedEigenSystem(Eval, Evec, Ievc));
+            }
+        } else {
+            decomposeMatrix();
+        }
+
+        updateMatrix = false;
+    }
+
+    // compute eigenvalues and eigenvectors of amat, which is overwritten
+    private void decomposeMatrix() {
         elmhes(amat, ordr, stateCount);
         eltran(amat, Evec, ordr, stateCount);
         hqr2(stateCount, 1, stateCount, amat, Evec, Eval, evali);
         luinverse(Evec, Ievc, stateCount);
+    }
 
-        updateMatrix = false;
+    /**
+     * Installs a cache of eigen decompositions (and optionally transition probability matrices)
+     * that is consulted whenever the rate matrix changes. Subclasses that work out their
+     * transition probabilities another way do not use it, see isCacheable.
+     *
+     * @param cache the cache or null to switch caching off
+     */
+    public void setSubstitutionModelCache(SubstitutionModelCache<CachedEigenSystem> cache) {
+        this.cache = cache;
+        updateMatrix = true;
+    }
+
+    public SubstitutionModelCache<CachedEigenSystem> getSubstitutionModelCache() {
+        return cache;
+    }
+
+    /**
+     * @return whether the transition probabilities are computed from the eigen decomposition of
+     * setupMatrix here, so that a cache of eigen decompositions is used
+     */
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /**
+     * An immutable copy of an eigen decomposition.
+     */
+    public static final class CachedEigenSystem {
+
+        CachedEigenSystem(double[] eval, double[][] evec, double[][] ievc) {
+            this.eval = eval.clone();
+            this.evec = new double[evec.length][];
+            this.ievc = new double[ievc.length][];
+            for (int i = 0; i < evec.length; i++) {
+                this.evec[i] = evec[i].clone();
+                this.ievc[i] = ievc[i].clone();
+            }
+        }
+
+        private final double[] eval;
+        private final double[][] evec;
+        private final double[][] ievc;
     }
 
     // Make it a valid rate matrix (make sum of rows = 0)
@@ -412,6 +493,8 @@ public abstract class AbstractSubstitutionModel extends AbstractModel implements
 
     List<double[][]> iexpPool = new LinkedList<double[][]>();
 
+    private SubstitutionModelCache<CachedEigenSystem> cache = null;
+
     private int[] ordr;
     private double[] evali;
     double amat[][];
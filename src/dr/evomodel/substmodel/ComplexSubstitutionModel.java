@@ -206,6 +206,11 @@ public class ComplexSubstitutionModel extends AbstractSubstitutionModel implemen
         return freqModel.getFrequencies();
     }
 
+    public boolean isCacheable() {
+        // the complex eigen decomposition is not cached
+        return false;
+    }
+
     public void setupMatrix() {
 
         if (!eigenInitialised) {
@@ -24,6 +24,11 @@ public class GeneralF81Model extends AbstractSubstitutionModel {
         //To change body of implemented methods use File | Settings | File Templates.
     }
 
+    public boolean isCacheable() {
+        // the transition probabilities have a closed form
+        return false;
+    }
+
     /**
      * get the complete transition probability matrix for the given distance
      *
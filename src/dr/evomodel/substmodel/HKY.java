@@ -48,6 +48,7 @@ public class HKY extends AbstractNucleotideModel {
     private Variable<Double> kappaParameter = null;
 
     private boolean updateIntermediates = true;
+    private boolean updateEigen = true;
 
     /**
      * Used for precalculations
@@ -152,6 +153,11 @@ public class HKY extends AbstractNucleotideModel {
         updateIntermediates = false;
     }
 
+    public boolean isCacheable() {
+        // the transition probabilities have a closed form
+        return false;
+    }
+
     /**
      * get the complete transition probability matrix for the given distance
      *
@@ -213,11 +219,28 @@ public class HKY extends AbstractNucleotideModel {
         A_Y = 1.0 + freqY * (kappa - 1);
 
         updateMatrix = false;
+        updateEigen = true;
     }
 
     protected void setupRelativeRates() {
     }
 
+    /**
+     * Brings the eigen system up to date. The transition probabilities are computed
+     * analytically so setupMatrix() may already have run without touching the eigen system.
+     */
+    private void updateEigenSystem() {
+        if (updateIntermediates) {
+            calculateIntermediates();
+        }
+        if (updateMatrix) {
+            setupMatrix();
+        }
+        if (updateEigen || !eigenInitialised) {
+            setupEigenSystem();
+        }
+    }
+
     /**
      * This function returns the Eigen vectors.
      *
@@ -225,9 +248,7 @@ public class HKY extends AbstractNucleotideModel {
      */
     public double[][] getEigenVectors() {
         synchronized (this) {
-            if (updateMatrix) {
-                setupEigenSystem();
-            }
+            updateEigenSystem();
         }
         return Evec;
     }
@@ -239,9 +260,7 @@ public class HKY extends AbstractNucleotideModel {
      */
     public double[][] getInverseEigenVectors() {
         synchronized (this) {
-            if (updateMatrix) {
-                setupEigenSystem();
-            }
+            updateEigenSystem();
         }
         return Ievc;
     }
@@ -251,9 +270,7 @@ public class HKY extends AbstractNucleotideModel {
      */
     public double[] getEigenValues() {
         synchronized (this) {
-            if (updateMatrix) {
-                setupEigenSystem();
-            }
+            updateEigenSystem();
         }
         return Eval;
     }
@@ -315,6 +332,7 @@ public class HKY extends AbstractNucleotideModel {
         Eval[3] = beta*A_R;
 
         updateMatrix = false;
+        updateEigen = false;
     }
 
     /**
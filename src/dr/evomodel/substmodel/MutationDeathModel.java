@@ -110,6 +110,11 @@ public class MutationDeathModel extends AbstractSubstitutionModel {
     protected void setupRelativeRates() {
     }
 
+    public boolean isCacheable() {
+        // the transition probabilities come from the model of the mutations
+        return false;
+    }
+
     public void getTransitionProbabilities(double distance, double[] matrix) {
         int i, j;
         // assuming that expected number of changes in CTMCModel is 1 per unit time
@@ -204,6 +204,11 @@ public class SubstitutionEpochModel extends AbstractSubstitutionModel {
         return matrixCount;
     }
 
+    public boolean isCacheable() {
+        // the transition probabilities combine those of the models of the epochs
+        return false;
+    }
+
     public void getTransitionProbabilities(double distance, double[] matrix) {
         throw new RuntimeException("Should not get here in a substitution epoch model.");
     }
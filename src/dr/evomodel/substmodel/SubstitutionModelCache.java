@@ -0,0 +1,185 @@
+/*
+ * SubstitutionModelCache.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.substmodel;
+
+import dr.inference.model.Statistic;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used store of eigen decompositions keyed by the exact (normalized)
+ * rate matrix they were computed from, and optionally of the transition probability matrices for
+ * the current decomposition keyed by distance.
+ * <p/>
+ * Chains that jump between a few rate configurations (BSSVS indicators, model averaging) keep
+ * decomposing the same matrices; with a cache installed each configuration is decomposed once.
+ * Keys are compared bit for bit so a hit always returns exactly what would have been computed.
+ * The hit and miss counts are logged as a statistic.
+ *
+ * @version $Id$
+ */
+public class SubstitutionModelCache<E> extends Statistic.Abstract {
+
+    private static final long serialVersionUID = 1430300961011548035L;
+
+    private static final String[] DIMENSION_NAMES = {"eigenHits", "eigenMisses", "matrixHits", "matrixMisses"};
+
+    /**
+     * @param eigenCapacity  the number of eigen decompositions to keep
+     * @param matrixCapacity the number of transition probability matrices to keep for the current
+     *                       decomposition (0 for none)
+     */
+    public SubstitutionModelCache(int eigenCapacity, int matrixCapacity) {
+        if (eigenCapacity < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one eigen decomposition");
+        }
+        this.eigenCapacity = eigenCapacity;
+        this.matrixCapacity = matrixCapacity;
+
+        eigenSystems = new LinkedHashMap<Key, E>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, E> eldest) {
+                return size() > SubstitutionModelCache.this.eigenCapacity;
+            }
+        };
+        matrices = new LinkedHashMap<Double, double[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Double, double[]> eldest) {
+                return size() > SubstitutionModelCache.this.matrixCapacity;
+            }
+        };
+    }
+
+    /**
+     * @param rateMatrix the exact values the decomposition depends on
+     * @return the cached decomposition or null if there is none
+     */
+    public synchronized E getEigenSystem(double[] rateMatrix) {
+        E eigenSystem = eigenSystems.get(new Key(rateMatrix));
+        if (eigenSystem != null) {
+            eigenHits++;
+        } else {
+            eigenMisses++;
+        }
+        return eigenSystem;
+    }
+
+    /**
+     * @param rateMatrix  the exact values the decomposition depends on; this is copied
+     * @param eigenSystem the decomposition, which must not be modified afterwards
+     */
+    public synchronized void putEigenSystem(double[] rateMatrix, E eigenSystem) {
+        eigenSystems.put(new Key(rateMatrix.clone()), eigenSystem);
+    }
+
+    public boolean isCachingMatrices() {
+        return matrixCapacity > 0;
+    }
+
+    /**
+     * Copies the cached transition probability matrix for the given distance, if any.
+     *
+     * @return true if the matrix was found
+     */
+    public synchronized boolean getMatrix(double distance, double[] matrix) {
+        double[] cached = matrices.get(distance);
+        if (cached == null) {
+            matrixMisses++;
+            return false;
+        }
+        matrixHits++;
+        System.arraycopy(cached, 0, matrix, 0, cached.length);
+        return true;
+    }
+
+    public synchronized void putMatrix(double distance, double[] matrix) {
+        matrices.put(distance, matrix.clone());
+    }
+
+    /**
+     * Forgets all the transition probability matrices; called whenever the current decomposition changes.
+     */
+    public synchronized void clearMatrices() {
+        matrices.clear();
+    }
+
+    // **************************************************************
+    // Statistic IMPLEMENTATION
+    // **************************************************************
+
+    public int getDimension() {
+        return isCachingMatrices() ? 4 : 2;
+    }
+
+    public String getDimensionName(int dim) {
+        return getStatisticName() + "." + DIMENSION_NAMES[dim];
+    }
+
+    public synchronized double getStatisticValue(int dim) {
+        switch (dim) {
+            case 0:
+                return eigenHits;
+            case 1:
+                return eigenMisses;
+            case 2:
+                return matrixHits;
+            case 3:
+                return matrixMisses;
+            default:
+                throw new IllegalArgumentException("Dimension " + dim + " out of range");
+        }
+    }
+
+    private static final class Key {
+
+        Key(double[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && hashCode == ((Key) o).hashCode && Arrays.equals(values, ((Key) o).values);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        private final double[] values;
+        private final int hashCode;
+    }
+
+    private final int eigenCapacity;
+    private final int matrixCapacity;
+
+    private final LinkedHashMap<Key, E> eigenSystems;
+    private final LinkedHashMap<Double, double[]> matrices;
+
+    private long eigenHits = 0;
+    private long eigenMisses = 0;
+    private long matrixHits = 0;
+    private long matrixMisses = 0;
+}
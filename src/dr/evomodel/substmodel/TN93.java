@@ -174,6 +174,11 @@ public class TN93 extends AbstractNucleotideModel {
         updateIntermediates = false;
     }
 
+    public boolean isCacheable() {
+        // the transition probabilities have a closed form
+        return false;
+    }
+
     /**
      * get the complete transition probability matrix for the given distance.
      * <p/>
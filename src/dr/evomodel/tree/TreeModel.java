@@ -1104,6 +1104,29 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree {
 
     }
 
+    /**
+     * Gives each internal node the parameter objects that the node of the same number has in
+     * another tree model parsed from the same XML. The parameter objects move between the internal
+     * nodes as the root changes, so copies that have had different roots hold them in different
+     * nodes. The values in each node are kept.
+     */
+    public void matchNodeParameters(TreeModel other) {
+        // the height parameters are named after the nodes they were created for, alike in every copy
+        final Map<String, Node> holders = new HashMap<String, Node>();
+        for (int i = externalNodeCount; i < nodeCount; i++) {
+            holders.put(nodes[i].heightParameter.getId(), nodes[i]);
+        }
+        for (int i = externalNodeCount; i < nodeCount; i++) {
+            final String id = other.nodes[i].heightParameter.getId();
+            final Node holder = holders.get(id);
+            if (holder != null && holder != nodes[i]) {
+                holders.put(nodes[i].heightParameter.getId(), holder);
+                holders.put(id, nodes[i]);
+                swapParameterObjects(nodes[i], holder);
+            }
+        }
+    }
+
     /**
      * This method swaps the parameter objects of the two nodes
      * but maintains the values in each node.
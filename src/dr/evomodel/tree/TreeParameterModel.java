@@ -165,6 +165,17 @@ public class TreeParameterModel extends AbstractModel implements TreeTrait<Doubl
         parameter.setParameterValue(index, value);
     }
 
+    /**
+     * @param node the node
+     * @return the index into the parameter that holds the value for this node
+     */
+    public int getParameterIndexFromNode(NodeRef node) {
+
+        assert (!tree.isRoot(node) || includeRoot) : "root node doesn't have a parameter value!";
+
+        return getParameterIndexFromNodeNumber(node.getNumber());
+    }
+
     protected int getNodeNumberFromParameterIndex(int parameterIndex) {
         if (!includeRoot && parameterIndex >= tree.getRoot().getNumber()) return parameterIndex + 1;
         return parameterIndex;
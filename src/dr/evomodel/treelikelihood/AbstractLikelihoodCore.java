@@ -25,6 +25,8 @@
 
 package dr.evomodel.treelikelihood;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
 /**
@@ -47,6 +49,16 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
 
     protected double[][][] partials;
 
+    // the partials when they are kept outside the heap, in which case they are read into and
+    // written from the work buffers below
+    private OffHeapPartialsStore partialsStore = null;
+    private boolean useOffHeapPartials = false;
+    private boolean singlePrecisionPartials = false;
+    private File partialsDirectory = null;
+    private double[] workPartials1;
+    private double[] workPartials2;
+    private double[] workPartials3;
+
     protected int[][] states;
 
     protected double[][][] matrices;
@@ -62,6 +74,25 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
 
     private double scalingThreshold = 1.0E-100;
 
+    /**
+     * Partials in single precision are rescaled well before they reach the smallest float.
+     */
+    private static final double SINGLE_PRECISION_SCALING_THRESHOLD = 1.0E-15;
+
+    private SiteRepeats siteRepeats = null;
+    private double[] repeatPartials1;
+    private double[] repeatPartials2;
+    private double[] repeatPartials3;
+    private int[] repeatStates1;
+    private int[] repeatStates2;
+
+    /**
+     * Site repeats are only used at nodes where the number of distinct patterns is at most
+     * this proportion of the pattern count, otherwise gathering and scattering costs more
+     * than it saves.
+     */
+    private static final double SITE_REPEATS_THRESHOLD = 0.75;
+
     /**
      * Constructor
      *
@@ -71,6 +102,30 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
         this.stateCount = stateCount;
     }
 
+    /**
+     * Keeps the partials outside the Java heap, so that the heap only holds a few buffers of
+     * partials however large the tree and data are. This must be called before the core is
+     * initialized. Partials kept in single precision take half the memory but are only exact to
+     * about seven significant digits, so they are rescaled before they can underflow.
+     *
+     * @param singlePrecision whether to keep the partials as floats
+     * @param directory       a directory in which to map the partials to a temporary file, so that
+     *                        the operating system may page out those not in use, or null to keep
+     *                        them in direct memory
+     */
+    public void setOffHeapPartials(boolean singlePrecision, File directory) {
+        if (partials != null || partialsStore != null) {
+            throw new IllegalStateException("The partials are already allocated");
+        }
+        useOffHeapPartials = true;
+        singlePrecisionPartials = singlePrecision;
+        partialsDirectory = directory;
+    }
+
+    public boolean isUsingOffHeapPartials() {
+        return partialsStore != null;
+    }
+
     /**
      * initializes partial likelihood arrays.
      *
@@ -93,7 +148,24 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
             partialsSize = patternCount * stateCount;
         }
 
-        partials = new double[2][nodeCount][];
+        if (useOffHeapPartials) {
+            try {
+                partialsStore = new OffHeapPartialsStore(2, nodeCount, partialsSize, singlePrecisionPartials,
+                        partialsDirectory);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to create a file for the partials in " + partialsDirectory +
+                        ": " + e.getMessage());
+            }
+            workPartials1 = new double[partialsSize];
+            workPartials2 = new double[partialsSize];
+            workPartials3 = new double[partialsSize];
+            if (singlePrecisionPartials) {
+                useScaling = true;
+                scalingThreshold = SINGLE_PRECISION_SCALING_THRESHOLD;
+            }
+        } else {
+            partials = new double[2][nodeCount][];
+        }
 
         currentMatricesIndices = new int[nodeCount];
         storedMatricesIndices = new int[nodeCount];
@@ -104,28 +176,31 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
         states = new int[nodeCount][];
 
         for (int i = 0; i < nodeCount; i++) {
-            partials[0][i] = null;
-            partials[1][i] = null;
-
             states[i] = null;
         }
 
         matrixSize = stateCount * stateCount;
 
         matrices = new double[2][nodeCount][matrixCount * matrixSize];
+
+        if (useScaling) {
+            scalingFactors = new double[2][nodeCount][patternCount];
+        }
     }
 
     /**
      * cleans up and deallocates arrays.
      */
-    public void finalize() throws java.lang.Throwable {
-        super.finalize();
-
+    public void release() {
         nodeCount = 0;
         patternCount = 0;
         matrixCount = 0;
 
         partials = null;
+        if (partialsStore != null) {
+            partialsStore.close();
+            partialsStore = null;
+        }
         currentPartialsIndices = null;
         storedPartialsIndices = null;
         states = null;
@@ -134,41 +209,118 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
         storedMatricesIndices = null;
 
         scalingFactors = null;
+        siteRepeats = null;
     }
 
     public void setUseScaling(boolean useScaling) {
-        this.useScaling = useScaling;
+        // partials in single precision would underflow without rescaling
+        this.useScaling = useScaling || (partialsStore != null && partialsStore.isSinglePrecision());
 
-        if (useScaling) {
+        if (this.useScaling && scalingFactors == null) {
             scalingFactors = new double[2][nodeCount][patternCount];
         }
     }
 
+    /**
+     * Sets whether partials are only calculated once for each set of patterns that are identical
+     * over the tips below a node (site repeats) and then copied to the others. The partials are
+     * exactly the same either way. This is only used when integrating across categories and should
+     * be called after the tips have been set.
+     */
+    public void setUseSiteRepeats(boolean useSiteRepeats) {
+        if (!useSiteRepeats || !integrateCategories) {
+            siteRepeats = null;
+            return;
+        }
+        if (siteRepeats != null) {
+            return;
+        }
+
+        siteRepeats = new SiteRepeats(nodeCount, patternCount);
+        for (int i = 0; i < nodeCount; i++) {
+            if (states[i] != null) {
+                siteRepeats.setTipStates(i, states[i]);
+            } else if (hasPartials(i)) {
+                siteRepeats.setPartials(i, 0, readPartials(0, i, workPartials1), stateCount);
+                siteRepeats.setPartials(i, 1, readPartials(1, i, workPartials1), stateCount);
+            }
+        }
+
+        repeatPartials1 = new double[partialsSize];
+        repeatPartials2 = new double[partialsSize];
+        repeatPartials3 = new double[partialsSize];
+        repeatStates1 = new int[patternCount];
+        repeatStates2 = new int[patternCount];
+    }
+
+    public boolean isUsingSiteRepeats() {
+        return siteRepeats != null;
+    }
+
     /**
      * Allocates partials for a node
      */
     public void createNodePartials(int nodeIndex) {
 
+        if (partialsStore != null) {
+            partialsStore.create(nodeIndex);
+            return;
+        }
         this.partials[0][nodeIndex] = new double[partialsSize];
         this.partials[1][nodeIndex] = new double[partialsSize];
     }
 
+    private boolean hasPartials(int nodeIndex) {
+        return partialsStore != null ? partialsStore.hasNode(nodeIndex) : partials[0][nodeIndex] != null;
+    }
+
+    /**
+     * @return the partials of a node in a buffer, which are read into the given work buffer if
+     * they are not on the heap
+     */
+    private double[] readPartials(int buffer, int nodeIndex, double[] work) {
+        if (partialsStore == null) {
+            return partials[buffer][nodeIndex];
+        }
+        partialsStore.get(buffer, nodeIndex, work);
+        return work;
+    }
+
+    /**
+     * @return the array in which to calculate the partials of a node in a buffer, to be passed to
+     * writePartials once calculated
+     */
+    private double[] partialsToWrite(int buffer, int nodeIndex) {
+        return partialsStore == null ? partials[buffer][nodeIndex] : workPartials3;
+    }
+
+    private void writePartials(int buffer, int nodeIndex, double[] values) {
+        if (partialsStore != null) {
+            partialsStore.set(buffer, nodeIndex, values);
+        }
+    }
+
     /**
      * Sets partials for a node
      */
     public void setNodePartials(int nodeIndex, double[] partials) {
 
-        if (this.partials[0][nodeIndex] == null) {
+        if (!hasPartials(nodeIndex)) {
             createNodePartials(nodeIndex);
         }
+        final double[] nodePartials = partialsToWrite(0, nodeIndex);
         if (partials.length < partialsSize) {
             int k = 0;
             for (int i = 0; i < matrixCount; i++) {
-                System.arraycopy(partials, 0, this.partials[0][nodeIndex], k, partials.length);
+                System.arraycopy(partials, 0, nodePartials, k, partials.length);
                 k += partials.length;
             }
         } else {
-            System.arraycopy(partials, 0, this.partials[0][nodeIndex], 0, partials.length);
+            System.arraycopy(partials, 0, nodePartials, 0, partials.length);
+        }
+        writePartials(0, nodeIndex, nodePartials);
+        if (siteRepeats != null) {
+            siteRepeats.setPartials(nodeIndex, 0, nodePartials, stateCount);
         }
     }
 
@@ -189,6 +341,9 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
             createNodeStates(nodeIndex);
         }
         System.arraycopy(states, 0, this.states[nodeIndex], 0, patternCount);
+        if (siteRepeats != null) {
+            siteRepeats.setTipStates(nodeIndex, this.states[nodeIndex]);
+        }
     }
 
     /**
@@ -199,8 +354,11 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
     }
 
     public void setNodeMatrixForUpdate(int nodeIndex) {
-        currentMatricesIndices[nodeIndex] = 1 - currentMatricesIndices[nodeIndex];
-
+        // an operator may evaluate more than once before it is accepted or rejected, so a node only
+        // moves off its stored matrices once
+        if (currentMatricesIndices[nodeIndex] == storedMatricesIndices[nodeIndex]) {
+            currentMatricesIndices[nodeIndex] = 1 - currentMatricesIndices[nodeIndex];
+        }
     }
 
 
@@ -221,7 +379,10 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
     }
 
     public void setNodePartialsForUpdate(int nodeIndex) {
-        currentPartialsIndices[nodeIndex] = 1 - currentPartialsIndices[nodeIndex];
+        // likewise a node only moves off its stored partials once
+        if (currentPartialsIndices[nodeIndex] == storedPartialsIndices[nodeIndex]) {
+            currentPartialsIndices[nodeIndex] = 1 - currentPartialsIndices[nodeIndex];
+        }
     }
 
     /**
@@ -229,14 +390,19 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
      * need to repeatedly copy the partials for the different category partitions
      */
     public void setCurrentNodePartials(int nodeIndex, double[] partials) {
+        final double[] nodePartials = partialsToWrite(currentPartialsIndices[nodeIndex], nodeIndex);
         if (partials.length < partialsSize) {
             int k = 0;
             for (int i = 0; i < matrixCount; i++) {
-                System.arraycopy(partials, 0, this.partials[currentPartialsIndices[nodeIndex]][nodeIndex], k, partials.length);
+                System.arraycopy(partials, 0, nodePartials, k, partials.length);
                 k += partials.length;
             }
         } else {
-            System.arraycopy(partials, 0, this.partials[currentPartialsIndices[nodeIndex]][nodeIndex], 0, partials.length);
+            System.arraycopy(partials, 0, nodePartials, 0, partials.length);
+        }
+        writePartials(currentPartialsIndices[nodeIndex], nodeIndex, nodePartials);
+        if (siteRepeats != null) {
+            siteRepeats.setPartials(nodeIndex, currentPartialsIndices[nodeIndex], nodePartials, stateCount);
         }
     }
 
@@ -248,32 +414,38 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
      * @param nodeIndex3 the 'parent' node
      */
     public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
-        if (states[nodeIndex1] != null) {
-            if (states[nodeIndex2] != null) {
-                calculateStatesStatesPruning(
-                        states[nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        states[nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3]);
-            } else {
-                calculateStatesPartialsPruning(states[nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        partials[currentPartialsIndices[nodeIndex2]][nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3]);
-            }
-        } else {
-            if (states[nodeIndex2] != null) {
-                calculateStatesPartialsPruning(states[nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex1]][nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3]);
+        final int buffer3 = currentPartialsIndices[nodeIndex3];
+        final double[] partials3 = partialsToWrite(buffer3, nodeIndex3);
+
+        if (siteRepeats == null || !calculateRepeatPartials(nodeIndex1, nodeIndex2, nodeIndex3, partials3)) {
+            if (states[nodeIndex1] != null) {
+                if (states[nodeIndex2] != null) {
+                    calculateStatesStatesPruning(
+                            states[nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
+                            states[nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
+                            partials3);
+                } else {
+                    calculateStatesPartialsPruning(states[nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
+                            readPartials(currentPartialsIndices[nodeIndex2], nodeIndex2, workPartials2), matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
+                            partials3);
+                }
             } else {
-                calculatePartialsPartialsPruning(partials[currentPartialsIndices[nodeIndex1]][nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        partials[currentPartialsIndices[nodeIndex2]][nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3]);
+                if (states[nodeIndex2] != null) {
+                    calculateStatesPartialsPruning(states[nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
+                            readPartials(currentPartialsIndices[nodeIndex1], nodeIndex1, workPartials1), matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
+                            partials3);
+                } else {
+                    calculatePartialsPartialsPruning(readPartials(currentPartialsIndices[nodeIndex1], nodeIndex1, workPartials1), matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
+                            readPartials(currentPartialsIndices[nodeIndex2], nodeIndex2, workPartials2), matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
+                            partials3);
+                }
             }
         }
 
         if (useScaling) {
-            scalePartials(nodeIndex3);
+            scalePartials(nodeIndex3, partials3);
         }
+        writePartials(buffer3, nodeIndex3, partials3);
 
 //
 //        int k =0;
@@ -290,6 +462,90 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
 //        }
     }
 
+    /**
+     * Calculates partial likelihoods at a node for one representative of each of its site repeats:
+     * the children's states or partials for these patterns are gathered into compact buffers, the
+     * usual pruning is done over this reduced pattern count and the results are copied out to
+     * every pattern.
+     *
+     * @return false if there are too few repeats for this to be worthwhile
+     */
+    private boolean calculateRepeatPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, double[] partials3) {
+        final int buffer3 = currentPartialsIndices[nodeIndex3];
+        siteRepeats.update(nodeIndex1, currentPartialsIndices[nodeIndex1],
+                nodeIndex2, currentPartialsIndices[nodeIndex2], nodeIndex3, buffer3);
+
+        final int repeatCount = siteRepeats.getClassCount(nodeIndex3, buffer3);
+        if (repeatCount > SITE_REPEATS_THRESHOLD * patternCount) {
+            return false;
+        }
+
+        final int[] representatives = siteRepeats.getRepresentatives(nodeIndex3, buffer3);
+        final double[] matrices1 = matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1];
+        final double[] matrices2 = matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2];
+
+        final int fullPatternCount = patternCount;
+        try {
+            if (states[nodeIndex1] != null) {
+                gatherStates(states[nodeIndex1], representatives, repeatCount, repeatStates1);
+                if (states[nodeIndex2] != null) {
+                    gatherStates(states[nodeIndex2], representatives, repeatCount, repeatStates2);
+                    patternCount = repeatCount;
+                    calculateStatesStatesPruning(repeatStates1, matrices1, repeatStates2, matrices2, repeatPartials3);
+                } else {
+                    gatherPartials(readPartials(currentPartialsIndices[nodeIndex2], nodeIndex2, workPartials2),
+                            representatives, repeatCount, repeatPartials2);
+                    patternCount = repeatCount;
+                    calculateStatesPartialsPruning(repeatStates1, matrices1, repeatPartials2, matrices2, repeatPartials3);
+                }
+            } else {
+                gatherPartials(readPartials(currentPartialsIndices[nodeIndex1], nodeIndex1, workPartials1),
+                        representatives, repeatCount, repeatPartials1);
+                if (states[nodeIndex2] != null) {
+                    gatherStates(states[nodeIndex2], representatives, repeatCount, repeatStates2);
+                    patternCount = repeatCount;
+                    calculateStatesPartialsPruning(repeatStates2, matrices2, repeatPartials1, matrices1, repeatPartials3);
+                } else {
+                    gatherPartials(readPartials(currentPartialsIndices[nodeIndex2], nodeIndex2, workPartials2),
+                            representatives, repeatCount, repeatPartials2);
+                    patternCount = repeatCount;
+                    calculatePartialsPartialsPruning(repeatPartials1, matrices1, repeatPartials2, matrices2, repeatPartials3);
+                }
+            }
+        } finally {
+            patternCount = fullPatternCount;
+        }
+
+        // scatter the partials of each repeat to all its patterns
+        final int[] classes = siteRepeats.getClasses(nodeIndex3, buffer3);
+        int v = 0;
+        for (int l = 0; l < matrixCount; l++) {
+            final int offset = l * repeatCount * stateCount;
+            for (int k = 0; k < patternCount; k++) {
+                System.arraycopy(repeatPartials3, offset + classes[k] * stateCount, partials3, v, stateCount);
+                v += stateCount;
+            }
+        }
+        return true;
+    }
+
+    private void gatherStates(int[] states, int[] representatives, int repeatCount, int[] outStates) {
+        for (int k = 0; k < repeatCount; k++) {
+            outStates[k] = states[representatives[k]];
+        }
+    }
+
+    private void gatherPartials(double[] partials, int[] representatives, int repeatCount, double[] outPartials) {
+        int v = 0;
+        for (int l = 0; l < matrixCount; l++) {
+            final int offset = l * patternCount * stateCount;
+            for (int k = 0; k < repeatCount; k++) {
+                System.arraycopy(partials, offset + representatives[k] * stateCount, outPartials, v, stateCount);
+                v += stateCount;
+            }
+        }
+    }
+
     /**
      * Calculates partial likelihoods at a node when both children have states.
      */
@@ -320,35 +576,39 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
      * @param matrixMap  a map of which matrix to use for each pattern (can be null if integrating over categories)
      */
     public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int[] matrixMap) {
+        final int buffer3 = currentPartialsIndices[nodeIndex3];
+        final double[] partials3 = partialsToWrite(buffer3, nodeIndex3);
+
         if (states[nodeIndex1] != null) {
             if (states[nodeIndex2] != null) {
                 calculateStatesStatesPruning(
                         states[nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
                         states[nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3], matrixMap);
+                        partials3, matrixMap);
             } else {
                 calculateStatesPartialsPruning(
                         states[nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        partials[currentPartialsIndices[nodeIndex2]][nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3], matrixMap);
+                        readPartials(currentPartialsIndices[nodeIndex2], nodeIndex2, workPartials2), matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
+                        partials3, matrixMap);
             }
         } else {
             if (states[nodeIndex2] != null) {
                 calculateStatesPartialsPruning(
                         states[nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex1]][nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3], matrixMap);
+                        readPartials(currentPartialsIndices[nodeIndex1], nodeIndex1, workPartials1), matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
+                        partials3, matrixMap);
             } else {
                 calculatePartialsPartialsPruning(
-                        partials[currentPartialsIndices[nodeIndex1]][nodeIndex1], matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
-                        partials[currentPartialsIndices[nodeIndex2]][nodeIndex2], matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
-                        partials[currentPartialsIndices[nodeIndex3]][nodeIndex3], matrixMap);
+                        readPartials(currentPartialsIndices[nodeIndex1], nodeIndex1, workPartials1), matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1],
+                        readPartials(currentPartialsIndices[nodeIndex2], nodeIndex2, workPartials2), matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2],
+                        partials3, matrixMap);
             }
         }
 
         if (useScaling) {
-            scalePartials(nodeIndex3);
+            scalePartials(nodeIndex3, partials3);
         }
+        writePartials(buffer3, nodeIndex3, partials3);
     }
 
     /**
@@ -374,7 +634,8 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
 
 
     public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
-        calculateIntegratePartials(partials[currentPartialsIndices[nodeIndex]][nodeIndex], proportions, outPartials);
+        calculateIntegratePartials(readPartials(currentPartialsIndices[nodeIndex], nodeIndex, workPartials1),
+                proportions, outPartials);
     }
 
     /**
@@ -402,6 +663,13 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
      * @param nodeIndex
      */
     protected void scalePartials(int nodeIndex) {
+        final int buffer = currentPartialsIndices[nodeIndex];
+        final double[] nodePartials = readPartials(buffer, nodeIndex, workPartials3);
+        scalePartials(nodeIndex, nodePartials);
+        writePartials(buffer, nodeIndex, nodePartials);
+    }
+
+    private void scalePartials(int nodeIndex, double[] nodePartials) {
         int u = 0;
 
         for (int i = 0; i < patternCount; i++) {
@@ -410,8 +678,8 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
             int v = u;
             for (int k = 0; k < matrixCount; k++) {
                 for (int j = 0; j < stateCount; j++) {
-                    if (partials[currentPartialsIndices[nodeIndex]][nodeIndex][v] > scaleFactor) {
-                        scaleFactor = partials[currentPartialsIndices[nodeIndex]][nodeIndex][v];
+                    if (nodePartials[v] > scaleFactor) {
+                        scaleFactor = nodePartials[v];
                     }
                     v++;
                 }
@@ -423,7 +691,7 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
                 v = u;
                 for (int k = 0; k < matrixCount; k++) {
                     for (int j = 0; j < stateCount; j++) {
-                        partials[currentPartialsIndices[nodeIndex]][nodeIndex][v] /= scaleFactor;
+                        nodePartials[v] /= scaleFactor;
                         v++;
                     }
                     v += (patternCount - 1) * stateCount;
@@ -476,6 +744,10 @@ public abstract class AbstractLikelihoodCore implements LikelihoodCore {
      * @param outPartials an array into which the partials will go
      */
     public void getPartials(int nodeIndex, double[] outPartials) {
+        if (partialsStore != null) {
+            partialsStore.get(currentPartialsIndices[nodeIndex], nodeIndex, outPartials);
+            return;
+        }
         double[] partials1 = partials[currentPartialsIndices[nodeIndex]][nodeIndex];
 
         System.arraycopy(partials1, 0, outPartials, 0, partialsSize);
@@ -117,9 +117,7 @@ public class ArbitraryPrecisionLikelihoodCore implements LikelihoodCore {
     /**
      * cleans up and deallocates arrays.
      */
-    public void finalize() throws java.lang.Throwable {
-        super.finalize();
-
+    public void release() {
         nodeCount = 0;
         patternCount = 0;
         matrixCount = 0;
@@ -192,8 +190,9 @@ public class ArbitraryPrecisionLikelihoodCore implements LikelihoodCore {
     }
 
     public void setNodeMatrixForUpdate(int nodeIndex) {
-        currentMatricesIndices[nodeIndex] = 1 - currentMatricesIndices[nodeIndex];
-
+        if (currentMatricesIndices[nodeIndex] == storedMatricesIndices[nodeIndex]) {
+            currentMatricesIndices[nodeIndex] = 1 - currentMatricesIndices[nodeIndex];
+        }
     }
 
     /**
@@ -216,7 +215,9 @@ public class ArbitraryPrecisionLikelihoodCore implements LikelihoodCore {
     }
 
     public void setNodePartialsForUpdate(int nodeIndex) {
-        currentPartialsIndices[nodeIndex] = 1 - currentPartialsIndices[nodeIndex];
+        if (currentPartialsIndices[nodeIndex] == storedPartialsIndices[nodeIndex]) {
+            currentPartialsIndices[nodeIndex] = 1 - currentPartialsIndices[nodeIndex];
+        }
     }
 
     /**
@@ -0,0 +1,352 @@
+/*
+ * BranchLengthGradientDelegate.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+
+/**
+ * BranchLengthGradientDelegate - computes the gradient of a tree likelihood with respect to
+ * every branch length (in expected substitutions) from the post-order partials held by the
+ * likelihood and a single pre-order traversal.
+ * <p/>
+ * For a branch above node n the pre-order partial is the likelihood of everything outside the
+ * subtree below n, conditional on the state at the top of the branch. The derivative of each
+ * pattern likelihood is then pre' (r_c Q P_c) post, and dividing by pre' P_c post gives the
+ * derivative of the log likelihood. As both terms are computed with the same partials any
+ * per-pattern rescaling of either cancels, so rescaled partials can be used directly.
+ * <p/>
+ * The likelihood supplies the post-order partials and the model components; the delegate
+ * assumes a single, reversible substitution process across the tree.
+ *
+ * @version $Id$
+ */
+public class BranchLengthGradientDelegate {
+
+    public BranchLengthGradientDelegate(TreeLikelihoodComponents components) {
+        this.components = components;
+        this.nodeCount = components.getNodeCount();
+        this.patternCount = components.getPatternCount();
+        this.stateCount = components.getStateCount();
+        this.categoryCount = components.getCategoryCount();
+
+        partialsSize = categoryCount * patternCount * stateCount;
+        matrixSize = stateCount * stateCount;
+
+        postOrderPartials = new double[partialsSize];
+        preOrderPartials = new double[nodeCount][partialsSize];
+        branchPartials = new double[nodeCount][partialsSize];
+        preOrderBottom = new double[partialsSize];
+
+        matrices = new double[nodeCount][categoryCount * matrixSize];
+        generator = new double[matrixSize];
+
+        eigenVectors = new double[matrixSize];
+        inverseEigenVectors = new double[matrixSize];
+        eigenValues = new double[stateCount];
+        expEigenValues = new double[stateCount];
+
+        nodeOrder = new int[nodeCount];
+    }
+
+    /**
+     * Calculates d logL / d b for the branch above every non-root node.
+     *
+     * @param tree     the tree
+     * @param gradient an array of length nodeCount indexed by node number; the root entry is set to zero
+     */
+    public void calculateBranchLengthGradient(Tree tree, double[] gradient) {
+
+        components.getEigenDecomposition(eigenVectors, inverseEigenVectors, eigenValues);
+        setupGenerator();
+
+        final double[] categoryRates = components.getCategoryRates();
+        final double[] categoryProportions = components.getCategoryProportions();
+        final double[] frequencies = components.getRootFrequencies();
+        final double[] patternWeights = components.getPatternWeights();
+
+        final NodeRef root = tree.getRoot();
+
+        // collect the post-order partials pushed through each branch
+        for (int n = 0; n < tree.getNodeCount(); n++) {
+            final NodeRef node = tree.getNode(n);
+            if (node != root) {
+                final int nodeNum = node.getNumber();
+                final double branchLength = components.getBranchRate(tree, node) *
+                        (tree.getNodeHeight(tree.getParent(node)) - tree.getNodeHeight(node));
+                setupTransitionMatrices(eigenVectors, inverseEigenVectors, eigenValues, stateCount,
+                        categoryRates, branchLength, expEigenValues, matrices[nodeNum]);
+                components.getPostOrderPartials(tree, node, postOrderPartials);
+                multiplyMatrixPartials(matrices[nodeNum], postOrderPartials, branchPartials[nodeNum]);
+            }
+        }
+
+        // pre-order traversal from the root, starting with the root frequencies
+        int v = 0;
+        for (int c = 0; c < categoryCount; c++) {
+            for (int i = 0; i < patternCount; i++) {
+                System.arraycopy(frequencies, 0, preOrderBottom, v, stateCount);
+                v += stateCount;
+            }
+        }
+
+        int orderCount = collectPreOrder(tree, root, 0);
+        for (int k = 0; k < orderCount; k++) {
+            final NodeRef node = tree.getNode(nodeOrder[k]);
+
+            if (node != root) {
+                if (tree.isExternal(node)) {
+                    continue;
+                }
+                multiplyPartialsMatrix(preOrderPartials[node.getNumber()], matrices[node.getNumber()],
+                        preOrderBottom);
+            }
+
+            final int childCount = tree.getChildCount(node);
+            for (int j = 0; j < childCount; j++) {
+                final int childNum = tree.getChild(node, j).getNumber();
+                final double[] pre = preOrderPartials[childNum];
+                System.arraycopy(preOrderBottom, 0, pre, 0, partialsSize);
+                for (int s = 0; s < childCount; s++) {
+                    if (s != j) {
+                        final double[] sibling = branchPartials[tree.getChild(node, s).getNumber()];
+                        for (int x = 0; x < partialsSize; x++) {
+                            pre[x] *= sibling[x];
+                        }
+                    }
+                }
+                rescalePartials(pre);
+            }
+        }
+
+        // finally combine the pre- and post-order partials on each branch
+        for (int n = 0; n < tree.getNodeCount(); n++) {
+            final NodeRef node = tree.getNode(n);
+            final int nodeNum = node.getNumber();
+
+            if (node == root) {
+                gradient[nodeNum] = 0.0;
+            } else {
+                gradient[nodeNum] = calculateBranchGradient(preOrderPartials[nodeNum], branchPartials[nodeNum],
+                        categoryRates, categoryProportions, patternWeights);
+            }
+        }
+    }
+
+    private int collectPreOrder(Tree tree, NodeRef node, int index) {
+        nodeOrder[index] = node.getNumber();
+        index++;
+        for (int j = 0; j < tree.getChildCount(node); j++) {
+            index = collectPreOrder(tree, tree.getChild(node, j), index);
+        }
+        return index;
+    }
+
+    private double calculateBranchGradient(double[] pre, double[] branch,
+                                           double[] categoryRates, double[] categoryProportions,
+                                           double[] patternWeights) {
+        double gradient = 0.0;
+
+        for (int i = 0; i < patternCount; i++) {
+            if (patternWeights[i] == 0.0) {
+                continue;
+            }
+
+            double numerator = 0.0;
+            double denominator = 0.0;
+
+            for (int c = 0; c < categoryCount; c++) {
+                final int u = (c * patternCount + i) * stateCount;
+
+                double sumQ = 0.0;
+                double sumP = 0.0;
+                int w = 0;
+                for (int a = 0; a < stateCount; a++) {
+                    double qTimesBranch = 0.0;
+                    for (int b = 0; b < stateCount; b++) {
+                        qTimesBranch += generator[w] * branch[u + b];
+                        w++;
+                    }
+                    sumQ += pre[u + a] * qTimesBranch;
+                    sumP += pre[u + a] * branch[u + a];
+                }
+
+                numerator += categoryProportions[c] * categoryRates[c] * sumQ;
+                denominator += categoryProportions[c] * sumP;
+            }
+
+            gradient += patternWeights[i] * numerator / denominator;
+        }
+
+        return gradient;
+    }
+
+    /**
+     * out[c, i, a] = sum_b P_c[a, b] partials[c, i, b]
+     */
+    private void multiplyMatrixPartials(double[] matrices, double[] partials, double[] out) {
+        int u = 0;
+        for (int c = 0; c < categoryCount; c++) {
+            final int m = c * matrixSize;
+            for (int i = 0; i < patternCount; i++) {
+                int w = m;
+                for (int a = 0; a < stateCount; a++) {
+                    double sum = 0.0;
+                    for (int b = 0; b < stateCount; b++) {
+                        sum += matrices[w] * partials[u + b];
+                        w++;
+                    }
+                    out[u + a] = sum;
+                }
+                u += stateCount;
+            }
+        }
+    }
+
+    /**
+     * out[c, i, b] = sum_a partials[c, i, a] P_c[a, b]
+     */
+    private void multiplyPartialsMatrix(double[] partials, double[] matrices, double[] out) {
+        int u = 0;
+        for (int c = 0; c < categoryCount; c++) {
+            final int m = c * matrixSize;
+            for (int i = 0; i < patternCount; i++) {
+                for (int b = 0; b < stateCount; b++) {
+                    double sum = 0.0;
+                    int w = m + b;
+                    for (int a = 0; a < stateCount; a++) {
+                        sum += partials[u + a] * matrices[w];
+                        w += stateCount;
+                    }
+                    out[u + b] = sum;
+                }
+                u += stateCount;
+            }
+        }
+    }
+
+    /**
+     * Divides the partials for each pattern by their largest value across all categories and
+     * states. This keeps the pre-order partials from underflowing on large trees.
+     */
+    private void rescalePartials(double[] partials) {
+        for (int i = 0; i < patternCount; i++) {
+            double scaleFactor = 0.0;
+            for (int c = 0; c < categoryCount; c++) {
+                final int u = (c * patternCount + i) * stateCount;
+                for (int a = 0; a < stateCount; a++) {
+                    if (partials[u + a] > scaleFactor) {
+                        scaleFactor = partials[u + a];
+                    }
+                }
+            }
+            if (scaleFactor > 0.0) {
+                for (int c = 0; c < categoryCount; c++) {
+                    final int u = (c * patternCount + i) * stateCount;
+                    for (int a = 0; a < stateCount; a++) {
+                        partials[u + a] /= scaleFactor;
+                    }
+                }
+            }
+        }
+    }
+
+    private void setupGenerator() {
+        int u = 0;
+        for (int a = 0; a < stateCount; a++) {
+            for (int b = 0; b < stateCount; b++) {
+                double sum = 0.0;
+                for (int k = 0; k < stateCount; k++) {
+                    sum += eigenVectors[a * stateCount + k] * eigenValues[k] * inverseEigenVectors[k * stateCount + b];
+                }
+                generator[u] = sum;
+                u++;
+            }
+        }
+    }
+
+    /**
+     * Fills matrices with P_c = E exp(r_c b Lambda) E^-1 for each rate category, row-major and
+     * one category after another.
+     */
+    static void setupTransitionMatrices(double[] eigenVectors, double[] inverseEigenVectors, double[] eigenValues,
+                                        int stateCount, double[] categoryRates, double branchLength,
+                                        double[] expEigenValues, double[] matrices) {
+        int u = 0;
+        for (int c = 0; c < categoryRates.length; c++) {
+            final double distance = categoryRates[c] * branchLength;
+            for (int k = 0; k < stateCount; k++) {
+                expEigenValues[k] = Math.exp(distance * eigenValues[k]);
+            }
+            for (int a = 0; a < stateCount; a++) {
+                for (int b = 0; b < stateCount; b++) {
+                    double sum = 0.0;
+                    for (int k = 0; k < stateCount; k++) {
+                        sum += eigenVectors[a * stateCount + k] * expEigenValues[k] * inverseEigenVectors[k * stateCount + b];
+                    }
+                    matrices[u] = Math.abs(sum);
+                    u++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts an eigen system stored as 2D arrays into the flattened form used here.
+     */
+    public static void flatten(double[][] matrix, double[] out) {
+        int u = 0;
+        for (double[] row : matrix) {
+            System.arraycopy(row, 0, out, u, row.length);
+            u += row.length;
+        }
+    }
+
+    private final TreeLikelihoodComponents components;
+
+    private final int nodeCount;
+    private final int patternCount;
+    private final int stateCount;
+    private final int categoryCount;
+
+    private final int partialsSize;
+    private final int matrixSize;
+
+    private final double[] postOrderPartials;
+    private final double[][] preOrderPartials;
+    private final double[][] branchPartials;
+    private final double[] preOrderBottom;
+
+    private final double[][] matrices;
+    private final double[] generator;
+
+    private final double[] eigenVectors;
+    private final double[] inverseEigenVectors;
+    private final double[] eigenValues;
+    private final double[] expEigenValues;
+
+    private final int[] nodeOrder;
+}
@@ -0,0 +1,89 @@
+/*
+ * BranchRateGradient.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.ArbitraryBranchRates;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.GradientWrtParameterProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+
+/**
+ * Gradient of a tree likelihood with respect to the per-branch rates of an ArbitraryBranchRates
+ * model, obtained from the branch length gradient by the chain rule.
+ *
+ * @version $Id$
+ */
+public class BranchRateGradient implements GradientWrtParameterProvider {
+
+    public BranchRateGradient(BranchLengthGradientProvider treeLikelihood) {
+
+        if (!(treeLikelihood.getBranchRateModel() instanceof ArbitraryBranchRates)) {
+            throw new IllegalArgumentException("Branch rate gradients require an arbitrary branch rates model");
+        }
+
+        this.treeLikelihood = treeLikelihood;
+        this.branchRates = (ArbitraryBranchRates) treeLikelihood.getBranchRateModel();
+        this.rateParameter = branchRates.getRateParameter();
+    }
+
+    public Likelihood getLikelihood() {
+        return treeLikelihood;
+    }
+
+    public Parameter getParameter() {
+        return rateParameter;
+    }
+
+    public int getDimension() {
+        return rateParameter.getDimension();
+    }
+
+    public double[] getGradientLogDensity() {
+
+        final TreeModel tree = treeLikelihood.getTreeModel();
+        final double[] branchGradient = treeLikelihood.getBranchLengthGradient();
+
+        double[] gradient = new double[getDimension()];
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final NodeRef node = tree.getNode(i);
+            if (!tree.isRoot(node)) {
+                final double time = tree.getNodeHeight(tree.getParent(node)) - tree.getNodeHeight(node);
+                final int index = branchRates.getParameterIndexFromNode(node);
+                gradient[index] = branchGradient[node.getNumber()] * time *
+                        branchRates.getBranchRateDifferential(tree, node);
+            }
+        }
+
+        return gradient;
+    }
+
+    private final BranchLengthGradientProvider treeLikelihood;
+    private final ArbitraryBranchRates branchRates;
+    private final Parameter rateParameter;
+}
@@ -32,6 +32,11 @@ public class EpochTreeLikelihood extends TreeLikelihood {
 
 	    }
 
+    public TreeLikelihoodComponents getLikelihoodComponents() {
+        // branches crossing an epoch boundary are a product of matrices from different models
+        throw new UnsupportedOperationException("Epoch models are not supported");
+    }
+
 
 	/**
 	  * Traverse the tree calculating partial likelihoods.
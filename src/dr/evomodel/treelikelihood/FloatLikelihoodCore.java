@@ -0,0 +1,330 @@
+/*
+ * FloatLikelihoodCore.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+/**
+ * A likelihood core for any number of states that keeps the partials in single precision, which
+ * halves their memory and the memory traffic of calculating them. The sums are still done in
+ * double precision; only the partials are rounded as they are stored.
+ * <p/>
+ * The partials would soon underflow in single precision, so the partials of every pattern at every
+ * internal node are always rescaled so that the largest is between 1 and 2. The scale is an exact
+ * power of two, so rescaling loses nothing, and its log is kept in double precision for each node
+ * as for the other cores.
+ *
+ * @version $Id$
+ */
+public class FloatLikelihoodCore implements LikelihoodCore {
+
+    /**
+     * @param stateCount number of states
+     */
+    public FloatLikelihoodCore(int stateCount) {
+        this.stateCount = stateCount;
+    }
+
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories) {
+
+        this.nodeCount = nodeCount;
+        this.patternCount = patternCount;
+        this.matrixCount = matrixCount;
+
+        this.integrateCategories = integrateCategories;
+
+        if (integrateCategories) {
+            partialsSize = patternCount * stateCount * matrixCount;
+        } else {
+            partialsSize = patternCount * stateCount;
+        }
+
+        partials = new float[2][nodeCount][];
+        states = new int[nodeCount][];
+
+        currentMatricesIndices = new int[nodeCount];
+        storedMatricesIndices = new int[nodeCount];
+
+        currentPartialsIndices = new int[nodeCount];
+        storedPartialsIndices = new int[nodeCount];
+
+        matrixSize = stateCount * stateCount;
+        matrices = new double[2][nodeCount][matrixCount * matrixSize];
+
+        scalingFactors = new double[2][nodeCount][patternCount];
+
+        patternPartials = new double[matrixCount * stateCount];
+    }
+
+    public void release() {
+        nodeCount = 0;
+        patternCount = 0;
+        matrixCount = 0;
+
+        partials = null;
+        states = null;
+        matrices = null;
+        currentMatricesIndices = null;
+        storedMatricesIndices = null;
+        currentPartialsIndices = null;
+        storedPartialsIndices = null;
+        scalingFactors = null;
+    }
+
+    /**
+     * The partials are always rescaled.
+     */
+    public void setUseScaling(boolean useScaling) {
+    }
+
+    public void createNodePartials(int nodeIndex) {
+        partials[0][nodeIndex] = new float[partialsSize];
+        partials[1][nodeIndex] = new float[partialsSize];
+    }
+
+    public void setNodePartials(int nodeIndex, double[] partials) {
+        if (this.partials[0][nodeIndex] == null) {
+            createNodePartials(nodeIndex);
+        }
+        copyPartials(partials, this.partials[0][nodeIndex]);
+    }
+
+    public void createNodeStates(int nodeIndex) {
+        states[nodeIndex] = new int[patternCount];
+    }
+
+    public void setNodeStates(int nodeIndex, int[] states) {
+        if (this.states[nodeIndex] == null) {
+            createNodeStates(nodeIndex);
+        }
+        System.arraycopy(states, 0, this.states[nodeIndex], 0, patternCount);
+    }
+
+    public void getNodeStates(int nodeIndex, int[] states) {
+        System.arraycopy(this.states[nodeIndex], 0, states, 0, patternCount);
+    }
+
+    public void setNodeMatrixForUpdate(int nodeIndex) {
+        if (currentMatricesIndices[nodeIndex] == storedMatricesIndices[nodeIndex]) {
+            currentMatricesIndices[nodeIndex] = 1 - currentMatricesIndices[nodeIndex];
+        }
+    }
+
+    public void setNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+        System.arraycopy(matrix, 0, matrices[currentMatricesIndices[nodeIndex]][nodeIndex],
+                matrixIndex * matrixSize, matrixSize);
+    }
+
+    public void setNodePartialsForUpdate(int nodeIndex) {
+        if (currentPartialsIndices[nodeIndex] == storedPartialsIndices[nodeIndex]) {
+            currentPartialsIndices[nodeIndex] = 1 - currentPartialsIndices[nodeIndex];
+        }
+    }
+
+    public void setCurrentNodePartials(int nodeIndex, double[] partials) {
+        copyPartials(partials, this.partials[currentPartialsIndices[nodeIndex]][nodeIndex]);
+    }
+
+    /**
+     * Copies partials into the partials of a node, repeating them for each category if they are
+     * only given once.
+     */
+    private void copyPartials(double[] partials, float[] nodePartials) {
+        for (int k = 0; k < partialsSize; k++) {
+            nodePartials[k] = (float) partials[k % partials.length];
+        }
+    }
+
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3, null);
+    }
+
+    /**
+     * Calculates the partials of a node from those of its children, or their states, one pattern
+     * at a time across all the categories, and rescales them.
+     *
+     * @param matrixMap a map of which matrix to use for each pattern, or null if integrating
+     *                  over categories
+     */
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int[] matrixMap) {
+        final int[] states1 = states[nodeIndex1];
+        final int[] states2 = states[nodeIndex2];
+        final float[] partials1 = partials[currentPartialsIndices[nodeIndex1]][nodeIndex1];
+        final float[] partials2 = partials[currentPartialsIndices[nodeIndex2]][nodeIndex2];
+        final double[] matrices1 = matrices[currentMatricesIndices[nodeIndex1]][nodeIndex1];
+        final double[] matrices2 = matrices[currentMatricesIndices[nodeIndex2]][nodeIndex2];
+
+        final int buffer3 = currentPartialsIndices[nodeIndex3];
+        final float[] partials3 = partials[buffer3][nodeIndex3];
+        final double[] logScalingFactors = scalingFactors[buffer3][nodeIndex3];
+
+        final int categoryCount = integrateCategories ? matrixCount : 1;
+
+        for (int k = 0; k < patternCount; k++) {
+
+            double max = 0.0;
+            int u = 0;
+            for (int l = 0; l < categoryCount; l++) {
+
+                final int v = (l * patternCount + k) * stateCount;
+                int w = (matrixMap == null ? l : matrixMap[k]) * matrixSize;
+
+                for (int i = 0; i < stateCount; i++) {
+
+                    final double sum1 = childSum(states1, partials1, matrices1, k, v, w);
+                    final double sum2 = childSum(states2, partials2, matrices2, k, v, w);
+
+                    final double p = sum1 * sum2;
+                    if (p > max) {
+                        max = p;
+                    }
+                    patternPartials[u] = p;
+                    u++;
+                    w += stateCount;
+                }
+            }
+
+            final int exponent = max > 0.0 ? Math.getExponent(max) : 0;
+            final double scale = Math.scalb(1.0, -exponent);
+
+            u = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                final int v = (l * patternCount + k) * stateCount;
+                for (int i = 0; i < stateCount; i++) {
+                    partials3[v + i] = (float) (patternPartials[u] * scale);
+                    u++;
+                }
+            }
+            logScalingFactors[k] = exponent * LOG_2;
+        }
+    }
+
+    /**
+     * @return the probability of the partials or state of a child given a state of the parent,
+     * the row of which in the matrix starts at w
+     */
+    private double childSum(int[] states, float[] partials, double[] matrices, int k, int v, int w) {
+        if (states != null) {
+            final int state = states[k];
+            // a gap or unknown state leaves the child out
+            return state < stateCount ? matrices[w + state] : 1.0;
+        }
+        double sum = 0.0;
+        for (int j = 0; j < stateCount; j++) {
+            sum += matrices[w + j] * partials[v + j];
+        }
+        return sum;
+    }
+
+    public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+        final float[] inPartials = partials[currentPartialsIndices[nodeIndex]][nodeIndex];
+
+        final int size = patternCount * stateCount;
+        for (int u = 0; u < size; u++) {
+            outPartials[u] = inPartials[u] * proportions[0];
+        }
+        int v = size;
+        for (int l = 1; l < matrixCount; l++) {
+            for (int u = 0; u < size; u++) {
+                outPartials[u] += inPartials[v] * proportions[l];
+                v++;
+            }
+        }
+    }
+
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods) {
+        int v = 0;
+        for (int k = 0; k < patternCount; k++) {
+
+            double sum = 0.0;
+            for (int i = 0; i < stateCount; i++) {
+                sum += frequencies[i] * partials[v];
+                v++;
+            }
+            outLogLikelihoods[k] = Math.log(sum) + getLogScalingFactor(k);
+        }
+    }
+
+    public double getLogScalingFactor(int pattern) {
+        double logScalingFactor = 0.0;
+        for (int i = 0; i < nodeCount; i++) {
+            logScalingFactor += scalingFactors[currentPartialsIndices[i]][i][pattern];
+        }
+        return logScalingFactor;
+    }
+
+    public void getLogScalingFactors(int nodeIndex, double[] buffer) {
+        System.arraycopy(scalingFactors[currentPartialsIndices[nodeIndex]][nodeIndex], 0, buffer, 0, patternCount);
+    }
+
+    public boolean arePartialsRescaled() {
+        return true;
+    }
+
+    public void getPartials(int nodeIndex, double[] outPartials) {
+        final float[] nodePartials = partials[currentPartialsIndices[nodeIndex]][nodeIndex];
+        for (int i = 0; i < partialsSize; i++) {
+            outPartials[i] = nodePartials[i];
+        }
+    }
+
+    public void storeState() {
+        System.arraycopy(currentMatricesIndices, 0, storedMatricesIndices, 0, nodeCount);
+        System.arraycopy(currentPartialsIndices, 0, storedPartialsIndices, 0, nodeCount);
+    }
+
+    public void restoreState() {
+        int[] tmp1 = currentMatricesIndices;
+        currentMatricesIndices = storedMatricesIndices;
+        storedMatricesIndices = tmp1;
+
+        int[] tmp2 = currentPartialsIndices;
+        currentPartialsIndices = storedPartialsIndices;
+        storedPartialsIndices = tmp2;
+    }
+
+    private static final double LOG_2 = Math.log(2.0);
+
+    private final int stateCount;
+    private int nodeCount;
+    private int patternCount;
+    private int partialsSize;
+    private int matrixSize;
+    private int matrixCount;
+
+    private boolean integrateCategories;
+
+    private float[][][] partials;
+    private int[][] states;
+    private double[][][] matrices;
+    private double[][][] scalingFactors;
+
+    private int[] currentMatricesIndices;
+    private int[] storedMatricesIndices;
+    private int[] currentPartialsIndices;
+    private int[] storedPartialsIndices;
+
+    // the partials of the pattern being calculated, in double precision until they are rescaled
+    private double[] patternPartials;
+}
@@ -40,9 +40,10 @@ public interface LikelihoodCore extends LikelihoodPartialsProvider {
     void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories);
 
     /**
-     * cleans up and deallocates arrays.
+     * cleans up and deallocates arrays, and closes any file the partials are kept in, once the
+     * core is no longer used.
      */
-    void finalize() throws java.lang.Throwable;
+    void release();
 
     /**
      * Allocates partials for a node
@@ -0,0 +1,136 @@
+/*
+ * NodeHeightGradient.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.CompoundParameter;
+import dr.inference.model.GradientWrtParameterProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.ModelListener;
+import dr.inference.model.Parameter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Gradient of a tree likelihood with respect to the heights of the internal nodes (and
+ * optionally the root). Raising a node shortens its own branch and lengthens those of its
+ * children, so each element is a signed, rate-weighted sum of branch length gradients. The
+ * height parameters move between the internal nodes as the root changes, so the node of each
+ * element is found again after the tree changes.
+ *
+ * @version $Id$
+ */
+public class NodeHeightGradient implements GradientWrtParameterProvider, ModelListener {
+
+    public NodeHeightGradient(BranchLengthGradientProvider treeLikelihood, boolean includeRoot) {
+
+        this.treeLikelihood = treeLikelihood;
+
+        final TreeModel tree = treeLikelihood.getTreeModel();
+        this.heightParameter = (CompoundParameter) tree.createNodeHeightsParameter(includeRoot, true, false);
+
+        indices = new IdentityHashMap<Parameter, Integer>();
+        for (int i = 0; i < heightParameter.getParameterCount(); i++) {
+            indices.put(heightParameter.getParameter(i), i);
+        }
+        nodes = new NodeRef[heightParameter.getParameterCount()];
+        tree.addModelListener(this);
+    }
+
+    /**
+     * Finds the node that holds the height parameter of each element.
+     */
+    private void updateNodes() {
+        final TreeModel tree = treeLikelihood.getTreeModel();
+        for (int i = tree.getExternalNodeCount(); i < tree.getNodeCount(); i++) {
+            final TreeModel.Node node = (TreeModel.Node) tree.getNode(i);
+            final Integer index = indices.get(node.heightParameter);
+            if (index != null) {
+                nodes[index] = node;
+            }
+        }
+        nodesKnown = true;
+    }
+
+    public Likelihood getLikelihood() {
+        return treeLikelihood;
+    }
+
+    public Parameter getParameter() {
+        return heightParameter;
+    }
+
+    public int getDimension() {
+        return heightParameter.getDimension();
+    }
+
+    public double[] getGradientLogDensity() {
+
+        final TreeModel tree = treeLikelihood.getTreeModel();
+        final BranchRateModel branchRateModel = treeLikelihood.getBranchRateModel();
+        final double[] branchGradient = treeLikelihood.getBranchLengthGradient();
+
+        if (!nodesKnown) {
+            updateNodes();
+        }
+
+        double[] gradient = new double[nodes.length];
+
+        for (int i = 0; i < nodes.length; i++) {
+            final NodeRef node = nodes[i];
+
+            double sum = 0.0;
+            if (!tree.isRoot(node)) {
+                sum -= branchRateModel.getBranchRate(tree, node) * branchGradient[node.getNumber()];
+            }
+            for (int j = 0; j < tree.getChildCount(node); j++) {
+                final NodeRef child = tree.getChild(node, j);
+                sum += branchRateModel.getBranchRate(tree, child) * branchGradient[child.getNumber()];
+            }
+            gradient[i] = sum;
+        }
+
+        return gradient;
+    }
+
+    public void modelChangedEvent(Model model, Object object, int index) {
+        nodesKnown = false;
+    }
+
+    public void modelRestored(Model model) {
+        nodesKnown = false;
+    }
+
+    private final BranchLengthGradientProvider treeLikelihood;
+    private final CompoundParameter heightParameter;
+    private final Map<Parameter, Integer> indices;
+    private final NodeRef[] nodes;
+    private boolean nodesKnown = false;
+}
@@ -0,0 +1,231 @@
+/*
+ * OffHeapPartialsStore.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Partial likelihoods kept outside the Java heap, in double or single precision, so that the
+ * partials of very large trees neither need a heap of their size nor lengthen the pauses of the
+ * garbage collector. The partials of the nodes are allocated as they are created in segments of
+ * direct memory, or of a temporary file mapped into memory, in which case the operating system
+ * keeps in memory the buffers in use and may write the others, such as the stored ones, out to
+ * disk. Each buffer of each node is read and written whole.
+ *
+ * @version $Id$
+ */
+public class OffHeapPartialsStore {
+
+    /**
+     * @param bufferCount     the number of buffers of partials of each node
+     * @param nodeCount       the number of nodes
+     * @param partialsSize    the number of partials in each buffer
+     * @param singlePrecision whether to keep the partials as floats rather than doubles
+     * @param directory       the directory of the file to map the partials to, or null to keep
+     *                        them in direct memory
+     */
+    public OffHeapPartialsStore(int bufferCount, int nodeCount, int partialsSize, boolean singlePrecision,
+                                File directory) throws IOException {
+        this.partialsSize = partialsSize;
+        this.singlePrecision = singlePrecision;
+
+        final long bufferBytes = (long) partialsSize * (singlePrecision ? 4 : 8);
+        if (bufferBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The partials of a node take more than 2GB");
+        }
+        this.bufferBytes = (int) bufferBytes;
+        // a segment holds a whole number of buffers, and no more than all of them
+        final long totalBytes = (long) bufferCount * nodeCount * bufferBytes;
+        segmentSize = (int) Math.max(bufferBytes,
+                Math.min(totalBytes, SEGMENT_SIZE - SEGMENT_SIZE % Math.max(bufferBytes, 1)));
+
+        if (singlePrecision) {
+            floatBuffers = new FloatBuffer[bufferCount][nodeCount];
+            doubleBuffers = null;
+            floats = new float[partialsSize];
+        } else {
+            doubleBuffers = new DoubleBuffer[bufferCount][nodeCount];
+            floatBuffers = null;
+            floats = null;
+        }
+
+        if (directory != null) {
+            file = File.createTempFile("partials", ".tmp", directory);
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } else {
+            file = null;
+            channel = null;
+        }
+    }
+
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    public boolean isMapped() {
+        return channel != null;
+    }
+
+    /**
+     * @return the number of bytes taken by the partials allocated so far
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Allocates all the buffers of a node, filled with zeros.
+     */
+    public void create(int nodeIndex) {
+        if (hasNode(nodeIndex)) {
+            return;
+        }
+        for (int b = 0; b < getBufferCount(); b++) {
+            final ByteBuffer bytes = allocate();
+            if (singlePrecision) {
+                floatBuffers[b][nodeIndex] = bytes.asFloatBuffer();
+            } else {
+                doubleBuffers[b][nodeIndex] = bytes.asDoubleBuffer();
+            }
+        }
+    }
+
+    public boolean hasNode(int nodeIndex) {
+        return singlePrecision ? floatBuffers[0][nodeIndex] != null : doubleBuffers[0][nodeIndex] != null;
+    }
+
+    /**
+     * Reads a buffer of partials of a node.
+     */
+    public void get(int buffer, int nodeIndex, double[] partials) {
+        if (singlePrecision) {
+            final FloatBuffer source = floatBuffers[buffer][nodeIndex];
+            source.clear();
+            source.get(floats, 0, partialsSize);
+            for (int i = 0; i < partialsSize; i++) {
+                partials[i] = floats[i];
+            }
+        } else {
+            final DoubleBuffer source = doubleBuffers[buffer][nodeIndex];
+            source.clear();
+            source.get(partials, 0, partialsSize);
+        }
+    }
+
+    /**
+     * Writes a buffer of partials of a node.
+     */
+    public void set(int buffer, int nodeIndex, double[] partials) {
+        if (singlePrecision) {
+            for (int i = 0; i < partialsSize; i++) {
+                floats[i] = (float) partials[i];
+            }
+            final FloatBuffer destination = floatBuffers[buffer][nodeIndex];
+            destination.clear();
+            destination.put(floats, 0, partialsSize);
+        } else {
+            final DoubleBuffer destination = doubleBuffers[buffer][nodeIndex];
+            destination.clear();
+            destination.put(partials, 0, partialsSize);
+        }
+    }
+
+    /**
+     * Lets go of the partials and deletes the file they are mapped to, if any. The memory itself
+     * is only freed once the buffers are garbage collected.
+     */
+    public void close() {
+        if (singlePrecision) {
+            floatBuffers = new FloatBuffer[0][0];
+        } else {
+            doubleBuffers = new DoubleBuffer[0][0];
+        }
+        segment = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private int getBufferCount() {
+        return singlePrecision ? floatBuffers.length : doubleBuffers.length;
+    }
+
+    private ByteBuffer allocate() {
+        if (segment == null || segment.remaining() < bufferBytes) {
+            if (channel != null) {
+                try {
+                    segment = channel.map(FileChannel.MapMode.READ_WRITE, mappedBytes, segmentSize);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to map the partials to " + file + ": " + e.getMessage());
+                }
+                mappedBytes += segmentSize;
+            } else {
+                segment = ByteBuffer.allocateDirect(segmentSize);
+            }
+            segment.order(ByteOrder.nativeOrder());
+        }
+        segment.limit(segment.position() + bufferBytes);
+        final ByteBuffer bytes = segment.slice().order(ByteOrder.nativeOrder());
+        segment.position(segment.limit());
+        segment.limit(segment.capacity());
+        allocatedBytes += bufferBytes;
+        return bytes;
+    }
+
+    // the size of the blocks of memory the buffers are allocated from, so that a large tree needs
+    // few mappings
+    private static final int SEGMENT_SIZE = 1 << 28;
+
+    private final int partialsSize;
+    private final boolean singlePrecision;
+    private final int bufferBytes;
+    private final int segmentSize;
+
+    private DoubleBuffer[][] doubleBuffers;
+    private FloatBuffer[][] floatBuffers;
+    private final float[] floats;
+
+    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer segment = null;
+    private long mappedBytes = 0;
+    private long allocatedBytes = 0;
+}
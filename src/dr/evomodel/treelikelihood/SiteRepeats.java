@@ -0,0 +1,272 @@
+/*
+ * SiteRepeats.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of site repeats: patterns that are identical over the tips below a node, and so
+ * have identical partials at that node (Kobert et al. 2017, Syst. Biol. 66:205).
+ * <p/>
+ * Each node has a repeat class for every pattern. The classes at a tip are those of its states
+ * (or partials), and the classes at an internal node are the distinct pairs of its children's
+ * classes. Classes are kept for both partials buffers of a node so that they are stored and
+ * restored with the partials, and are only recomputed when the children of a node, or the classes
+ * of the children, differ from those they were computed from, i.e., after a change of topology.
+ *
+ * @version $Id$
+ */
+final class SiteRepeats {
+
+    SiteRepeats(int nodeCount, int patternCount) {
+        this.patternCount = patternCount;
+
+        classes = new int[2][nodeCount][patternCount];
+        classCounts = new int[2][nodeCount];
+        representatives = new int[2][nodeCount][patternCount];
+
+        stamps = new long[2][nodeCount];
+        children1 = new int[2][nodeCount];
+        children2 = new int[2][nodeCount];
+        childStamps1 = new long[2][nodeCount];
+        childStamps2 = new long[2][nodeCount];
+        for (int b = 0; b < 2; b++) {
+            Arrays.fill(children1[b], -1);
+            Arrays.fill(children2[b], -1);
+        }
+
+        int tableSize = 1;
+        while (tableSize < 2 * patternCount) {
+            tableSize <<= 1;
+        }
+        tableKeys = new long[tableSize];
+        tableValues = new int[tableSize];
+        Arrays.fill(tableValues, -1);
+        usedSlots = new int[patternCount];
+    }
+
+    /**
+     * Sets the classes of a tip from its states, in both buffers.
+     */
+    void setTipStates(int nodeIndex, int[] states) {
+        final long stamp = ++lastStamp;
+        for (int b = 0; b < 2; b++) {
+            int count = 0;
+            for (int k = 0; k < patternCount; k++) {
+                int c = findOrAdd(states[k], count);
+                if (c == count) {
+                    representatives[b][nodeIndex][count] = k;
+                    count++;
+                }
+                classes[b][nodeIndex][k] = c;
+            }
+            clearTable();
+            classCounts[b][nodeIndex] = count;
+            stamps[b][nodeIndex] = stamp;
+            children1[b][nodeIndex] = -1;
+            children2[b][nodeIndex] = -1;
+        }
+    }
+
+    /**
+     * Sets the classes of a node in the given buffer from its partials, which may hold one or more
+     * categories; patterns with identical partials in every category share a class.
+     */
+    void setPartials(int nodeIndex, int buffer, double[] partials, int stateCount) {
+        final int categoryCount = partials.length / (patternCount * stateCount);
+        final int categorySize = patternCount * stateCount;
+        final int[] nodeClasses = classes[buffer][nodeIndex];
+        final int[] nodeRepresentatives = representatives[buffer][nodeIndex];
+
+        int count = 0;
+        for (int k = 0; k < patternCount; k++) {
+            long hash = 1;
+            for (int c = 0; c < categoryCount; c++) {
+                int v = c * categorySize + k * stateCount;
+                for (int j = 0; j < stateCount; j++) {
+                    hash = 31 * hash + Double.doubleToLongBits(partials[v + j]);
+                }
+            }
+
+            // probe past the patterns with the same hash but different partials
+            int cls = -1;
+            int slot = slotOf(hash);
+            while (tableValues[slot] != -1) {
+                if (tableKeys[slot] == hash && samePartials(partials, nodeRepresentatives[tableValues[slot]], k,
+                        stateCount, categoryCount, categorySize)) {
+                    cls = tableValues[slot];
+                    break;
+                }
+                slot = (slot + 1) & (tableValues.length - 1);
+            }
+            if (cls == -1) {
+                cls = count;
+                tableKeys[slot] = hash;
+                tableValues[slot] = cls;
+                usedSlots[usedCount++] = slot;
+                nodeRepresentatives[count] = k;
+                count++;
+            }
+            nodeClasses[k] = cls;
+        }
+        clearTable();
+        classCounts[buffer][nodeIndex] = count;
+        stamps[buffer][nodeIndex] = ++lastStamp;
+        children1[buffer][nodeIndex] = -1;
+        children2[buffer][nodeIndex] = -1;
+    }
+
+    private boolean samePartials(double[] partials, int pattern1, int pattern2, int stateCount,
+                                 int categoryCount, int categorySize) {
+        for (int c = 0; c < categoryCount; c++) {
+            int v1 = c * categorySize + pattern1 * stateCount;
+            int v2 = c * categorySize + pattern2 * stateCount;
+            for (int j = 0; j < stateCount; j++) {
+                if (partials[v1 + j] != partials[v2 + j]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure that the classes of node3 in buffer3 are those for children node1 and node2 with
+     * their current classes, recomputing them only if necessary.
+     */
+    void update(int nodeIndex1, int buffer1, int nodeIndex2, int buffer2, int nodeIndex3, int buffer3) {
+
+        final long stamp1 = stamps[buffer1][nodeIndex1];
+        final long stamp2 = stamps[buffer2][nodeIndex2];
+
+        if (isValid(nodeIndex1, stamp1, nodeIndex2, stamp2, nodeIndex3, buffer3)) {
+            return;
+        }
+
+        final int other = 1 - buffer3;
+        if (isValid(nodeIndex1, stamp1, nodeIndex2, stamp2, nodeIndex3, other)) {
+            // the classes are those of the other buffer (e.g., only branch lengths have changed)
+            System.arraycopy(classes[other][nodeIndex3], 0, classes[buffer3][nodeIndex3], 0, patternCount);
+            System.arraycopy(representatives[other][nodeIndex3], 0, representatives[buffer3][nodeIndex3], 0,
+                    classCounts[other][nodeIndex3]);
+            classCounts[buffer3][nodeIndex3] = classCounts[other][nodeIndex3];
+            stamps[buffer3][nodeIndex3] = stamps[other][nodeIndex3];
+        } else {
+            final int[] classes1 = classes[buffer1][nodeIndex1];
+            final int[] classes2 = classes[buffer2][nodeIndex2];
+            final long count2 = classCounts[buffer2][nodeIndex2];
+            final int[] nodeClasses = classes[buffer3][nodeIndex3];
+            final int[] nodeRepresentatives = representatives[buffer3][nodeIndex3];
+
+            int count = 0;
+            for (int k = 0; k < patternCount; k++) {
+                int c = findOrAdd(classes1[k] * count2 + classes2[k], count);
+                if (c == count) {
+                    nodeRepresentatives[count] = k;
+                    count++;
+                }
+                nodeClasses[k] = c;
+            }
+            clearTable();
+            classCounts[buffer3][nodeIndex3] = count;
+            stamps[buffer3][nodeIndex3] = ++lastStamp;
+        }
+
+        children1[buffer3][nodeIndex3] = nodeIndex1;
+        children2[buffer3][nodeIndex3] = nodeIndex2;
+        childStamps1[buffer3][nodeIndex3] = stamp1;
+        childStamps2[buffer3][nodeIndex3] = stamp2;
+    }
+
+    private boolean isValid(int nodeIndex1, long stamp1, int nodeIndex2, long stamp2, int nodeIndex3, int buffer3) {
+        return children1[buffer3][nodeIndex3] == nodeIndex1 && children2[buffer3][nodeIndex3] == nodeIndex2 &&
+                childStamps1[buffer3][nodeIndex3] == stamp1 && childStamps2[buffer3][nodeIndex3] == stamp2;
+    }
+
+    int getClassCount(int nodeIndex, int buffer) {
+        return classCounts[buffer][nodeIndex];
+    }
+
+    /**
+     * @return the class of each pattern at the node
+     */
+    int[] getClasses(int nodeIndex, int buffer) {
+        return classes[buffer][nodeIndex];
+    }
+
+    /**
+     * @return the first pattern of each class at the node
+     */
+    int[] getRepresentatives(int nodeIndex, int buffer) {
+        return representatives[buffer][nodeIndex];
+    }
+
+    // open addressing table from keys to classes, emptied after each use
+
+    private int findOrAdd(long key, int next) {
+        int slot = slotOf(key);
+        while (tableValues[slot] != -1) {
+            if (tableKeys[slot] == key) {
+                return tableValues[slot];
+            }
+            slot = (slot + 1) & (tableValues.length - 1);
+        }
+        tableKeys[slot] = key;
+        tableValues[slot] = next;
+        usedSlots[usedCount++] = slot;
+        return next;
+    }
+
+    private int slotOf(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (tableValues.length - 1);
+    }
+
+    private void clearTable() {
+        for (int i = 0; i < usedCount; i++) {
+            tableValues[usedSlots[i]] = -1;
+        }
+        usedCount = 0;
+    }
+
+    private final int patternCount;
+
+    private final int[][][] classes;
+    private final int[][] classCounts;
+    private final int[][][] representatives;
+
+    // what the classes in each buffer were computed from
+    private final long[][] stamps;
+    private final int[][] children1;
+    private final int[][] children2;
+    private final long[][] childStamps1;
+    private final long[][] childStamps2;
+    private long lastStamp = 0;
+
+    private final long[] tableKeys;
+    private final int[] tableValues;
+    private final int[] usedSlots;
+    private int usedCount = 0;
+}
@@ -37,11 +37,13 @@ import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.branchratemodel.DefaultBranchRateModel;
 import dr.evomodel.sitemodel.SiteModel;
 import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SubstitutionModel;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodelxml.treelikelihood.TreeLikelihoodParser;
 import dr.inference.model.Model;
 import dr.inference.model.Statistic;
 
+import java.io.File;
 import java.util.logging.Logger;
 
 /**
@@ -52,7 +54,8 @@ import java.util.logging.Logger;
  * @version $Id: TreeLikelihood.java,v 1.31 2006/08/30 16:02:42 rambaut Exp $
  */
 
-public class TreeLikelihood extends AbstractTreeLikelihood {
+public class TreeLikelihood extends AbstractTreeLikelihood implements BranchLengthGradientProvider,
+        TreeLikelihoodComponents.Provider, LikelihoodScalingProvider {
     private static final boolean DEBUG = false;
 
     /**
@@ -68,6 +71,32 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
                           boolean storePartials,
                           boolean forceJavaCore,
                           boolean forceRescaling) {
+        this(patternList, treeModel, siteModel, branchRateModel, tipStatesModel, useAmbiguities, allowMissingTaxa,
+                storePartials, forceJavaCore, forceRescaling, false, false, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param offHeapPartials         whether to keep the partials outside the Java heap
+     * @param singlePrecisionPartials whether to keep the partials as floats, with a core in
+     *                                single precision unless they are kept outside the heap
+     * @param partialsDirectory       a directory in which to map the partials kept outside the
+     *                                heap to a file, or null to keep them in direct memory
+     */
+    public TreeLikelihood(PatternList patternList,
+                          TreeModel treeModel,
+                          SiteModel siteModel,
+                          BranchRateModel branchRateModel,
+                          TipStatesModel tipStatesModel,
+                          boolean useAmbiguities,
+                          boolean allowMissingTaxa,
+                          boolean storePartials,
+                          boolean forceJavaCore,
+                          boolean forceRescaling,
+                          boolean offHeapPartials,
+                          boolean singlePrecisionPartials,
+                          File partialsDirectory) {
 
         super(TreeLikelihoodParser.TREE_LIKELIHOOD, patternList, treeModel);
 
@@ -87,52 +116,19 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
             this.categoryCount = siteModel.getCategoryCount();
 
             final Logger logger = Logger.getLogger("dr.evomodel");
-            String coreName = "Java general";
-            if (integrateAcrossCategories) {
-
-                final DataType dataType = patternList.getDataType();
-
-                if (dataType instanceof dr.evolution.datatype.Nucleotides) {
-
-                    if (!forceJavaCore && NativeNucleotideLikelihoodCore.isAvailable()) {
-                        coreName = "native nucleotide";
-                        likelihoodCore = new NativeNucleotideLikelihoodCore();
-                    } else {
-                        coreName = "Java nucleotide";
-                        likelihoodCore = new NucleotideLikelihoodCore();
-                    }
-
-                } else if (dataType instanceof dr.evolution.datatype.AminoAcids) {
-                    if (!forceJavaCore && NativeAminoAcidLikelihoodCore.isAvailable()) {
-                        coreName = "native amino acid";
-                        likelihoodCore = new NativeAminoAcidLikelihoodCore();
-                    } else {
-                        coreName = "Java amino acid";
-                        likelihoodCore = new AminoAcidLikelihoodCore();
-                    }
-
-                    // The codon core was out of date and did nothing more than the general core...
-                } else if (dataType instanceof dr.evolution.datatype.Codons) {
-                    if (!forceJavaCore && NativeGeneralLikelihoodCore.isAvailable()) {
-                        coreName = "native general";
-                        likelihoodCore = new NativeGeneralLikelihoodCore(patternList.getStateCount());
-                    } else {
-                        coreName = "Java general";
-                        likelihoodCore = new GeneralLikelihoodCore(patternList.getStateCount());
-                    }
-                    useAmbiguities = true;
-                } else {
-                    if (!forceJavaCore && NativeGeneralLikelihoodCore.isAvailable()) {
-                        coreName = "native general";
-                        likelihoodCore = new NativeGeneralLikelihoodCore(patternList.getStateCount());
-                    } else {
-                        coreName = "Java general";
-                        likelihoodCore = new GeneralLikelihoodCore(patternList.getStateCount());
-                    }
-                }
-            } else {
-                likelihoodCore = new GeneralLikelihoodCore(patternList.getStateCount());
+            if (integrateAcrossCategories && patternList.getDataType() instanceof dr.evolution.datatype.Codons) {
+                useAmbiguities = true;
             }
+            this.allowMissingTaxa = allowMissingTaxa;
+            this.forceJavaCore = forceJavaCore;
+            this.forceRescaling = forceRescaling;
+            this.offHeapPartials = offHeapPartials;
+            this.singlePrecisionPartials = singlePrecisionPartials;
+            this.partialsDirectory = partialsDirectory;
+
+            likelihoodCore = createLikelihoodCore(singlePrecisionPartials);
+            final String coreName = likelihoodCoreName;
+            this.useAmbiguities = useAmbiguities;
             {
               final String id = getId();
               logger.info("TreeLikelihood(" + ((id != null) ? id : treeModel.getId()) + ") using " + coreName + " likelihood core");
@@ -151,17 +147,18 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
 
             probabilities = new double[stateCount * stateCount];
 
-            likelihoodCore.initialize(nodeCount, patternCount, categoryCount, integrateAcrossCategories);
-
-            int extNodeCount = treeModel.getExternalNodeCount();
-            int intNodeCount = treeModel.getInternalNodeCount();
+            if (offHeapPartials) {
+                logger.info("  Keeping the partials outside the heap in " +
+                        (singlePrecisionPartials ? "single" : "double") + " precision" +
+                        (partialsDirectory != null ? ", mapped to a file in " + partialsDirectory : "") + ".");
+            }
 
             if (tipStatesModel != null) {
                 tipStatesModel.setTree(treeModel);
 
                 tipPartials = new double[patternCount * stateCount];
 
-                for (int i = 0; i < extNodeCount; i++) {
+                for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
                     // Find the id of tip i in the patternList
                     String id = treeModel.getTaxonId(i);
                     int index = patternList.getTaxonIndex(id);
@@ -172,55 +169,228 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
                     }
 
                     tipStatesModel.setStates(patternList, index, i, id);
-                    likelihoodCore.createNodePartials(i);
                 }
 
                 addModel(tipStatesModel);
+            }
+
+            setUpLikelihoodCore();
+
+            if (forceRescaling) {
+                logger.info("  Forcing use of partials rescaling.");
+            }
+
+        } catch (TaxonList.MissingTaxonException mte) {
+            throw new RuntimeException(mte.toString());
+        }
+
+        addStatistic(new SiteLikelihoodsStatistic());
+    }
+
+    /**
+     * Creates the core that suits the data type, which is native if available unless
+     * forceJavaCore is set, and records its name in likelihoodCoreName.
+     *
+     * @param singlePrecision whether to keep the partials in single precision
+     */
+    private LikelihoodCore createLikelihoodCore(boolean singlePrecision) {
+        final LikelihoodCore core;
+        likelihoodCoreName = "Java general";
+        if (singlePrecision && !offHeapPartials) {
+            likelihoodCoreName = "Java single precision";
+            core = new FloatLikelihoodCore(patternList.getStateCount());
+        } else if (integrateAcrossCategories) {
+
+            final DataType dataType = patternList.getDataType();
+
+            if (dataType instanceof dr.evolution.datatype.Nucleotides) {
+
+                if (!forceJavaCore && NativeNucleotideLikelihoodCore.isAvailable()) {
+                    likelihoodCoreName = "native nucleotide";
+                    core = new NativeNucleotideLikelihoodCore();
+                } else {
+                    likelihoodCoreName = "Java nucleotide";
+                    core = new NucleotideLikelihoodCore();
+                }
+
+            } else if (dataType instanceof dr.evolution.datatype.AminoAcids) {
+                if (!forceJavaCore && NativeAminoAcidLikelihoodCore.isAvailable()) {
+                    likelihoodCoreName = "native amino acid";
+                    core = new NativeAminoAcidLikelihoodCore();
+                } else {
+                    likelihoodCoreName = "Java amino acid";
+                    core = new AminoAcidLikelihoodCore();
+                }
+
+                // The codon core was out of date and did nothing more than the general core...
             } else {
-                for (int i = 0; i < extNodeCount; i++) {
-                    // Find the id of tip i in the patternList
-                    String id = treeModel.getTaxonId(i);
-                    int index = patternList.getTaxonIndex(id);
+                if (!forceJavaCore && NativeGeneralLikelihoodCore.isAvailable()) {
+                    likelihoodCoreName = "native general";
+                    core = new NativeGeneralLikelihoodCore(patternList.getStateCount());
+                } else {
+                    likelihoodCoreName = "Java general";
+                    core = new GeneralLikelihoodCore(patternList.getStateCount());
+                }
+            }
+        } else {
+            core = new GeneralLikelihoodCore(patternList.getStateCount());
+        }
 
-                    if (index == -1) {
-                        if (!allowMissingTaxa) {
-                            throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
-                                    ", is not found in patternList, " + patternList.getId());
-                        }
-                        if (useAmbiguities) {
-                            setMissingPartials(likelihoodCore, i);
-                        } else {
-                            setMissingStates(likelihoodCore, i);
-                        }
+        if (offHeapPartials) {
+            ((AbstractLikelihoodCore) core).setOffHeapPartials(singlePrecision, partialsDirectory);
+        }
+        return core;
+    }
+
+    /**
+     * Initializes the likelihood core and sets the states or partials of the tips.
+     */
+    private void setUpLikelihoodCore() throws TaxonList.MissingTaxonException {
+
+        likelihoodCore.initialize(nodeCount, patternCount, categoryCount, integrateAcrossCategories);
+
+        int extNodeCount = treeModel.getExternalNodeCount();
+        int intNodeCount = treeModel.getInternalNodeCount();
+
+        if (tipStatesModel != null) {
+            // the partials of the tips are set from the tipStatesModel as they are updated
+            for (int i = 0; i < extNodeCount; i++) {
+                likelihoodCore.createNodePartials(i);
+            }
+        } else {
+            for (int i = 0; i < extNodeCount; i++) {
+                // Find the id of tip i in the patternList
+                String id = treeModel.getTaxonId(i);
+                int index = patternList.getTaxonIndex(id);
+
+                if (index == -1) {
+                    if (!allowMissingTaxa) {
+                        throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
+                                ", is not found in patternList, " + patternList.getId());
+                    }
+                    if (useAmbiguities) {
+                        setMissingPartials(likelihoodCore, i);
                     } else {
-                        if (useAmbiguities) {
-                            setPartials(likelihoodCore, patternList, categoryCount, index, i);
-                        } else {
-                            setStates(likelihoodCore, patternList, index, i);
-                        }
+                        setMissingStates(likelihoodCore, i);
+                    }
+                } else {
+                    if (useAmbiguities) {
+                        setPartials(likelihoodCore, patternList, categoryCount, index, i);
+                    } else {
+                        setStates(likelihoodCore, patternList, index, i);
                     }
                 }
             }
-            for (int i = 0; i < intNodeCount; i++) {
-                likelihoodCore.createNodePartials(extNodeCount + i);
-            }
+        }
+        for (int i = 0; i < intNodeCount; i++) {
+            likelihoodCore.createNodePartials(extNodeCount + i);
+        }
 
-            if (forceRescaling) {
-                likelihoodCore.setUseScaling(true);
-                logger.info("  Forcing use of partials rescaling.");
-            }
+        if (forceRescaling) {
+            likelihoodCore.setUseScaling(true);
+        }
+    }
+
+    /**
+     * Sets how often the likelihood with partials in single precision is checked against the
+     * likelihood in double precision. Every so many times the state is stored, the next likelihood
+     * to be calculated is also calculated in double precision with a new core and, if the two
+     * differ by more than the tolerance, the likelihood is calculated in double precision from
+     * then on. This has no effect with partials in double precision.
+     *
+     * @param checkEvery the number of times the state is stored between checks, or 0 for none
+     * @param tolerance  the largest difference allowed between the log likelihoods
+     */
+    public void setPrecisionCheck(int checkEvery, double tolerance) {
+        precisionCheckEvery = checkEvery;
+        precisionTolerance = tolerance;
+        if (singlePrecisionPartials && checkEvery > 0) {
+            Logger.getLogger("dr.evomodel").info("  Checking the likelihood in single precision against double " +
+                    "precision every " + checkEvery + " states.");
+        }
+    }
 
+    /**
+     * @return whether the partials are still in single precision, rather than in double after a
+     * precision check failed
+     */
+    public boolean isUsingSinglePrecision() {
+        return singlePrecisionPartials && !precisionCheckFailed;
+    }
+
+    /**
+     * Calculates the likelihood of the current state with the core in single precision and again
+     * with a new core in double precision, which replaces the one in single precision if the two
+     * likelihoods are too far apart.
+     *
+     * @return the log likelihood calculated by the core that is kept
+     */
+    private double checkPrecision() {
+        final double logL = calculateCoreLogLikelihood();
+        final double[] singlePatternLogLikelihoods = patternLogLikelihoods.clone();
+
+        final LikelihoodCore singleCore = likelihoodCore;
+        likelihoodCore = createLikelihoodCore(false);
+        try {
+            setUpLikelihoodCore();
         } catch (TaxonList.MissingTaxonException mte) {
             throw new RuntimeException(mte.toString());
         }
+        if (useSiteRepeats) {
+            setUseSiteRepeats(true);
+        }
 
-        addStatistic(new SiteLikelihoodsStatistic());
+        updateAllNodes();
+        updateAllPatterns();
+        final double doubleLogL = calculateCoreLogLikelihood();
+
+        if (Math.abs(doubleLogL - logL) > precisionTolerance || Double.isNaN(logL)) {
+            Logger.getLogger("dr.evomodel").warning("TreeLikelihood, " + getId() + ", has a log likelihood of " +
+                    logL + " in single precision but " + doubleLogL + " in double precision, so switching to the " +
+                    likelihoodCoreName + " likelihood core in double precision");
+            precisionCheckFailed = true;
+            // the new core has only calculated this state, so the stored state is calculated again if restored
+            recalculateOnRestore = true;
+            singleCore.release();
+            return doubleLogL;
+        }
+
+        likelihoodCore.release();
+        likelihoodCore = singleCore;
+        System.arraycopy(singlePatternLogLikelihoods, 0, patternLogLikelihoods, 0, patternCount);
+        return logL;
     }
 
     public final LikelihoodCore getLikelihoodCore() {
         return likelihoodCore;
     }
 
+    public void getLogScalingFactors(int nodeNumber, double[] buffer) {
+        likelihoodCore.getLogScalingFactors(nodeNumber, buffer);
+    }
+
+    public boolean arePartialsRescaled() {
+        return likelihoodCore.arePartialsRescaled();
+    }
+
+    /**
+     * Sets whether the likelihood core calculates partials only once for the patterns that are
+     * identical over the tips below each node. This has no effect on the likelihood.
+     */
+    public void setUseSiteRepeats(boolean useSiteRepeats) {
+        this.useSiteRepeats = useSiteRepeats;
+        if (likelihoodCore instanceof AbstractLikelihoodCore) {
+            ((AbstractLikelihoodCore) likelihoodCore).setUseSiteRepeats(useSiteRepeats);
+            if (useSiteRepeats && !((AbstractLikelihoodCore) likelihoodCore).isUsingSiteRepeats()) {
+                Logger.getLogger("dr.evomodel").info("  Site repeats are only used when integrating across rate categories.");
+            }
+        }
+    }
+
+    public BranchRateModel getBranchRateModel() {
+        return branchRateModel;
+    }
+
     // **************************************************************
     // ModelListener IMPLEMENTATION
     // **************************************************************
@@ -296,9 +466,14 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
      */
     protected void storeState() {
 
+        if (isUsingSinglePrecision() && precisionCheckEvery > 0 && ++storeCount % precisionCheckEvery == 0) {
+            // the check is made when the likelihood is next calculated
+            precisionCheckDue = true;
+        }
         if (storePartials) {
             likelihoodCore.storeState();
         }
+        recalculateOnRestore = false;
         super.storeState();
 
     }
@@ -308,11 +483,12 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
      */
     protected void restoreState() {
 
-        if (storePartials) {
+        if (storePartials && !recalculateOnRestore) {
             likelihoodCore.restoreState();
         } else {
             updateAllNodes();
         }
+        recalculateOnRestore = false;
 
         super.restoreState();
 
@@ -329,6 +505,15 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
      */
     protected double calculateLogLikelihood() {
 
+        if (precisionCheckDue) {
+            precisionCheckDue = false;
+            return checkPrecision();
+        }
+        return calculateCoreLogLikelihood();
+    }
+
+    private double calculateCoreLogLikelihood() {
+
         if (patternLogLikelihoods == null) {
             patternLogLikelihoods = new double[patternCount];
         }
@@ -544,6 +729,150 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
         return rootPartials;
     }
 
+    /**
+     * Calculates the derivative of the log likelihood with respect to the length of each branch
+     * using the partials from the last post-order traversal and a single pre-order pass.
+     *
+     * @return d logL / d (rate * time) indexed by node number
+     */
+    public double[] getBranchLengthGradient() {
+
+        final TreeLikelihoodComponents components = getLikelihoodComponents();
+
+        getLogLikelihood(); // Ensure the post-order partials are up-to-date
+
+        if (gradientDelegate == null) {
+            gradientDelegate = new BranchLengthGradientDelegate(components);
+        }
+
+        double[] gradient = new double[nodeCount];
+        gradientDelegate.calculateBranchLengthGradient(treeModel, gradient);
+        return gradient;
+    }
+
+    public TreeLikelihoodComponents getLikelihoodComponents() {
+
+        if (!integrateAcrossCategories) {
+            throw new UnsupportedOperationException("The site model must integrate across categories");
+        }
+        if (patternList instanceof AscertainedSitePatterns) {
+            throw new UnsupportedOperationException("Ascertained site patterns are not supported");
+        }
+
+        if (components == null) {
+            components = new CoreComponents();
+        }
+        return components;
+    }
+
+    /**
+     * Fills an array with the partials at a tip in the same form as the likelihood core
+     * sees them: ambiguous (or, when ambiguities are ignored, any non-canonical) states and
+     * missing taxa give a partial of one for every state.
+     */
+    private void getTipPartials(int nodeIndex, double[] partials) {
+
+        if (tipStatesModel != null) {
+            tipStatesModel.getTipPartials(nodeIndex, partials);
+            return;
+        }
+
+        final int index = patternList.getTaxonIndex(treeModel.getTaxonId(nodeIndex));
+
+        int v = 0;
+        for (int i = 0; i < patternCount; i++) {
+            if (index == -1) {
+                for (int j = 0; j < stateCount; j++) {
+                    partials[v] = 1.0;
+                    v++;
+                }
+            } else {
+                final int state = patternList.getPatternState(index, i);
+                if (useAmbiguities) {
+                    boolean[] stateSet = dataType.getStateSet(state);
+                    for (int j = 0; j < stateCount; j++) {
+                        partials[v] = stateSet[j] ? 1.0 : 0.0;
+                        v++;
+                    }
+                } else {
+                    for (int j = 0; j < stateCount; j++) {
+                        partials[v] = (state >= stateCount || state == j) ? 1.0 : 0.0;
+                        v++;
+                    }
+                }
+            }
+        }
+    }
+
+    private class CoreComponents implements TreeLikelihoodComponents {
+
+        CoreComponents() {
+            tipBuffer = new double[patternCount * stateCount];
+            categoryRates = new double[categoryCount];
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        public int getPatternCount() {
+            return patternCount;
+        }
+
+        public int getStateCount() {
+            return stateCount;
+        }
+
+        public int getCategoryCount() {
+            return categoryCount;
+        }
+
+        public void getPostOrderPartials(Tree tree, NodeRef node, double[] partials) {
+            if (tree.isExternal(node)) {
+                getTipPartials(node.getNumber(), tipBuffer);
+                final int n = tipBuffer.length;
+                for (int c = 0; c < categoryCount; c++) {
+                    System.arraycopy(tipBuffer, 0, partials, c * n, n);
+                }
+            } else {
+                likelihoodCore.getPartials(node.getNumber(), partials);
+            }
+        }
+
+        public double getBranchRate(Tree tree, NodeRef node) {
+            return branchRateModel.getBranchRate(tree, node);
+        }
+
+        public void getEigenDecomposition(double[] eigenVectors, double[] inverseEigenVectors, double[] eigenValues) {
+            final SubstitutionModel substitutionModel = siteModel.getSubstitutionModel();
+            BranchLengthGradientDelegate.flatten(substitutionModel.getEigenVectors(), eigenVectors);
+            BranchLengthGradientDelegate.flatten(substitutionModel.getInverseEigenVectors(), inverseEigenVectors);
+            System.arraycopy(substitutionModel.getEigenValues(), 0, eigenValues, 0, stateCount);
+        }
+
+        public double[] getCategoryRates() {
+            for (int i = 0; i < categoryCount; i++) {
+                categoryRates[i] = siteModel.getRateForCategory(i);
+            }
+            return categoryRates;
+        }
+
+        public double[] getCategoryProportions() {
+            return siteModel.getCategoryProportions();
+        }
+
+        public double[] getRootFrequencies() {
+            return frequencyModel.getFrequencies();
+        }
+
+        public double[] getPatternWeights() {
+            return patternWeights;
+        }
+
+        private final double[] tipBuffer;
+        private final double[] categoryRates;
+    }
+
     /**
      * the root partial likelihoods (a temporary array that is used
      * to fetch the partials - it should not be examined directly -
@@ -611,6 +940,27 @@ public class TreeLikelihood extends AbstractTreeLikelihood {
 
     private final boolean storePartials;
 
+    private final boolean useAmbiguities;
+
+    private final boolean allowMissingTaxa;
+    private final boolean forceJavaCore;
+    private final boolean forceRescaling;
+    private final boolean offHeapPartials;
+    private final boolean singlePrecisionPartials;
+    private final File partialsDirectory;
+    private boolean useSiteRepeats = false;
+    private String likelihoodCoreName;
+
+    private int precisionCheckEvery = 0;
+    private double precisionTolerance;
+    private int storeCount = 0;
+    private boolean precisionCheckDue = false;
+    private boolean precisionCheckFailed = false;
+    private boolean recalculateOnRestore = false;
+
+    private TreeLikelihoodComponents components = null;
+    private BranchLengthGradientDelegate gradientDelegate = null;
+
     protected final boolean integrateAcrossCategories;
 
     /**
@@ -0,0 +1,94 @@
+/*
+ * TreeLikelihoodComponents.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Likelihood;
+
+/**
+ * The pieces of a single-partition tree likelihood that are needed to recompute it (or its
+ * derivatives) outside the likelihood core: the partials, the branch rates and a single,
+ * reversible substitution process described by its eigen decomposition.
+ *
+ * @version $Id$
+ */
+public interface TreeLikelihoodComponents {
+
+    int getNodeCount();
+
+    int getPatternCount();
+
+    int getStateCount();
+
+    int getCategoryCount();
+
+    /**
+     * Gets the post-order (conditional) partials below a node, laid out as
+     * [category][pattern][state]. Partials for internal nodes are those of the last likelihood
+     * calculation and may be rescaled per pattern.
+     *
+     * @param tree     the tree
+     * @param node     the node
+     * @param partials an array into which the partials will go
+     */
+    void getPostOrderPartials(Tree tree, NodeRef node, double[] partials);
+
+    /**
+     * @param tree the tree
+     * @param node the node at the bottom of the branch
+     * @return the rate on the branch above the node
+     */
+    double getBranchRate(Tree tree, NodeRef node);
+
+    /**
+     * Gets the eigen decomposition of the substitution process as flattened, row-major arrays.
+     */
+    void getEigenDecomposition(double[] eigenVectors, double[] inverseEigenVectors, double[] eigenValues);
+
+    double[] getCategoryRates();
+
+    double[] getCategoryProportions();
+
+    double[] getRootFrequencies();
+
+    double[] getPatternWeights();
+
+    /**
+     * Tree likelihoods that can hand out their components.
+     */
+    public interface Provider extends Likelihood {
+
+        TreeModel getTreeModel();
+
+        /**
+         * @return the components of this likelihood
+         * @throws UnsupportedOperationException if the likelihood cannot be described this way
+         */
+        TreeLikelihoodComponents getLikelihoodComponents();
+    }
+}
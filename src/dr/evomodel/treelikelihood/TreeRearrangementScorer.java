@@ -0,0 +1,665 @@
+/*
+ * TreeRearrangementScorer.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treelikelihood;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores many candidate rearrangements of a tree (prune-and-regraft or subtree swap moves
+ * that keep all node heights) without touching the tree model or the likelihood cores.
+ * <p/>
+ * update() takes a snapshot of the tree and brings the post-order partials of each partition
+ * up to date, recomputing only the transition matrices whose branch lengths have changed and
+ * the partials on the paths above them or above a changed topology; everything is recomputed
+ * when the substitution or site model has changed. A candidate is then scored on a worker's private copy of the topology
+ * by recomputing only the nodes on the paths from the changed attachment points to the root,
+ * reading every other subtree from the shared snapshot. Candidates are shared out among
+ * threadCount workers, each with its own topology view and partials workspace.
+ * <p/>
+ * Branch rates are read per node in update() and stay with the node below each branch, which
+ * is exact for strict clocks and node-indexed rate models but not for rate models that depend
+ * on the topology.
+ *
+ * @version $Id$
+ */
+public class TreeRearrangementScorer {
+
+    public TreeRearrangementScorer(List<TreeLikelihoodComponents> partitions, int threadCount) {
+
+        if (partitions.size() == 0) {
+            throw new IllegalArgumentException("At least one tree likelihood is required");
+        }
+
+        this.nodeCount = partitions.get(0).getNodeCount();
+        this.partitions = new Partition[partitions.size()];
+        for (int p = 0; p < partitions.size(); p++) {
+            if (partitions.get(p).getNodeCount() != nodeCount) {
+                throw new IllegalArgumentException("All tree likelihoods must be on the same tree");
+            }
+            this.partitions[p] = new Partition(partitions.get(p));
+        }
+
+        parents = new int[nodeCount];
+        children = new int[nodeCount][2];
+        heights = new double[nodeCount];
+        topologyChanged = new boolean[nodeCount];
+
+        this.threadCount = Math.max(1, threadCount);
+        workers = new Worker[this.threadCount];
+        for (int w = 0; w < this.threadCount; w++) {
+            workers[w] = new Worker();
+        }
+
+        if (this.threadCount > 1) {
+            pool = Executors.newFixedThreadPool(this.threadCount);
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the tree and of the likelihood components. Must be called whenever
+     * the tree or the models have changed since the last call.
+     */
+    public void update(Tree tree) {
+
+        for (int n = 0; n < nodeCount; n++) {
+            final NodeRef node = tree.getNode(n);
+            heights[n] = tree.getNodeHeight(node);
+            if (tree.isRoot(node)) {
+                parents[n] = -1;
+                root = n;
+            } else {
+                parents[n] = tree.getParent(node).getNumber();
+            }
+            if (tree.isExternal(node)) {
+                children[n][0] = -1;
+                children[n][1] = -1;
+            } else {
+                if (tree.getChildCount(node) != 2) {
+                    throw new IllegalArgumentException("Only bifurcating trees can be scored");
+                }
+                final int child0 = tree.getChild(node, 0).getNumber();
+                final int child1 = tree.getChild(node, 1).getNumber();
+                topologyChanged[n] = child0 != children[n][0] || child1 != children[n][1];
+                children[n][0] = child0;
+                children[n][1] = child1;
+            }
+        }
+
+        logLikelihood = 0.0;
+        for (Partition partition : partitions) {
+            partition.update(tree);
+            logLikelihood += partition.logLikelihood;
+        }
+
+        for (Worker worker : workers) {
+            worker.reset();
+        }
+    }
+
+    /**
+     * @return the total log likelihood of the tree passed to the last update()
+     */
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    /**
+     * Scores moving the subtree below node (together with its parent) onto the branch above
+     * each target, keeping the height of the parent.
+     *
+     * @return the total log likelihood for each target
+     */
+    public double[] scoreRegrafts(NodeRef node, int[] targets) {
+        return score(REGRAFT, node.getNumber(), targets);
+    }
+
+    /**
+     * Scores exchanging the subtree below node with the subtree below each target.
+     *
+     * @return the total log likelihood for each target
+     */
+    public double[] scoreSwaps(NodeRef node, int[] targets) {
+        return score(SWAP, node.getNumber(), targets);
+    }
+
+    private double[] score(final int moveType, final int node, final int[] targets) {
+
+        final double[] scores = new double[targets.length];
+
+        if (pool == null || targets.length < 2) {
+            workers[0].score(moveType, node, targets, scores, 0, 1);
+            return scores;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int w = 0; w < threadCount; w++) {
+            final Worker worker = workers[w];
+            final int offset = w;
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    worker.score(moveType, node, targets, scores, offset, threadCount);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Object> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        return scores;
+    }
+
+    /**
+     * The snapshot of one partition: model components and the post-order partials of the
+     * current tree, which are only read while candidates are being scored.
+     */
+    private class Partition {
+
+        Partition(TreeLikelihoodComponents components) {
+            this.components = components;
+
+            patternCount = components.getPatternCount();
+            stateCount = components.getStateCount();
+            categoryCount = components.getCategoryCount();
+            partialsSize = categoryCount * patternCount * stateCount;
+            matrixSize = categoryCount * stateCount * stateCount;
+
+            partials = new double[nodeCount][partialsSize];
+            logScales = new double[nodeCount][patternCount];
+            matrices = new double[nodeCount][matrixSize];
+            rates = new double[nodeCount];
+            branchLengths = new double[nodeCount];
+            matricesChanged = new boolean[nodeCount];
+            tipPartials = new double[partialsSize];
+
+            eigenVectors = new double[stateCount * stateCount];
+            inverseEigenVectors = new double[stateCount * stateCount];
+            eigenValues = new double[stateCount];
+            expEigenValues = new double[stateCount];
+
+            newEigenVectors = new double[stateCount * stateCount];
+            newInverseEigenVectors = new double[stateCount * stateCount];
+            newEigenValues = new double[stateCount];
+        }
+
+        void update(Tree tree) {
+
+            components.getEigenDecomposition(newEigenVectors, newInverseEigenVectors, newEigenValues);
+            final double[] newCategoryRates = components.getCategoryRates();
+            final double[] newCategoryProportions = components.getCategoryProportions();
+            final double[] newFrequencies = components.getRootFrequencies();
+            final double[] newPatternWeights = components.getPatternWeights();
+
+            final boolean updateAll = !updated
+                    || !Arrays.equals(eigenValues, newEigenValues)
+                    || !Arrays.equals(eigenVectors, newEigenVectors)
+                    || !Arrays.equals(inverseEigenVectors, newInverseEigenVectors)
+                    || !Arrays.equals(categoryRates, newCategoryRates)
+                    || !Arrays.equals(categoryProportions, newCategoryProportions)
+                    || !Arrays.equals(frequencies, newFrequencies)
+                    || !Arrays.equals(patternWeights, newPatternWeights);
+
+            if (updateAll) {
+                System.arraycopy(newEigenVectors, 0, eigenVectors, 0, eigenVectors.length);
+                System.arraycopy(newInverseEigenVectors, 0, inverseEigenVectors, 0, inverseEigenVectors.length);
+                System.arraycopy(newEigenValues, 0, eigenValues, 0, eigenValues.length);
+                categoryRates = newCategoryRates.clone();
+                categoryProportions = newCategoryProportions.clone();
+                frequencies = newFrequencies.clone();
+                patternWeights = newPatternWeights.clone();
+            }
+
+            for (int n = 0; n < nodeCount; n++) {
+                final NodeRef node = tree.getNode(n);
+                if (n != root) {
+                    rates[n] = components.getBranchRate(tree, node);
+                    final double branchLength = rates[n] * (heights[parents[n]] - heights[n]);
+                    matricesChanged[n] = updateAll || branchLength != branchLengths[n];
+                    if (matricesChanged[n]) {
+                        setupMatrices(n, heights[parents[n]], matrices[n], expEigenValues);
+                        branchLengths[n] = branchLength;
+                    }
+                } else {
+                    // so that the matrices are set up again once the root has a parent
+                    matricesChanged[n] = false;
+                    branchLengths[n] = Double.NaN;
+                }
+                if (children[n][0] == -1) {
+                    components.getPostOrderPartials(tree, node, tipPartials);
+                    if (updateAll || !Arrays.equals(tipPartials, partials[n])) {
+                        System.arraycopy(tipPartials, 0, partials[n], 0, partialsSize);
+                        // new tip partials change the parent just as a new branch would
+                        matricesChanged[n] = true;
+                    }
+                }
+            }
+
+            calculatePostOrder(root, updateAll);
+            logLikelihood = calculateLogLikelihood(partials[root], logScales[root]);
+            updated = true;
+        }
+
+        /**
+         * Recomputes the partials of the nodes below which anything has changed.
+         *
+         * @return true if the parent of the node must be recomputed
+         */
+        private boolean calculatePostOrder(int node, boolean updateAll) {
+            boolean update = updateAll || topologyChanged[node];
+            final int child0 = children[node][0];
+            if (child0 != -1) {
+                final int child1 = children[node][1];
+                final boolean update0 = calculatePostOrder(child0, updateAll);
+                final boolean update1 = calculatePostOrder(child1, updateAll);
+                if (update || update0 || update1) {
+                    calculatePartials(partials[child0], matrices[child0], logScales[child0],
+                            partials[child1], matrices[child1], logScales[child1],
+                            partials[node], logScales[node]);
+                    update = true;
+                }
+            }
+            return update || matricesChanged[node];
+        }
+
+        void setupMatrices(int node, double parentHeight, double[] out, double[] work) {
+            final double branchLength = rates[node] * (parentHeight - heights[node]);
+            BranchLengthGradientDelegate.setupTransitionMatrices(eigenVectors, inverseEigenVectors, eigenValues,
+                    stateCount, categoryRates, branchLength, work, out);
+        }
+
+        /**
+         * Combines two children into their parent, rescaling each pattern by its largest
+         * partial. Tips have log scales of zero so they can be treated like any other node.
+         * The output must not be one of the inputs.
+         */
+        void calculatePartials(double[] partials0, double[] matrices0, double[] scales0,
+                               double[] partials1, double[] matrices1, double[] scales1,
+                               double[] out, double[] outScales) {
+
+            for (int i = 0; i < patternCount; i++) {
+                outScales[i] = scales0[i] + scales1[i];
+            }
+
+            int u = 0;
+            for (int c = 0; c < categoryCount; c++) {
+                final int m = c * stateCount * stateCount;
+                for (int i = 0; i < patternCount; i++) {
+                    int w = m;
+                    for (int a = 0; a < stateCount; a++) {
+                        double sum0 = 0.0;
+                        double sum1 = 0.0;
+                        for (int b = 0; b < stateCount; b++) {
+                            sum0 += matrices0[w] * partials0[u + b];
+                            sum1 += matrices1[w] * partials1[u + b];
+                            w++;
+                        }
+                        out[u + a] = sum0 * sum1;
+                    }
+                    u += stateCount;
+                }
+            }
+
+            for (int i = 0; i < patternCount; i++) {
+                double scaleFactor = 0.0;
+                for (int c = 0; c < categoryCount; c++) {
+                    final int v = (c * patternCount + i) * stateCount;
+                    for (int a = 0; a < stateCount; a++) {
+                        if (out[v + a] > scaleFactor) {
+                            scaleFactor = out[v + a];
+                        }
+                    }
+                }
+                if (scaleFactor > 0.0) {
+                    for (int c = 0; c < categoryCount; c++) {
+                        final int v = (c * patternCount + i) * stateCount;
+                        for (int a = 0; a < stateCount; a++) {
+                            out[v + a] /= scaleFactor;
+                        }
+                    }
+                    outScales[i] += Math.log(scaleFactor);
+                }
+            }
+        }
+
+        double calculateLogLikelihood(double[] rootPartials, double[] rootScales) {
+            double logL = 0.0;
+            for (int i = 0; i < patternCount; i++) {
+                if (patternWeights[i] == 0.0) {
+                    continue;
+                }
+                double sum = 0.0;
+                for (int c = 0; c < categoryCount; c++) {
+                    final int v = (c * patternCount + i) * stateCount;
+                    double sumC = 0.0;
+                    for (int a = 0; a < stateCount; a++) {
+                        sumC += frequencies[a] * rootPartials[v + a];
+                    }
+                    sum += categoryProportions[c] * sumC;
+                }
+                logL += patternWeights[i] * (Math.log(sum) + rootScales[i]);
+            }
+            return logL;
+        }
+
+        private final TreeLikelihoodComponents components;
+
+        final int patternCount;
+        final int stateCount;
+        final int categoryCount;
+        final int partialsSize;
+        final int matrixSize;
+
+        final double[][] partials;
+        final double[][] logScales;
+        final double[][] matrices;
+        final double[] rates;
+
+        // what the matrices and partials were last computed from
+        private final double[] branchLengths;
+        private final boolean[] matricesChanged;
+        private final double[] tipPartials;
+        private boolean updated = false;
+
+        private final double[] newEigenVectors;
+        private final double[] newInverseEigenVectors;
+        private final double[] newEigenValues;
+
+        private final double[] eigenVectors;
+        private final double[] inverseEigenVectors;
+        private final double[] eigenValues;
+        private final double[] expEigenValues;
+
+        private double[] categoryRates;
+        private double[] categoryProportions;
+        private double[] frequencies;
+        private double[] patternWeights;
+
+        double logLikelihood;
+    }
+
+    /**
+     * A private copy of the topology and a workspace for the nodes that a candidate changes.
+     */
+    private class Worker {
+
+        Worker() {
+            parentView = new int[nodeCount];
+            childView = new int[nodeCount][2];
+            dirty = new boolean[nodeCount];
+            dirtyNodes = new int[nodeCount];
+            bufferIndex = new int[nodeCount];
+            movedIndex = new int[nodeCount];
+            for (int n = 0; n < nodeCount; n++) {
+                movedIndex[n] = -1;
+            }
+
+            workPartials = new double[partitions.length][][];
+            workScales = new double[partitions.length][][];
+            workMatrices = new double[partitions.length][MAX_MOVED][];
+            expEigenValues = new double[partitions.length][];
+            for (int p = 0; p < partitions.length; p++) {
+                final Partition partition = partitions[p];
+                workPartials[p] = new double[0][];
+                workScales[p] = new double[0][];
+                for (int m = 0; m < MAX_MOVED; m++) {
+                    workMatrices[p][m] = new double[partition.matrixSize];
+                }
+                expEigenValues[p] = new double[partition.stateCount];
+            }
+        }
+
+        void reset() {
+            System.arraycopy(parents, 0, parentView, 0, nodeCount);
+            for (int n = 0; n < nodeCount; n++) {
+                childView[n][0] = children[n][0];
+                childView[n][1] = children[n][1];
+            }
+        }
+
+        void score(int moveType, int node, int[] targets, double[] scores, int offset, int stride) {
+            for (int k = offset; k < targets.length; k += stride) {
+                setupMove(moveType, node, targets[k]);
+                scores[k] = scoreMove();
+            }
+        }
+
+        private void setupMove(int moveType, int node, int target) {
+            final int nodeParent = parentView[node];
+            final int targetParent = parentView[target];
+
+            if (moveType == REGRAFT) {
+                final int grandParent = parentView[nodeParent];
+                final int sibling = childView[nodeParent][0] == node ?
+                        childView[nodeParent][1] : childView[nodeParent][0];
+
+                moveCount = 3;
+                moved[0] = sibling;
+                newParents[0] = grandParent;
+                moved[1] = nodeParent;
+                newParents[1] = targetParent;
+                moved[2] = target;
+                newParents[2] = nodeParent;
+            } else {
+                moveCount = 2;
+                moved[0] = node;
+                newParents[0] = targetParent;
+                moved[1] = target;
+                newParents[1] = nodeParent;
+            }
+        }
+
+        private double scoreMove() {
+
+            // detach everything first so that the moves can be applied in any order
+            for (int m = 0; m < moveCount; m++) {
+                oldParents[m] = parentView[moved[m]];
+                replaceChild(oldParents[m], moved[m], -1);
+            }
+            for (int m = 0; m < moveCount; m++) {
+                parentView[moved[m]] = newParents[m];
+                replaceChild(newParents[m], -1, moved[m]);
+                movedIndex[moved[m]] = m;
+            }
+
+            dirtyCount = 0;
+            for (int m = 0; m < moveCount; m++) {
+                markPath(oldParents[m]);
+                markPath(newParents[m]);
+            }
+            sortDirtyNodesByHeight();
+
+            double logL = 0.0;
+            for (int p = 0; p < partitions.length; p++) {
+                logL += scorePartition(p);
+            }
+
+            // restore the snapshot topology
+            for (int m = 0; m < dirtyCount; m++) {
+                dirty[dirtyNodes[m]] = false;
+            }
+            for (int m = moveCount - 1; m >= 0; m--) {
+                replaceChild(newParents[m], moved[m], -1);
+                movedIndex[moved[m]] = -1;
+            }
+            for (int m = 0; m < moveCount; m++) {
+                parentView[moved[m]] = oldParents[m];
+                replaceChild(oldParents[m], -1, moved[m]);
+            }
+
+            return logL;
+        }
+
+        private double scorePartition(int p) {
+            final Partition partition = partitions[p];
+
+            ensureWorkspace(p, dirtyCount);
+
+            for (int m = 0; m < moveCount; m++) {
+                partition.setupMatrices(moved[m], heights[newParents[m]], workMatrices[p][m], expEigenValues[p]);
+            }
+
+            for (int k = 0; k < dirtyCount; k++) {
+                final int node = dirtyNodes[k];
+                final int child0 = childView[node][0];
+                final int child1 = childView[node][1];
+
+                partition.calculatePartials(
+                        getPartials(p, child0), getMatrices(p, child0), getScales(p, child0),
+                        getPartials(p, child1), getMatrices(p, child1), getScales(p, child1),
+                        workPartials[p][bufferIndex[node]], workScales[p][bufferIndex[node]]);
+            }
+
+            return partition.calculateLogLikelihood(getPartials(p, root), getScales(p, root));
+        }
+
+        private double[] getPartials(int p, int node) {
+            return dirty[node] ? workPartials[p][bufferIndex[node]] : partitions[p].partials[node];
+        }
+
+        private double[] getScales(int p, int node) {
+            return dirty[node] ? workScales[p][bufferIndex[node]] : partitions[p].logScales[node];
+        }
+
+        private double[] getMatrices(int p, int node) {
+            return movedIndex[node] != -1 ? workMatrices[p][movedIndex[node]] : partitions[p].matrices[node];
+        }
+
+        private void ensureWorkspace(int p, int size) {
+            if (workPartials[p].length < size) {
+                final Partition partition = partitions[p];
+                final int oldSize = workPartials[p].length;
+                final int newSize = Math.max(size, 2 * oldSize);
+
+                double[][] newPartials = new double[newSize][];
+                double[][] newScales = new double[newSize][];
+                System.arraycopy(workPartials[p], 0, newPartials, 0, oldSize);
+                System.arraycopy(workScales[p], 0, newScales, 0, oldSize);
+                for (int k = oldSize; k < newSize; k++) {
+                    newPartials[k] = new double[partition.partialsSize];
+                    newScales[k] = new double[partition.patternCount];
+                }
+                workPartials[p] = newPartials;
+                workScales[p] = newScales;
+            }
+        }
+
+        private void replaceChild(int parent, int oldChild, int newChild) {
+            if (childView[parent][0] == oldChild) {
+                childView[parent][0] = newChild;
+            } else if (childView[parent][1] == oldChild) {
+                childView[parent][1] = newChild;
+            } else {
+                throw new IllegalArgumentException("Node " + oldChild + " is not a child of node " + parent);
+            }
+        }
+
+        private void markPath(int node) {
+            while (node != -1 && !dirty[node]) {
+                dirty[node] = true;
+                bufferIndex[node] = dirtyCount;
+                dirtyNodes[dirtyCount] = node;
+                dirtyCount++;
+                node = parentView[node];
+            }
+        }
+
+        /**
+         * As heights are fixed, children are always calculated before their parents when the
+         * nodes are taken from the youngest upwards.
+         */
+        private void sortDirtyNodesByHeight() {
+            for (int k = 1; k < dirtyCount; k++) {
+                final int node = dirtyNodes[k];
+                int j = k - 1;
+                while (j >= 0 && heights[dirtyNodes[j]] > heights[node]) {
+                    dirtyNodes[j + 1] = dirtyNodes[j];
+                    j--;
+                }
+                dirtyNodes[j + 1] = node;
+            }
+            for (int k = 0; k < dirtyCount; k++) {
+                bufferIndex[dirtyNodes[k]] = k;
+            }
+        }
+
+        private final int[] parentView;
+        private final int[][] childView;
+
+        private final int[] moved = new int[MAX_MOVED];
+        private final int[] newParents = new int[MAX_MOVED];
+        private final int[] oldParents = new int[MAX_MOVED];
+        private int moveCount;
+        private final int[] movedIndex;
+
+        private final boolean[] dirty;
+        private final int[] dirtyNodes;
+        private final int[] bufferIndex;
+        private int dirtyCount;
+
+        private final double[][][] workPartials;
+        private final double[][][] workScales;
+        private final double[][][] workMatrices;
+        private final double[][] expEigenValues;
+    }
+
+    private static final int REGRAFT = 0;
+    private static final int SWAP = 1;
+    private static final int MAX_MOVED = 3;
+
+    private final int nodeCount;
+    private final Partition[] partitions;
+
+    private final int[] parents;
+    private final int[][] children;
+    private final double[] heights;
+    private final boolean[] topologyChanged;
+    private int root;
+
+    private double logLikelihood;
+
+    private final int threadCount;
+    private final Worker[] workers;
+    private final ExecutorService pool;
+}
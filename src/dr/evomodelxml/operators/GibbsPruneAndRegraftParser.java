@@ -2,14 +2,21 @@ package dr.evomodelxml.operators;
 
 import dr.evomodel.operators.GibbsPruneAndRegraft;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.TreeLikelihoodComponents;
+import dr.evomodel.treelikelihood.TreeRearrangementScorer;
 import dr.inference.operators.MCMCOperator;
 import dr.xml.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
 /**
  */
 public class GibbsPruneAndRegraftParser extends AbstractXMLObjectParser {
 
     public static final String GIBBS_PRUNE_AND_REGRAFT = "GibbsPruneAndRegraft";
+    public static final String THREADS = "threads";
 
     public String getParserName() {
         return GIBBS_PRUNE_AND_REGRAFT;
@@ -24,7 +31,45 @@ public class GibbsPruneAndRegraftParser extends AbstractXMLObjectParser {
             pruned = xo.getBooleanAttribute("pruned");
         }
 
-        return new GibbsPruneAndRegraft(treeModel, pruned, weight);
+        return new GibbsPruneAndRegraft(treeModel, pruned, weight, parseScorer(xo, treeModel));
+    }
+
+    /**
+     * Builds a scorer from any tree likelihoods given to a Gibbs tree operator, or returns null
+     * if there are none so that candidates are scored by evaluating the whole posterior.
+     */
+    static TreeRearrangementScorer parseScorer(XMLObject xo, TreeModel treeModel) throws XMLParseException {
+
+        List<TreeLikelihoodComponents> partitions = new ArrayList<TreeLikelihoodComponents>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            if (xo.getChild(i) instanceof TreeLikelihoodComponents.Provider) {
+                TreeLikelihoodComponents.Provider provider = (TreeLikelihoodComponents.Provider) xo.getChild(i);
+                if (provider.getTreeModel() != treeModel) {
+                    throw new XMLParseException("Tree likelihood " + provider.getId() + " is not on tree " + treeModel.getId());
+                }
+                try {
+                    partitions.add(provider.getLikelihoodComponents());
+                } catch (UnsupportedOperationException uoe) {
+                    throw new XMLParseException("Tree likelihood " + provider.getId() + " cannot be used to score candidates: " + uoe.getMessage());
+                }
+            }
+        }
+
+        if (partitions.size() == 0) {
+            return null;
+        }
+
+        // the default is -1 threads (one per available processor)
+        int threads = xo.getAttribute(THREADS, -1);
+        if (threads < 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        Logger.getLogger("dr.evomodel").info(xo.getName() + " on " + treeModel.getId() + " is scoring candidates from " +
+                partitions.size() + " tree likelihood(s) using " + threads + " thread(s). " +
+                "Any other terms of the posterior must not depend on the topology.");
+
+        return new TreeRearrangementScorer(partitions, threads);
     }
 
     // ************************************************************************
@@ -33,7 +78,8 @@ public class GibbsPruneAndRegraftParser extends AbstractXMLObjectParser {
 
     public String getParserDescription() {
         return "This element represents a Gibbs sampler implemented through a prune and regraft operator. "
-                + "This operator prunes a random subtree and regrafts it below a node chosen by an importance distribution which is the proportion of the likelihoods of the proposals.";
+                + "This operator prunes a random subtree and regrafts it below a node chosen by an importance distribution which is the proportion of the likelihoods of the proposals. "
+                + "If tree likelihoods are given, the proposals are scored concurrently from them alone.";
     }
 
     public Class getReturnType() {
@@ -50,7 +96,9 @@ public class GibbsPruneAndRegraftParser extends AbstractXMLObjectParser {
         rules = new XMLSyntaxRule[]{
                 AttributeRule.newDoubleRule(MCMCOperator.WEIGHT),
                 AttributeRule.newBooleanRule("pruned"),
-                new ElementRule(TreeModel.class)};
+                AttributeRule.newIntegerRule(THREADS, true),
+                new ElementRule(TreeModel.class),
+                new ElementRule(TreeLikelihoodComponents.Provider.class, 0, Integer.MAX_VALUE)};
     }
 
 }
@@ -2,6 +2,7 @@ package dr.evomodelxml.operators;
 
 import dr.evomodel.operators.GibbsSubtreeSwap;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.TreeLikelihoodComponents;
 import dr.inference.operators.MCMCOperator;
 import dr.xml.*;
 
@@ -21,7 +22,8 @@ public class GibbsSubtreeSwapParser extends AbstractXMLObjectParser {
         final double weight = xo.getDoubleAttribute(MCMCOperator.WEIGHT);
         final boolean pruned = xo.getAttribute("pruned", true);
 
-        return new GibbsSubtreeSwap(treeModel, pruned, weight);
+        return new GibbsSubtreeSwap(treeModel, pruned, weight,
+                GibbsPruneAndRegraftParser.parseScorer(xo, treeModel));
     }
 
     // ************************************************************************
@@ -30,7 +32,8 @@ public class GibbsSubtreeSwapParser extends AbstractXMLObjectParser {
 
     public String getParserDescription() {
         return "This element represents a Gibbs wide exchange operator. "
-                + "This operator swaps two subtrees chosen to their posterior probaility.";
+                + "This operator swaps two subtrees chosen to their posterior probaility. "
+                + "If tree likelihoods are given, the proposals are scored concurrently from them alone.";
     }
 
     public Class getReturnType() {
@@ -44,7 +47,9 @@ public class GibbsSubtreeSwapParser extends AbstractXMLObjectParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newDoubleRule(MCMCOperator.WEIGHT),
             AttributeRule.newBooleanRule("pruned", true),
-            new ElementRule(TreeModel.class)
+            AttributeRule.newIntegerRule(GibbsPruneAndRegraftParser.THREADS, true),
+            new ElementRule(TreeModel.class),
+            new ElementRule(TreeLikelihoodComponents.Provider.class, 0, Integer.MAX_VALUE)
     };
 
 }
@@ -10,6 +10,7 @@ import dr.xml.*;
 public class ImportancePruneAndRegraftParser extends AbstractXMLObjectParser {
 
     public static final String IMPORTANCE_PRUNE_AND_REGRAFT = "ImportancePruneAndRegraft";
+    public static final String THREADS = "threads";
 
     public String getParserName() {
         return IMPORTANCE_PRUNE_AND_REGRAFT;
@@ -20,8 +21,14 @@ public class ImportancePruneAndRegraftParser extends AbstractXMLObjectParser {
         TreeModel treeModel = (TreeModel) xo.getChild(TreeModel.class);
         double weight = xo.getDoubleAttribute(MCMCOperator.WEIGHT);
         int samples = xo.getIntegerAttribute("samples");
-
-        return new ImportancePruneAndRegraft(treeModel, weight, samples);
+        int threads = xo.getAttribute(THREADS, 1);
+        if (threads < 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ImportancePruneAndRegraft operator = new ImportancePruneAndRegraft(treeModel, weight, samples);
+        operator.setThreadCount(threads);
+        return operator;
     }
 
     // ************************************************************************
@@ -44,6 +51,7 @@ public class ImportancePruneAndRegraftParser extends AbstractXMLObjectParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newDoubleRule(MCMCOperator.WEIGHT),
             AttributeRule.newIntegerRule("samples"),
+            AttributeRule.newIntegerRule(THREADS, true),
             new ElementRule(TreeModel.class)
     };
 
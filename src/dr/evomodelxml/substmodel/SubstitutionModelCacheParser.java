@@ -0,0 +1,131 @@
+/*
+ * SubstitutionModelCacheParser.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodelxml.substmodel;
+
+import dr.app.beagle.evomodel.substmodel.BaseSubstitutionModel;
+import dr.app.beagle.evomodel.substmodel.EigenDecomposition;
+import dr.evomodel.substmodel.AbstractSubstitutionModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.substmodel.SubstitutionModelCache;
+import dr.inference.model.Model;
+import dr.xml.*;
+
+import java.util.logging.Logger;
+
+/**
+ * Installs a cache of eigen decompositions on a substitution model and returns it as a
+ * statistic of the cache hits and misses.
+ */
+public class SubstitutionModelCacheParser extends AbstractXMLObjectParser {
+
+    public static final String SUBSTITUTION_MODEL_CACHE = "substitutionModelCache";
+    public static final String SIZE = "size";
+    public static final String MATRICES = "matrices";
+
+    public String getParserName() {
+        return SUBSTITUTION_MODEL_CACHE;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        final int size = xo.getAttribute(SIZE, 100);
+        final int matrices = xo.getAttribute(MATRICES, 0);
+
+        if (size < 1) {
+            throw new XMLParseException("The " + SIZE + " of the cache must be at least 1");
+        }
+
+        Object model = xo.getChild(SubstitutionModel.class);
+        if (model == null) {
+            model = xo.getChild(dr.app.beagle.evomodel.substmodel.SubstitutionModel.class);
+        }
+
+        if (model instanceof AbstractSubstitutionModel) {
+            checkCacheable(model, ((AbstractSubstitutionModel) model).isCacheable());
+            SubstitutionModelCache<AbstractSubstitutionModel.CachedEigenSystem> cache =
+                    new SubstitutionModelCache<AbstractSubstitutionModel.CachedEigenSystem>(size, matrices);
+            ((AbstractSubstitutionModel) model).setSubstitutionModelCache(cache);
+            log(model, size, matrices);
+            return cache;
+        }
+
+        if (model instanceof BaseSubstitutionModel) {
+            checkCacheable(model, ((BaseSubstitutionModel) model).isCacheable());
+            if (matrices > 0) {
+                throw new XMLParseException("Transition probability matrices of " + ((Model) model).getId() +
+                        " are computed by BEAGLE and cannot be cached");
+            }
+            SubstitutionModelCache<EigenDecomposition> cache = new SubstitutionModelCache<EigenDecomposition>(size, 0);
+            ((BaseSubstitutionModel) model).setSubstitutionModelCache(cache);
+            log(model, size, 0);
+            return cache;
+        }
+
+        throw new XMLParseException("The substitution model in " + getParserName() + " does not support caching");
+    }
+
+    private void checkCacheable(Object model, boolean cacheable) throws XMLParseException {
+        if (!cacheable) {
+            throw new XMLParseException("Substitution model " + ((Model) model).getId() + " does not compute its " +
+                    "transition probabilities from a cached eigen decomposition, so " + getParserName() +
+                    " would have no effect");
+        }
+    }
+
+    private void log(Object model, int size, int matrices) {
+        Logger.getLogger("dr.evomodel").info("Caching up to " + size + " eigen decompositions" +
+                (matrices > 0 ? " and " + matrices + " transition probability matrices" : "") +
+                " for substitution model " + ((Model) model).getId());
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "Caches the eigen decompositions of a substitution model keyed by its exact rate matrix, " +
+                "which saves recomputing them when a chain revisits the same rates (e.g., under BSSVS " +
+                "or model averaging). Logs the numbers of cache hits and misses. Models with transition " +
+                "probabilities in closed form, such as HKY and TN93, are not accepted.";
+    }
+
+    public Class getReturnType() {
+        return SubstitutionModelCache.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newIntegerRule(SIZE, true),
+            AttributeRule.newIntegerRule(MATRICES, true),
+            new XORRule(
+                    new ElementRule(SubstitutionModel.class),
+                    new ElementRule(dr.app.beagle.evomodel.substmodel.SubstitutionModel.class)
+            )
+    };
+}
@@ -0,0 +1,74 @@
+/*
+ * BranchRateGradientParser.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodelxml.treelikelihood;
+
+import dr.evomodel.treelikelihood.BranchLengthGradientProvider;
+import dr.evomodel.treelikelihood.BranchRateGradient;
+import dr.xml.*;
+
+/**
+ * Parses a gradient of a tree likelihood with respect to its arbitrary branch rates.
+ */
+public class BranchRateGradientParser extends AbstractXMLObjectParser {
+
+    public static final String BRANCH_RATE_GRADIENT = "branchRateGradient";
+
+    public String getParserName() {
+        return BRANCH_RATE_GRADIENT;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        BranchLengthGradientProvider treeLikelihood =
+                (BranchLengthGradientProvider) xo.getChild(BranchLengthGradientProvider.class);
+
+        try {
+            return new BranchRateGradient(treeLikelihood);
+        } catch (IllegalArgumentException iae) {
+            throw new XMLParseException(iae.getMessage());
+        }
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "The gradient of a tree likelihood with respect to arbitrary branch rates";
+    }
+
+    public Class getReturnType() {
+        return BranchRateGradient.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            new ElementRule(BranchLengthGradientProvider.class),
+    };
+}
@@ -0,0 +1,74 @@
+/*
+ * NodeHeightGradientParser.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodelxml.treelikelihood;
+
+import dr.evomodel.treelikelihood.BranchLengthGradientProvider;
+import dr.evomodel.treelikelihood.NodeHeightGradient;
+import dr.xml.*;
+
+/**
+ * Parses a gradient of a tree likelihood with respect to the internal node heights.
+ */
+public class NodeHeightGradientParser extends AbstractXMLObjectParser {
+
+    public static final String NODE_HEIGHT_GRADIENT = "nodeHeightGradient";
+    public static final String INCLUDE_ROOT = "includeRoot";
+
+    public String getParserName() {
+        return NODE_HEIGHT_GRADIENT;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        BranchLengthGradientProvider treeLikelihood =
+                (BranchLengthGradientProvider) xo.getChild(BranchLengthGradientProvider.class);
+
+        boolean includeRoot = xo.getAttribute(INCLUDE_ROOT, true);
+
+        return new NodeHeightGradient(treeLikelihood, includeRoot);
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "The gradient of a tree likelihood with respect to the heights of the internal nodes";
+    }
+
+    public Class getReturnType() {
+        return NodeHeightGradient.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newBooleanRule(INCLUDE_ROOT, true),
+            new ElementRule(BranchLengthGradientProvider.class),
+    };
+}
@@ -8,6 +8,8 @@ import dr.evomodel.treelikelihood.TipStatesModel;
 import dr.evomodel.treelikelihood.TreeLikelihood;
 import dr.xml.*;
 
+import java.io.File;
+
 /**
  */
 public class TreeLikelihoodParser extends AbstractXMLObjectParser {
@@ -21,6 +23,17 @@ public class TreeLikelihoodParser extends AbstractXMLObjectParser {
     public static final String SCALING_THRESHOLD = "scalingThreshold";
     public static final String FORCE_JAVA_CORE = "forceJavaCore";
     public static final String FORCE_RESCALING = "forceRescaling";
+    public static final String USE_SITE_REPEATS = "useSiteRepeats";
+    public static final String PARTIALS_STORAGE = "partialsStorage";
+    public static final String PARTIALS_PRECISION = "partialsPrecision";
+    public static final String PARTIALS_DIRECTORY = "partialsDirectory";
+    public static final String PRECISION_CHECK_EVERY = "precisionCheckEvery";
+    public static final String PRECISION_TOLERANCE = "precisionTolerance";
+    public static final String HEAP = "heap";
+    public static final String DIRECT = "direct";
+    public static final String MAPPED = "mapped";
+    public static final String DOUBLE = "double";
+    public static final String SINGLE = "single";
 
 
     public String getParserName() {
@@ -55,13 +68,46 @@ public class TreeLikelihoodParser extends AbstractXMLObjectParser {
 
         boolean forceRescaling = xo.getAttribute(FORCE_RESCALING, false);
 
-        return new TreeLikelihood(
+        final String storage = xo.getAttribute(PARTIALS_STORAGE, HEAP);
+        if (!storage.equals(HEAP) && !storage.equals(DIRECT) && !storage.equals(MAPPED)) {
+            throw new XMLParseException("The " + PARTIALS_STORAGE + " of " + getParserName() + " must be " +
+                    HEAP + ", " + DIRECT + " or " + MAPPED);
+        }
+        final String precision = xo.getAttribute(PARTIALS_PRECISION, DOUBLE);
+        if (!precision.equals(DOUBLE) && !precision.equals(SINGLE)) {
+            throw new XMLParseException("The " + PARTIALS_PRECISION + " of " + getParserName() + " must be " +
+                    DOUBLE + " or " + SINGLE);
+        }
+        final int precisionCheckEvery = xo.getAttribute(PRECISION_CHECK_EVERY, 10000);
+        if (precisionCheckEvery < 0) {
+            throw new XMLParseException("The " + PRECISION_CHECK_EVERY + " of " + getParserName() +
+                    " must not be negative");
+        }
+        final double precisionTolerance = xo.getAttribute(PRECISION_TOLERANCE, 0.01);
+        File partialsDirectory = null;
+        if (storage.equals(MAPPED)) {
+            partialsDirectory = new File(xo.getAttribute(PARTIALS_DIRECTORY, System.getProperty("java.io.tmpdir")));
+            if (!partialsDirectory.isDirectory()) {
+                throw new XMLParseException("The " + PARTIALS_DIRECTORY + ", " + partialsDirectory +
+                        ", is not a directory");
+            }
+        }
+
+        TreeLikelihood treeLikelihood = new TreeLikelihood(
                 patternList,
                 treeModel,
                 siteModel,
                 branchRateModel,
                 tipStatesModel,
-                useAmbiguities, allowMissingTaxa, storePartials, forceJavaCore, forceRescaling);
+                useAmbiguities, allowMissingTaxa, storePartials, forceJavaCore, forceRescaling,
+                !storage.equals(HEAP), precision.equals(SINGLE), partialsDirectory);
+
+        if (xo.getAttribute(USE_SITE_REPEATS, false)) {
+            treeLikelihood.setUseSiteRepeats(true);
+        }
+        treeLikelihood.setPrecisionCheck(precisionCheckEvery, precisionTolerance);
+
+        return treeLikelihood;
     }
 
     //************************************************************************
@@ -86,6 +132,20 @@ public class TreeLikelihoodParser extends AbstractXMLObjectParser {
             AttributeRule.newBooleanRule(STORE_PARTIALS, true),
             AttributeRule.newBooleanRule(FORCE_JAVA_CORE, true),
             AttributeRule.newBooleanRule(FORCE_RESCALING, true),
+            AttributeRule.newBooleanRule(USE_SITE_REPEATS, true),
+            AttributeRule.newStringRule(PARTIALS_STORAGE, true,
+                    "Where to keep the partials: on the heap (the default), in direct memory, or in a file " +
+                            "mapped into memory"),
+            AttributeRule.newStringRule(PARTIALS_PRECISION, true,
+                    "Whether to keep the partials in double (the default) or single precision"),
+            AttributeRule.newStringRule(PARTIALS_DIRECTORY, true,
+                    "The directory of the file the partials are mapped to, by default the temporary directory"),
+            AttributeRule.newIntegerRule(PRECISION_CHECK_EVERY, true,
+                    "How many states apart the likelihood in single precision is checked against double " +
+                            "precision, by default 10000, or 0 for never"),
+            AttributeRule.newDoubleRule(PRECISION_TOLERANCE, true,
+                    "The largest difference between the log likelihoods in single and double precision " +
+                            "before switching to double, by default 0.01"),
             new ElementRule(PatternList.class),
             new ElementRule(TreeModel.class),
             new ElementRule(SiteModel.class),
@@ -0,0 +1,136 @@
+package dr.geo;
+
+import dr.geo.contouring.ContourPath;
+import dr.geo.contouring.ContourWithSynder;
+import dr.math.ComplexArray;
+import dr.math.FastFourierTransform;
+import dr.math.distributions.NormalDistribution;
+
+/**
+ * BinnedKernelDensityEstimator2D approximates the bi-variate kernel density smoother of
+ * KernelDensityEstimator2D by linearly binning the observations onto the grid and convolving the
+ * bin weights with the kernel by FFT (Wand 1994, J. Comput. Graph. Stat. 3:433), one dimension at
+ * a time as the kernel is a product of normal densities. The cost is linear in the number of
+ * observations rather than proportional to the number of observations times the number of grid
+ * points. Observations outside the grid limits are ignored.
+ * <p/>
+ * Contours are traced with the Snyder algorithm, as in ContourWithSynder.
+ *
+ * @version $Id$
+ */
+public class BinnedKernelDensityEstimator2D extends KernelDensityEstimator2D {
+
+    public BinnedKernelDensityEstimator2D(final double[] x, final double[] y, final double[] h, final int n, final double[] lims) {
+        super(x, y, h, n, lims);
+    }
+
+    public BinnedKernelDensityEstimator2D(final double[] x, final double[] y, boolean bandwidthLimit) {
+        super(x, y, bandwidthLimit);
+    }
+
+    public BinnedKernelDensityEstimator2D(final double[] x, final double[] y) {
+        super(x, y);
+    }
+
+    public BinnedKernelDensityEstimator2D(final double[] x, final double[] y, int n) {
+        super(x, y, n);
+    }
+
+    protected double[][] calculateDensity(double[] x, double[] y, double[] h, double[] gx, double[] gy) {
+        final int nX = gx.length;
+        final int nY = gy.length;
+        final double dx = gx[1] - gx[0];
+        final double dy = gy[1] - gy[0];
+
+        // linear binning: each observation is shared between the four surrounding grid points
+        double[][] z = new double[nX][nY];
+        for (int k = 0; k < x.length; k++) {
+            final double tx = (x[k] - gx[0]) / dx;
+            final double ty = (y[k] - gy[0]) / dy;
+            if (!(tx >= 0 && tx <= nX - 1 && ty >= 0 && ty <= nY - 1)) {
+                continue;
+            }
+            final int i = Math.min((int) tx, nX - 2);
+            final int j = Math.min((int) ty, nY - 2);
+            final double fx = tx - i;
+            final double fy = ty - j;
+            z[i][j] += (1 - fx) * (1 - fy);
+            z[i + 1][j] += fx * (1 - fy);
+            z[i][j + 1] += (1 - fx) * fy;
+            z[i + 1][j + 1] += fx * fy;
+        }
+
+        final int length = fftLength(Math.max(nX, nY));
+        final ComplexArray kx = kernelOrdinates(nX, dx, h[0], length);
+        final ComplexArray ky = kernelOrdinates(nY, dy, h[1], length);
+        final double scale = 1.0 / (length * x.length);
+
+        double[] column = new double[nX];
+        for (int j = 0; j < nY; j++) {
+            for (int i = 0; i < nX; i++) {
+                column[i] = z[i][j];
+            }
+            convolve(column, kx, length, 1.0 / length);
+            for (int i = 0; i < nX; i++) {
+                z[i][j] = column[i];
+            }
+        }
+        for (int i = 0; i < nX; i++) {
+            convolve(z[i], ky, length, scale);
+        }
+        return z;
+    }
+
+    /**
+     * Replaces values by their (circular) convolution with the kernel, which has been transformed,
+     * times scale. The padding of the FFT is long enough for the convolution not to wrap around.
+     */
+    private static void convolve(double[] values, ComplexArray kernel, int length, double scale) {
+        ComplexArray data = new ComplexArray(new double[length], new double[length]);
+        System.arraycopy(values, 0, data.real, 0, values.length);
+        FastFourierTransform.fft(data, false);
+
+        ComplexArray product = data.product(kernel);
+        FastFourierTransform.fft(product, true);
+
+        for (int i = 0; i < values.length; i++) {
+            // rounding error may give tiny negative densities
+            values[i] = Math.max(product.real[i] * scale, 0.0);
+        }
+    }
+
+    /**
+     * @return the transformed normal kernel, scaled by the bandwidth, at grid offsets -(n-1) to n-1
+     */
+    private static ComplexArray kernelOrdinates(int n, double delta, double h, int length) {
+        ComplexArray kernel = new ComplexArray(new double[length], new double[length]);
+        for (int d = 0; d < n; d++) {
+            final double value = NormalDistribution.pdf(d * delta / h, 0, 1) / h;
+            kernel.real[d] = value;
+            if (d > 0) {
+                kernel.real[length - d] = value;
+            }
+        }
+        FastFourierTransform.fft(kernel, false);
+        return kernel;
+    }
+
+    private static int fftLength(int n) {
+        int length = 1;
+        while (length < 2 * n) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    public ContourPath[] getContourPaths(double hpdValue) {
+        if (contourPaths == null) {
+            double thresholdDensity = findLevelCorrespondingToMass(hpdValue);
+            contourPaths = ContourWithSynder.getContourPaths(getXGrid(), getYGrid(), getKDE(), thresholdDensity);
+        }
+        return contourPaths;
+    }
+
+    private ContourPath[] contourPaths = null;
+
+}
@@ -30,7 +30,6 @@ import dr.inference.model.Parameter;
 import dr.math.distributions.MultivariateDistribution;
 import dr.xml.*;
 
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -65,7 +64,7 @@ public class GeoSpatialDistribution implements MultivariateDistribution {
     }
 
     public double logPdf(double[] x) {
-        final boolean contains = region.containsPoint2D(new Point2D.Double(x[0], x[1]));
+        final boolean contains = region.containsPoint2D(x[0], x[1]);
         if (outside ^ contains)
             return 0;
         return Double.NEGATIVE_INFINITY;
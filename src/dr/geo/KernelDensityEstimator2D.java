@@ -95,14 +95,29 @@ public class KernelDensityEstimator2D implements ContourMaker {
     public void doKDE2D() {
         gx = makeSequence(lims[0], lims[1], n);
         gy = makeSequence(lims[2], lims[3], n);
+        z = calculateDensity(x, y, h, gx, gy);
+    }
+
+    /**
+     * Evaluates the kernel density estimate at every point of the grid. Called from the constructor,
+     * so overriding methods must not rely on fields of the subclass.
+     *
+     * @param x  x-coordinates of observations
+     * @param y  y-coordinates of observations
+     * @param h  bi-variate smoothing bandwidths
+     * @param gx x-grid points
+     * @param gy y-grid points
+     * @return the density at (gx[i], gy[j]) in [i][j]
+     */
+    protected double[][] calculateDensity(double[] x, double[] y, double[] h, double[] gx, double[] gy) {
         double[][] ax = outerMinusScaled(gx, x, h[0]);
         double[][] ay = outerMinusScaled(gy, y, h[1]);
         normalize(ax);
         normalize(ay);
-        z = new double[n][n];
+        double[][] z = new double[gx.length][gy.length];
         double scale = nx * h[0] * h[1];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
+        for (int i = 0; i < gx.length; i++) {
+            for (int j = 0; j < gy.length; j++) {
                 double value = 0;
                 for (int k = 0; k < nx; k++) {
                     value += ax[i][k] * ay[j][k];
@@ -110,6 +125,7 @@ public class KernelDensityEstimator2D implements ContourMaker {
                 z[i][j] = value / scale;
             }
         }
+        return z;
     }
 
     public double findLevelCorrespondingToMass(double probabilityMass) {
@@ -129,6 +129,7 @@ public class Polygon2D {
     }
 
     private void convertPointsToArrays() {
+        index = null;
         final int length = point2Ds.size();
         if (x == null || x.length != length) {
             x = new double[length];
@@ -167,9 +168,20 @@ public class Polygon2D {
     }
 
     public boolean containsPoint2D(Point2D Point2D) {
+        return containsPoint2D(Point2D.getX(), Point2D.getY());
+    }
+
+    public boolean containsPoint2D(final double inX, final double inY) {
+
+        if (length >= INDEX_THRESHOLD) {
+            PolygonIndex index = this.index;
+            if (index == null) {
+                index = new PolygonIndex(x, y, length);
+                this.index = index;
+            }
+            return index.contains(inX, inY);
+        }
 
-        final double inX = Point2D.getX();
-        final double inY = Point2D.getY();
         boolean contains = false;
 
         // Take a horizontal ray from (inX,inY) to the right.
@@ -645,5 +657,9 @@ public class Polygon2D {
     protected double[] x;
     protected double[] y;
 
+    // polygons with many edges are searched with a grid, built when first needed
+    private static final int INDEX_THRESHOLD = 64;
+    private PolygonIndex index = null;
+
 
 }
\ No newline at end of file
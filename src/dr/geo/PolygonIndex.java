@@ -0,0 +1,152 @@
+package dr.geo;
+
+/**
+ * A uniform grid over the bounding box of a polygon that answers point-in-polygon queries without
+ * testing every edge. Each row of the grid keeps the edges that overlap it, so the ray-cast of
+ * Polygon2D only needs to visit the edges of the row of the point, and gives the same answer.
+ * Cells that no edge overlaps are wholly inside or outside the polygon, and are classified when
+ * the index is built.
+ *
+ * @version $Id$
+ */
+final class PolygonIndex {
+
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BOUNDARY = 2;
+
+    private static final int MAX_ROW_COUNT = 4096;
+    private static final int MAX_COLUMN_COUNT = 1024;
+
+    /**
+     * @param x      the x-coordinates of the vertices
+     * @param y      the y-coordinates of the vertices
+     * @param length the number of edges; edges join vertex i - 1 (or length - 1) and vertex i
+     */
+    PolygonIndex(double[] x, double[] y, int length) {
+        this.x = x;
+        this.y = y;
+        this.length = length;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+
+        rowCount = Math.max(1, Math.min(length, MAX_ROW_COUNT));
+        columnCount = Math.max(1, Math.min((int) Math.ceil(Math.sqrt(length)), MAX_COLUMN_COUNT));
+        rowScale = maxY > minY ? rowCount / (maxY - minY) : 0.0;
+        columnScale = maxX > minX ? columnCount / (maxX - minX) : 0.0;
+
+        // bucket the edges by the rows, and mark the cells, that their bounding boxes overlap
+        int[] rowSizes = new int[rowCount];
+        cells = new byte[rowCount * columnCount];
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            final int row0 = rowOf(Math.min(y[i], y[j]));
+            final int row1 = rowOf(Math.max(y[i], y[j]));
+            final int column0 = columnOf(Math.min(x[i], x[j]));
+            final int column1 = columnOf(Math.max(x[i], x[j]));
+            for (int r = row0; r <= row1; r++) {
+                rowSizes[r]++;
+                for (int c = column0; c <= column1; c++) {
+                    cells[r * columnCount + c] = BOUNDARY;
+                }
+            }
+        }
+        rowEdges = new int[rowCount][];
+        for (int r = 0; r < rowCount; r++) {
+            rowEdges[r] = new int[rowSizes[r]];
+            rowSizes[r] = 0;
+        }
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            final int row0 = rowOf(Math.min(y[i], y[j]));
+            final int row1 = rowOf(Math.max(y[i], y[j]));
+            for (int r = row0; r <= row1; r++) {
+                rowEdges[r][rowSizes[r]++] = i;
+            }
+        }
+
+        // no part of the boundary is in the other cells, so the centre of a cell tells for all of it
+        for (int r = 0; r < rowCount; r++) {
+            final double centreY = minY + (r + 0.5) / rowScale;
+            for (int c = 0; c < columnCount; c++) {
+                final int cell = r * columnCount + c;
+                if (cells[cell] == BOUNDARY) {
+                    continue;
+                }
+                final double centreX = minX + (c + 0.5) / columnScale;
+                if (rowOf(centreY) != r || columnOf(centreX) != c) {
+                    cells[cell] = BOUNDARY;
+                } else {
+                    cells[cell] = rayCast(centreX, centreY, r) ? INSIDE : OUTSIDE;
+                }
+            }
+        }
+    }
+
+    boolean contains(double inX, double inY) {
+        if (!(inX >= minX && inX <= maxX && inY >= minY && inY <= maxY)) {
+            // no edge crosses the ray, or it crosses the polygon an even number of times
+            return false;
+        }
+        final int row = rowOf(inY);
+        final byte cell = cells[row * columnCount + columnOf(inX)];
+        if (cell != BOUNDARY) {
+            return cell == INSIDE;
+        }
+        return rayCast(inX, inY, row);
+    }
+
+    /**
+     * The ray-cast of Polygon2D.containsPoint2D over the edges that overlap the row; the others
+     * cannot cross a horizontal ray from a point in the row.
+     */
+    private boolean rayCast(double inX, double inY, int row) {
+        boolean contains = false;
+        for (int i : rowEdges[row]) {
+            final int j = (i == 0 ? length : i) - 1;
+            if ((((y[i] <= inY) && (inY < y[j])) ||
+                    ((y[j] <= inY) && (inY < y[i]))) &&
+                    (inX < (x[j] - x[i]) * (inY - y[i]) / (y[j] - y[i]) + x[i]))
+                contains = !contains;
+        }
+        return contains;
+    }
+
+    // rounding is monotonic, so an edge between two values is in the rows (and columns) between theirs
+
+    private int rowOf(double value) {
+        return Math.max(0, Math.min(rowCount - 1, (int) ((value - minY) * rowScale)));
+    }
+
+    private int columnOf(double value) {
+        return Math.max(0, Math.min(columnCount - 1, (int) ((value - minX) * columnScale)));
+    }
+
+    private final double[] x;
+    private final double[] y;
+    private final int length;
+
+    private final double minX;
+    private final double maxX;
+    private final double minY;
+    private final double maxY;
+
+    private final int rowCount;
+    private final int columnCount;
+    private final double rowScale;
+    private final double columnScale;
+
+    private final int[][] rowEdges;
+    private final byte[] cells;
+}
@@ -7,4 +7,5 @@ public enum ContourMode {
     JAVA,
     R,
     SNYDER,
+    BINNED,
 }
@@ -30,31 +30,39 @@ public class ContourWithSynder extends KernelDensityEstimator2D  {
     public ContourPath[] getContourPaths(double hpdValue) {
 
         if (contourPaths == null) {
-
             double thresholdDensity = findLevelCorrespondingToMass(hpdValue);
+            contourPaths = getContourPaths(getXGrid(), getYGrid(), getKDE(), thresholdDensity);
+        }
+
+        return contourPaths;
+    }
 
-            SnyderContour contourPlot = new SnyderContour(getXGrid().length,getYGrid().length);
-            contourPlot.setDeltas(getXGrid()[1]-getXGrid()[0],getYGrid()[1]-getYGrid()[0] );
-            contourPlot.setOffsets(getXGrid()[0],getYGrid()[0]);
-
-            List<LinkedList<Point2D>> allPaths = new ArrayList<LinkedList<Point2D>>();
-            contourPlot.ContourKernel(getKDE(),allPaths,thresholdDensity);
-
-            contourPaths = new ContourPath[allPaths.size()];
-            for(int i=0; i<allPaths.size(); i++) {
-                LinkedList<Point2D> path = allPaths.get(i);
-                int len = path.size();
-                double[] x = new double[len];
-                double[] y = new double[len];
-                for(int j=0; j<len; j++) {
-                    Point2D pt = path.get(j);
-                    x[j] = pt.getX();
-                    y[j] = pt.getY();
-                }
-                contourPaths[i] = new ContourPath(new ContourAttrib(thresholdDensity),1,x,y);
+    /**
+     * Traces the contours of a density on a regular grid at the given level.
+     */
+    public static ContourPath[] getContourPaths(double[] xGrid, double[] yGrid, double[][] density,
+                                                double thresholdDensity) {
+
+        SnyderContour contourPlot = new SnyderContour(xGrid.length, yGrid.length);
+        contourPlot.setDeltas(xGrid[1] - xGrid[0], yGrid[1] - yGrid[0]);
+        contourPlot.setOffsets(xGrid[0], yGrid[0]);
+
+        List<LinkedList<Point2D>> allPaths = new ArrayList<LinkedList<Point2D>>();
+        contourPlot.ContourKernel(density, allPaths, thresholdDensity);
+
+        ContourPath[] contourPaths = new ContourPath[allPaths.size()];
+        for(int i=0; i<allPaths.size(); i++) {
+            LinkedList<Point2D> path = allPaths.get(i);
+            int len = path.size();
+            double[] x = new double[len];
+            double[] y = new double[len];
+            for(int j=0; j<len; j++) {
+                Point2D pt = path.get(j);
+                x[j] = pt.getX();
+                y[j] = pt.getY();
             }
+            contourPaths[i] = new ContourPath(new ContourAttrib(thresholdDensity),1,x,y);
         }
-
         return contourPaths;
     }
 
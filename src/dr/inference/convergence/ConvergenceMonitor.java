@@ -0,0 +1,158 @@
+/*
+ * ConvergenceMonitor.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.convergence;
+
+import dr.inference.loggers.NumberColumn;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainDelegate;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.operators.OperatorSchedule;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Follows the mean and effective sample size of some columns of the log while the chain runs,
+ * reports them every so often and can stop the chain once every effective sample size after the
+ * burn-in has reached a target. The values are never stored, so each sample costs O(1) for each
+ * column however long the chain.
+ *
+ * @version $Id$
+ */
+public class ConvergenceMonitor implements MarkovChainDelegate {
+
+    /**
+     * @param sampleEvery the number of states between the samples, or 0 for a ten thousandth of the
+     *                    chain length
+     * @param burnin      the number of states to ignore, or -1 for a tenth of the chain length
+     * @param reportEvery the number of states between the reports, or 0 for a hundredth of the
+     *                    chain length
+     */
+    public ConvergenceMonitor(List<NumberColumn> columns, long sampleEvery, long burnin, long reportEvery,
+                              double targetESS, boolean stopWhenConverged) {
+        this.columns = columns.toArray(new NumberColumn[columns.size()]);
+        this.sampleEvery = sampleEvery;
+        this.burnin = burnin;
+        this.reportEvery = reportEvery;
+        this.targetESS = targetESS;
+        this.stopWhenConverged = stopWhenConverged;
+
+        statistics = new OnlineBatchMeans[this.columns.length];
+        for (int i = 0; i < statistics.length; i++) {
+            statistics[i] = new OnlineBatchMeans();
+        }
+    }
+
+    public void setup(MCMCOptions options, OperatorSchedule schedule, MarkovChain markovChain) {
+        this.markovChain = markovChain;
+        final long chainLength = options.getChainLength();
+        if (sampleEvery <= 0) {
+            sampleEvery = Math.max(chainLength / 10000, 1);
+        }
+        if (burnin < 0) {
+            burnin = chainLength / 10;
+        }
+        if (reportEvery <= 0) {
+            reportEvery = Math.max(chainLength / 100, 1);
+        }
+    }
+
+    public void currentState(long state) {
+        if (state >= burnin && state % sampleEvery == 0) {
+            for (int i = 0; i < columns.length; i++) {
+                statistics[i].add(columns[i].getDoubleValue());
+            }
+        }
+    }
+
+    public void currentStateEnd(long state) {
+        // the chain is stopped at the end of a step, so that the last state is logged as it would
+        // be at the end of the chain
+        if (state > burnin && state % reportEvery == 0) {
+            report(state);
+            if (stopWhenConverged && isConverged()) {
+                Logger.getLogger("dr.inference").info("Every effective sample size has reached " + targetESS +
+                        ", stopping the chain at state " + (state + 1));
+                markovChain.pleaseStop();
+            }
+        }
+    }
+
+    public void finished(long chainLength) {
+        if (statistics[0].getCount() != reportedCount) {
+            report(chainLength);
+        }
+    }
+
+    /**
+     * @return whether the effective sample sizes of all the columns have reached the target
+     */
+    public boolean isConverged() {
+        for (OnlineBatchMeans statistic : statistics) {
+            if (!statistic.isEstimable() || statistic.getESS() < targetESS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public double getMean(int column) {
+        return statistics[column].getMean();
+    }
+
+    public double getESS(int column) {
+        return statistics[column].getESS();
+    }
+
+    private void report(long state) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("State ").append(state).append(", mean (ESS) after ")
+                .append(statistics[0].getCount()).append(" samples:");
+        for (int i = 0; i < columns.length; i++) {
+            builder.append("\n  ").append(columns[i].getLabel()).append(" ")
+                    .append(columns[i].formatValue(statistics[i].getMean()));
+            if (statistics[i].isEstimable()) {
+                builder.append(" (").append(Math.round(statistics[i].getESS())).append(")");
+            } else {
+                builder.append(" (-)");
+            }
+        }
+        Logger.getLogger("dr.inference").info(builder.toString());
+        reportedCount = statistics[0].getCount();
+    }
+
+    private final NumberColumn[] columns;
+    private final OnlineBatchMeans[] statistics;
+
+    private long sampleEvery;
+    private long burnin;
+    private long reportEvery;
+    private final double targetESS;
+    private final boolean stopWhenConverged;
+
+    private MarkovChain markovChain;
+    private long reportedCount = -1;
+}
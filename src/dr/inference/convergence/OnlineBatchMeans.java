@@ -0,0 +1,143 @@
+/*
+ * OnlineBatchMeans.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.convergence;
+
+/**
+ * The mean, variance and effective sample size of a series that is seen one value at a time and
+ * never stored. The effective sample size is estimated by batch means: the values are summed in
+ * consecutive batches, and when the batches fill up their array neighbouring batches are merged
+ * and the batch size doubles. So there are always between batchCount and 2 * batchCount full
+ * batches, the batch size grows in proportion to the length of the series, and each value costs
+ * O(1) amortized time.
+ *
+ * @version $Id$
+ */
+public class OnlineBatchMeans {
+
+    public static final int DEFAULT_BATCH_COUNT = 50;
+
+    public OnlineBatchMeans() {
+        this(DEFAULT_BATCH_COUNT);
+    }
+
+    public OnlineBatchMeans(int batchCount) {
+        if (batchCount < 2) {
+            throw new IllegalArgumentException("At least two batches are needed");
+        }
+        this.batchCount = batchCount;
+        batchSums = new double[2 * batchCount];
+    }
+
+    public void add(double value) {
+        count++;
+        final double delta = value - mean;
+        mean += delta / count;
+        sumOfSquares += delta * (value - mean);
+
+        // batches are summed relative to the first value to keep their variance accurate
+        if (count == 1) {
+            offset = value;
+        }
+        currentSum += value - offset;
+        currentSize++;
+        if (currentSize == batchSize) {
+            batchSums[fullBatches] = currentSum;
+            fullBatches++;
+            currentSum = 0.0;
+            currentSize = 0;
+            if (fullBatches == batchSums.length) {
+                for (int i = 0; i < batchCount; i++) {
+                    batchSums[i] = batchSums[2 * i] + batchSums[2 * i + 1];
+                }
+                fullBatches = batchCount;
+                batchSize *= 2;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return count > 1 ? sumOfSquares / (count - 1) : 0.0;
+    }
+
+    /**
+     * @return whether there are enough batches for the effective sample size to be estimated
+     */
+    public boolean isEstimable() {
+        return fullBatches >= batchCount;
+    }
+
+    /**
+     * @return the number of values times their variance over the variance of the batch means times
+     * the batch size, or the number of values if the series is constant, or 0 if there are not yet
+     * enough batches
+     */
+    public double getESS() {
+        if (!isEstimable()) {
+            return 0.0;
+        }
+        final double variance = getVariance();
+        if (variance == 0.0) {
+            return count;
+        }
+
+        double batchMean = 0.0;
+        for (int i = 0; i < fullBatches; i++) {
+            batchMean += batchSums[i];
+        }
+        batchMean /= fullBatches * batchSize;
+        double batchVariance = 0.0;
+        for (int i = 0; i < fullBatches; i++) {
+            final double deviation = batchSums[i] / batchSize - batchMean;
+            batchVariance += deviation * deviation;
+        }
+        batchVariance /= fullBatches - 1;
+
+        if (batchVariance == 0.0) {
+            return count;
+        }
+        return count * variance / (batchSize * batchVariance);
+    }
+
+    private final int batchCount;
+    private final double[] batchSums;
+    private int fullBatches;
+    private long batchSize = 1;
+    private double currentSum;
+    private long currentSize;
+    private double offset;
+
+    private long count;
+    private double mean;
+    private double sumOfSquares;
+}
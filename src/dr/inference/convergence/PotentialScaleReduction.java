@@ -0,0 +1,122 @@
+/*
+ * PotentialScaleReduction.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.convergence;
+
+/**
+ * The potential scale reduction factor (R-hat) of Gelman and Rubin for some values sampled by
+ * several chains at once, kept up to date as the samples arrive without storing them: only the
+ * running mean and sum of squared deviations of each value in each chain are kept. Each chain adds
+ * its own samples, from its own thread if need be, and the factors can be read at any time.
+ *
+ * @version $Id$
+ */
+public class PotentialScaleReduction {
+
+    public PotentialScaleReduction(int chainCount, int dimension) {
+        if (chainCount < 2) {
+            throw new IllegalArgumentException("At least two chains are needed");
+        }
+        this.dimension = dimension;
+        counts = new long[chainCount];
+        means = new double[chainCount][dimension];
+        sumsOfSquares = new double[chainCount][dimension];
+    }
+
+    public int getChainCount() {
+        return counts.length;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Adds a sample of all the values by one of the chains.
+     */
+    public void add(int chain, double[] values) {
+        final double[] mean = means[chain];
+        final double[] sumOfSquares = sumsOfSquares[chain];
+        synchronized (mean) {
+            counts[chain]++;
+            for (int i = 0; i < dimension; i++) {
+                final double delta = values[i] - mean[i];
+                mean[i] += delta / counts[chain];
+                sumOfSquares[i] += delta * (values[i] - mean[i]);
+            }
+        }
+    }
+
+    public long getSampleCount(int chain) {
+        synchronized (means[chain]) {
+            return counts[chain];
+        }
+    }
+
+    /**
+     * @return the square root of the pooled estimate of the variance of a value over the mean
+     * variance within the chains, or NaN while a chain has fewer than two samples or if the
+     * value does not vary within the chains
+     */
+    public double getPSRF(int index) {
+        final int m = counts.length;
+        final double[] chainMeans = new double[m];
+        double n = 0.0;
+        double within = 0.0;
+        for (int j = 0; j < m; j++) {
+            synchronized (means[j]) {
+                if (counts[j] < 2) {
+                    return Double.NaN;
+                }
+                chainMeans[j] = means[j][index];
+                within += sumsOfSquares[j][index] / (counts[j] - 1);
+                n += counts[j];
+            }
+        }
+        within /= m;
+        n /= m;
+        if (within == 0.0) {
+            return Double.NaN;
+        }
+
+        double grandMean = 0.0;
+        for (double mean : chainMeans) {
+            grandMean += mean / m;
+        }
+        // the variance between the means of the chains, which is B / n
+        double between = 0.0;
+        for (double mean : chainMeans) {
+            between += (mean - grandMean) * (mean - grandMean) / (m - 1);
+        }
+
+        final double pooled = (n - 1.0) / n * within + between;
+        return Math.sqrt(pooled / within);
+    }
+
+    private final int dimension;
+    private final long[] counts;
+    private final double[][] means;
+    private final double[][] sumsOfSquares;
+}
@@ -31,7 +31,17 @@ import dr.inference.model.Model;
 import dr.inference.operators.*;
 import dr.inference.prior.Prior;
 
+import dr.math.MathUtils;
+import dr.math.ReplicateRandomEngine;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -164,6 +174,14 @@ public final class MarkovChain {
 
         while (!pleaseStop && (currentState < (currentLength + length))) {
 
+            if (speculativeReplicas != null && !usingFullEvaluation && (disableCoerce || !isAdapting())) {
+                if (startSpeculation()) {
+                    // this returns early only if the replicas stop agreeing with this chain
+                    currentState = runSpeculatively(currentState, currentLength + length);
+                    continue;
+                }
+            }
+
             String diagnosticStart = "";
 
             // periodically log states
@@ -386,11 +404,380 @@ public final class MarkovChain {
             currentState += 1;
         }
 
+        if (pleaseStop) {
+            // a delegate may ask to stop at the end of a step
+            isStopped = true;
+        }
+
         currentLength = currentState;
 
         return currentLength;
     }
 
+    /**
+     * Makes the chain evaluate several proposals at once, on replicas of its model in threads of
+     * their own, whenever its operators are not being tuned. The proposals are evaluated as if all
+     * those before them were rejected, and the first one accepted is made on the other replicas
+     * without evaluating it again. The operator of each step is drawn in turn from the random numbers
+     * of the chain, and the seed of the random numbers of the step from a generator seeded from them
+     * once, so the chain goes through the same states whatever the number of replicas, as long as
+     * the operators do not adapt to the history of the chain in other ways.
+     *
+     * @param replicas     chains with independent copies of the model, operators and acceptor of this
+     *                     one, or none to run the same steps without speculation
+     * @param synchronizer gives the state of the model of this chain to the models of the replicas
+     */
+    public void setSpeculation(MarkovChain[] replicas, Runnable synchronizer) {
+        speculativeReplicas = replicas;
+        replicaSynchronizer = synchronizer;
+    }
+
+    private boolean isAdapting() {
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            final MCMCOperator op = schedule.getOperator(i);
+            if (op instanceof CoercableMCMCOperator && isCoercable((CoercableMCMCOperator) op)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the replicas are now in the state of this chain
+     */
+    private boolean startSpeculation() {
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            final MCMCOperator op = schedule.getOperator(i);
+            if (op instanceof AdaptiveMCMCOperator && ((AdaptiveMCMCOperator) op).isAdaptive()) {
+                // the replicas have their own copies of the operator, which would adapt apart
+                if (!speculationDeferred) {
+                    Logger.getLogger("dr.inference").info("The proposals of the chain are evaluated one at a " +
+                            "time while the operator " + op.getOperatorName() + " adapts.");
+                    speculationDeferred = true;
+                }
+                return false;
+            }
+        }
+
+        replicaSynchronizer.run();
+        for (MarkovChain replica : speculativeReplicas) {
+            for (int i = 0; i < schedule.getOperatorCount(); i++) {
+                final MCMCOperator op = schedule.getOperator(i);
+                if (op instanceof AdaptiveMCMCOperator) {
+                    // the copies of the replicas have not operated, so they take what this one has adapted
+                    final AdaptiveMCMCOperator copy = (AdaptiveMCMCOperator) replica.schedule.getOperator(i);
+                    copy.copyAdaptedState((AdaptiveMCMCOperator) op);
+                }
+            }
+            replica.likelihood.makeDirty();
+            replica.currentScore = evaluate(replica.likelihood, replica.prior);
+            if (Math.abs(replica.currentScore - currentScore) > evaluationTestThreshold) {
+                stopSpeculation("the state of the chain could not be given to its replicas (posterior " +
+                        replica.currentScore + " rather than " + currentScore + ")");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the seed of the random numbers of a proposal, drawn from a generator of their own so
+     * that the random numbers of the chain are not used up by proposals that are never made
+     */
+    private long nextSpeculationSeed() {
+        if (speculationSeeds == null) {
+            speculationSeeds = new ReplicateRandomEngine(MathUtils.nextLong());
+        }
+        int seed;
+        do {
+            // the generators of the threads take nonzero integer seeds
+            seed = speculationSeeds.nextInt();
+        } while (seed == 0);
+        return seed;
+    }
+
+    private void stopSpeculation(String reason) {
+        Logger.getLogger("dr.inference").warning("The proposals of the chain are evaluated one at a time from now on, " +
+                "because " + reason + ".");
+        speculativeReplicas = null;
+    }
+
+    private long runSpeculatively(long currentState, final long endState) {
+        final MarkovChain[] chains = new MarkovChain[speculativeReplicas.length + 1];
+        chains[0] = this;
+        System.arraycopy(speculativeReplicas, 0, chains, 1, speculativeReplicas.length);
+        final Model currentModel = likelihood.getModel();
+        final ExecutorService pool = Executors.newFixedThreadPool(chains.length);
+        try {
+            while (!pleaseStop && currentState < endState && speculativeReplicas != null) {
+
+                fireCurrentModel(currentState, currentModel);
+                if (pleaseStop) {
+                    isStopped = true;
+                    break;
+                }
+
+                final int count = (int) Math.min(chains.length, endState - currentState);
+                while (pendingProposals.size() < count) {
+                    pendingProposals.add(new Proposal(schedule.getNextOperatorIndex(), nextSpeculationSeed()));
+                }
+                final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+                for (int w = 0; w < count; w++) {
+                    final MarkovChain chain = chains[w];
+                    final Proposal proposal = pendingProposals.get(w);
+                    futures.add(pool.submit(new Callable<Object>() {
+                        public Object call() {
+                            chain.propose(proposal);
+                            return null;
+                        }
+                    }));
+                }
+                waitFor(futures);
+
+                if (hasDiverged(chains)) {
+                    // only the proposal of this chain was made from its state, so it is the step
+                    for (MarkovChain chain : chains) {
+                        chain.acceptOutstanding = false;
+                        chain.replay = null;
+                    }
+                    final Proposal proposal = pendingProposals.get(0);
+                    acceptOutstanding = proposal.accepted;
+                    if (proposal.operatorSucceeded && proposal.score > bestScore) {
+                        bestScore = proposal.score;
+                        fireBestModel(currentState, currentModel);
+                    }
+                    resolve();
+                    fireEndCurrentIteration(currentState);
+                    currentState++;
+                    pendingProposals.clear();
+                    stopSpeculation("a replica replayed a proposal with a different posterior");
+                    break;
+                }
+
+                int accepted = -1;
+                for (int w = 0; w < count && accepted < 0; w++) {
+                    if (pendingProposals.get(w).accepted) {
+                        accepted = w;
+                    }
+                }
+                final int resolved = accepted >= 0 ? accepted + 1 : count;
+                // the model of this chain is only in the state of its own proposal, and later in
+                // that of the accepted one, so the rejected proposals of the replicas are not the best
+                final Proposal first = pendingProposals.get(0);
+                if (first.operatorSucceeded && first.score > bestScore) {
+                    bestScore = first.score;
+                    fireBestModel(currentState, currentModel);
+                }
+                for (int w = 0; w < chains.length; w++) {
+                    chains[w].acceptOutstanding = (w == accepted);
+                    chains[w].replay = (accepted >= 0 && w != accepted ? pendingProposals.get(accepted) : null);
+                }
+
+                // this chain is given the states the others have found in turn
+                final Proposal replayed = replay;
+                replay = null;
+                resolve();
+                fireEndCurrentIteration(currentState);
+                currentState++;
+                int executed = 1;
+                for (int w = 1; w < resolved; w++) {
+                    fireCurrentModel(currentState, currentModel);
+                    if (pleaseStop) {
+                        // the step is not made, so none of the replicas accepts anything
+                        for (MarkovChain chain : chains) {
+                            chain.acceptOutstanding = false;
+                            chain.replay = null;
+                        }
+                        isStopped = true;
+                        break;
+                    }
+                    if (w == accepted) {
+                        replay = replayed;
+                        waitFor(Collections.singletonList(pool.submit(new Callable<Object>() {
+                            public Object call() {
+                                resolve();
+                                return null;
+                            }
+                        })));
+                        if (currentScore > bestScore) {
+                            bestScore = currentScore;
+                            fireBestModel(currentState, currentModel);
+                        }
+                    } else {
+                        final MCMCOperator op = schedule.getOperator(pendingProposals.get(w).operatorIndex);
+                        op.setRejectCount(op.getRejectCount() + 1);
+                    }
+                    fireEndCurrentIteration(currentState);
+                    currentState++;
+                    executed++;
+                }
+                pendingProposals.subList(0, executed).clear();
+
+                if (replayDiverged) {
+                    pendingProposals.clear();
+                    stopSpeculation("a proposal replayed by the chain had a different posterior");
+                }
+            }
+
+            // leave the replicas in the state of this chain
+            final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int w = 1; w < chains.length; w++) {
+                final MarkovChain chain = chains[w];
+                futures.add(pool.submit(new Callable<Object>() {
+                    public Object call() {
+                        chain.resolve();
+                        return null;
+                    }
+                }));
+            }
+            waitFor(futures);
+        } finally {
+            pool.shutdown();
+        }
+        return currentState;
+    }
+
+    /**
+     * @return whether a replica replayed a proposal of another to a different posterior, in which
+     * case its operators no longer match those of this chain
+     */
+    private static boolean hasDiverged(MarkovChain[] chains) {
+        for (int w = 1; w < chains.length; w++) {
+            if (chains[w].replayDiverged) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void waitFor(List<Future<Object>> futures) {
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while evaluating proposals");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Makes and evaluates a proposal from the current state, to be accepted or rejected later.
+     */
+    private void propose(Proposal proposal) {
+        resolve();
+
+        MathUtils.setThreadSeed(proposal.seed);
+        final MCMCOperator op = schedule.getOperator(proposal.operatorIndex);
+        likelihood.getModel().storeModelState();
+
+        double hastingsRatio = 1.0;
+        proposal.operatorSucceeded = true;
+        proposal.accepted = false;
+        try {
+            hastingsRatio = operate(op);
+        } catch (OperatorFailedException e) {
+            proposal.operatorSucceeded = false;
+        }
+
+        if (proposal.operatorSucceeded) {
+            final long startTime = System.currentTimeMillis();
+            double score = evaluate(likelihood, prior);
+            if (PROFILE) {
+                op.addEvaluationTime(System.currentTimeMillis() - startTime);
+            }
+            if (score == Double.POSITIVE_INFINITY || Double.isNaN(score)) {
+                score = Double.NEGATIVE_INFINITY;
+            }
+            proposal.score = score;
+            proposal.deviation = score - currentScore;
+            final double[] logr = {-Double.MAX_VALUE};
+            proposal.accepted = op instanceof GibbsOperator || acceptor.accept(currentScore, score, hastingsRatio, logr);
+        }
+
+        outstanding = proposal;
+        acceptOutstanding = false;
+    }
+
+    /**
+     * Accepts or rejects the last proposal of this chain, and then makes a proposal accepted by
+     * another chain.
+     */
+    private void resolve() {
+        final Model model = likelihood.getModel();
+        if (outstanding != null) {
+            final MCMCOperator op = schedule.getOperator(outstanding.operatorIndex);
+            if (acceptOutstanding) {
+                op.accept(outstanding.deviation);
+                model.acceptModelState();
+                currentScore = outstanding.score;
+            } else {
+                op.reject();
+                model.restoreModelState();
+            }
+            outstanding = null;
+        }
+
+        if (replay != null) {
+            // the same random numbers give the same proposal from the same state
+            MathUtils.setThreadSeed(replay.seed);
+            final MCMCOperator op = schedule.getOperator(replay.operatorIndex);
+            model.storeModelState();
+            try {
+                operate(op);
+            } catch (OperatorFailedException e) {
+                // the chain is not in the state the proposal was made from, so it stays where it is
+                op.reject();
+                model.restoreModelState();
+                replayDiverged = true;
+                replay = null;
+                return;
+            }
+            // the likelihoods only keep their stored values right if evaluated before each acceptance
+            final double score = evaluate(likelihood, prior);
+            op.accept(replay.deviation);
+            model.acceptModelState();
+            if (Math.abs(score - replay.score) > evaluationTestThreshold) {
+                // the chain keeps the posterior of the state it is in
+                replayDiverged = true;
+                currentScore = score;
+            } else {
+                currentScore = replay.score;
+            }
+            replay = null;
+        }
+    }
+
+    private double operate(MCMCOperator op) throws OperatorFailedException {
+        if (op instanceof GeneralOperator) {
+            return ((GeneralOperator) op).operate(prior, likelihood);
+        }
+        return op.operate();
+    }
+
+    /**
+     * A step of a speculative run, with the results of its evaluation.
+     */
+    private static final class Proposal {
+        Proposal(int operatorIndex, long seed) {
+            this.operatorIndex = operatorIndex;
+            this.seed = seed;
+        }
+
+        final int operatorIndex;
+        final long seed;
+
+        boolean operatorSucceeded;
+        boolean accepted;
+        double score;
+        double deviation;
+    }
+
     public void terminateChain() {
         fireFinished(currentLength);
 
@@ -604,4 +991,17 @@ public final class MarkovChain {
 
     private final ArrayList<MarkovChainListener> listeners = new ArrayList<MarkovChainListener>();
     private final ArrayList<MarkovChainDelegate> delegates = new ArrayList<MarkovChainDelegate>();
+
+    private MarkovChain[] speculativeReplicas = null;
+    private Runnable replicaSynchronizer = null;
+    // the steps drawn but not yet made
+    private final List<Proposal> pendingProposals = new ArrayList<Proposal>();
+    // the proposal this chain has made and evaluated, and whether to accept it
+    private Proposal outstanding = null;
+    private boolean acceptOutstanding = false;
+    // a proposal accepted by another chain, to be made by this one
+    private Proposal replay = null;
+    private boolean replayDiverged = false;
+    private ReplicateRandomEngine speculationSeeds = null;
+    private boolean speculationDeferred = false;
 }
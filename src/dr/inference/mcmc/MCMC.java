@@ -25,7 +25,11 @@
 
 package dr.inference.mcmc;
 
+import dr.inference.convergence.PotentialScaleReduction;
+import dr.inference.loggers.LogColumn;
 import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainDelegate;
 import dr.inference.markovchain.MarkovChainListener;
@@ -33,11 +37,22 @@ import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
 import dr.inference.operators.*;
 import dr.inference.prior.Prior;
+import dr.math.MathUtils;
 import dr.util.Identifiable;
 import dr.util.NumberFormatter;
+import dr.xml.ObjectStore;
 import dr.xml.Spawnable;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
@@ -202,6 +217,176 @@ public class MCMC implements Identifiable, Spawnable {
      * This method actually initiates the MCMC analysis.
      */
     public void chain() {
+        if (replicas.isEmpty()) {
+            runChain();
+        } else {
+            runChains();
+        }
+    }
+
+    /**
+     * Adds an independent copy of this chain, parsed from the same XML, to be run alongside it.
+     */
+    public void addReplica(MCMC replica) {
+        replicas.add(replica);
+    }
+
+    public void setObjectStore(ObjectStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Gives the chain copies of itself, parsed from the same XML, on which to evaluate its next
+     * proposals at once while its operators are not being tuned. The state of the chain is copied
+     * to them through the objects stored by their parsers.
+     */
+    public void setSpeculativeReplicas(final List<MCMC> speculativeReplicas) {
+        final MarkovChain[] chains = new MarkovChain[speculativeReplicas.size()];
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = speculativeReplicas.get(i).mc;
+        }
+        mc.setSpeculation(chains, new Runnable() {
+            public void run() {
+                for (MCMC replica : speculativeReplicas) {
+                    ModelReplicator.copyState(store, replica.store);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs this chain and its replicas at once, each in a thread of its own with its own stream of
+     * random numbers, and follows the potential scale reduction factors of the numerical columns
+     * of their loggers after the first tenth of the chain.
+     */
+    private void runChains() {
+        final List<MCMC> chains = new ArrayList<MCMC>();
+        chains.add(this);
+        chains.addAll(replicas);
+
+        final List<NumberColumn[]> columns = new ArrayList<NumberColumn[]>();
+        for (MCMC chain : chains) {
+            columns.add(chain.getNumberColumns());
+        }
+        final NumberColumn[] labels = columns.get(0);
+        final PotentialScaleReduction psrf = new PotentialScaleReduction(chains.size(), labels.length);
+
+        final long chainLength = getChainLength();
+        final long burnin = chainLength / 10;
+        final long sampleEvery = Math.max(chainLength / 10000, 1);
+        final long reportEvery = Math.max(chainLength / 10, 1);
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int j = 0; j < chains.size(); j++) {
+            final MCMC chain = chains.get(j);
+            final int index = j;
+            final NumberColumn[] chainColumns = columns.get(j);
+            if (chainColumns.length != labels.length) {
+                throw new RuntimeException("The replicas of the chain do not log the same columns");
+            }
+            final long seed = MathUtils.nextInt(Integer.MAX_VALUE - 1) + 1;
+
+            final MarkovChainDelegate sampler = new MarkovChainDelegate() {
+                private final double[] values = new double[chainColumns.length];
+
+                public void setup(MCMCOptions options, OperatorSchedule schedule, MarkovChain markovChain) {
+                }
+
+                public void currentState(long state) {
+                    if (state >= burnin && state % sampleEvery == 0) {
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = chainColumns[i].getDoubleValue();
+                        }
+                        psrf.add(index, values);
+                    }
+                    if (index == 0 && state > burnin && state % reportEvery == 0) {
+                        reportPSRF(state, psrf, labels, false);
+                    }
+                }
+
+                public void currentStateEnd(long state) {
+                }
+
+                public void finished(long chainLength) {
+                }
+            };
+
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    MathUtils.setThreadSeed(seed);
+                    chain.mc.addMarkovChainDelegate(sampler);
+                    try {
+                        chain.runChain();
+                    } finally {
+                        chain.mc.removeMarkovChainDelegate(sampler);
+                        MathUtils.removeThreadRandom();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(chains.size());
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running the chains");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        reportPSRF(getChainLength(), psrf, labels, true);
+    }
+
+    /**
+     * @return the numerical columns of the loggers, once for each label
+     */
+    private NumberColumn[] getNumberColumns() {
+        final Map<String, NumberColumn> columns = new LinkedHashMap<String, NumberColumn>();
+        for (Logger logger : loggers) {
+            if (logger instanceof MCLogger) {
+                final MCLogger mcLogger = (MCLogger) logger;
+                for (int i = 0; i < mcLogger.getColumnCount(); i++) {
+                    final LogColumn column = mcLogger.getColumn(i);
+                    if (column instanceof NumberColumn && !columns.containsKey(column.getLabel())) {
+                        columns.put(column.getLabel(), (NumberColumn) column);
+                    }
+                }
+            }
+        }
+        return columns.values().toArray(new NumberColumn[columns.size()]);
+    }
+
+    private void reportPSRF(long state, PotentialScaleReduction psrf, NumberColumn[] columns, boolean all) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("State ").append(state).append(", potential scale reduction factors over ")
+                .append(psrf.getChainCount()).append(" chains:");
+        int largest = -1;
+        double largestFactor = 0.0;
+        for (int i = 0; i < columns.length; i++) {
+            final double factor = psrf.getPSRF(i);
+            if (all) {
+                builder.append("\n  ").append(columns[i].getLabel()).append(" ")
+                        .append(Double.isNaN(factor) ? "-" : formatter.formatDecimal(factor, 3));
+            }
+            if (!Double.isNaN(factor) && (largest < 0 || factor > largestFactor)) {
+                largest = i;
+                largestFactor = factor;
+            }
+        }
+        if (!all) {
+            builder.append(largest < 0 ? " -" : " largest " + formatter.formatDecimal(largestFactor, 3) +
+                    " for " + columns[largest].getLabel());
+        }
+        java.util.logging.Logger.getLogger("dr.inference").info(builder.toString());
+    }
+
+    private void runChain() {
 
         stopping = false;
         currentState = 0;
@@ -236,7 +421,9 @@ public class MCMC implements Identifiable, Spawnable {
                 }
             }
 
-            mc.runChain(chainLength, false);
+            if (!mc.isStopped()) {
+                mc.runChain(chainLength, false);
+            }
 
             mc.terminateChain();
 
@@ -473,6 +660,9 @@ public class MCMC implements Identifiable, Spawnable {
     public void pleaseStop() {
         stopping = true;
         mc.pleaseStop();
+        for (MCMC replica : replicas) {
+            replica.pleaseStop();
+        }
     }
 
     /**
@@ -556,6 +746,9 @@ public class MCMC implements Identifiable, Spawnable {
     protected OperatorSchedule schedule;
     private MarkovChainDelegate[] delegates;
 
+    private final List<MCMC> replicas = new ArrayList<MCMC>();
+    private ObjectStore store = null;
+
     private String id = null;
 }
 
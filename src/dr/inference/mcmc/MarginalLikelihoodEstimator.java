@@ -25,6 +25,7 @@
 
 package dr.inference.mcmc;
 
+import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
@@ -33,6 +34,7 @@ import dr.inference.model.Model;
 import dr.inference.model.PathLikelihood;
 import dr.inference.operators.*;
 import dr.inference.prior.Prior;
+import dr.math.MathUtils;
 import dr.util.Identifiable;
 import dr.xml.*;
 import org.apache.commons.math.MathException;
@@ -40,6 +42,7 @@ import org.apache.commons.math.distribution.BetaDistributionImpl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * @author Andrew Rambaut
@@ -91,31 +94,179 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
 
     public void integrate(Integrator scheme) {
         setDefaultBurnin();
+        if (!replicas.isEmpty()) {
+            integrateConcurrently(scheme);
+            return;
+        }
         mc.setCurrentLength(burnin);
         scheme.init();
         ((CombinedOperatorSchedule) schedule).reset();
         for (pathParameter = scheme.nextPathParameter(); pathParameter >= 0; pathParameter = scheme.nextPathParameter()) {
-            pathLikelihood.setPathParameter(pathParameter);
-            reportIteration(pathParameter, chainLength, burnin, scheme.pathSteps, scheme.step);
+            runPathStep(pathParameter, mc.getCurrentLength(), scheme.pathSteps, scheme.step);
+        }
+    }
+
+    /**
+     * Runs the steps in turns of one step for each replica, all replicas starting from the final
+     * state of the step before the turn. The samples of the replicas are logged after those of
+     * this chain, in the order of the steps, so the log is that of a single chain.
+     */
+    private void integrateConcurrently(final Integrator scheme) {
+        final List<Double> pathParameters = new ArrayList<Double>();
+        scheme.init();
+        for (double p = scheme.nextPathParameter(); p >= 0; p = scheme.nextPathParameter()) {
+            pathParameters.add(p);
+        }
 
-            for (int i = 0; i < schedule.getOperatorCount(); ++i) {
-                MCMCOperator operator = schedule.getOperator(i);
-                if (operator instanceof GibbsOperator) {
-                    ((GibbsOperator)operator).setPathParameter(pathParameter);
+        final List<MarginalLikelihoodEstimator> chains = new ArrayList<MarginalLikelihoodEstimator>();
+        chains.add(this);
+        chains.addAll(replicas);
+        for (MarginalLikelihoodEstimator chain : chains) {
+            chain.setDefaultBurnin();
+            ((CombinedOperatorSchedule) chain.schedule).reset();
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(chains.size());
+        try {
+            MarginalLikelihoodEstimator previous = this;
+            for (int first = 0; first < pathParameters.size(); first += chains.size()) {
+                final int count = Math.min(chains.size(), pathParameters.size() - first);
+
+                final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                for (int i = 0; i < count; i++) {
+                    final MarginalLikelihoodEstimator chain = chains.get(i);
+                    if (chain != previous) {
+                        ModelReplicator.copyState(previous.store, chain.store);
+                    }
+                    final int step = first + i;
+                    final double p = pathParameters.get(step);
+                    // each step has its own random numbers, seeded in order, so a seeded run can be repeated
+                    final long seed = MathUtils.nextLong();
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            MathUtils.setThreadSeed(seed);
+                            try {
+                                chain.runPathStep(p, burnin + step * chainLength, scheme.pathSteps, step + 1);
+                            } finally {
+                                MathUtils.removeThreadRandom();
+                            }
+                            return null;
+                        }
+                    });
                 }
+
+                for (Future<Object> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+
+                for (int i = 1; i < count; i++) {
+                    chains.get(i).writeSamples(loggers);
+                }
+                previous = chains.get(count - 1);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running the path steps");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-            long cl = mc.getCurrentLength();
-            mc.setCurrentLength(0);
-            mc.runChain(burnin, false/*, 0*/);
-            mc.setCurrentLength(cl);
-            mc.runChain(chainLength, false);
+    private void runPathStep(double pathParameter, long firstState, long totalSteps, long step) {
+        pathLikelihood.setPathParameter(pathParameter);
+        reportIteration(pathParameter, chainLength, burnin, totalSteps, step);
 
-            if (SHOW_OPERATOR_ANALYSIS) {
-            	(new OperatorAnalysisPrinter(schedule)).showOperatorAnalysis(System.out);
+        for (int i = 0; i < schedule.getOperatorCount(); ++i) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (operator instanceof GibbsOperator) {
+                ((GibbsOperator)operator).setPathParameter(pathParameter);
             }
-            ((CombinedOperatorSchedule) schedule).reset();
         }
+
+        mc.setCurrentLength(0);
+        mc.runChain(burnin, false/*, 0*/);
+        mc.setCurrentLength(firstState);
+        mc.runChain(chainLength, false);
+
+        if (SHOW_OPERATOR_ANALYSIS) {
+            (new OperatorAnalysisPrinter(schedule)).showOperatorAnalysis(System.out);
+        }
+        ((CombinedOperatorSchedule) schedule).reset();
+    }
+
+    /**
+     * Adds a copy of this estimator, parsed from the same XML, to run some of the steps.
+     */
+    public void addReplica(MarginalLikelihoodEstimator replica) {
+        if (replica.loggers.size() != loggers.size()) {
+            throw new IllegalArgumentException("The replica does not have the loggers of this estimator");
+        }
+        replicas.add(replica);
+    }
+
+    public void setObjectStore(ObjectStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Keeps the samples of a replica, to be written by the loggers of the estimator.
+     */
+    private void startBufferedLogging() {
+        buffers = new ArrayList<SampleBuffer>();
+        for (MCLogger logger : loggers) {
+            SampleBuffer buffer = new SampleBuffer();
+            List<LogFormatter> formatters = new ArrayList<LogFormatter>();
+            formatters.add(buffer);
+            logger.setFormatters(formatters);
+            logger.startLogging();
+            buffers.add(buffer);
+        }
+    }
+
+    private void writeSamples(List<MCLogger> destinations) {
+        for (int i = 0; i < buffers.size(); i++) {
+            buffers.get(i).writeTo(destinations.get(i).getFormatters());
+        }
+    }
+
+    private static class SampleBuffer implements LogFormatter {
+
+        public void startLogging(String title) {
+        }
+
+        public void logHeading(String heading) {
+        }
+
+        public void logLine(String line) {
+            samples.add(line);
+        }
+
+        public void logLabels(String[] labels) {
+        }
+
+        public void logValues(String[] values) {
+            samples.add(values);
+        }
+
+        public void stopLogging() {
+        }
+
+        void writeTo(List<LogFormatter> formatters) {
+            for (Object sample : samples) {
+                for (LogFormatter formatter : formatters) {
+                    if (sample instanceof String) {
+                        formatter.logLine((String) sample);
+                    } else {
+                        formatter.logValues((String[]) sample);
+                    }
+                }
+            }
+            samples.clear();
+        }
+
+        private final List<Object> samples = new ArrayList<Object>();
     }
 
     public abstract class Integrator {
@@ -315,6 +466,10 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
             logger.startLogging();
         }
         mc.addMarkovChainListener(chainListener);
+        for (MarginalLikelihoodEstimator replica : replicas) {
+            replica.startBufferedLogging();
+            replica.mc.addMarkovChainListener(replica.chainListener);
+        }
 
         /*switch (scheme) {
             case LINEAR:
@@ -360,6 +515,9 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
         }
 
         mc.removeMarkovChainListener(chainListener);
+        for (MarginalLikelihoodEstimator replica : replicas) {
+            replica.mc.removeMarkovChainListener(replica.chainListener);
+        }
     }
 
     private final MarkovChainListener chainListener = new MarkovChainListener() {
@@ -529,6 +687,18 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
             MarginalLikelihoodEstimator mle = new MarginalLikelihoodEstimator(MARGINAL_LIKELIHOOD_ESTIMATOR, chainLength,
                     burninLength, pathSteps, fixedRunValues, scheme, pathLikelihood, os, loggerList);
 
+            mle.setObjectStore(getStore());
+
+            int threadCount = xo.getAttribute(THREADS, 1);
+            if (threadCount > 1) {
+                java.util.logging.Logger.getLogger("dr.inference").info("Path Sampling Marginal Likelihood Estimator:\n\tParsing " + (threadCount - 1) + " replicas of the chain to run the path steps concurrently.");
+                // the replicas start from the state of this chain, so they need no prerun
+                ModelReplicator replicator = new ModelReplicator(xo, THREADS, PRERUN);
+                for (int i = 1; i < threadCount; i++) {
+                    mle.addReplica((MarginalLikelihoodEstimator) replicator.createReplica());
+                }
+            }
+
             if (!xo.getAttribute(SPAWN, true))
                 mle.setSpawnable(false);
 
@@ -585,6 +755,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
                 AttributeRule.newIntegerRule(PATH_STEPS, true),
                 AttributeRule.newIntegerRule(BURNIN, true),
                 AttributeRule.newIntegerRule(PRERUN, true),
+                AttributeRule.newIntegerRule(THREADS, true),
                 AttributeRule.newBooleanRule(LINEAR, true),
                 AttributeRule.newBooleanRule(LACING, true),
                 AttributeRule.newBooleanRule(SPAWN, true),
@@ -666,6 +837,10 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
 
     private final List<MCLogger> loggers;
 
+    private final List<MarginalLikelihoodEstimator> replicas = new ArrayList<MarginalLikelihoodEstimator>();
+    private ObjectStore store = null;
+    private List<SampleBuffer> buffers = null;
+
     private final PathLikelihood pathLikelihood;
 
     public static final String MARGINAL_LIKELIHOOD_ESTIMATOR = "marginalLikelihoodEstimator";
@@ -682,6 +857,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
     public static final String ALPHA = "alpha";
     public static final String BETA = "beta";
     public static final String PRERUN = "prerun";
+    public static final String THREADS = "threads";
     public static final String PRINT_OPERATOR_ANALYSIS = "printOperatorAnalysis";
     
     private static boolean SHOW_OPERATOR_ANALYSIS = false;
@@ -0,0 +1,492 @@
+/*
+ * ModelReplicator.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmc;
+
+import dr.app.beast.BeastParser;
+import dr.evolution.alignment.Alignment;
+import dr.evolution.alignment.Patterns;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.loggers.Logger;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.util.FileHelpers;
+import dr.xml.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Builds independent copies of the objects of an XML element, by parsing again the element and
+ * the elements before it that it refers to with a new parser, so that the copies share nothing
+ * with the original but static state. The loggers of the copies write to temporary files, and
+ * nothing in the copies is run. Objects that never change, such as the data, can be shared by the
+ * copies rather than parsed again. The state of the parameters and tree models of one copy can be
+ * given to another by matching their ids.
+ *
+ * @version $Id$
+ */
+public class ModelReplicator {
+
+    /**
+     * The types of the objects of the data, which are not changed by a chain once parsed.
+     */
+    public static final Class[] DATA_TYPES = {Taxon.class, Taxa.class, Alignment.class, Patterns.class, SitePatterns.class};
+
+    /**
+     * @param xo                the element to copy
+     * @param removedAttributes attributes of the element to leave out of the copies
+     */
+    public ModelReplicator(XMLObject xo, String... removedAttributes) throws XMLParseException {
+        final Element element = xo.getElement();
+        final Document document = (Document) element.getOwnerDocument().cloneNode(true);
+
+        // find the element in the copy of the document by its position
+        final List<Integer> path = new ArrayList<Integer>();
+        for (Node node = element; node.getParentNode() != element.getOwnerDocument(); node = node.getParentNode()) {
+            path.add(0, getIndex(node));
+        }
+        Element copy = document.getDocumentElement();
+        for (int index : path) {
+            copy = (Element) copy.getChildNodes().item(index);
+        }
+
+        // leave out whatever follows the element, and the elements before it that it does not
+        // refer to, directly or through others, as they may be run or read files when parsed
+        for (Node node = copy; node != document.getDocumentElement(); node = node.getParentNode()) {
+            while (node.getNextSibling() != null) {
+                node.getParentNode().removeChild(node.getNextSibling());
+            }
+        }
+        final Map<String, Element> topLevelElements = new HashMap<String, Element>();
+        for (Node child = document.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                for (Element e : getElements((Element) child)) {
+                    if (e.hasAttribute(XMLParser.ID)) {
+                        topLevelElements.put(e.getAttribute(XMLParser.ID), (Element) child);
+                    }
+                }
+            }
+        }
+        Node topLevelCopy = copy;
+        while (topLevelCopy.getParentNode() != document.getDocumentElement()) {
+            topLevelCopy = topLevelCopy.getParentNode();
+        }
+        final Set<Element> required = new HashSet<Element>();
+        final List<Element> pending = new ArrayList<Element>();
+        required.add((Element) topLevelCopy);
+        pending.add((Element) topLevelCopy);
+        while (!pending.isEmpty()) {
+            for (Element e : getElements(pending.remove(pending.size() - 1))) {
+                final Element reference = topLevelElements.get(e.getAttribute(XMLParser.IDREF));
+                if (reference != null && required.add(reference)) {
+                    pending.add(reference);
+                }
+            }
+        }
+        Node child = document.getDocumentElement().getFirstChild();
+        while (child != null) {
+            final Node next = child.getNextSibling();
+            if (child instanceof Element && !required.contains(child)) {
+                document.getDocumentElement().removeChild(child);
+            }
+            child = next;
+        }
+
+        for (String attribute : removedAttributes) {
+            copy.removeAttribute(attribute);
+        }
+        depth = path.size();
+
+        // send the logs of the copies to a temporary directory
+        try {
+            logDirectory = File.createTempFile("replicas", "");
+            if (!logDirectory.delete() || !logDirectory.mkdir()) {
+                throw new IOException("Unable to create " + logDirectory);
+            }
+            logDirectory.deleteOnExit();
+        } catch (IOException e) {
+            throw new XMLParseException("Unable to create a directory for the logs of replicas: " + e.getMessage());
+        }
+        loggerElements = new ArrayList<Element>();
+        logFileNames = new ArrayList<String>();
+        screenLoggerElements = new ArrayList<Element>();
+        final XMLParser parser = createParser();
+        final NodeList elements = document.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            final Element e = (Element) elements.item(i);
+            final XMLObjectParser elementParser = parser.getParser(e.getTagName());
+            if (elementParser != null && Logger.class.isAssignableFrom(elementParser.getReturnType())) {
+                if (e.hasAttribute(FileHelpers.FILE_NAME)) {
+                    loggerElements.add(e);
+                    logFileNames.add(e.getAttribute(FileHelpers.FILE_NAME));
+                } else if (!e.hasAttribute(XMLParser.IDREF)) {
+                    screenLoggerElements.add(e);
+                }
+            }
+        }
+        this.document = document;
+    }
+
+    /**
+     * Makes the copies use the objects of the original, instead of parsing their own, for the
+     * elements at the top level of the XML whose objects are of the given types, and for the
+     * elements within them. The objects must not change once parsed, as the copies may be run in
+     * other threads.
+     *
+     * @param store the objects of the original
+     */
+    public void shareObjects(ObjectStore store, Class... types) {
+        share(store, types, false);
+    }
+
+    /**
+     * Makes the copies use the trees of the original that are not models, such as the starting
+     * trees, so that the nodes of the tree models built from them are numbered alike in all the
+     * copies. A tree is shared only if nothing outside its element refers to the elements within
+     * it, as these are shared with it.
+     *
+     * @param store the objects of the original
+     */
+    public void shareTrees(ObjectStore store) {
+        share(store, new Class[]{Tree.class}, true);
+    }
+
+    private void share(ObjectStore store, Class[] types, boolean staticTreesOnly) {
+        final Map<String, XMLObject> parsed = new HashMap<String, XMLObject>();
+        for (Object object : store.getObjects()) {
+            if (object instanceof XMLObject) {
+                final Element e = ((XMLObject) object).getElement();
+                if (e != null && e.hasAttribute(XMLParser.ID)) {
+                    parsed.put(e.getAttribute(XMLParser.ID), (XMLObject) object);
+                }
+            }
+        }
+
+        Node child = document.getDocumentElement().getFirstChild();
+        while (child != null) {
+            final Node next = child.getNextSibling();
+            if (child instanceof Element) {
+                final XMLObject original = parsed.get(((Element) child).getAttribute(XMLParser.ID));
+                if (original != null && isInstance(original.getNativeObject(), types) &&
+                        (!staticTreesOnly || (!(original.getNativeObject() instanceof Model) &&
+                                !isReferredWithin((Element) child)))) {
+                    for (Element e : getElements((Element) child)) {
+                        final String id = e.getAttribute(XMLParser.ID);
+                        if (parsed.containsKey(id)) {
+                            sharedObjects.put(id, parsed.get(id));
+                        }
+                    }
+                    document.getDocumentElement().removeChild(child);
+                }
+            }
+            child = next;
+        }
+
+        // the objects shared with the original itself, if it is a copy, are not in the document
+        final Set<String> declared = new HashSet<String>();
+        final List<Element> elements = getElements(document.getDocumentElement());
+        for (Element e : elements) {
+            if (e.hasAttribute(XMLParser.ID)) {
+                declared.add(e.getAttribute(XMLParser.ID));
+            }
+        }
+        for (Element e : elements) {
+            final String id = e.getAttribute(XMLParser.IDREF);
+            if (!declared.contains(id) && parsed.containsKey(id)) {
+                sharedObjects.put(id, parsed.get(id));
+            }
+        }
+    }
+
+    /**
+     * @return whether an element outside the given one refers to one of the elements within it
+     */
+    private boolean isReferredWithin(Element element) {
+        final Set<String> ids = new HashSet<String>();
+        for (Element e : getElements(element)) {
+            if (e != element && e.hasAttribute(XMLParser.ID)) {
+                ids.add(e.getAttribute(XMLParser.ID));
+            }
+        }
+        final Set<Element> inside = new HashSet<Element>(getElements(element));
+        for (Element e : getElements(document.getDocumentElement())) {
+            if (!inside.contains(e) && ids.contains(e.getAttribute(XMLParser.IDREF))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInstance(Object object, Class[] types) {
+        for (Class type : types) {
+            if (type.isInstance(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Element> getElements(Element element) {
+        final List<Element> elements = new ArrayList<Element>();
+        elements.add(element);
+        final NodeList descendants = element.getElementsByTagName("*");
+        for (int i = 0; i < descendants.getLength(); i++) {
+            elements.add((Element) descendants.item(i));
+        }
+        return elements;
+    }
+
+    private static int getIndex(Node node) {
+        int index = 0;
+        for (Node sibling = node.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+            index++;
+        }
+        return index;
+    }
+
+    private static XMLParser createParser() {
+        return new BeastParser(new String[0], null, false, false, false);
+    }
+
+    /**
+     * @return a new copy of the object of the element, whose loggers write to temporary files
+     */
+    public Object createReplica() throws XMLParseException {
+        return createReplica(null);
+    }
+
+    /**
+     * @param logFileSuffix if not null, the loggers of the copy write to the files of the original
+     *                      with this added to their names before the extension, and its loggers that
+     *                      write to the screen write to temporary files
+     * @return a new copy of the object of the element
+     */
+    public Object createReplica(String logFileSuffix) throws XMLParseException {
+        replicaCount++;
+        for (int i = 0; i < loggerElements.size(); i++) {
+            final String fileName = logFileNames.get(i);
+            if (logFileSuffix != null) {
+                final int dot = fileName.lastIndexOf('.');
+                final boolean hasExtension = dot > fileName.lastIndexOf(File.separatorChar);
+                loggerElements.get(i).setAttribute(FileHelpers.FILE_NAME, hasExtension ?
+                        fileName.substring(0, dot) + logFileSuffix + fileName.substring(dot) :
+                        fileName + logFileSuffix);
+            } else {
+                final File logFile = new File(logDirectory, replicaCount + "_" + i + "_" + new File(fileName).getName());
+                logFile.deleteOnExit();
+                loggerElements.get(i).setAttribute(FileHelpers.FILE_NAME, logFile.getAbsolutePath());
+            }
+        }
+        for (int i = 0; i < screenLoggerElements.size(); i++) {
+            if (logFileSuffix != null) {
+                final File logFile = new File(logDirectory, replicaCount + "_screen_" + i + ".log");
+                logFile.deleteOnExit();
+                screenLoggerElements.get(i).setAttribute(FileHelpers.FILE_NAME, logFile.getAbsolutePath());
+            } else {
+                screenLoggerElements.get(i).removeAttribute(FileHelpers.FILE_NAME);
+            }
+        }
+
+        final StringWriter writer = new StringWriter();
+        try {
+            final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.transform(new DOMSource(document), new StreamResult(writer));
+        } catch (TransformerException e) {
+            throw new XMLParseException("Unable to copy the XML: " + e.getMessage());
+        }
+
+        // the copies repeat the messages of the original
+        final java.util.logging.Logger logger = java.util.logging.Logger.getLogger("dr");
+        final Level level = logger.getLevel();
+        logger.setLevel(Level.WARNING);
+        final XMLParser parser = createParser();
+        for (Map.Entry<String, XMLObject> shared : sharedObjects.entrySet()) {
+            parser.storeXMLObject(shared.getKey(), shared.getValue());
+        }
+        try {
+            parser.parse(new StringReader(writer.toString()), false);
+        } catch (XMLParseException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new XMLParseException("Unable to parse a copy of the XML: " + e.getMessage());
+        } finally {
+            logger.setLevel(level);
+        }
+
+        // the element is the last one at each level
+        XMLObject xo = parser.getRoot();
+        for (int i = 0; i < depth; i++) {
+            XMLObject last = null;
+            for (int j = 0; j < xo.getChildCount(); j++) {
+                if (xo.getRawChild(j) instanceof XMLObject) {
+                    last = (XMLObject) xo.getRawChild(j);
+                }
+            }
+            xo = last;
+        }
+        return xo.getNativeObject();
+    }
+
+    /**
+     * Gives the values of the parameters and the trees of the tree models of one copy to those of
+     * another with the same ids.
+     */
+    public static void copyState(ObjectStore source, ObjectStore destination) {
+        for (Object id : destination.getIdSet()) {
+            if (!source.hasObjectId(id)) {
+                continue;
+            }
+            final Object from;
+            final Object to;
+            try {
+                from = source.getObjectById(id);
+                to = destination.getObjectById(id);
+            } catch (ObjectNotFoundException e) {
+                continue;
+            }
+            if (from != to && from instanceof TreeModel && to instanceof TreeModel) {
+                copyTree((TreeModel) from, (TreeModel) to);
+            }
+        }
+
+        // the parameters of the nodes of the trees are copied with the trees
+        for (Object id : destination.getIdSet()) {
+            if (!source.hasObjectId(id)) {
+                continue;
+            }
+            final Object from;
+            final Object to;
+            try {
+                from = source.getObjectById(id);
+                to = destination.getObjectById(id);
+            } catch (ObjectNotFoundException e) {
+                continue;
+            }
+            if (from != to && from instanceof Parameter.Default && to instanceof Parameter.Default) {
+                copyParameter((Parameter) from, (Parameter) to);
+            }
+        }
+    }
+
+    private static void copyParameter(Parameter from, Parameter to) {
+        if (from.getDimension() != to.getDimension()) {
+            return;
+        }
+        boolean changed = false;
+        for (int i = 0; i < from.getDimension(); i++) {
+            if (from.getParameterValue(i) != to.getParameterValue(i)) {
+                to.setParameterValueQuietly(i, from.getParameterValue(i));
+                changed = true;
+            }
+        }
+        if (changed) {
+            to.fireParameterChangedEvent();
+        }
+    }
+
+    private static void copyTree(TreeModel from, TreeModel to) {
+        // the tips are matched by their taxa and the internal nodes by their numbers
+        final int nodeCount = from.getNodeCount();
+        final NodeRef[] nodes = new NodeRef[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            final NodeRef node = from.getNode(i);
+            if (from.isExternal(node)) {
+                nodes[i] = to.getExternalNode(to.getTaxonIndex(from.getNodeTaxon(node).getId()));
+            } else {
+                nodes[i] = to.getNode(i);
+            }
+        }
+
+        to.beginTreeEdit();
+        for (int i = 0; i < to.getInternalNodeCount(); i++) {
+            final NodeRef node = to.getInternalNode(i);
+            for (int j = to.getChildCount(node) - 1; j >= 0; j--) {
+                to.removeChild(node, to.getChild(node, j));
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            final NodeRef node = from.getNode(i);
+            for (int j = 0; j < from.getChildCount(node); j++) {
+                to.addChild(nodes[i], nodes[from.getChild(node, j).getNumber()]);
+            }
+        }
+        to.setRoot(nodes[from.getRoot().getNumber()]);
+        for (int i = 0; i < nodeCount; i++) {
+            to.setNodeHeight(nodes[i], from.getNodeHeight(from.getNode(i)));
+        }
+        to.endTreeEdit();
+        // so that a compound parameter of the node heights refers to the same nodes in both
+        to.matchNodeParameters(from);
+
+        for (int i = 0; i < nodeCount; i++) {
+            final TreeModel.Node node = (TreeModel.Node) from.getNode(i);
+            final TreeModel.Node copy = (TreeModel.Node) nodes[i];
+            if (node.rateParameter != null && copy.rateParameter != null) {
+                copyParameter(node.rateParameter, copy.rateParameter);
+            }
+            if (from.hasNodeTraits() && to.hasNodeTraits()) {
+                for (Map.Entry<String, Parameter> trait : from.getTraitMap(node).entrySet()) {
+                    final Parameter copyTrait = to.getTraitMap(copy).get(trait.getKey());
+                    if (copyTrait != null) {
+                        copyParameter(trait.getValue(), copyTrait);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Document document;
+    private final int depth;
+    private final File logDirectory;
+    private final List<Element> loggerElements;
+    private final List<String> logFileNames;
+    private final List<Element> screenLoggerElements;
+    private final Map<String, XMLObject> sharedObjects = new HashMap<String, XMLObject>();
+    private int replicaCount = 0;
+}
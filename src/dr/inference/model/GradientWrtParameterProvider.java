@@ -0,0 +1,60 @@
+/*
+ * GradientWrtParameterProvider.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.model;
+
+/**
+ * Classes that can return the gradient of a log density with respect to every element of a
+ * parameter should implement this interface. It is implemented by tree likelihoods, priors
+ * and any other parameter-level model that has (or can approximate) the derivative, so that
+ * gradient-based operators can treat them interchangeably.
+ *
+ * @version $Id$
+ */
+public interface GradientWrtParameterProvider {
+
+    /**
+     * @return the likelihood whose log density is being differentiated
+     */
+    Likelihood getLikelihood();
+
+    /**
+     * @return the parameter the gradient is taken with respect to
+     */
+    Parameter getParameter();
+
+    /**
+     * @return the length of the gradient vector (usually the dimension of the parameter)
+     */
+    int getDimension();
+
+    /**
+     * Returns d log(density) / d parameter evaluated at the current parameter values.
+     *
+     * @return a new array of length getDimension()
+     */
+    double[] getGradientLogDensity();
+
+}
@@ -0,0 +1,189 @@
+/*
+ * AdaptableCovariance.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.operators;
+
+/**
+ * The empirical mean and covariance of the samples of a chain, with the covariance kept as the
+ * Cholesky factor of the sum of squared deviations from the mean. Each sample changes that sum by
+ * a rank one matrix, so the factor is updated in O(d^2) by Givens rotations and never decomposed
+ * again. A chain repeats its state whenever a proposal is rejected, so repeats of a sample are
+ * counted and added in a single update once the chain moves on, and the cost of adapting follows
+ * the acceptance rate.
+ *
+ * @version $Id$
+ */
+public class AdaptableCovariance {
+
+    public AdaptableCovariance(int dim) {
+        this.dim = dim;
+        mean = new double[dim];
+        pending = new double[dim];
+        work = new double[dim];
+        cholesky = new double[dim][];
+        for (int i = 0; i < dim; i++) {
+            cholesky[i] = new double[i + 1];
+        }
+    }
+
+    /**
+     * Forgets all the samples.
+     */
+    public void reset() {
+        count = 0;
+        pendingCount = 0;
+        for (int i = 0; i < dim; i++) {
+            mean[i] = 0.0;
+            for (int j = 0; j <= i; j++) {
+                cholesky[i][j] = 0.0;
+            }
+        }
+    }
+
+    public void addSample(double[] x) {
+        if (pendingCount > 0) {
+            boolean repeated = true;
+            for (int i = 0; i < dim && repeated; i++) {
+                repeated = (x[i] == pending[i]);
+            }
+            if (repeated) {
+                pendingCount++;
+                return;
+            }
+            flush();
+        }
+        System.arraycopy(x, 0, pending, 0, dim);
+        pendingCount = 1;
+    }
+
+    public int getSampleCount() {
+        return count + pendingCount;
+    }
+
+    public double[] getMean() {
+        flush();
+        return mean;
+    }
+
+    /**
+     * @return the covariance of the samples, dividing by their number
+     */
+    public double[][] getCovariance() {
+        flush();
+        final double[][] covariance = new double[dim][dim];
+        if (count == 0) {
+            return covariance;
+        }
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = 0.0;
+                for (int k = 0; k <= j; k++) {
+                    sum += cholesky[i][k] * cholesky[j][k];
+                }
+                covariance[i][j] = covariance[j][i] = sum / count;
+            }
+        }
+        return covariance;
+    }
+
+    /**
+     * Adds a draw from a normal distribution with the covariance of the samples, times the given
+     * scale, to x.
+     *
+     * @param epsilon standard normal deviates
+     */
+    public void addDeviate(double scale, double[] epsilon, double[] x) {
+        flush();
+        if (count > 0) {
+            multiplyLower(cholesky, scale / Math.sqrt(count), epsilon, x);
+        }
+    }
+
+    private void flush() {
+        if (pendingCount == 0) {
+            return;
+        }
+        // adding k copies of x to n samples adds nk/(n+k) (x - mean)(x - mean)' to the sum of
+        // squared deviations
+        final double weight = Math.sqrt((double) count * pendingCount / (count + pendingCount));
+        for (int i = 0; i < dim; i++) {
+            final double deviation = pending[i] - mean[i];
+            work[i] = weight * deviation;
+            mean[i] += deviation * pendingCount / (count + pendingCount);
+        }
+        count += pendingCount;
+        pendingCount = 0;
+        if (weight > 0.0) {
+            rankOneUpdate(cholesky, work);
+        }
+    }
+
+    /**
+     * Replaces the lower triangular factor L with that of LL' + vv'. The vector is overwritten.
+     */
+    public static void rankOneUpdate(double[][] lower, double[] v) {
+        final int dim = v.length;
+        for (int k = 0; k < dim; k++) {
+            final double[] row = lower[k];
+            final double r = Math.hypot(row[k], v[k]);
+            if (r == 0.0) {
+                continue;
+            }
+            final double c = row[k] / r;
+            final double s = v[k] / r;
+            row[k] = r;
+            for (int i = k + 1; i < dim; i++) {
+                final double l = lower[i][k];
+                lower[i][k] = c * l + s * v[i];
+                v[i] = c * v[i] - s * l;
+            }
+        }
+    }
+
+    /**
+     * Adds scale * Lz to x, for a lower triangular L.
+     */
+    public static void multiplyLower(double[][] lower, double scale, double[] z, double[] x) {
+        for (int i = 0; i < x.length; i++) {
+            final double[] row = lower[i];
+            double sum = 0.0;
+            for (int j = 0; j <= i; j++) {
+                sum += row[j] * z[j];
+            }
+            x[i] += scale * sum;
+        }
+    }
+
+    private final int dim;
+    private final double[] mean;
+    // the rows of the lower triangle
+    private final double[][] cholesky;
+    private int count;
+
+    private final double[] pending;
+    private int pendingCount;
+
+    private final double[] work;
+}
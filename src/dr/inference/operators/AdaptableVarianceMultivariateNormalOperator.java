@@ -48,7 +48,7 @@ import dr.xml.XMLSyntaxRule;
  * @author Guy Baele
  * @author Marc A. Suchard
  */
-public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercableOperator {
+public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercableOperator implements AdaptiveMCMCOperator {
 
     public static final String AVMVN_OPERATOR = "adaptableVarianceMultivariateNormalOperator";
     public static final String SCALE_FACTOR = "scaleFactor";
@@ -63,20 +63,20 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
 
     private double scaleFactor;
     private double beta;
-    private int iterations, updates, initial, burnin, every;
+    private int iterations, initial, burnin, every;
     private final Parameter parameter;
     private final Transform[] transformations;
     private final int dim;
     // private final double constantFactor;
-    private double[] oldMeans, newMeans;
 
     final double[][] matrix;
-    private double[][] empirical;
+    private final AdaptableCovariance empirical;
     private double[][] cholesky;
 
     // temporary storage, allocated once.
-    private double[] epsilon;
-    private double[][] proposal;
+    private final double[] x;
+    private final double[] transformedX;
+    private final double[] epsilon;
 
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, double scaleFactor, double[][] inMatrix,
             double weight, double beta, int initial, int burnin, int every, CoercionMode mode, boolean isVarianceMatrix) {
@@ -87,19 +87,17 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
         this.transformations = transformations;
         this.beta = beta;
         this.iterations = 0;
-        this.updates = 0;
         setWeight(weight);
         dim = parameter.getDimension();
         // constantFactor = Math.pow(2.38, 2) / ((double) dim); // not necessary because scaleFactor is auto-tuned
         this.initial = initial;
         this.burnin = burnin;
         this.every = every;
-        this.empirical = new double[dim][dim];
-        this.oldMeans = new double[dim];
-        this.newMeans = new double[dim];
+        this.empirical = new AdaptableCovariance(dim);
 
+        this.x = new double[dim];
+        this.transformedX = new double[dim];
         this.epsilon = new double[dim];
-        this.proposal = new double[dim][dim];
 
         SingularValueDecomposition svd = new SingularValueDecomposition(new DenseDoubleMatrix2D(inMatrix));
         if (inMatrix[0].length != svd.rank()) {
@@ -152,16 +150,15 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
         return matrix;
     }
 
-    private double calculateCovariance(int number, double currentMatrixEntry, double[] values, int firstIndex, int secondIndex) {
-
-        // number will always be > 1 here
-        double result = currentMatrixEntry * (number - 1);
-        result += (values[firstIndex] * values[secondIndex]);
-        result += ((number - 1) * oldMeans[firstIndex] * oldMeans[secondIndex] - number * newMeans[firstIndex] * newMeans[secondIndex]);
-        result /= ((double) number);
-
-        return result;
+    /**
+     * The covariance of the proposals is updated from the states visited.
+     */
+    public boolean isAdaptive() {
+        return true;
+    }
 
+    public void copyAdaptedState(AdaptiveMCMCOperator operator) {
+        throw new UnsupportedOperationException(getOperatorName() + " adapts for the whole chain");
     }
 
     public double doOperation() throws OperatorFailedException {
@@ -171,135 +168,25 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
         if (DEBUG) {
             System.err.println("\nAVMVN Iteration: " + iterations);
         }
-        //System.err.println("Using AdaptableVarianceMultivariateNormalOperator: " + iterations + " for " + parameter.getParameterName());
-        /*System.err.println("Old parameter values:");
-        for (int i = 0; i < dim; i++) {
-                System.err.println(parameter.getParameterValue(i));
-        }*/
-
-        double[] x = parameter.getParameterValues();
 
         //transform to the appropriate scale
-        double[] transformedX = new double[dim];
         for (int i = 0; i < dim; i++) {
+            x[i] = parameter.getParameterValue(i);
             transformedX[i] = transformations[i].transform(x[i]);
         }
 
         //store MH-ratio in logq
         double logJacobian = 0.0;
 
-        //change this: make a rule for when iterations == burnin
-        if (iterations > 1 && iterations > burnin) {
-
-            if (DEBUG) {
-                System.err.println("  AVMVN iterations > burnin");
-            }
-
-            if (iterations > (burnin+1)) {
-
-                if (iterations % every == 0) {
-
-                    updates++;
-
-                    //first recalculate the means using recursion
-                    for (int i = 0; i < dim; i++) {
-                        newMeans[i] = ((oldMeans[i] * (updates - 1)) + transformedX[i]) / updates;
-                    }
-
-                    //here we can simply use the double[][] matrix
-                    for (int i = 0; i < dim; i++) {
-                        for (int j = i; j < dim; j++) {
-                            empirical[i][j] = calculateCovariance(updates, empirical[i][j], transformedX, i, j);
-                            empirical[j][i] = empirical[i][j];
-                        }
-                    }
-
-                    /*System.err.println("Empirical covariance matrix:");
-                   for (int i = 0; i < dim; i++) {
-                       for (int j = 0; j < dim; j++) {
-                           System.err.print(empirical[i][j] + " ");
-                       }
-                       System.err.println();
-                   }*/
-                }
-
-            } else if (iterations == (burnin+1)) {
-
-                updates++;
-                //System.err.println("Iteration: " + iterations);
-
-                //i.e. iterations == burnin+1, i.e. first sample for C_t
-                //this will not be reached when burnin is set to 0
-                for (int i = 0; i < dim; i++) {
-                    oldMeans[i] = transformedX[i];
-                    newMeans[i] = transformedX[i];
-                    //System.err.println("oldMean " + i + ": " + oldMeans[i]);
-                    //System.err.println("newMean " + i + ": " + oldMeans[i]);
-                }
-
-                for (int i = 0; i < dim; i++) {
-                    for (int j = 0; j < dim; j++) {
-                        empirical[i][j] = 0.0;
-                    }
-                }
-
-            }
-
-        } else if (iterations == 1) {
-
-            if (DEBUG) {
-                System.err.println("  iterations == 1");
-            }
-            //System.err.println("Iteration: " + iterations);
-
-            //iterations == 1
-            for (int i = 0; i < dim; i++) {
-                oldMeans[i] = transformedX[i];
-                newMeans[i] = transformedX[i];
-                //System.err.println("oldMean " + i + ": " + oldMeans[i]);
-                //System.err.println("newMean " + i + ": " + oldMeans[i]);
-            }
-
-            for (int i = 0; i < dim; i++) {
-                for (int j = 0; j < dim; j++) {
-                    empirical[i][j] = 0.0;
-                }
-            }
-        }
-
-        for (int i = 0; i < dim; i++) {
-            epsilon[i] = scaleFactor * MathUtils.nextGaussian();
-        }
-
-        if (iterations > initial) {
+        if (iterations == 1 || iterations == (burnin + 1)) {
 
-            if (DEBUG) {
-                System.err.println("  iterations > initial");
-            }
-
-            if (iterations % every == 0) {
-                // TODO: For speed, it may not be necessary to update decomposition each and every iteration
-                //double start = System.nanoTime();
-
-                // double[][] proposal = new double[dim][dim];
-                for (int i = 0; i < dim; i++) {
-                    for (int j = i; j < dim; j++) { // symmetric matrix
-                        proposal[j][i] = proposal[i][j] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
-                                empirical[i][j] + beta * matrix[i][j];
-                    }
-                }
+            //first sample for C_t, discarding any taken before the end of the burnin
+            empirical.reset();
+            empirical.addSample(transformedX);
 
-                // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
-                try {
-                    cholesky = (new CholeskyDecomposition(proposal)).getL();
-                } catch (IllegalDimension illegalDimension) {
-                    throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
-                }
+        } else if (iterations > (burnin + 1) && iterations % every == 0) {
 
-                //double end = System.nanoTime();
-                //double baseResult = end - start;
-                //System.err.println("Cholesky decomposition took: " + baseResult);
-            }
+            empirical.addSample(transformedX);
 
         }
 
@@ -307,11 +194,9 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
             System.err.println("  Drawing new values");
         }
 
+        drawProposal();
+
         for (int i = 0; i < dim; i++) {
-            for (int j = i; j < dim; j++) {
-                transformedX[i] += cholesky[j][i] * epsilon[j];
-                // caution: decomposition returns lower triangular
-            }
             if (MULTI) {
                 parameter.setParameterValueQuietly(i, transformations[i].inverse(transformedX[i]));
             } else {
@@ -334,29 +219,36 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
             parameter.fireParameterChangedEvent(); // Signal once.
         }
 
-        if (iterations % every == 0) {
-            if (DEBUG) {
-                System.err.println("  Copying means");
-            }
-            //copy new means to old means for next update iteration
-            //System.arraycopy(newMeans, 0, oldMeans, 0, dim);
-            double[] tmp = oldMeans;
-            oldMeans = newMeans;
-            newMeans = tmp; // faster to swap pointers
-        }
-
-        //System.err.println("scale factor: " + scaleFactor);
-        /*System.err.println("New parameter values:");
-        for (int i = 0; i < dim; i++) {
-                System.err.println(parameter.getParameterValue(i));
-        }*/
-        //System.err.println("log(Jacobian): " + logJacobian);
-
-        //return 0.0;
         return logJacobian;
 
     }
 
+    /**
+     * Adds a normal deviate to transformedX, with the initial variance matrix until enough samples
+     * have been taken and then with the mixture of the empirical and the initial matrices. The
+     * mixture is drawn as a sum of two independent deviates, so that neither matrix needs to be
+     * decomposed again.
+     */
+    private void drawProposal() {
+        if (iterations > initial) {
+            for (int i = 0; i < dim; i++) {
+                epsilon[i] = MathUtils.nextGaussian();
+            }
+            empirical.addDeviate(scaleFactor * Math.sqrt(1 - beta), epsilon, transformedX);
+            if (beta > 0.0) {
+                for (int i = 0; i < dim; i++) {
+                    epsilon[i] = MathUtils.nextGaussian();
+                }
+                AdaptableCovariance.multiplyLower(cholesky, scaleFactor * Math.sqrt(beta), epsilon, transformedX);
+            }
+        } else {
+            for (int i = 0; i < dim; i++) {
+                epsilon[i] = MathUtils.nextGaussian();
+            }
+            AdaptableCovariance.multiplyLower(cholesky, scaleFactor, epsilon, transformedX);
+        }
+    }
+
     public String toString() {
         return AVMVN_OPERATOR + "(" + parameter.getParameterName() + ")";
     }
@@ -387,38 +279,27 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
             }
             //set number of iterations of AVMVN operator
             this.iterations = lowestNumberOfSamples;
-            this.updates = lowestNumberOfSamples;
             this.beta = 0.0;
-            //set means based on provided samples, but take into account transformation(s)
-            for (int i = 0; i < parameterSamples.size(); i++) {
-                for (int j = 0; j < lowestNumberOfSamples; j++) {
-                    newMeans[i] += transformations[i].transform(parameterSamples.get(i).get(j));
-                    //parameterSamples.get(i).get(j);
+            //set means and covariance matrix based on provided samples, but take into account transformation(s)
+            empirical.reset();
+            double[] sample = new double[dim];
+            for (int j = 0; j < lowestNumberOfSamples; j++) {
+                for (int i = 0; i < dim; i++) {
+                    sample[i] = transformations[i].transform(parameterSamples.get(i).get(j));
                 }
-                newMeans[i] /= (double)lowestNumberOfSamples;
+                empirical.addSample(sample);
             }
             if (DEBUG) {
+                double[] means = empirical.getMean();
                 System.err.println();
-                for (int i = 0; i < parameterSamples.size(); i++) {
-                    System.err.println("Mean " + i + ": " + newMeans[i]);
-                }
-            }
-            //set covariance matrix based on provided samples, but take into account transformation(s)
-            for (int i = 0; i < dim; i++) {
-                for (int j = i; j < dim; j++) {
-                    for (int k = 0; k < lowestNumberOfSamples; k++) {
-                        empirical[i][j] += transformations[i].transform(parameterSamples.get(i).get(k))*transformations[i].transform(parameterSamples.get(j).get(k));
-                    }
-                    empirical[i][j] /= (double)lowestNumberOfSamples;
-                    empirical[i][j] -= newMeans[i]*newMeans[j];
-                    empirical[j][i] = empirical[i][j];
+                for (int i = 0; i < dim; i++) {
+                    System.err.println("Mean " + i + ": " + means[i]);
                 }
-            }
-            if (DEBUG) {
+                double[][] covariance = empirical.getCovariance();
                 System.err.println();
                 for (int i = 0; i < dim; i++) {
                     for (int j = 0; j < dim; j++) {
-                        System.err.print(empirical[i][j] + "  ");
+                        System.err.print(covariance[i][j] + "  ");
                     }
                     System.err.println();
                 }
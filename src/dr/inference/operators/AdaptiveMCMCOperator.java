@@ -0,0 +1,50 @@
+/*
+ * AdaptiveMCMCOperator.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.operators;
+
+/**
+ * An MCMC operator that changes its own state as it operates, other than by coercion, such as
+ * the variance it proposes with. Two copies of it asked for the same proposals from the same
+ * state do not make the same proposals once they have operated apart, unless they have both
+ * stopped adapting with the same state.
+ *
+ * @version $Id$
+ */
+public interface AdaptiveMCMCOperator extends MCMCOperator {
+
+    /**
+     * @return whether the operator still changes its own state as it operates
+     */
+    boolean isAdaptive();
+
+    /**
+     * Takes the state a copy of this operator has adapted, once the copy has stopped adapting, so
+     * that the two make the same proposals from then on.
+     *
+     * @param operator a copy of this operator, parsed from the same XML
+     */
+    void copyAdaptedState(AdaptiveMCMCOperator operator);
+}
@@ -0,0 +1,382 @@
+/*
+ * HamiltonianMonteCarloOperator.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.operators;
+
+import dr.inference.model.GradientWrtParameterProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.prior.Prior;
+import dr.inferencexml.operators.HamiltonianMonteCarloOperatorParser;
+import dr.math.MathUtils;
+import dr.math.MultivariateFunction;
+import dr.math.NumericalDerivative;
+
+import java.util.List;
+
+/**
+ * Hamiltonian Monte Carlo on a whole parameter block. Each proposal draws a momentum,
+ * follows a leapfrog trajectory along the gradient of the log posterior and returns the
+ * change in kinetic energy as the Hastings ratio, so the usual Metropolis step in the
+ * chain gives the HMC acceptance.
+ * <p/>
+ * The gradient is the sum of the supplied GradientWrtParameterProviders. If there are none,
+ * the gradient of the full posterior is approximated by central differences; this is
+ * expensive (two posterior evaluations per dimension and step) and is intended for small
+ * blocks or for checking an analytic gradient.
+ * <p/>
+ * For the first adaptationLength calls the step size is tuned by dual averaging
+ * (Hoffman and Gelman 2014, JMLR 15:1593) and a diagonal mass matrix is estimated from the
+ * sampled values in doubling windows. Proposals that leave the parameter bounds are rejected.
+ *
+ * @version $Id$
+ */
+public class HamiltonianMonteCarloOperator extends SimpleMCMCOperator implements GeneralOperator, AdaptiveMCMCOperator {
+
+    private static final int FIRST_MASS_WINDOW = 50;
+
+    // dual averaging constants recommended by Hoffman and Gelman
+    private static final double GAMMA = 0.05;
+    private static final double T0 = 10.0;
+    private static final double KAPPA = 0.75;
+
+    public HamiltonianMonteCarloOperator(Parameter parameter, List<GradientWrtParameterProvider> gradientProviders,
+                                         double stepSize, int nSteps, int adaptationLength,
+                                         double targetAcceptance, double weight) {
+
+        for (GradientWrtParameterProvider provider : gradientProviders) {
+            if (provider.getDimension() != parameter.getDimension()) {
+                throw new IllegalArgumentException("Gradient of " + provider.getLikelihood().getId() +
+                        " has dimension " + provider.getDimension() + " but " + parameter.getParameterName() +
+                        " has dimension " + parameter.getDimension());
+            }
+        }
+
+        this.parameter = parameter;
+        this.gradientProviders = gradientProviders;
+        this.stepSize = stepSize;
+        this.nSteps = nSteps;
+        this.adaptationLength = adaptationLength;
+
+        setTargetAcceptanceProbability(targetAcceptance);
+        setWeight(weight);
+
+        final int dim = parameter.getDimension();
+        inverseMass = new double[dim];
+        for (int i = 0; i < dim; i++) {
+            inverseMass[i] = 1.0;
+        }
+        sampleMean = new double[dim];
+        sampleSS = new double[dim];
+        massWindowEnd = FIRST_MASS_WINDOW;
+
+        restartStepSizeAdaptation();
+    }
+
+    public Parameter getParameter() {
+        return parameter;
+    }
+
+    /**
+     * The step size and mass matrix are tuned during the first adaptationLength calls.
+     */
+    public boolean isAdaptive() {
+        return callCount < adaptationLength;
+    }
+
+    public void copyAdaptedState(AdaptiveMCMCOperator operator) {
+        final HamiltonianMonteCarloOperator other = (HamiltonianMonteCarloOperator) operator;
+        stepSize = other.stepSize;
+        callCount = other.callCount;
+        System.arraycopy(other.inverseMass, 0, inverseMass, 0, inverseMass.length);
+    }
+
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    public double doOperation() throws OperatorFailedException {
+        throw new IllegalArgumentException("HamiltonianMonteCarloOperator requires the posterior to be supplied");
+    }
+
+    public double doOperation(Prior prior, Likelihood likelihood) throws OperatorFailedException {
+
+        final int dim = parameter.getDimension();
+        final boolean adapting = callCount < adaptationLength;
+        callCount++;
+
+        final double[] position = parameter.getParameterValues();
+        if (adapting) {
+            updateMassEstimate(position);
+        }
+
+        final double[] momentum = new double[dim];
+        for (int i = 0; i < dim; i++) {
+            momentum[i] = MathUtils.nextGaussian() / Math.sqrt(inverseMass[i]);
+        }
+
+        final double startLogPosterior = adapting ? evaluate(likelihood, prior) : 0.0;
+        final double startKineticEnergy = getKineticEnergy(momentum);
+
+        // a random trajectory length (with mean nSteps) stops the adapted step size from
+        // settling on a trajectory that returns to its start
+        final int steps = 1 + MathUtils.nextInt(2 * nSteps - 1);
+
+        boolean valid = true;
+        double[] gradient = getGradient(prior, likelihood, position);
+
+        for (int step = 0; valid && step < steps; step++) {
+
+            for (int i = 0; i < dim; i++) {
+                momentum[i] += 0.5 * stepSize * gradient[i];
+                position[i] += stepSize * inverseMass[i] * momentum[i];
+            }
+
+            setPosition(position);
+            if (!parameter.isWithinBounds()) {
+                valid = false;
+                break;
+            }
+
+            gradient = getGradient(prior, likelihood, position);
+            for (int i = 0; i < dim; i++) {
+                if (Double.isNaN(gradient[i]) || Double.isInfinite(gradient[i])) {
+                    valid = false;
+                }
+                momentum[i] += 0.5 * stepSize * gradient[i];
+            }
+        }
+
+        final double logHastingsRatio = startKineticEnergy - getKineticEnergy(momentum);
+
+        if (adapting) {
+            double acceptance = 0.0;
+            if (valid) {
+                final double logAlpha = evaluate(likelihood, prior) - startLogPosterior + logHastingsRatio;
+                acceptance = Double.isNaN(logAlpha) ? 0.0 : Math.min(1.0, Math.exp(logAlpha));
+            }
+            updateStepSize(acceptance);
+        }
+
+        if (!valid) {
+            throw new OperatorFailedException("Hamiltonian trajectory left the support of " + parameter.getParameterName());
+        }
+
+        return logHastingsRatio;
+    }
+
+    private double getKineticEnergy(double[] momentum) {
+        double energy = 0.0;
+        for (int i = 0; i < momentum.length; i++) {
+            energy += momentum[i] * momentum[i] * inverseMass[i];
+        }
+        return 0.5 * energy;
+    }
+
+    private void setPosition(double[] position) {
+        for (int i = 0; i < position.length; i++) {
+            parameter.setParameterValue(i, position[i]);
+        }
+    }
+
+    private double[] getGradient(Prior prior, Likelihood likelihood, double[] position) {
+
+        if (gradientProviders.size() == 0) {
+            final double[] gradient = NumericalDerivative.gradient(new PosteriorFunction(prior, likelihood), position.clone());
+            // the last evaluation leaves the final dimension perturbed
+            setPosition(position);
+            return gradient;
+        }
+
+        final double[] gradient = new double[position.length];
+        for (GradientWrtParameterProvider provider : gradientProviders) {
+            final double[] g = provider.getGradientLogDensity();
+            for (int i = 0; i < gradient.length; i++) {
+                gradient[i] += g[i];
+            }
+        }
+        return gradient;
+    }
+
+    private double evaluate(Likelihood likelihood, Prior prior) {
+
+        double logPosterior = 0.0;
+
+        if (prior != null) {
+            final double logPrior = prior.getLogPrior(likelihood.getModel());
+            if (logPrior == Double.NEGATIVE_INFINITY) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            logPosterior += logPrior;
+        }
+
+        final double logLikelihood = likelihood.getLogLikelihood();
+        if (Double.isNaN(logLikelihood)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        return logPosterior + logLikelihood;
+    }
+
+    // step size adaptation
+
+    private void restartStepSizeAdaptation() {
+        mu = Math.log(10.0 * stepSize);
+        hBar = 0.0;
+        logStepSizeBar = 0.0;
+        adaptationCount = 0;
+    }
+
+    private void updateStepSize(double acceptance) {
+
+        adaptationCount++;
+        final double w = 1.0 / (adaptationCount + T0);
+        hBar = (1.0 - w) * hBar + w * (getTargetAcceptanceProbability() - acceptance);
+
+        final double logStepSize = mu - Math.sqrt(adaptationCount) / GAMMA * hBar;
+        final double eta = Math.pow(adaptationCount, -KAPPA);
+        logStepSizeBar = eta * logStepSize + (1.0 - eta) * logStepSizeBar;
+
+        if (callCount < adaptationLength) {
+            stepSize = Math.exp(logStepSize);
+        } else {
+            // adaptation is over so settle on the averaged iterate
+            stepSize = Math.exp(logStepSizeBar);
+        }
+    }
+
+    // mass matrix adaptation
+
+    private void updateMassEstimate(double[] position) {
+
+        sampleCount++;
+        for (int i = 0; i < position.length; i++) {
+            final double delta = position[i] - sampleMean[i];
+            sampleMean[i] += delta / sampleCount;
+            sampleSS[i] += delta * (position[i] - sampleMean[i]);
+        }
+
+        if (sampleCount == massWindowEnd && sampleCount > 2) {
+            // shrink towards a small unit scale while the window is short, as Stan does
+            final double n = sampleCount;
+            for (int i = 0; i < position.length; i++) {
+                final double variance = sampleSS[i] / (n - 1.0);
+                inverseMass[i] = (n / (n + 5.0)) * variance + 1E-3 * (5.0 / (n + 5.0));
+                sampleMean[i] = 0.0;
+                sampleSS[i] = 0.0;
+            }
+            sampleCount = 0;
+            massWindowEnd *= 2;
+
+            restartStepSizeAdaptation();
+        }
+    }
+
+    private class PosteriorFunction implements MultivariateFunction {
+
+        PosteriorFunction(Prior prior, Likelihood likelihood) {
+            this.prior = prior;
+            this.likelihood = likelihood;
+        }
+
+        public double evaluate(double[] argument) {
+            setPosition(argument);
+            return HamiltonianMonteCarloOperator.this.evaluate(likelihood, prior);
+        }
+
+        public int getNumArguments() {
+            return parameter.getDimension();
+        }
+
+        public double getLowerBound(int n) {
+            return parameter.getBounds().getLowerLimit(n);
+        }
+
+        public double getUpperBound(int n) {
+            return parameter.getBounds().getUpperLimit(n);
+        }
+
+        private final Prior prior;
+        private final Likelihood likelihood;
+    }
+
+    //MCMCOperator INTERFACE
+
+    public String getOperatorName() {
+        return HamiltonianMonteCarloOperatorParser.HMC_OPERATOR + "(" + parameter.getParameterName() + ")";
+    }
+
+    public String getPerformanceSuggestion() {
+        if (callCount < adaptationLength) {
+            return "Still adapting the step size (" + stepSize + ")";
+        }
+        final double prob = MCMCOperator.Utils.getAcceptanceProbability(this);
+        if (prob < getMinimumGoodAcceptanceLevel()) {
+            return "Try decreasing stepSize below " + stepSize + " or increasing adaptationLength";
+        } else if (prob > getMaximumGoodAcceptanceLevel()) {
+            return "Try increasing nSteps above " + nSteps;
+        }
+        return "";
+    }
+
+    public double getMinimumAcceptanceLevel() {
+        return 0.3;
+    }
+
+    public double getMaximumAcceptanceLevel() {
+        return 0.99;
+    }
+
+    public double getMinimumGoodAcceptanceLevel() {
+        return 0.5;
+    }
+
+    public double getMaximumGoodAcceptanceLevel() {
+        return 0.95;
+    }
+
+    public String toString() {
+        return getOperatorName() + ", " + stepSize + ", " + nSteps + ", " + getWeight();
+    }
+
+    private final Parameter parameter;
+    private final List<GradientWrtParameterProvider> gradientProviders;
+    private final int nSteps;
+    private final int adaptationLength;
+
+    private double stepSize;
+    private int callCount = 0;
+
+    private double mu;
+    private double hBar;
+    private double logStepSizeBar;
+    private int adaptationCount;
+
+    private final double[] inverseMass;
+    private final double[] sampleMean;
+    private final double[] sampleSS;
+    private int sampleCount = 0;
+    private int massWindowEnd;
+}
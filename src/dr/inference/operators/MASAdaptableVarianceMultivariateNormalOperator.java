@@ -41,7 +41,7 @@ import dr.xml.*;
  * @author Guy Baele
  * @author Marc Suchard
  */
-public class MASAdaptableVarianceMultivariateNormalOperator extends AbstractCoercableOperator {
+public class MASAdaptableVarianceMultivariateNormalOperator extends AbstractCoercableOperator implements AdaptiveMCMCOperator {
 
     public static final String AVMVN_OPERATOR = "adaptableVarianceMultivariateNormalOperator";
     public static final String SCALE_FACTOR = "scaleFactor";
@@ -56,15 +56,15 @@ public class MASAdaptableVarianceMultivariateNormalOperator extends AbstractCoer
     private final Transform[] transformations;
     private final int dim;
     // private final double constantFactor;
-    private double[] oldMeans, newMeans;
 
     final double[][] matrix;
-    private double[][] empirical;
+    private final AdaptableCovariance empirical;
     private double[][] cholesky;
 
     // temporary storage, allocated once.
-    private double[] epsilon;
-    private double[][] proposal;
+    private final double[] x;
+    private final double[] transformedX;
+    private final double[] epsilon;
 
     public MASAdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, double scaleFactor, double[][] inMatrix,
                                                           double weight, double beta, int initial, CoercionMode mode, boolean isVarianceMatrix) {
@@ -79,12 +79,11 @@ public class MASAdaptableVarianceMultivariateNormalOperator extends AbstractCoer
         dim = parameter.getDimension();
         // constantFactor = Math.pow(2.38, 2) / ((double) dim); // not necessary because scaleFactor is auto-tuned
         this.initial = initial;
-        this.empirical = new double[dim][dim];
-        this.oldMeans = new double[dim];
-        this.newMeans = new double[dim];
+        this.empirical = new AdaptableCovariance(dim);
 
+        this.x = new double[dim];
+        this.transformedX = new double[dim];
         this.epsilon = new double[dim];
-        this.proposal = new double[dim][dim];
 
         SingularValueDecomposition svd = new SingularValueDecomposition(new DenseDoubleMatrix2D(inMatrix));
         if (inMatrix[0].length != svd.rank()) {
@@ -137,106 +136,53 @@ public class MASAdaptableVarianceMultivariateNormalOperator extends AbstractCoer
         return matrix;
     }
 
-    private double calculateCovariance(int number, double currentMatrixEntry, double[] values, int firstIndex, int secondIndex) {
-
-        // number will always be > 1 here
-        double result = currentMatrixEntry * (number - 1);
-        result += (values[firstIndex] * values[secondIndex]);
-        result += ((number - 1) * oldMeans[firstIndex] * oldMeans[secondIndex] - number * newMeans[firstIndex] * newMeans[secondIndex]);
-        result /= ((double) number);
-
-        return result;
+    /**
+     * The covariance of the proposals is updated from the states visited.
+     */
+    public boolean isAdaptive() {
+        return true;
+    }
 
+    public void copyAdaptedState(AdaptiveMCMCOperator operator) {
+        throw new UnsupportedOperationException(getOperatorName() + " adapts for the whole chain");
     }
 
     public double doOperation() throws OperatorFailedException {
 
         iterations++;
-        //System.err.println("Using AdaptableVarianceMultivariateNormalOperator: " + iterations + " for " + parameter.getParameterName());
-        /*System.err.println("Old parameter values:");
-        for (int i = 0; i < dim; i++) {
-        	System.err.println(parameter.getParameterValue(i));
-        }*/
-
-        double[] x = parameter.getParameterValues();
 
         //transform to the appropriate scale
-        double[] transformedX = new double[dim];
         for (int i = 0; i < dim; i++) {
+            x[i] = parameter.getParameterValue(i);
             transformedX[i] = transformations[i].transform(x[i]);
         }
 
         //store MH-ratio in logq
         double logJacobian = 0.0;
 
-        if (iterations > 1) {
-
-            //first recalculate the means using recursion
-            for (int i = 0; i < dim; i++) {
-                newMeans[i] = ((oldMeans[i] * (iterations - 1)) + transformedX[i]) / iterations;
-            }
-
-            //here we can simply use the double[][] matrix
-            for (int i = 0; i < dim; i++) {
-                for (int j = i; j < dim; j++) {
-                    empirical[i][j] = calculateCovariance(iterations, empirical[i][j], transformedX, i, j);
-                    empirical[j][i] = empirical[i][j];
-                }
-            }
-
-            /*System.err.println("Empirical covariance matrix:");
-               for (int i = 0; i < dim; i++) {
-                   for (int j = 0; j < dim; j++) {
-                       System.err.print(empirical[i][j] + " ");
-                   }
-                   System.err.println();
-               }*/
-
-        } else {
-
-            //iterations == 1
-            for (int i = 0; i < dim; i++) {
-                oldMeans[i] = transformedX[i];
-                newMeans[i] = transformedX[i];
-            }
-
-            for (int i = 0; i < dim; i++) {
-                for (int j = 0; j < dim; j++) {
-                    empirical[i][j] = 0.0;
-                }
-            }
+        if (iterations == 1) {
+            empirical.reset();
         }
+        empirical.addSample(transformedX);
 
         for (int i = 0; i < dim; i++) {
-            epsilon[i] = scaleFactor * MathUtils.nextGaussian();
+            epsilon[i] = MathUtils.nextGaussian();
         }
 
         if (iterations > initial) {
-
-            // TODO: For speed, it may not be necessary to update decomposition each and every iteration
-
-            // double[][] proposal = new double[dim][dim];
-            for (int i = 0; i < dim; i++) {
-                for (int j = i; j < dim; j++) { // symmetric matrix
-                    proposal[j][i] = proposal[i][j] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
-                            empirical[i][j] + beta * matrix[i][j];
+            // the mixture of the empirical and the initial matrices as a sum of two deviates
+            empirical.addDeviate(scaleFactor * Math.sqrt(1 - beta), epsilon, transformedX);
+            if (beta > 0.0) {
+                for (int i = 0; i < dim; i++) {
+                    epsilon[i] = MathUtils.nextGaussian();
                 }
+                AdaptableCovariance.multiplyLower(cholesky, scaleFactor * Math.sqrt(beta), epsilon, transformedX);
             }
-
-            // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
-            try {
-                cholesky = (new CholeskyDecomposition(proposal)).getL();
-            } catch (IllegalDimension illegalDimension) {
-                throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
-            }
-
+        } else {
+            AdaptableCovariance.multiplyLower(cholesky, scaleFactor, epsilon, transformedX);
         }
 
         for (int i = 0; i < dim; i++) {
-            for (int j = i; j < dim; j++) {
-                transformedX[i] += cholesky[j][i] * epsilon[j];
-                // caution: decomposition returns lower triangular
-            }
             if (MULTI) {
                 parameter.setParameterValueQuietly(i, transformations[i].inverse(transformedX[i]));
             } else {
@@ -248,28 +194,10 @@ public class MASAdaptableVarianceMultivariateNormalOperator extends AbstractCoer
                     - transformations[i].getLogJacobian(x[i]);
         }
 
-        /*for (int i = 0; i < dim; i++) {
-                  System.err.println(oldX[i] + " -> " + parameter.getValue(i));
-    	}*/
-
         if (MULTI) {
             parameter.fireParameterChangedEvent(); // Signal once.
         }
 
-        //copy new means to old means for next update iteration
-//        System.arraycopy(newMeans, 0, oldMeans, 0, dim);
-        double[] tmp = oldMeans;
-        oldMeans = newMeans;
-        newMeans = tmp; // faster to swap pointers
-
-        //System.err.println("scale factor: " + scaleFactor);
-        /*System.err.println("New parameter values:");
-        for (int i = 0; i < dim; i++) {
-        	System.err.println(parameter.getParameterValue(i));
-        }*/
-        //System.err.println("log(Jacobian): " + logJacobian);
-
-        //return 0.0;
         return logJacobian;
     }
 
@@ -34,7 +34,13 @@ import java.util.List;
 import java.util.Vector;
 
 /**
- * This class implements a simple operator schedule.
+ * This class implements a simple operator schedule. The weights of the operators are summed in a
+ * Fenwick tree, so an operator is chosen in O(log n), and they are only read again when the
+ * schedule is told that they have changed.
+ *
+ * Optionally the weights can be adapted, at geometrically spaced points of the run, towards the
+ * operators that make the most accepted moves per millisecond of evaluation time. Each operator
+ * keeps its given weight times a factor of at most MAX_ADAPTATION either way.
  *
  * @author Alexei Drummond
  * @version $Id: SimpleOperatorSchedule.java,v 1.5 2005/06/14 10:40:34 rambaut Exp $
@@ -47,15 +53,29 @@ public class SimpleOperatorSchedule implements OperatorSchedule, Loggable {
 	boolean sequential = false;
 	int optimizationSchedule = OperatorSchedule.DEFAULT_SCHEDULE;
 
+	public static final double MAX_ADAPTATION = 10.0;
+	public static final int FIRST_ADAPTATION = 10000;
+	private static final double MIN_EVALUATION_TIME = 1.0E-3;
+
+	boolean adaptiveWeights = false;
+	// the weights used, the adapted factors and the Fenwick tree of the weights indexed from 1
+	private double[] weights = new double[0];
+	private double[] factors = new double[0];
+	private double[] cumulativeWeights = new double[1];
+	private boolean weightsChanged = true;
+	private long selectionCount = 0;
+	private long nextAdaptation = FIRST_ADAPTATION;
+
 	public SimpleOperatorSchedule() {
 		operators = new Vector<MCMCOperator>();
 	}
 
 	public void addOperators(List<MCMCOperator> operators) {
 		for (MCMCOperator operator : operators) {
-			operators.add(operator);
+			this.operators.add(operator);
 			totalWeight += operator.getWeight();
 		}
+		weightsChanged = true;
 	}
 
 	public void operatorsHasBeenUpdated() {
@@ -63,11 +83,13 @@ public class SimpleOperatorSchedule implements OperatorSchedule, Loggable {
 		for (MCMCOperator operator : operators) {
 			totalWeight += operator.getWeight();
 		}
+		weightsChanged = true;
 	}
 
 	public void addOperator(MCMCOperator op) {
 		operators.add(op);
 		totalWeight += op.getWeight();
+		weightsChanged = true;
 	}
 
 	public double getWeight(int index) {
@@ -76,6 +98,18 @@ public class SimpleOperatorSchedule implements OperatorSchedule, Loggable {
 
 	public int getNextOperatorIndex() {
 
+		if (adaptiveWeights && !sequential) {
+			selectionCount++;
+			if (selectionCount == nextAdaptation) {
+				adaptWeights();
+				nextAdaptation *= 2;
+			}
+		}
+
+		if (weightsChanged) {
+			updateWeights();
+		}
+
 		if (sequential) {
 			int index = getWeightedOperatorIndex(current);
 			current += 1;
@@ -87,21 +121,130 @@ public class SimpleOperatorSchedule implements OperatorSchedule, Loggable {
 
         final double v = MathUtils.nextDouble();
         //System.err.println("v=" + v);
-        return getWeightedOperatorIndex(v * totalWeight);
+        return getWeightedOperatorIndex(v * cumulativeWeights[0]);
 	}
 
 	public void setSequential(boolean seq) {
 		sequential = seq;
+		weightsChanged = true;
+	}
+
+	public void setAdaptiveWeights(boolean adaptive) {
+		adaptiveWeights = adaptive;
+		weightsChanged = true;
+	}
+
+	/**
+	 * @return the probability that the index'th operator is chosen at the next step
+	 */
+	public double getSelectionProbability(int index) {
+		if (weightsChanged) {
+			updateWeights();
+		}
+		return weights[index] / cumulativeWeights[0];
+	}
+
+	/**
+	 * Reads the weights of the operators again and rebuilds the tree. The adapted factors are only
+	 * kept if the operators are the same.
+	 */
+	private void updateWeights() {
+		final int count = operators.size();
+		if (factors.length != count) {
+			factors = new double[count];
+			for (int i = 0; i < count; i++) {
+				factors[i] = 1.0;
+			}
+		}
+		weights = new double[count];
+		for (int i = 0; i < count; i++) {
+			weights[i] = getWeight(i);
+			if (adaptiveWeights && !sequential) {
+				weights[i] *= factors[i];
+			}
+		}
+		buildTree();
+		weightsChanged = false;
 	}
 
+	// cumulativeWeights[0] holds the total
+	private void buildTree() {
+		final int count = weights.length;
+		cumulativeWeights = new double[count + 1];
+		double total = 0.0;
+		for (int i = 1; i <= count; i++) {
+			cumulativeWeights[i] += weights[i - 1];
+			total += weights[i - 1];
+			final int parent = i + (i & -i);
+			if (parent <= count) {
+				cumulativeWeights[parent] += cumulativeWeights[i];
+			}
+		}
+		cumulativeWeights[0] = total;
+	}
+
+	/**
+	 * @return the first operator for which the sum of the weights up to and including its own
+	 *         is greater than q
+	 */
 	private int getWeightedOperatorIndex(double q) {
-		int index = 0;
-		double weight = getWeight(index);
-		while (weight <= q) {
-			index += 1;
-			weight += getWeight(index);
+		final int count = weights.length;
+		int position = 0;
+		for (int step = Integer.highestOneBit(count); step > 0; step >>= 1) {
+			final int next = position + step;
+			if (next <= count && cumulativeWeights[next] <= q) {
+				position = next;
+				q -= cumulativeWeights[next];
+			}
+		}
+		// rounding can leave q at the total, so take the last operator that has a weight
+		while (position > 0 && (position >= count || weights[position] == 0.0)) {
+			position--;
+		}
+		return position;
+	}
+
+	/**
+	 * Sets the factor of each operator that has been used in proportion to its accepted moves per
+	 * millisecond of evaluation, scaled so that the factors average one over the given weights.
+	 */
+	private void adaptWeights() {
+		final int count = operators.size();
+		final double[] rates = new double[count];
+
+		double minTime = Double.MAX_VALUE;
+		for (MCMCOperator op : operators) {
+			if (op.getCount() > 0 && op.getMeanEvaluationTime() > 0.0) {
+				minTime = Math.min(minTime, op.getMeanEvaluationTime());
+			}
+		}
+		// the evaluation time is measured in whole milliseconds so it can be zero
+		minTime = Math.max(minTime == Double.MAX_VALUE ? 1.0 : minTime, MIN_EVALUATION_TIME);
+
+		double weightedRate = 0.0;
+		double adaptedWeight = 0.0;
+		for (int i = 0; i < count; i++) {
+			final MCMCOperator op = operators.get(i);
+			if (op.getCount() > 0) {
+				final double time = Math.max(op.getMeanEvaluationTime(), minTime);
+				rates[i] = MCMCOperator.Utils.getAcceptanceProbability(op) / time;
+				weightedRate += getWeight(i) * rates[i];
+				adaptedWeight += getWeight(i);
+			} else {
+				rates[i] = -1.0;
+			}
+		}
+		if (weightedRate == 0.0) {
+			return;
+		}
+
+		final double meanRate = weightedRate / adaptedWeight;
+		for (int i = 0; i < count; i++) {
+			if (rates[i] >= 0.0) {
+				factors[i] = Math.min(Math.max(rates[i] / meanRate, 1.0 / MAX_ADAPTATION), MAX_ADAPTATION);
+			}
 		}
-		return index;
+		weightsChanged = true;
 	}
 
 	public MCMCOperator getOperator(int index) {
@@ -11,8 +11,10 @@ import java.util.ArrayList;
 
 /**
  * @author Marc A. Suchard
+ * @deprecated RemoteLikelihoodWorker and RemoteLikelihood do the same over plain sockets, without MPJ
  */
 
+@Deprecated
 public class MPILikelihoodRunner implements Runnable, Identifiable {
 
 	public static final String PARALLEL_CALCULATOR = "parallelCalculator";
@@ -0,0 +1,109 @@
+/*
+ * RemoteCompoundLikelihood.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.parallel;
+
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compound likelihood that sends the requests of all its remote likelihoods before evaluating
+ * anything, so the workers calculate at the same time as each other and as the local likelihoods.
+ *
+ * @version $Id$
+ */
+public class RemoteCompoundLikelihood extends CompoundLikelihood {
+
+    private static final long serialVersionUID = -3585337928911725526L;
+
+    public static final String REMOTE_COMPOUND_LIKELIHOOD = "remoteCompoundLikelihood";
+
+    public RemoteCompoundLikelihood(Collection<Likelihood> likelihoods) {
+        super(likelihoods);
+
+        for (Likelihood likelihood : getLikelihoods()) {
+            if (likelihood instanceof RemoteLikelihood) {
+                remoteLikelihoods.add((RemoteLikelihood) likelihood);
+            }
+        }
+    }
+
+    public double getLogLikelihood() {
+        for (RemoteLikelihood likelihood : remoteLikelihoods) {
+            likelihood.requestLogLikelihood();
+        }
+        return super.getLogLikelihood();
+    }
+
+    public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
+
+        public String getParserName() {
+            return REMOTE_COMPOUND_LIKELIHOOD;
+        }
+
+        public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                if (xo.getChild(i) instanceof Likelihood) {
+                    likelihoods.add((Likelihood) xo.getChild(i));
+                } else {
+                    throw new XMLParseException("An element which is not a likelihood has been added to a " +
+                            REMOTE_COMPOUND_LIKELIHOOD + " element");
+                }
+            }
+
+            return new RemoteCompoundLikelihood(likelihoods);
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "A likelihood function which is the product of its component likelihood functions, " +
+                    "of which the remote ones are calculated concurrently.";
+        }
+
+        public Class getReturnType() {
+            return RemoteCompoundLikelihood.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                new ElementRule(Likelihood.class, 1, Integer.MAX_VALUE)
+        };
+    };
+
+    private final List<RemoteLikelihood> remoteLikelihoods = new ArrayList<RemoteLikelihood>();
+}
@@ -0,0 +1,352 @@
+/*
+ * RemoteLikelihood.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.parallel;
+
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.xml.*;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A likelihood calculated by a RemoteLikelihoodWorker in another process, which holds its own copy of
+ * the data and the model. The worker mirrors the given parameters, in the same order. Before each
+ * request only the dimensions that differ from the values last sent to the worker are written, and
+ * store, restore and accept are passed on so that the worker keeps its own partial results.
+ * <p/>
+ * Messages are buffered until a likelihood is requested, and the result is only read when it is
+ * needed, so requests to several workers overlap (see RemoteCompoundLikelihood). The messages can
+ * go over any pair of streams; connect() opens a socket to a worker.
+ *
+ * @version $Id$
+ */
+public class RemoteLikelihood extends AbstractModelLikelihood {
+
+    private static final long serialVersionUID = -3649850999840688624L;
+
+    public static final String REMOTE_LIKELIHOOD = "remoteLikelihood";
+    public static final String HOST = "host";
+    public static final String PORT = "port";
+    public static final String TIMEOUT = "timeout";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long RETRY_INTERVAL = 500;
+
+    public RemoteLikelihood(String name, List<Parameter> parameters, InputStream inputStream,
+                            OutputStream outputStream) {
+        super(name);
+
+        this.parameters = parameters.toArray(new Parameter[parameters.size()]);
+        sentValues = new double[this.parameters.length][];
+        storedSentValues = new double[this.parameters.length][];
+        int maxDimension = 0;
+        for (int i = 0; i < this.parameters.length; i++) {
+            addVariable(this.parameters[i]);
+            final int dimension = this.parameters[i].getDimension();
+            sentValues[i] = new double[dimension];
+            storedSentValues[i] = new double[dimension];
+            maxDimension = Math.max(maxDimension, dimension);
+        }
+        changedDimensions = new int[maxDimension];
+        clearSentValues();
+
+        in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+    }
+
+    /**
+     * Opens a socket to a worker, retrying until the timeout as the worker may still be starting.
+     */
+    public static RemoteLikelihood connect(String name, List<Parameter> parameters, String host, int port,
+                                           long timeout) throws IOException {
+        final long end = System.currentTimeMillis() + timeout;
+        Socket socket = null;
+        while (socket == null) {
+            try {
+                socket = new Socket(host, port);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() >= end) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting to " + host + ":" + port);
+                }
+            }
+        }
+        socket.setTcpNoDelay(true);
+        return new RemoteLikelihood(name, parameters, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Sends the changed parameter values and asks the worker for the likelihood, unless it is known
+     * or has already been asked for. The result is read by getLogLikelihood().
+     */
+    public void requestLogLikelihood() {
+        if (likelihoodKnown || requested) {
+            return;
+        }
+        try {
+            writeChangedValues();
+            out.writeInt(ServiceRequest.calculateLikeliood.getId());
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to send a request to remote likelihood " + getId() + ": " +
+                    e.getMessage());
+        }
+        requested = true;
+    }
+
+    /**
+     * Asks the worker to finish.
+     */
+    public void terminate() {
+        receiveLogLikelihood();
+        writeRequest(ServiceRequest.terminateProcess);
+        try {
+            out.flush();
+            out.close();
+            in.close();
+        } catch (IOException e) {
+            // the worker has gone already
+        }
+    }
+
+    private void writeChangedValues() throws IOException {
+        for (int i = 0; i < parameters.length; i++) {
+            final Parameter parameter = parameters[i];
+            final double[] sent = sentValues[i];
+            if (parameter.getDimension() != sent.length) {
+                throw new RuntimeException("The dimension of parameter " + parameter.getId() +
+                        " has changed, which a remote likelihood cannot follow");
+            }
+
+            int count = 0;
+            for (int j = 0; j < sent.length; j++) {
+                // NaN always differs, so the first request sends everything
+                if (parameter.getParameterValue(j) != sent[j]) {
+                    changedDimensions[count++] = j;
+                }
+            }
+
+            if (count > 0) {
+                out.writeInt(ServiceRequest.updateParameter.getId());
+                out.writeInt(i);
+                out.writeInt(count);
+                for (int k = 0; k < count; k++) {
+                    final int j = changedDimensions[k];
+                    sent[j] = parameter.getParameterValue(j);
+                    out.writeInt(j);
+                    out.writeDouble(sent[j]);
+                }
+            }
+        }
+    }
+
+    private void receiveLogLikelihood() {
+        try {
+            // the results come back in the order they were asked for
+            while (outdatedRequests > 0) {
+                in.readDouble();
+                outdatedRequests--;
+            }
+            if (requested) {
+                logLikelihood = in.readDouble();
+                likelihoodKnown = true;
+                requested = false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to receive the result of remote likelihood " + getId() + ": " +
+                    e.getMessage());
+        }
+    }
+
+    private void writeRequest(ServiceRequest request) {
+        try {
+            out.writeInt(request.getId());
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to send a request to remote likelihood " + getId() + ": " +
+                    e.getMessage());
+        }
+    }
+
+    private void clearSentValues() {
+        for (double[] sent : sentValues) {
+            Arrays.fill(sent, Double.NaN);
+        }
+    }
+
+    private void likelihoodChanged() {
+        likelihoodKnown = false;
+        if (requested) {
+            // the result on its way is for the old values
+            outdatedRequests++;
+            requested = false;
+        }
+    }
+
+    // **************************************************************
+    // Likelihood IMPLEMENTATION
+    // **************************************************************
+
+    public Model getModel() {
+        return this;
+    }
+
+    public double getLogLikelihood() {
+        if (!likelihoodKnown) {
+            requestLogLikelihood();
+            receiveLogLikelihood();
+        }
+        return logLikelihood;
+    }
+
+    public void makeDirty() {
+        likelihoodChanged();
+        receiveLogLikelihood();
+        writeRequest(ServiceRequest.makeDirty);
+        clearSentValues();
+    }
+
+    // **************************************************************
+    // Model IMPLEMENTATION
+    // **************************************************************
+
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        likelihoodChanged();
+    }
+
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        likelihoodChanged();
+    }
+
+    protected void storeState() {
+        receiveLogLikelihood();
+        writeRequest(ServiceRequest.storeState);
+        for (int i = 0; i < sentValues.length; i++) {
+            System.arraycopy(sentValues[i], 0, storedSentValues[i], 0, sentValues[i].length);
+        }
+        storedLikelihoodKnown = likelihoodKnown;
+        storedLogLikelihood = logLikelihood;
+    }
+
+    protected void restoreState() {
+        receiveLogLikelihood();
+        writeRequest(ServiceRequest.restoreState);
+        // the worker is back to the values it had when stored
+        double[][] tmp = sentValues;
+        sentValues = storedSentValues;
+        storedSentValues = tmp;
+        likelihoodKnown = storedLikelihoodKnown;
+        logLikelihood = storedLogLikelihood;
+    }
+
+    protected void acceptState() {
+        receiveLogLikelihood();
+        writeRequest(ServiceRequest.acceptState);
+    }
+
+    // **************************************************************
+    // XMLObjectParser
+    // **************************************************************
+
+    public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
+
+        public String getParserName() {
+            return REMOTE_LIKELIHOOD;
+        }
+
+        public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            String host = xo.getAttribute(HOST, "localhost");
+            int port = xo.getIntegerAttribute(PORT);
+            double timeout = xo.getAttribute(TIMEOUT, 60.0);
+
+            List<Parameter> parameters = new ArrayList<Parameter>();
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                parameters.add((Parameter) xo.getChild(i));
+            }
+
+            Logger.getLogger("dr.inference").info("Connecting to remote likelihood worker at " + host + ":" + port);
+            try {
+                return connect(xo.getId(), parameters, host, port, (long) (timeout * 1000));
+            } catch (IOException e) {
+                throw new XMLParseException("Unable to connect to a remote likelihood worker at " + host + ":" +
+                        port + ": " + e.getMessage());
+            }
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "A likelihood calculated by a remoteLikelihoodWorker element in another BEAST process. " +
+                    "The worker must list the corresponding parameters in the same order.";
+        }
+
+        public Class getReturnType() {
+            return RemoteLikelihood.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                AttributeRule.newStringRule(HOST, true, "The host of the worker (default localhost)"),
+                AttributeRule.newIntegerRule(PORT, false, "The port on which the worker listens"),
+                AttributeRule.newDoubleRule(TIMEOUT, true, "Seconds to keep trying to connect (default 60)"),
+                new ElementRule(Parameter.class, 1, Integer.MAX_VALUE)
+        };
+    };
+
+    private final Parameter[] parameters;
+    private double[][] sentValues;
+    private double[][] storedSentValues;
+    private final int[] changedDimensions;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private boolean requested = false;
+    private int outdatedRequests = 0;
+
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown;
+    private double logLikelihood;
+    private double storedLogLikelihood;
+}
@@ -0,0 +1,220 @@
+/*
+ * RemoteLikelihoodWorker.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.parallel;
+
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.util.Identifiable;
+import dr.xml.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The process side of a RemoteLikelihood: holds a likelihood over part of the data and answers the
+ * requests of one master, applying the parameter values it sends and storing, restoring and
+ * accepting the model with it. Runs until the master asks it to finish or goes away.
+ *
+ * @version $Id$
+ */
+public class RemoteLikelihoodWorker implements Runnable, Identifiable {
+
+    private static final long serialVersionUID = 3005918506168881104L;
+
+    public static final String REMOTE_LIKELIHOOD_WORKER = "remoteLikelihoodWorker";
+    public static final String PORT = "port";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public RemoteLikelihoodWorker(Likelihood likelihood, List<Parameter> parameters, int port) {
+        this.likelihood = likelihood;
+        this.parameters = parameters.toArray(new Parameter[parameters.size()]);
+        this.port = port;
+    }
+
+    public void run() {
+        try {
+            ServerSocket server = new ServerSocket(port);
+            Logger.getLogger("dr.inference").info("Remote likelihood worker waiting on port " + server.getLocalPort());
+            Socket socket = server.accept();
+            server.close();
+            socket.setTcpNoDelay(true);
+
+            serve(socket.getInputStream(), socket.getOutputStream());
+            socket.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Remote likelihood worker failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers requests from the streams until asked to finish or the input ends.
+     */
+    public void serve(InputStream inputStream, OutputStream outputStream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+        final Model model = likelihood.getModel();
+
+        while (true) {
+            final int id;
+            try {
+                id = in.readInt();
+            } catch (EOFException e) {
+                // the master has finished
+                return;
+            }
+
+            final ServiceRequest request = ServiceRequest.getByID(id);
+            if (request == null) {
+                throw new IOException("Unknown request " + id);
+            }
+            switch (request) {
+                case updateParameter: {
+                    final Parameter parameter = parameters[in.readInt()];
+                    final int count = in.readInt();
+                    if (count == 1) {
+                        parameter.setParameterValue(in.readInt(), in.readDouble());
+                    } else {
+                        for (int k = 0; k < count; k++) {
+                            parameter.setParameterValueQuietly(in.readInt(), in.readDouble());
+                        }
+                        parameter.fireParameterChangedEvent();
+                    }
+                    break;
+                }
+                case calculateLikeliood:
+                    if (model == null) {
+                        // nothing tells the likelihood that the parameters have changed
+                        likelihood.makeDirty();
+                    }
+                    out.writeDouble(likelihood.getLogLikelihood());
+                    out.flush();
+                    break;
+                case storeState:
+                    // the parameters need not be part of the model
+                    for (Parameter parameter : parameters) {
+                        parameter.storeParameterValues();
+                    }
+                    if (model != null) {
+                        model.storeModelState();
+                    }
+                    break;
+                case restoreState:
+                    for (Parameter parameter : parameters) {
+                        parameter.restoreParameterValues();
+                    }
+                    if (model != null) {
+                        model.restoreModelState();
+                    }
+                    break;
+                case acceptState:
+                    for (Parameter parameter : parameters) {
+                        parameter.acceptParameterValues();
+                    }
+                    if (model != null) {
+                        model.acceptModelState();
+                    }
+                    break;
+                case makeDirty:
+                    likelihood.makeDirty();
+                    break;
+                case terminateProcess:
+                    out.flush();
+                    return;
+                default:
+                    throw new IOException("Unexpected request " + request);
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    // **************************************************************
+    // XMLObjectParser
+    // **************************************************************
+
+    public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
+
+        public String getParserName() {
+            return REMOTE_LIKELIHOOD_WORKER;
+        }
+
+        public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            int port = xo.getIntegerAttribute(PORT);
+            Likelihood likelihood = (Likelihood) xo.getChild(Likelihood.class);
+
+            List<Parameter> parameters = new ArrayList<Parameter>();
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                if (xo.getChild(i) instanceof Parameter) {
+                    parameters.add((Parameter) xo.getChild(i));
+                }
+            }
+
+            return new RemoteLikelihoodWorker(likelihood, parameters, port);
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "Calculates a likelihood for a remoteLikelihood element in another BEAST process, " +
+                    "which lists the corresponding parameters in the same order.";
+        }
+
+        public Class getReturnType() {
+            return RemoteLikelihoodWorker.class;
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                AttributeRule.newIntegerRule(PORT, false, "The port on which to wait for the master"),
+                new ElementRule(Likelihood.class),
+                new ElementRule(Parameter.class, 1, Integer.MAX_VALUE)
+        };
+    };
+
+    private String id;
+
+    private final Likelihood likelihood;
+    private final Parameter[] parameters;
+    private final int port;
+}
@@ -6,10 +6,15 @@ package dr.inference.parallel;
 
 public enum ServiceRequest {
 
-	calculateLikeliood, terminateProcess;
+	calculateLikeliood, terminateProcess, updateParameter, storeState, restoreState, acceptState, makeDirty;
 
 	public static final int CALCULATION_LIKELIHOOD_ID = 1;
 	public static final int TERMINATE_ID = 2;
+	public static final int UPDATE_PARAMETER_ID = 3;
+	public static final int STORE_STATE_ID = 4;
+	public static final int RESTORE_STATE_ID = 5;
+	public static final int ACCEPT_STATE_ID = 6;
+	public static final int MAKE_DIRTY_ID = 7;
 	public static final int NONE_ID = 0;
 
 
@@ -21,6 +26,16 @@ public enum ServiceRequest {
 				return CALCULATION_LIKELIHOOD_ID;
 			case terminateProcess:
 				return TERMINATE_ID;
+			case updateParameter:
+				return UPDATE_PARAMETER_ID;
+			case storeState:
+				return STORE_STATE_ID;
+			case restoreState:
+				return RESTORE_STATE_ID;
+			case acceptState:
+				return ACCEPT_STATE_ID;
+			case makeDirty:
+				return MAKE_DIRTY_ID;
 			default:
 				return NONE_ID;
 		}
@@ -32,6 +47,16 @@ public enum ServiceRequest {
 				return calculateLikeliood;
 			case TERMINATE_ID:
 				return terminateProcess;
+			case UPDATE_PARAMETER_ID:
+				return updateParameter;
+			case STORE_STATE_ID:
+				return storeState;
+			case RESTORE_STATE_ID:
+				return restoreState;
+			case ACCEPT_STATE_ID:
+				return acceptState;
+			case MAKE_DIRTY_ID:
+				return makeDirty;
 			default:
 				return null;
 		}
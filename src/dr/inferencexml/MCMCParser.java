@@ -30,12 +30,14 @@ import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainDelegate;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmc.ModelReplicator;
 import dr.inference.model.CompoundLikelihood;
 import dr.inference.model.Likelihood;
 import dr.inference.operators.OperatorSchedule;
 import dr.xml.*;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class MCMCParser extends AbstractXMLObjectParser {
 
@@ -154,6 +156,42 @@ public class MCMCParser extends AbstractXMLObjectParser {
         if (!xo.getAttribute(SPAWN, true))
             mcmc.setSpawnable(false);
 
+        mcmc.setObjectStore(getStore());
+
+        if (xo.hasAttribute(SPECULATION)) {
+            final int speculation = xo.getIntegerAttribute(SPECULATION);
+            if (speculation < 1) {
+                throw new XMLParseException("The " + SPECULATION + " attribute of " + getParserName() +
+                        " must be at least 1");
+            }
+            java.util.logging.Logger.getLogger("dr.inference").info("Parsing " + (speculation - 1) +
+                    " copies of the chain to evaluate " + speculation + " proposals at once while the" +
+                    " operators are not being tuned.");
+            ModelReplicator replicator = new ModelReplicator(xo, CHAINS, SPECULATION);
+            replicator.shareObjects(getStore(), ModelReplicator.DATA_TYPES);
+            // the operators of the copies must number the nodes of the trees as this chain does
+            replicator.shareTrees(getStore());
+            List<MCMC> speculativeReplicas = new ArrayList<MCMC>();
+            for (int i = 1; i < speculation; i++) {
+                speculativeReplicas.add((MCMC) replicator.createReplica());
+            }
+            mcmc.setSpeculativeReplicas(speculativeReplicas);
+        }
+
+        final int chainCount = xo.getAttribute(CHAINS, 1);
+        if (chainCount > 1) {
+            java.util.logging.Logger.getLogger("dr.inference").info("Parsing " + (chainCount - 1) +
+                    " more chains to run alongside this one, sharing its data. Their logs have the names of" +
+                    " this chain's with .chain2, .chain3... added before the extension.");
+            ModelReplicator replicator = new ModelReplicator(xo, CHAINS);
+            replicator.shareObjects(getStore(), ModelReplicator.DATA_TYPES);
+            for (int i = 2; i <= chainCount; i++) {
+                MCMC replica = (MCMC) replicator.createReplica(".chain" + i);
+                replica.setShowOperatorAnalysis(false);
+                mcmc.addReplica(replica);
+            }
+        }
+
         return mcmc;
     }
 
@@ -185,6 +223,11 @@ public class MCMCParser extends AbstractXMLObjectParser {
             AttributeRule.newBooleanRule(SPAWN, true),
             AttributeRule.newStringRule(NAME, true),
             AttributeRule.newStringRule(OPERATOR_ANALYSIS, true),
+            AttributeRule.newIntegerRule(CHAINS, true,
+                    "The number of independent chains to run at once, each in a thread of its own"),
+            AttributeRule.newIntegerRule(SPECULATION, true,
+                    "The number of proposals to evaluate at once, on copies of the chain, while the operators are" +
+                            " not being tuned. The chain goes through the same states whatever the number"),
             new ElementRule(OperatorSchedule.class),
             new ElementRule(Likelihood.class),
             new ElementRule(Logger.class, 1, Integer.MAX_VALUE),
@@ -197,6 +240,8 @@ public class MCMCParser extends AbstractXMLObjectParser {
     public static final String COERCION_DELAY = "autoOptimizeDelay";
     public static final String MCMC = "mcmc";
     public static final String CHAIN_LENGTH = "chainLength";
+    public static final String CHAINS = "chains";
+    public static final String SPECULATION = "speculation";
     public static final String FULL_EVALUATION = "fullEvaluation";
     public static final String EVALUATION_THRESHOLD  = "evaluationThreshold";
     public static final String MIN_OPS_EVALUATIONS = "minOpsFullEvaluations";
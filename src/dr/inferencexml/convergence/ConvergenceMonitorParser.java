@@ -0,0 +1,126 @@
+/*
+ * ConvergenceMonitorParser.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml.convergence;
+
+import dr.inference.convergence.ConvergenceMonitor;
+import dr.inference.loggers.Columns;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @version $Id$
+ */
+public class ConvergenceMonitorParser extends AbstractXMLObjectParser {
+
+    public static final String CONVERGENCE_MONITOR = "convergenceMonitor";
+    public static final String SAMPLE_EVERY = "sampleEvery";
+    public static final String BURNIN = "burnin";
+    public static final String REPORT_EVERY = "reportEvery";
+    public static final String ESS = "ess";
+    public static final String STOP_WHEN_CONVERGED = "stopWhenConverged";
+
+    public String getParserName() {
+        return CONVERGENCE_MONITOR;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        final long sampleEvery = xo.getAttribute(SAMPLE_EVERY, 0L);
+        final long burnin = xo.getAttribute(BURNIN, -1L);
+        final long reportEvery = xo.getAttribute(REPORT_EVERY, 0L);
+        final double ess = xo.getAttribute(ESS, 200.0);
+        final boolean stopWhenConverged = xo.getAttribute(STOP_WHEN_CONVERGED, false);
+
+        if (sampleEvery < 0 || reportEvery < 0) {
+            throw new XMLParseException("The attributes " + SAMPLE_EVERY + " and " + REPORT_EVERY +
+                    " of " + CONVERGENCE_MONITOR + " must not be negative");
+        }
+
+        List<NumberColumn> columns = new ArrayList<NumberColumn>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            final Object child = xo.getChild(i);
+            LogColumn[] cols;
+            if (child instanceof Loggable) {
+                cols = ((Loggable) child).getColumns();
+            } else if (child instanceof Columns) {
+                cols = ((Columns) child).getColumns();
+            } else {
+                continue;
+            }
+            for (LogColumn col : cols) {
+                if (col instanceof NumberColumn) {
+                    columns.add((NumberColumn) col);
+                }
+            }
+        }
+        if (columns.size() == 0) {
+            throw new XMLParseException(CONVERGENCE_MONITOR + " has no numerical columns to follow");
+        }
+
+        return new ConvergenceMonitor(columns, sampleEvery, burnin, reportEvery, ess, stopWhenConverged);
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newLongIntegerRule(SAMPLE_EVERY, true,
+                    "The number of states between samples, by default a ten thousandth of the chain length"),
+            AttributeRule.newLongIntegerRule(BURNIN, true,
+                    "The number of states to ignore, by default a tenth of the chain length"),
+            AttributeRule.newLongIntegerRule(REPORT_EVERY, true,
+                    "The number of states between reports, by default a hundredth of the chain length"),
+            AttributeRule.newDoubleRule(ESS, true,
+                    "The effective sample size every column should reach, by default 200"),
+            AttributeRule.newBooleanRule(STOP_WHEN_CONVERGED, true,
+                    "Whether to stop the chain once every effective sample size has reached the target"),
+            new OrRule(
+                    new XMLSyntaxRule[]{
+                            new ElementRule(Columns.class, 1, Integer.MAX_VALUE),
+                            new ElementRule(Loggable.class, 1, Integer.MAX_VALUE)
+                    }
+            )
+    };
+
+    public String getParserDescription() {
+        return "Reports the means and effective sample sizes of some columns while the chain runs, " +
+                "and optionally stops the chain once they have all reached a target";
+    }
+
+    public Class getReturnType() {
+        return ConvergenceMonitor.class;
+    }
+}
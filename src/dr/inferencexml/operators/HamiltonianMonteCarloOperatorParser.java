@@ -0,0 +1,120 @@
+/*
+ * HamiltonianMonteCarloOperatorParser.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml.operators;
+
+import dr.inference.model.GradientWrtParameterProvider;
+import dr.inference.model.Parameter;
+import dr.inference.operators.HamiltonianMonteCarloOperator;
+import dr.inference.operators.MCMCOperator;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ */
+public class HamiltonianMonteCarloOperatorParser extends AbstractXMLObjectParser {
+
+    public static final String HMC_OPERATOR = "hamiltonianMonteCarloOperator";
+    public static final String STEP_SIZE = "stepSize";
+    public static final String N_STEPS = "nSteps";
+    public static final String ADAPTATION_LENGTH = "adaptationLength";
+    public static final String TARGET_ACCEPTANCE = "targetAcceptance";
+
+    public String getParserName() {
+        return HMC_OPERATOR;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        final double weight = xo.getDoubleAttribute(MCMCOperator.WEIGHT);
+        final double stepSize = xo.getAttribute(STEP_SIZE, 0.01);
+        final int nSteps = xo.getAttribute(N_STEPS, 10);
+        final int adaptationLength = xo.getAttribute(ADAPTATION_LENGTH, 1000);
+        final double targetAcceptance = xo.getAttribute(TARGET_ACCEPTANCE, 0.8);
+
+        if (stepSize <= 0.0) {
+            throw new XMLParseException("stepSize must be positive");
+        }
+        if (nSteps < 1) {
+            throw new XMLParseException("nSteps must be at least 1");
+        }
+        if (targetAcceptance <= 0.0 || targetAcceptance >= 1.0) {
+            throw new XMLParseException("targetAcceptance must be between 0.0 and 1.0");
+        }
+
+        List<GradientWrtParameterProvider> gradientProviders = new ArrayList<GradientWrtParameterProvider>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            if (xo.getChild(i) instanceof GradientWrtParameterProvider) {
+                gradientProviders.add((GradientWrtParameterProvider) xo.getChild(i));
+            }
+        }
+
+        Parameter parameter = (Parameter) xo.getChild(Parameter.class);
+        if (parameter == null) {
+            if (gradientProviders.size() == 0) {
+                throw new XMLParseException("Either a parameter or a gradient must be given");
+            }
+            parameter = gradientProviders.get(0).getParameter();
+        }
+
+        for (GradientWrtParameterProvider provider : gradientProviders) {
+            if (provider.getParameter() != parameter) {
+                throw new XMLParseException("All gradients must be with respect to " + parameter.getParameterName());
+            }
+        }
+
+        return new HamiltonianMonteCarloOperator(parameter, gradientProviders, stepSize, nSteps,
+                adaptationLength, targetAcceptance, weight);
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "A Hamiltonian Monte Carlo operator that updates a whole parameter block along the " +
+                "gradient of the posterior. Without a gradient element the gradient is computed numerically.";
+    }
+
+    public Class getReturnType() {
+        return HamiltonianMonteCarloOperator.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newDoubleRule(MCMCOperator.WEIGHT),
+            AttributeRule.newDoubleRule(STEP_SIZE, true),
+            AttributeRule.newIntegerRule(N_STEPS, true),
+            AttributeRule.newIntegerRule(ADAPTATION_LENGTH, true),
+            AttributeRule.newDoubleRule(TARGET_ACCEPTANCE, true),
+            new ElementRule(Parameter.class, true),
+            new ElementRule(GradientWrtParameterProvider.class, 0, Integer.MAX_VALUE),
+    };
+}
@@ -15,6 +15,7 @@ public class SimpleOperatorScheduleParser extends AbstractXMLObjectParser {
     public static final String OPERATOR_SCHEDULE = "operators";
     public static final String SEQUENTIAL = "sequential";
     public static final String OPTIMIZATION_SCHEDULE = "optimizationSchedule";
+    public static final String ADAPTIVE_WEIGHTS = "adaptiveWeights";
 
     public String getParserName() {
         return OPERATOR_SCHEDULE;
@@ -28,6 +29,11 @@ public class SimpleOperatorScheduleParser extends AbstractXMLObjectParser {
             schedule.setSequential(xo.getBooleanAttribute(SEQUENTIAL));
         }
 
+        if (xo.getAttribute(ADAPTIVE_WEIGHTS, false)) {
+            Logger.getLogger("dr.inference").info("Operator weights will be adapted to the accepted moves per unit of time");
+            schedule.setAdaptiveWeights(true);
+        }
+
 
         if (xo.hasAttribute(OPTIMIZATION_SCHEDULE)) {
             String type = xo.getStringAttribute(OPTIMIZATION_SCHEDULE);
@@ -60,6 +66,7 @@ public class SimpleOperatorScheduleParser extends AbstractXMLObjectParser {
 
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newBooleanRule(SEQUENTIAL, true),
+            AttributeRule.newBooleanRule(ADAPTIVE_WEIGHTS, true),
             new ElementRule(MCMCOperator.class, 1, Integer.MAX_VALUE),
             AttributeRule.newStringRule(OPTIMIZATION_SCHEDULE, true)
     };
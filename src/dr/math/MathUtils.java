@@ -52,7 +52,38 @@ public class MathUtils {
 	 * MersenneTwisterFast class for access to a single instance of the class, that
 	 * has synchronization.
 	 */
-	private static final MersenneTwisterFast random = MersenneTwisterFast.DEFAULT_INSTANCE;
+	private static final MersenneTwisterFast defaultRandom = MersenneTwisterFast.DEFAULT_INSTANCE;
+
+	/**
+	 * The random number generators of threads that have their own, so that chains run in threads
+	 * each draw a stream of their own that does not depend on the timing of the others.
+	 */
+	private static final ThreadLocal<MersenneTwisterFast> threadRandom = new ThreadLocal<MersenneTwisterFast>();
+
+	/**
+	 * Gives the current thread a random number generator of its own, started from the given
+	 * seed, to be used by all the static methods of this class called from it.
+	 */
+	public static void setThreadSeed(long seed) {
+		MersenneTwisterFast random = threadRandom.get();
+		if (random == null) {
+			random = new MersenneTwisterFast();
+			threadRandom.set(random);
+		}
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Makes the current thread use the shared random number generator again.
+	 */
+	public static void removeThreadRandom() {
+		threadRandom.remove();
+	}
+
+	private static MersenneTwisterFast getRandom() {
+		final MersenneTwisterFast random = threadRandom.get();
+		return random != null ? random : defaultRandom;
+	}
 
 	// Chooses one category if a cumulative probability distribution is given
 	public static int randomChoice(double[] cf) {
@@ -174,6 +205,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static long getSeed() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.getSeed();
 		}
@@ -183,6 +215,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static void setSeed(long seed) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.setSeed(seed);
 		}
@@ -192,6 +225,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static byte nextByte() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextByte();
 		}
@@ -201,6 +235,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static boolean nextBoolean() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextBoolean();
 		}
@@ -210,6 +245,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static void nextBytes(byte[] bs) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.nextBytes(bs);
 		}
@@ -219,6 +255,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static char nextChar() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextChar();
 		}
@@ -228,6 +265,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextGaussian() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextGaussian();
 		}
@@ -237,6 +275,7 @@ public class MathUtils {
 	//Variance = alpha / (lambda*lambda)
 
 	public static double nextGamma(double alpha, double lambda) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextGamma(alpha, lambda);
 		}
@@ -258,6 +297,7 @@ public class MathUtils {
 	 * @return a pseudo random double precision floating point number in [01)
 	 */
 	public static double nextDouble() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextDouble();
 		}
@@ -274,6 +314,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextExponential(double lambda) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return -1.0 * Math.log(1 - random.nextDouble()) / lambda;
 		}
@@ -283,6 +324,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextInverseGaussian(double mu, double lambda) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			/* CODE TAKEN FROM WIKIPEDIA. TESTING DONE WITH RESULTS GENERATED IN R AND LOOK COMPARABLE */
             double v = random.nextGaussian();   // sample from a normal distribution with a mean of 0 and 1 standard deviation
@@ -303,6 +345,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static float nextFloat() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextFloat();
 		}
@@ -312,6 +355,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static long nextLong() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextLong();
 		}
@@ -321,6 +365,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static short nextShort() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextShort();
 		}
@@ -330,6 +375,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static int nextInt() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextInt();
 		}
@@ -339,6 +385,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static int nextInt(int n) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextInt(n);
 		}
@@ -358,6 +405,7 @@ public class MathUtils {
 	 * Shuffles an array.
 	 */
 	public static void shuffle(int[] array) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.shuffle(array);
 		}
@@ -367,6 +415,7 @@ public class MathUtils {
 	 * Shuffles an array. Shuffles numberOfShuffles times
 	 */
 	public static void shuffle(int[] array, int numberOfShuffles) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.shuffle(array, numberOfShuffles);
 		}
@@ -378,6 +427,7 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] shuffled(int l) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.shuffled(l);
 		}
@@ -385,6 +435,7 @@ public class MathUtils {
 
 
 	public static int[] sampleIndicesWithReplacement(int length) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			int[] result = new int[length];
 			for (int i = 0; i < length; i++)
@@ -397,6 +448,7 @@ public class MathUtils {
 	 * Permutes an array.
 	 */
 	public static void permute(int[] array) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.permute(array);
 		}
@@ -408,6 +460,7 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] permuted(int l) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.permuted(l);
 		}
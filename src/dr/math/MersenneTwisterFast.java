@@ -175,6 +175,54 @@ class MersenneTwisterFast implements Serializable {
 		mag01[1] = MATRIX_A;
 	}
 
+	/**
+	 * Initalize the pseudo random number generator from all 64 bits of a seed, by the
+	 * init_by_array method of the reference implementation with the two halves of the seed
+	 * as the key. Unlike setSeed(long), seeds that differ only in their upper 32 bits give
+	 * different streams.
+	 *
+	 * @param seed the seed
+	 */
+	public final void setLongSeed(long seed) {
+		initializationSeed = seed;
+		haveNextNextGaussian = false;
+
+		final int[] key = {(int) seed, (int) (seed >>> 32)};
+
+		mt = new int[N];
+		mt[0] = 19650218;
+		for (mti = 1; mti < N; mti++)
+			mt[mti] = 1812433253 * (mt[mti - 1] ^ (mt[mti - 1] >>> 30)) + mti;
+
+		int i = 1;
+		int j = 0;
+		for (int k = Math.max(N, key.length); k > 0; k--) {
+			mt[i] = (mt[i] ^ ((mt[i - 1] ^ (mt[i - 1] >>> 30)) * 1664525)) + key[j] + j;
+			i++;
+			j++;
+			if (i >= N) {
+				mt[0] = mt[N - 1];
+				i = 1;
+			}
+			if (j >= key.length) {
+				j = 0;
+			}
+		}
+		for (int k = N - 1; k > 0; k--) {
+			mt[i] = (mt[i] ^ ((mt[i - 1] ^ (mt[i - 1] >>> 30)) * 1566083941)) - i;
+			i++;
+			if (i >= N) {
+				mt[0] = mt[N - 1];
+				i = 1;
+			}
+		}
+		mt[0] = UPPER_MASK; // the most significant bit is 1, so the initial state is not zero
+
+		mag01 = new int[2];
+		mag01[0] = 0x0;
+		mag01[1] = MATRIX_A;
+	}
+
 	public final long getSeed() {
 		return initializationSeed;
 	}
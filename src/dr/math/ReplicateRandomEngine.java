@@ -0,0 +1,73 @@
+/*
+ * ReplicateRandomEngine.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.math;
+
+import cern.jet.random.engine.RandomEngine;
+
+/**
+ * The random number generator of one replicate of a batch simulation, seeded from the seed of the
+ * batch and the numbers that identify the replicate, so that the replicates can be drawn on any
+ * number of threads in any order. The numbers are mixed into a 64-bit seed, as the Mersenne
+ * Twister takes nearby seeds to nearby states, and all 64 bits of it seed the generator, so that
+ * even large batches are unlikely to have two replicates with the same stream.
+ *
+ * @version $Id$
+ */
+public class ReplicateRandomEngine extends RandomEngine {
+
+    private static final long serialVersionUID = 2619414290516208413L;
+
+    /**
+     * @param seed    the seed of the batch
+     * @param indices the numbers that identify the replicate, such as its number and the number
+     *                of a block of it
+     */
+    public ReplicateRandomEngine(long seed, int... indices) {
+        random = new MersenneTwisterFast();
+        random.setLongSeed(getReplicateSeed(seed, indices));
+    }
+
+    /**
+     * @return the 64-bit seed of a replicate, mixed from the seed of the batch and the numbers that
+     * identify the replicate by the SplitMix64 finalizer
+     */
+    public static long getReplicateSeed(long seed, int... indices) {
+        long z = seed;
+        for (int index : indices) {
+            z += 0x9E3779B97F4A7C15L * (index + 1L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+        }
+        return z;
+    }
+
+    public int nextInt() {
+        return random.nextInt();
+    }
+
+    private final MersenneTwisterFast random;
+}
@@ -1,5 +1,6 @@
 package dr.math.distributions;
 
+import dr.math.GammaFunction;
 import dr.stats.DiscreteStatistics;
 
 
@@ -11,9 +12,18 @@ import dr.stats.DiscreteStatistics;
  *         Assumes limits are (0, inf)
  *         Must provide with a bandwidth, or defaults to Scott's Rule
  *         Univariate distribution only
+ *
+ *         The kernels depend on the point, so the density cannot be found by a convolution. Instead
+ *         the log density is tabulated on a grid that is refined until linear interpolation is within
+ *         GRID_TOLERANCE of the exact value, and beyond the grid or when asked for, the sum over the
+ *         samples is evaluated exactly.
  */
 public class GammaKDEDistribution extends KernelDensityEstimatorDistribution {
 
+    public static final int MINIMUM_GRID_SIZE = 512;
+    public static final int MAXIMUM_GRID_SIZE = 16384;
+    public static final double GRID_TOLERANCE = 1E-3;
+
 
     public GammaKDEDistribution(Double[] sample) {
         this(sample, null);
@@ -45,7 +55,40 @@ public class GammaKDEDistribution extends KernelDensityEstimatorDistribution {
 
     }
 
+    /**
+     * @param exact whether to sum over the samples at every evaluation rather than interpolate
+     */
+    public void setExact(boolean exact) {
+        this.exact = exact;
+    }
+
     protected double evaluateKernel(double x) {
+        return Math.exp(logPdf(x));
+    }
+
+    public double logPdf(double x) {
+        if (!exact) {
+            if (logDensityPoints == null) {
+                computeDensity();
+            }
+            if (x >= 0.0 && x <= gridEnd) {
+                return interpolate(logDensityPoints, 0.0, gridDelta, x, Double.NEGATIVE_INFINITY);
+            }
+        }
+        return exactLogPdf(x);
+    }
+
+    /**
+     * The log of the mean of the gamma kernels at x, summed relative to the largest term so that
+     * kernels of large shape neither overflow nor underflow.
+     */
+    public double exactLogPdf(double x) {
+        if (logSample == null) {
+            logSample = new double[N];
+            for (int i = 0; i < N; i++) {
+                logSample[i] = Math.log(sample[i]);
+            }
+        }
 
         double shape;
         double scale;
@@ -56,19 +99,83 @@ public class GammaKDEDistribution extends KernelDensityEstimatorDistribution {
             shape = .25 * Math.pow(x / bandWidth, 2) + 1;
         }
         scale = bandWidth;
-        double pdf = 0;
+
+        double max = Double.NEGATIVE_INFINITY;
         for (int i = 0; i < N; i++) {
-            pdf +=
-                    Math.pow(sample[i], shape - 1) * Math.exp(-sample[i] / scale) / (Math.pow(scale, shape) * gamma(shape));
+            max = Math.max(max, (shape - 1) * logSample[i] - sample[i] / scale);
         }
-        return pdf / N;
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0;
+        for (int i = 0; i < N; i++) {
+            sum += Math.exp((shape - 1) * logSample[i] - sample[i] / scale - max);
+        }
+        return Math.log(sum / N) + max - shape * Math.log(scale) - GammaFunction.lnGamma(shape);
     }
 
-    private double gamma(double value) {
-        return cern.jet.stat.Gamma.gamma(value);
+    /**
+     * Tabulates the log density from zero to beyond the largest sample, doubling the number of
+     * points until the midpoints of the intervals are interpolated within the tolerance. Only
+     * points with a density within LOG_DENSITY_RANGE of the largest are checked.
+     */
+    private void computeDensity() {
+        final double max = DiscreteStatistics.max(sample);
+        gridEnd = max + 8.0 * (Math.sqrt(max * bandWidth) + bandWidth);
+
+        int intervals = MINIMUM_GRID_SIZE;
+        double[] points = new double[intervals + 1];
+        for (int i = 0; i <= intervals; i++) {
+            points[i] = boundedExactLogPdf(gridEnd * i / intervals);
+        }
+
+        while (true) {
+            final double delta = gridEnd / intervals;
+            double maxLogDensity = Double.NEGATIVE_INFINITY;
+            for (double point : points) {
+                maxLogDensity = Math.max(maxLogDensity, point);
+            }
+            final double[] midpoints = new double[intervals];
+            boolean withinTolerance = true;
+            for (int i = 0; i < intervals; i++) {
+                midpoints[i] = boundedExactLogPdf((i + 0.5) * delta);
+                if (midpoints[i] > maxLogDensity - LOG_DENSITY_RANGE &&
+                        Math.abs(0.5 * (points[i] + points[i + 1]) - midpoints[i]) > GRID_TOLERANCE) {
+                    withinTolerance = false;
+                }
+            }
+            if (withinTolerance || intervals >= MAXIMUM_GRID_SIZE) {
+                break;
+            }
+
+            final double[] refined = new double[2 * intervals + 1];
+            for (int i = 0; i < intervals; i++) {
+                refined[2 * i] = points[i];
+                refined[2 * i + 1] = midpoints[i];
+            }
+            refined[2 * intervals] = points[intervals];
+            points = refined;
+            intervals *= 2;
+        }
+
+        gridDelta = gridEnd / intervals;
+        logDensityPoints = points;
+    }
 
+    // keeps the table finite so that it can be interpolated
+    private double boundedExactLogPdf(double x) {
+        return Math.max(exactLogPdf(x), MIN_LOG_DENSITY);
     }
 
+    private static final double LOG_DENSITY_RANGE = Math.log(1E10);
+    private static final double MIN_LOG_DENSITY = Math.log(Double.MIN_NORMAL);
+
+    private boolean exact = false;
+    private double[] logSample;
+    private double[] logDensityPoints;
+    private double gridEnd;
+    private double gridDelta;
+
 //    private double sampleMean() {return DiscreteStatistics.mean(sample);}
 
 
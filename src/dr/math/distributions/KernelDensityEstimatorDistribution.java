@@ -93,6 +93,30 @@ public abstract class KernelDensityEstimatorDistribution implements Distribution
         return bandWidth;
     }
 
+    /**
+     * Linear interpolation in a table of values at evenly spaced points, so the point is found in
+     * constant time rather than by a search.
+     *
+     * @param y       the values
+     * @param start   the first point
+     * @param delta   the spacing of the points
+     * @param pt      evaluation point
+     * @param outside return value if pt is outside the points
+     * @return evaluated coordinate
+     */
+    protected static double interpolate(double[] y, double start, double delta, double pt, double outside) {
+        final double position = (pt - start) / delta;
+        if (!(position >= 0.0 && position <= y.length - 1)) {
+            return outside;
+        }
+        final int i = (int) position;
+        final double fraction = position - i;
+        if (fraction == 0.0) {
+            return y[i];
+        }
+        return y[i] + (y[i + 1] - y[i]) * fraction;
+    }
+
     public enum Type {
         GAUSSIAN("Gaussian"),
         GAMMA("Gamma"),
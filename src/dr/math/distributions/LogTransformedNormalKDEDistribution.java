@@ -316,7 +316,7 @@ public class LogTransformedNormalKDEDistribution extends KernelDensityEstimatorD
         // Make x grid
         xPoints = new double[gridSize];
         double x = lo;
-        double delta = (up - lo) / (gridSize - 1);
+        delta = (up - lo) / (gridSize - 1);
         //System.out.println("X");
         for (int i = 0; i < gridSize; i++) {
             xPoints[i] = x;
@@ -333,7 +333,7 @@ public class LogTransformedNormalKDEDistribution extends KernelDensityEstimatorD
         	computeDensity();
         }
         //xPoints and densityPoints are now back in normal space
-        return linearApproximate(finalXPoints, finalDensityPoints, x, 0.0, 0.0);
+        return interpolate(finalDensityPoints, finalXPoints[0], delta, x, 0.0);
     }
 
     @Override
@@ -370,6 +370,7 @@ public class LogTransformedNormalKDEDistribution extends KernelDensityEstimatorD
     private double[] xPoints, finalXPoints, backupXPoints;
     private double[] densityPoints, finalDensityPoints;
     private double[] backupSample, logSample;
+    private double delta;
 
     private int gridSize;
     private double cut;
@@ -19,6 +19,7 @@ public class MultivariateKDEDistribution implements MultivariateDistribution {
 		
 		this.multivariateKDE = multivariateKDE;
 		this.dimension = multivariateKDE.length;
+		this.flags = new boolean[dimension];
 		for (int i = 0; i < dimension; i++) {
 			flags[i] = true;
 		}
@@ -51,46 +51,6 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
         return to;
     }
 
-    /**
-     * Returns a linear approximation evaluated at pt
-     * @param x data (assumed sorted increasingly
-     * @param y data
-     * @param pt evaluation point
-     * @param low return value if pt < x
-     * @param high return value if pt > x
-     * @return  evaluated coordinate
-     */
-    private double linearApproximate(double[] x, double[] y, double pt, double low, double high) {
-
-        int i = 0;
-        int j = x.length - 1;
-
-        if (pt < x[i]) {
-            return low;
-        }
-        if (pt > x[j]) {
-            return high;
-        }
-
-        // Bisection search
-        while (i < j - 1) {
-            int ij = (i + j) / 2;
-            if (pt < x[ij]) {
-                j = ij;
-            } else {
-                i = ij;
-            }
-        }
-
-        if (pt == x[j]) {
-            return y[j];
-        }
-        if (pt == x[i]) {
-            return y[i];
-        }
-        return y[i] + (y[j] - y[i]) * ((pt - x[i]) / (x[j] - x[i]));
-    }
-
     private double[] rescaleAndTrim(double[] x) {
         final int length = x.length / 2;
         final double scale = 1.0 / x.length;
@@ -192,14 +152,8 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
         FastFourierTransform.fft(kOrdinates, false);
         kOrdinates.conjugate();
 
-        // Make x grid
-        xPoints = new double[gridSize];
-        double x = lo;
-        double delta = (up - lo) / (gridSize - 1);
-        for (int i = 0; i < gridSize; i++) {
-            xPoints[i] = x;
-            x += delta;
-        }
+        // The x grid is evenly spaced from lo
+        delta = (up - lo) / (gridSize - 1);
     }
 
     @Override
@@ -207,7 +161,7 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
         if (!densityKnown) {
            computeDensity();
         }
-        return linearApproximate(xPoints, densityPoints, x, 0.0, 0.0);
+        return interpolate(densityPoints, lo, delta, x, 0.0);
     }
 
     @Override
@@ -249,8 +203,8 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
     }
 
     private ComplexArray kOrdinates;
-    private double[] xPoints;
     private double[] densityPoints;
+    private double delta;
 
     private int gridSize;
     private double cut;
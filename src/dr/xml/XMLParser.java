@@ -111,6 +111,13 @@ public class XMLParser {
         store.put(name, xo);
     }
 
+    /**
+     * Stores an object parsed by another parser, so that elements parsed later can refer to it.
+     */
+    public void storeXMLObject(String id, XMLObject xo) {
+        store.put(id, xo);
+    }
+
     /**
      * An alternative parser that parses until it finds an object of the given
      * class and then returns it.
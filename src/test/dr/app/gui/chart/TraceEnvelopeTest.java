@@ -0,0 +1,91 @@
+package test.dr.app.gui.chart;
+
+import dr.app.gui.chart.TraceEnvelope;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.geom.GeneralPath;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Checks the ranges and the lines of the level-of-detail envelope of a trace.
+ */
+public class TraceEnvelopeTest extends TestCase {
+
+    public TraceEnvelopeTest(String name) {
+        super(name);
+    }
+
+    public void testRanges() {
+        MathUtils.setSeed(3);
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = MathUtils.nextGaussian();
+        }
+        values[17] = Double.NaN;
+        TraceEnvelope envelope = new TraceEnvelope(values);
+
+        for (int k = 0; k < 1000; k++) {
+            int from = MathUtils.nextInt(values.length);
+            int to = from + 1 + MathUtils.nextInt(values.length - from);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                if (!Double.isNaN(values[i])) {
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                }
+            }
+            assertEquals(min, envelope.getMinimum(from, to), 0.0);
+            assertEquals(max, envelope.getMaximum(from, to), 0.0);
+        }
+    }
+
+    public void testPath() {
+        final int n = 1000000;
+        final double width = 500.0;
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = Math.sin(i * 0.001) + (i % 2 == 0 ? 0.1 : -0.1);
+        }
+        TraceEnvelope envelope = new TraceEnvelope(values);
+        TraceEnvelope.Projection projection = new TraceEnvelope.Projection() {
+            public double getX(int index) {
+                return index * width / n;
+            }
+
+            public double getY(double value) {
+                return 100.0 * value;
+            }
+        };
+
+        GeneralPath path = envelope.createPath(projection, 0.0, width);
+        assertTrue(countPoints(path) <= 4 * (width + 1));
+        Rectangle2D bounds = path.getBounds2D();
+        assertEquals(0.0, bounds.getMinX(), 0.0);
+        assertEquals(projection.getX(n - 1), bounds.getMaxX(), 1e-3);
+        assertEquals(-110.0, bounds.getMinY(), 0.01);
+        assertEquals(110.0, bounds.getMaxY(), 0.01);
+
+        // only the visible part is drawn, with as many points as the samples when zoomed in
+        path = envelope.createPath(projection, 100.0, 100.01);
+        bounds = path.getBounds2D();
+        assertTrue(bounds.getMinX() < 100.0 && bounds.getMaxX() > 100.01);
+        assertTrue(bounds.getMaxX() - bounds.getMinX() < 0.02);
+    }
+
+    private int countPoints(GeneralPath path) {
+        int count = 0;
+        for (PathIterator iterator = path.getPathIterator(null); !iterator.isDone(); iterator.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    public static Test suite() {
+        return new TestSuite(TraceEnvelopeTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package test.dr.app.seqgen;
+
+import dr.app.seqgen.BatchSequenceSimulator;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.sitemodel.GammaSiteModel;
+import dr.evomodel.sitemodel.SiteModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.HKY;
+import dr.inference.model.Parameter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the replicates of the batch simulator against the tree and model, and that they do not
+ * depend on the number of threads.
+ */
+public class BatchSequenceSimulatorTest extends TestCase {
+
+    private static final double[] FREQUENCIES = {0.1, 0.2, 0.3, 0.4};
+
+    public BatchSequenceSimulatorTest(String name) {
+        super(name);
+    }
+
+    public void testThreadCount() throws Exception {
+        Tree tree = new NewickImporter("((A:0.1,B:0.2):0.05,(C:0.3,(D:0.1,E:0.1):0.2):0.1);").importTree(null);
+        final int length = 2 * BatchSequenceSimulator.BLOCK_SIZE + 100;
+
+        Collector serial = new Collector();
+        new BatchSequenceSimulator(getSiteModel(4), new DefaultBranchRateModel(), length, 1, 123)
+                .simulate(tree, 6, serial);
+        Collector parallel = new Collector();
+        new BatchSequenceSimulator(getSiteModel(4), new DefaultBranchRateModel(), length, 3, 123)
+                .simulate(tree, 6, parallel);
+
+        assertEquals(6, serial.sequences.size());
+        assertEquals(serial.replicates, parallel.replicates);
+        for (int r = 0; r < 6; r++) {
+            assertEquals(r, (int) parallel.replicates.get(r));
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < length; j++) {
+                    assertEquals(serial.sequences.get(r)[i][j], parallel.sequences.get(r)[i][j]);
+                }
+            }
+        }
+    }
+
+    public void testFrequencies() throws Exception {
+        Tree tree = new NewickImporter("((A:0.0,B:0.0):0.0,C:0.0);").importTree(null);
+        final int length = 20000;
+
+        Collector collector = new Collector();
+        new BatchSequenceSimulator(getSiteModel(1), new DefaultBranchRateModel(), length, 2, 42)
+                .simulate(tree, 1, collector);
+
+        int[][] sequences = collector.sequences.get(0);
+        double[] counts = new double[4];
+        for (int j = 0; j < length; j++) {
+            // no change along branches of length zero
+            assertEquals(sequences[0][j], sequences[1][j]);
+            assertEquals(sequences[0][j], sequences[2][j]);
+            counts[sequences[0][j]]++;
+        }
+        for (int k = 0; k < 4; k++) {
+            assertEquals(FREQUENCIES[k], counts[k] / length, 0.015);
+        }
+    }
+
+    public void testAncestralStates() throws Exception {
+        Tree tree = new NewickImporter("(A:0.0,B:0.0);").importTree(null);
+        int[] ancestral = {0, 1, 2, 3, 3, 2, 1, 0};
+
+        BatchSequenceSimulator simulator =
+                new BatchSequenceSimulator(getSiteModel(1), new DefaultBranchRateModel(), 8, 1, 1);
+        simulator.setAncestralStates(ancestral);
+        Collector collector = new Collector();
+        simulator.simulate(tree, 2, collector);
+
+        for (int[][] sequences : collector.sequences) {
+            for (int[] sequence : sequences) {
+                for (int j = 0; j < ancestral.length; j++) {
+                    assertEquals(ancestral[j], sequence[j]);
+                }
+            }
+        }
+    }
+
+    private SiteModel getSiteModel(int categoryCount) {
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(FREQUENCIES));
+        HKY hky = new HKY(new Parameter.Default(1, 4.0), frequencies);
+        return categoryCount > 1 ? new GammaSiteModel(hky, 0.5, categoryCount) : new GammaSiteModel(hky);
+    }
+
+    private static class Collector implements BatchSequenceSimulator.ReplicateWriter {
+        public void writeReplicate(int replicate, Taxon[] taxa, int[][] sequences, DataType dataType) {
+            replicates.add(replicate);
+            this.sequences.add(sequences);
+        }
+
+        final List<Integer> replicates = new ArrayList<Integer>();
+        final List<int[][]> sequences = new ArrayList<int[][]>();
+    }
+
+    public static Test suite() {
+        return new TestSuite(BatchSequenceSimulatorTest.class);
+    }
+}
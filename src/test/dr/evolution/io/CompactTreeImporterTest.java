@@ -0,0 +1,135 @@
+package test.dr.evolution.io;
+
+import dr.evolution.io.CompactTreeImporter;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.CompactTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Checks that CompactTreeImporter reads trees exactly as NexusImporter and NewickImporter do.
+ */
+public class CompactTreeImporterTest extends TestCase {
+
+    private static final String NEXUS = "#NEXUS\n\n" +
+            "Begin taxa;\n\tDimensions ntax=4;\n\tTaxlabels\n\t\tA\n\t\t'B b'\n\t\tC\n\t\tD\n\t\t;\nEnd;\n\n" +
+            "Begin trees;\n\tTranslate\n\t\t1 A,\n\t\t2 'B b',\n\t\t3 C,\n\t\t4 D\n\t\t;\n" +
+            "tree STATE_0 [&lnP=-1234.5678,posterior=-1200] = [&R] " +
+            "((1[&rate=0.5,location={1.25,-3.0},state=\"x y\"]:0.123456789012345678," +
+            "2[&rate=1,state=other]:0.2)[&rate=2.5E-3,height_95%_HPD={0.1,0.3}]:0.05," +
+            "(3:1.0E-4,4[&flag]:0.3)0.95[&rate=1.5]:1e-2)[&rate=1.0];\n" +
+            "tree STATE_1000 [&lnP=-1000.0] = [&R] " +
+            "(((4:0.1,3:0.1):0.2,2:0.3):0.4,1[&rate=3]:0.7)[&rate=1.0]:0.0;\n" +
+            "End;\n";
+
+    private static final String NEWICK = "((A:0.1,B:0.2):0.3,(C:0.4,D:0.5):0.6);\n" +
+            "(((D:1,C:1):1,B:2):1,A:3);\n";
+
+    public CompactTreeImporterTest(String name) {
+        super(name);
+    }
+
+    public void testNexus() throws Exception {
+        TreeImporter expected = new NexusImporter(new StringReader(NEXUS));
+        TreeImporter actual = new CompactTreeImporter(new ByteArrayInputStream(NEXUS.getBytes()));
+        int count = 0;
+        while (expected.hasTree()) {
+            assertTrue(actual.hasTree());
+            assertTreesEqual(expected.importNextTree(), actual.importNextTree());
+            count++;
+        }
+        assertFalse(actual.hasTree());
+        assertEquals(2, count);
+    }
+
+    public void testReuse() throws Exception {
+        TreeImporter expected = new NexusImporter(new StringReader(NEXUS));
+        CompactTreeImporter actual = new CompactTreeImporter(new ByteArrayInputStream(NEXUS.getBytes()));
+        CompactTree tree = new CompactTree(1);
+        while (expected.hasTree()) {
+            assertTrue(actual.readNextTree(tree));
+            assertTreesEqual(expected.importNextTree(), tree);
+        }
+        assertFalse(actual.readNextTree(tree));
+
+        // numeric attributes are kept unboxed
+        int rate = tree.getAttributeColumn("rate");
+        assertEquals(3.0, tree.getNumericAttribute(0, rate), 0.0);
+        assertTrue(Double.isNaN(tree.getNumericAttribute(1, rate)));
+    }
+
+    public void testNewick() throws Exception {
+        TreeImporter expected = new NewickImporter(new StringReader(NEWICK));
+        TreeImporter actual = new CompactTreeImporter(new ByteArrayInputStream(NEWICK.getBytes()));
+        while (expected.hasTree()) {
+            assertTrue(actual.hasTree());
+            assertTreesEqual(expected.importNextTree(), actual.importNextTree());
+        }
+        assertFalse(actual.hasTree());
+    }
+
+    private void assertTreesEqual(Tree expected, Tree actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertEquals(expected.getExternalNodeCount(), actual.getExternalNodeCount());
+        assertEquals(expected.getRoot().getNumber(), actual.getRoot().getNumber());
+
+        Iterator names = expected.getAttributeNames();
+        while (names != null && names.hasNext()) {
+            String name = (String) names.next();
+            assertEquals(expected.getAttribute(name), actual.getAttribute(name));
+        }
+
+        for (int i = 0; i < expected.getNodeCount(); i++) {
+            NodeRef e = expected.getNode(i);
+            NodeRef a = actual.getNode(i);
+            assertEquals(expected.getNodeHeight(e), actual.getNodeHeight(a), 0.0);
+            if (!expected.isRoot(e)) {
+                assertEquals(expected.getBranchLength(e), actual.getBranchLength(a), 0.0);
+                assertEquals(expected.getParent(e).getNumber(), actual.getParent(a).getNumber());
+            }
+            assertEquals(expected.getChildCount(e), actual.getChildCount(a));
+            for (int j = 0; j < expected.getChildCount(e); j++) {
+                assertEquals(expected.getChild(e, j).getNumber(), actual.getChild(a, j).getNumber());
+            }
+            if (expected.isExternal(e)) {
+                assertEquals(expected.getNodeTaxon(e).getId(), actual.getNodeTaxon(a).getId());
+            }
+
+            assertEquals(attributeNames(expected, e), attributeNames(actual, a));
+            for (String name : attributeNames(expected, e)) {
+                Object value = expected.getNodeAttribute(e, name);
+                if (value instanceof Object[]) {
+                    assertTrue(name, Arrays.deepEquals((Object[]) value, (Object[]) actual.getNodeAttribute(a, name)));
+                } else {
+                    assertEquals(name, value, actual.getNodeAttribute(a, name));
+                }
+            }
+        }
+    }
+
+    private Set<String> attributeNames(Tree tree, NodeRef node) {
+        Set<String> names = new HashSet<String>();
+        Iterator iterator = tree.getNodeAttributeNames(node);
+        while (iterator != null && iterator.hasNext()) {
+            names.add((String) iterator.next());
+        }
+        return names;
+    }
+
+    public static Test suite() {
+        return new TestSuite(CompactTreeImporterTest.class);
+    }
+}
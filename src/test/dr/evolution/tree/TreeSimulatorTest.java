@@ -0,0 +1,156 @@
+package test.dr.evolution.tree;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.coalescent.FastCoalescentSimulator;
+import dr.evolution.tree.BirthDeathTreeSimulator;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Date;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the trees of the fast coalescent and birth-death simulators against expectations.
+ */
+public class TreeSimulatorTest extends TestCase {
+
+    public TreeSimulatorTest(String name) {
+        super(name);
+    }
+
+    public void testCoalescentRootHeight() {
+        final int n = 20;
+        final double populationSize = 2.0;
+        Taxa taxa = createTaxa(n, false);
+
+        // the expected time to the most recent common ancestor is 2N(1 - 1/n)
+        List<Tree> trees = new FastCoalescentSimulator(taxa, constantPopulation(populationSize))
+                .simulateTrees(4000, 2, 666);
+        assertEquals(2 * populationSize * (1.0 - 1.0 / n), meanRootHeight(trees, taxa), 0.15);
+
+        // and without an inverse intensity
+        ConstantPopulation noInverse = new ConstantPopulation(Units.Type.YEARS) {
+            public double getInverseIntensity(double x) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        noInverse.setN0(populationSize);
+        trees = new FastCoalescentSimulator(taxa, noInverse).simulateTrees(4000, 2, 666);
+        assertEquals(2 * populationSize * (1.0 - 1.0 / n), meanRootHeight(trees, taxa), 0.15);
+    }
+
+    public void testThreadCount() {
+        Taxa taxa = createTaxa(50, false);
+        FastCoalescentSimulator simulator = new FastCoalescentSimulator(taxa, constantPopulation(1.0));
+        List<Tree> serial = simulator.simulateTrees(20, 1, 42);
+        List<Tree> parallel = simulator.simulateTrees(20, 4, 42);
+        for (int i = 0; i < serial.size(); i++) {
+            assertEquals(Tree.Utils.newick(serial.get(i)), Tree.Utils.newick(parallel.get(i)));
+        }
+    }
+
+    public void testSerialSamples() {
+        MathUtils.setSeed(123);
+        Taxa taxa = createTaxa(200, true);
+        Tree tree = new FastCoalescentSimulator(taxa, constantPopulation(5.0)).simulateTree();
+        checkTree(tree, taxa);
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            assertEquals(tree.getNodeTaxon(node).getHeight(), tree.getNodeHeight(node), 1e-9);
+        }
+    }
+
+    public void testYule() {
+        // given the root age, the other speciation times are exponential, truncated to the age
+        final int n = 50;
+        Taxa taxa = createTaxa(n, false);
+        List<Tree> trees = new BirthDeathTreeSimulator(taxa, 1.0, 0.0, 1.0, 1.0, true).simulateTrees(400, 2, 1);
+
+        double sum = 0.0;
+        int count = 0;
+        for (Tree tree : trees) {
+            checkTree(tree, taxa);
+            assertEquals(1.0, tree.getNodeHeight(tree.getRoot()), 1e-9);
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                NodeRef node = tree.getInternalNode(i);
+                if (!tree.isRoot(node)) {
+                    sum += tree.getNodeHeight(node);
+                    count++;
+                }
+            }
+        }
+        final double expected = 1.0 - Math.exp(-1.0) / (1.0 - Math.exp(-1.0));
+        assertEquals(expected, sum / count, 0.01);
+    }
+
+    public void testBirthDeath() {
+        MathUtils.setSeed(7);
+        Taxa taxa = createTaxa(1000, false);
+        for (double deathRate : new double[]{0.5, 2.0, 2.0 - 1e-12}) {
+            Tree tree = new BirthDeathTreeSimulator(taxa, 2.0, deathRate, 0.25, 3.0, false).simulateTree();
+            checkTree(tree, taxa);
+            assertTrue(tree.getNodeHeight(tree.getRoot()) < 3.0);
+        }
+    }
+
+    private ConstantPopulation constantPopulation(double populationSize) {
+        ConstantPopulation demographic = new ConstantPopulation(Units.Type.YEARS);
+        demographic.setN0(populationSize);
+        return demographic;
+    }
+
+    private Taxa createTaxa(int n, boolean dated) {
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < n; i++) {
+            Taxon taxon = new Taxon("tip" + i);
+            if (dated) {
+                taxon.setDate(new Date(i * 0.1, Units.Type.YEARS, false));
+            }
+            taxa.addTaxon(taxon);
+        }
+        return taxa;
+    }
+
+    private double meanRootHeight(List<Tree> trees, Taxa taxa) {
+        double sum = 0.0;
+        for (Tree tree : trees) {
+            checkTree(tree, taxa);
+            sum += tree.getNodeHeight(tree.getRoot());
+        }
+        return sum / trees.size();
+    }
+
+    private void checkTree(Tree tree, Taxa taxa) {
+        assertEquals(taxa.getTaxonCount(), tree.getExternalNodeCount());
+        assertEquals(2 * taxa.getTaxonCount() - 1, tree.getNodeCount());
+
+        Set<Taxon> tips = new HashSet<Taxon>();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            tips.add(tree.getNodeTaxon(tree.getExternalNode(i)));
+        }
+        assertEquals(new HashSet<Taxon>(taxa.asList()), tips);
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            if (!tree.isRoot(node)) {
+                assertTrue(tree.getNodeHeight(tree.getParent(node)) >= tree.getNodeHeight(node));
+            }
+            if (!tree.isExternal(node)) {
+                assertEquals(2, tree.getChildCount(node));
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TreeSimulatorTest.class);
+    }
+}
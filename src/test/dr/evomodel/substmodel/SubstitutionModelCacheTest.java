@@ -0,0 +1,123 @@
+package test.dr.evomodel.substmodel;
+
+import dr.app.beagle.evomodel.substmodel.EigenDecomposition;
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.substmodel.AbstractSubstitutionModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.GTR;
+import dr.evomodel.substmodel.GeneralSubstitutionModel;
+import dr.evomodel.substmodel.HKY;
+import dr.evomodel.substmodel.SubstitutionModelCache;
+import dr.inference.model.Parameter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that cached eigen decompositions and transition probabilities are identical to freshly
+ * computed ones when a model moves back and forth between rate configurations.
+ */
+public class SubstitutionModelCacheTest extends TestCase {
+
+    private static final double[] FREQUENCIES = {0.1, 0.2, 0.3, 0.4};
+    private static final double[][] RATES = {
+            {1.0, 2.0, 0.5, 1.0, 3.0},
+            {1.0, 0.0, 0.5, 0.0, 3.0},
+            {4.0, 2.0, 0.1, 1.0, 0.2}
+    };
+
+    public SubstitutionModelCacheTest(String name) {
+        super(name);
+    }
+
+    public void testTransitionProbabilities() {
+        Parameter cachedRates = new Parameter.Default(RATES[0]);
+        Parameter rates = new Parameter.Default(RATES[0]);
+        GeneralSubstitutionModel cachedModel = createModel(cachedRates);
+        GeneralSubstitutionModel model = createModel(rates);
+
+        SubstitutionModelCache<AbstractSubstitutionModel.CachedEigenSystem> cache =
+                new SubstitutionModelCache<AbstractSubstitutionModel.CachedEigenSystem>(2, 4);
+        cachedModel.setSubstitutionModelCache(cache);
+
+        double[] expected = new double[16];
+        double[] actual = new double[16];
+
+        // visit 0, 1, 0, 2, 1 with room for two decompositions: 1 is evicted by 2
+        int[] visits = {0, 1, 0, 2, 1};
+        for (int visit : visits) {
+            setRates(cachedRates, RATES[visit]);
+            setRates(rates, RATES[visit]);
+            for (double distance : new double[]{0.1, 0.5, 0.1}) {
+                model.getTransitionProbabilities(distance, expected);
+                cachedModel.getTransitionProbabilities(distance, actual);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], actual[i], 0.0);
+                }
+            }
+        }
+
+        assertEquals(1.0, cache.getStatisticValue(0)); // eigen hits
+        assertEquals(4.0, cache.getStatisticValue(1)); // eigen misses
+        assertEquals(5.0, cache.getStatisticValue(2)); // matrix hits (the repeated distance)
+        assertEquals(10.0, cache.getStatisticValue(3)); // matrix misses
+    }
+
+    public void testNucleotideModels() {
+        Parameter kappa = new Parameter.Default(2.0);
+        GTR gtr = new GTR(kappa, null, null, null, kappa, null,
+                new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES));
+        assertTrue(gtr.isCacheable());
+        assertFalse(new HKY(kappa, new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES)).isCacheable());
+
+        SubstitutionModelCache<AbstractSubstitutionModel.CachedEigenSystem> cache =
+                new SubstitutionModelCache<AbstractSubstitutionModel.CachedEigenSystem>(2, 0);
+        gtr.setSubstitutionModelCache(cache);
+
+        double[] matrix = new double[16];
+        for (double value : new double[]{2.0, 3.0, 2.0, 3.0}) {
+            kappa.setParameterValue(0, value);
+            gtr.getTransitionProbabilities(0.1, matrix);
+        }
+        assertEquals(2.0, cache.getStatisticValue(0)); // eigen hits
+        assertEquals(2.0, cache.getStatisticValue(1)); // eigen misses
+    }
+
+    public void testLeastRecentlyUsed() {
+        SubstitutionModelCache<EigenDecomposition> cache = new SubstitutionModelCache<EigenDecomposition>(2, 0);
+        EigenDecomposition a = new EigenDecomposition(new double[]{1}, new double[]{1}, new double[]{0});
+        EigenDecomposition b = new EigenDecomposition(new double[]{2}, new double[]{2}, new double[]{0});
+        EigenDecomposition c = new EigenDecomposition(new double[]{3}, new double[]{3}, new double[]{0});
+
+        double[] key = {1.0, 2.0};
+        cache.putEigenSystem(key, a);
+        key[0] = -1.0; // the cache must have taken a copy of the key
+        cache.putEigenSystem(new double[]{2.0, 2.0}, b);
+        assertSame(a, cache.getEigenSystem(new double[]{1.0, 2.0}));
+
+        // b is now the least recently used
+        cache.putEigenSystem(new double[]{3.0, 2.0}, c);
+        assertNull(cache.getEigenSystem(new double[]{2.0, 2.0}));
+        assertSame(a, cache.getEigenSystem(new double[]{1.0, 2.0}));
+        assertSame(c, cache.getEigenSystem(new double[]{3.0, 2.0}));
+
+        // keys are compared exactly
+        assertNull(cache.getEigenSystem(new double[]{3.0, Math.nextUp(2.0)}));
+        assertEquals(2, cache.getDimension());
+    }
+
+    private GeneralSubstitutionModel createModel(Parameter rates) {
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES);
+        return new GeneralSubstitutionModel(Nucleotides.INSTANCE, frequencies, rates, 5);
+    }
+
+    private void setRates(Parameter parameter, double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            parameter.setParameterValue(i, values[i]);
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(SubstitutionModelCacheTest.class);
+    }
+}
@@ -0,0 +1,111 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.ArbitraryBranchRates;
+import dr.evomodel.sitemodel.GammaSiteModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.BranchRateGradient;
+import dr.evomodel.treelikelihood.NodeHeightGradient;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+import dr.evomodelxml.substmodel.HKYParser;
+import dr.inference.model.Parameter;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+/**
+ * Compares the pre-order branch length gradient with central finite differences.
+ */
+public class BranchLengthGradientTest extends TraceCorrelationAssert {
+
+    private TreeLikelihood treeLikelihood;
+    private Parameter rates;
+
+    public BranchLengthGradientTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        treeModel = createPrimateTreeModel();
+
+        Parameter freqs = new Parameter.Default(alignment.getStateFrequencies());
+        Parameter kappa = new Parameter.Default(HKYParser.KAPPA, 29.739445, 0, 100);
+
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, freqs);
+        HKY hky = new HKY(kappa, f);
+
+        GammaSiteModel siteModel = new GammaSiteModel(hky, 0.5, 4);
+
+        rates = new Parameter.Default(treeModel.getNodeCount() - 1, 1.0);
+        ArbitraryBranchRates branchRates = new ArbitraryBranchRates(treeModel, rates, false, false, true);
+        for (int i = 0; i < rates.getDimension(); i++) {
+            rates.setParameterValue(i, 0.5 + 0.1 * i);
+        }
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        treeLikelihood = new TreeLikelihood(patterns, treeModel, siteModel, branchRates, null,
+                false, false, true, false, false);
+    }
+
+    public void testBranchRateGradient() {
+        BranchRateGradient gradient = new BranchRateGradient(treeLikelihood);
+        assertGradient(gradient.getGradientLogDensity(), gradient.getParameter());
+    }
+
+    public void testNodeHeightGradient() {
+        NodeHeightGradient gradient = new NodeHeightGradient(treeLikelihood, true);
+        assertGradient(gradient.getGradientLogDensity(), gradient.getParameter());
+    }
+
+    public void testNodeHeightGradientAfterRootChange() {
+        NodeHeightGradient gradient = new NodeHeightGradient(treeLikelihood, false);
+        gradient.getGradientLogDensity();
+
+        // the height parameter of the new root moves to the old one
+        final NodeRef root = treeModel.getRoot();
+        NodeRef child = treeModel.getChild(root, 0);
+        if (treeModel.isExternal(child)) {
+            child = treeModel.getChild(root, 1);
+        }
+        reroot(treeModel, child, treeModel.getChild(child, 0));
+
+        assertGradient(gradient.getGradientLogDensity(), gradient.getParameter());
+    }
+
+    private void reroot(TreeModel tree, NodeRef child, NodeRef grandchild) {
+        final NodeRef root = tree.getRoot();
+        final double height = tree.getNodeHeight(root) + 1.0;
+        tree.beginTreeEdit();
+        tree.removeChild(root, child);
+        tree.removeChild(child, grandchild);
+        tree.addChild(root, grandchild);
+        tree.addChild(child, root);
+        tree.setRoot(child);
+        tree.endTreeEdit();
+        tree.setNodeHeight(child, height);
+    }
+
+    private void assertGradient(double[] analytic, Parameter parameter) {
+        assertEquals(parameter.getDimension(), analytic.length);
+
+        for (int i = 0; i < parameter.getDimension(); i++) {
+            final double x = parameter.getParameterValue(i);
+            final double h = 1E-6 * Math.max(1.0, Math.abs(x));
+
+            parameter.setParameterValue(i, x + h);
+            final double plus = treeLikelihood.getLogLikelihood();
+            parameter.setParameterValue(i, x - h);
+            final double minus = treeLikelihood.getLogLikelihood();
+            parameter.setParameterValue(i, x);
+
+            final double numeric = (plus - minus) / (2.0 * h);
+            assertEquals(numeric, analytic[i], 1E-4 * Math.max(1.0, Math.abs(numeric)));
+        }
+    }
+}
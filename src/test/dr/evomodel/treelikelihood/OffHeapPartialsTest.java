@@ -0,0 +1,102 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.treelikelihood.AbstractLikelihoodCore;
+import dr.evomodel.treelikelihood.OffHeapPartialsStore;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+
+import java.io.File;
+
+/**
+ * Checks that the tree likelihood is the same with the partials kept outside the heap, in direct
+ * memory or mapped to a file, through changes of topology and branch lengths that are accepted or
+ * rejected, and close to it with the partials in single precision.
+ */
+public class OffHeapPartialsTest extends TreeLikelihoodAssert {
+
+    public OffHeapPartialsTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+    }
+
+    public void testDirect() {
+        checkMoves(false, false, null, false, 0.0);
+        checkMoves(true, false, null, false, 0.0);
+    }
+
+    public void testMapped() {
+        checkMoves(false, false, new File(System.getProperty("java.io.tmpdir")), false, 0.0);
+    }
+
+    public void testSiteRepeats() {
+        checkMoves(false, false, null, true, 0.0);
+    }
+
+    public void testSinglePrecision() {
+        checkMoves(false, true, null, false, 1E-6);
+        checkMoves(true, true, null, true, 1E-6);
+    }
+
+    public void testSmallStore() throws Exception {
+        final File directory = File.createTempFile("partials", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            OffHeapPartialsStore store = new OffHeapPartialsStore(2, 5, 100, false, directory);
+            for (int i = 0; i < 5; i++) {
+                store.create(i);
+            }
+            assertEquals(2 * 5 * 100 * 8, store.getAllocatedBytes());
+            // no more is mapped than the partials take
+            assertEquals(store.getAllocatedBytes(), directory.listFiles()[0].length());
+            store.close();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void testPrecisionCheckReleasesPartials() throws Exception {
+        final File directory = File.createTempFile("partials", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        try {
+            treeModel = createPrimateTreeModel();
+            TreeLikelihood expected = createTreeLikelihood(false, false, false, null);
+            TreeLikelihood actual = createTreeLikelihood(false, true, true, directory);
+            actual.setPrecisionCheck(1, 0.01);
+
+            for (int n = 0; n < 5; n++) {
+                moveRoot(expected, actual, 1.01, 1E-6);
+            }
+            assertTrue(actual.isUsingSinglePrecision());
+            // only the file of the partials in single precision is left
+            assertEquals(1, directory.listFiles().length);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private void checkMoves(boolean useAmbiguities, boolean singlePrecision, File directory, boolean useSiteRepeats,
+                            double relativeTolerance) {
+        treeModel = createPrimateTreeModel();
+
+        TreeLikelihood expected = createTreeLikelihood(useAmbiguities, false, false, null);
+        TreeLikelihood actual = createTreeLikelihood(useAmbiguities, true, singlePrecision, directory);
+        if (useSiteRepeats) {
+            expected.setUseSiteRepeats(true);
+            actual.setUseSiteRepeats(true);
+        }
+        assertTrue(((AbstractLikelihoodCore) actual.getLikelihoodCore()).isUsingOffHeapPartials());
+        assertFalse(((AbstractLikelihoodCore) expected.getLikelihoodCore()).isUsingOffHeapPartials());
+
+        checkMoves(expected, actual, relativeTolerance);
+    }
+}
@@ -0,0 +1,99 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.treelikelihood.FloatLikelihoodCore;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+
+/**
+ * Checks that the tree likelihood with the single precision core is close to the likelihood in
+ * double precision, and that it switches to double precision when the check of its precision
+ * fails. Both cores are also checked to restore partials that were evaluated more than once.
+ */
+public class SinglePrecisionTest extends TreeLikelihoodAssert {
+
+    public SinglePrecisionTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+    }
+
+    public void testSinglePrecision() {
+        checkMoves(false);
+        checkMoves(true);
+    }
+
+    public void testPrecisionCheck() {
+        treeModel = createPrimateTreeModel();
+        TreeLikelihood expected = createTreeLikelihood(false, false, false, null);
+        TreeLikelihood actual = createTreeLikelihood(false, false, true, null);
+        actual.setPrecisionCheck(2, 0.01);
+
+        for (int n = 0; n < 4; n++) {
+            moveRoot(expected, actual, 1.01, 1E-6);
+        }
+        assertTrue(actual.isUsingSinglePrecision());
+        assertTrue(actual.getLikelihoodCore() instanceof FloatLikelihoodCore);
+
+        // no likelihood in single precision is close enough to pass, and the move it fails on is rejected
+        actual.setPrecisionCheck(1, -1.0);
+        expected.storeModelState();
+        actual.storeModelState();
+        treeModel.storeModelState();
+        scaleRootHeight(1.0 / 1.01);
+        assertClose(expected, actual, 1E-6);
+        treeModel.restoreModelState();
+        expected.restoreModelState();
+        actual.restoreModelState();
+        assertFalse(actual.isUsingSinglePrecision());
+        assertFalse(actual.getLikelihoodCore() instanceof FloatLikelihoodCore);
+        for (int n = 0; n < 4; n++) {
+            moveRoot(expected, actual, 1.0 / 1.01, 1E-6);
+            assertEquals(expected.getLogLikelihood(), actual.getLogLikelihood(), 1E-10);
+        }
+    }
+
+    public void testRestoreAfterRepeatedEvaluation() {
+        checkRestoreAfterRepeatedEvaluation(false);
+        checkRestoreAfterRepeatedEvaluation(true);
+    }
+
+    /**
+     * Evaluates several changes before restoring, as an operator that follows a trajectory does,
+     * and checks that a change after the restore is calculated from the restored partials.
+     */
+    private void checkRestoreAfterRepeatedEvaluation(boolean singlePrecision) {
+        treeModel = createPrimateTreeModel();
+        TreeLikelihood likelihood = createTreeLikelihood(false, false, singlePrecision, null);
+        likelihood.getLogLikelihood();
+
+        likelihood.storeModelState();
+        treeModel.storeModelState();
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < treeModel.getInternalNodeCount(); i++) {
+                final NodeRef node = treeModel.getInternalNode(i);
+                treeModel.setNodeHeight(node, treeModel.getNodeHeight(node) * 1.01);
+            }
+            likelihood.getLogLikelihood();
+        }
+        treeModel.restoreModelState();
+        likelihood.restoreModelState();
+
+        // only the root is recalculated
+        scaleRootHeight(1.01);
+        assertClose(createTreeLikelihood(false, false, singlePrecision, null), likelihood, 1E-10);
+    }
+
+    private void checkMoves(boolean useAmbiguities) {
+        treeModel = createPrimateTreeModel();
+
+        TreeLikelihood expected = createTreeLikelihood(useAmbiguities, false, false, null);
+        TreeLikelihood actual = createTreeLikelihood(useAmbiguities, false, true, null);
+        assertTrue(actual.getLikelihoodCore() instanceof FloatLikelihoodCore);
+
+        checkMoves(expected, actual, 1E-6);
+    }
+}
@@ -0,0 +1,52 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.treelikelihood.AbstractLikelihoodCore;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+
+/**
+ * Checks that the tree likelihood is exactly the same with and without site repeats, through
+ * changes of topology and branch lengths that are accepted or rejected.
+ */
+public class SiteRepeatsTest extends TreeLikelihoodAssert {
+
+    public SiteRepeatsTest(String name) {
+        super(name);
+    }
+
+    public void testPrimates() {
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        checkMoves(false);
+        checkMoves(true);
+    }
+
+    public void testLowDiversity() {
+        // every taxon differs from the first at a few sites only
+        final String[] taxa = PRIMATES_TAXON_SEQUENCE[0];
+        final String reference = PRIMATES_TAXON_SEQUENCE[1][0];
+        final String[][] taxonSequence = new String[2][taxa.length];
+        for (int i = 0; i < taxa.length; i++) {
+            taxonSequence[0][i] = taxa[i];
+            StringBuilder sequence = new StringBuilder(reference);
+            for (int j = 0; j < 40; j++) {
+                final int site = (j * 97 + i * 13) % sequence.length();
+                sequence.setCharAt(site, PRIMATES_TAXON_SEQUENCE[1][i].charAt((site + i) % sequence.length()));
+            }
+            taxonSequence[1][i] = sequence.toString();
+        }
+        createAlignment(taxonSequence, Nucleotides.INSTANCE);
+        checkMoves(false);
+        checkMoves(true);
+    }
+
+    private void checkMoves(boolean useAmbiguities) {
+        treeModel = createPrimateTreeModel();
+
+        TreeLikelihood expected = createTreeLikelihood(useAmbiguities, false, false, null);
+        TreeLikelihood actual = createTreeLikelihood(useAmbiguities, false, false, null);
+        actual.setUseSiteRepeats(true);
+        assertTrue(((AbstractLikelihoodCore) actual.getLikelihoodCore()).isUsingSiteRepeats());
+
+        checkMoves(expected, actual, 0.0);
+    }
+}
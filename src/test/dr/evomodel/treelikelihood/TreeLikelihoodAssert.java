@@ -0,0 +1,135 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.sitemodel.GammaSiteModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.HKY;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+import dr.evomodelxml.substmodel.HKYParser;
+import dr.inference.model.Parameter;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.io.File;
+
+/**
+ * Compares two tree likelihoods of the same alignment on the primate tree, a reference and one
+ * calculated some other way, through changes of topology and branch lengths that are accepted
+ * or rejected.
+ */
+public abstract class TreeLikelihoodAssert extends TraceCorrelationAssert {
+
+    public TreeLikelihoodAssert(String name) {
+        super(name);
+    }
+
+    /**
+     * @return the likelihood of the alignment on the tree model under HKY with gamma rates
+     */
+    protected TreeLikelihood createTreeLikelihood(boolean useAmbiguities, boolean offHeap, boolean singlePrecision,
+                                                  File directory) {
+        Parameter freqs = new Parameter.Default(alignment.getStateFrequencies());
+        Parameter kappa = new Parameter.Default(HKYParser.KAPPA, 29.739445, 0, 100);
+
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, freqs);
+        HKY hky = new HKY(kappa, f);
+
+        GammaSiteModel siteModel = new GammaSiteModel(hky, 0.5, 4);
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        return new TreeLikelihood(patterns, treeModel, siteModel, null, null,
+                useAmbiguities, false, true, true, false, offHeap, singlePrecision, directory);
+    }
+
+    /**
+     * Swaps each branch in turn with another it can be swapped with, and then changes the height
+     * of the root, comparing the likelihoods after each change and after accepting or rejecting
+     * them.
+     */
+    protected void checkMoves(TreeLikelihood expected, TreeLikelihood actual, double relativeTolerance) {
+        assertClose(expected, actual, relativeTolerance);
+
+        for (int n = 0; n < treeModel.getNodeCount(); n++) {
+            final NodeRef i = treeModel.getNode(n);
+            if (treeModel.isRoot(i)) {
+                continue;
+            }
+            final NodeRef iP = treeModel.getParent(i);
+            for (int m = 0; m < treeModel.getNodeCount(); m++) {
+                final NodeRef j = treeModel.getNode(m);
+                if (treeModel.isRoot(j)) {
+                    continue;
+                }
+                final NodeRef jP = treeModel.getParent(j);
+                if (jP == iP || treeModel.getNodeHeight(j) >= treeModel.getNodeHeight(iP)
+                        || treeModel.getNodeHeight(i) >= treeModel.getNodeHeight(jP)) {
+                    continue;
+                }
+
+                expected.storeModelState();
+                actual.storeModelState();
+                treeModel.storeModelState();
+
+                swap(i, j, iP, jP);
+                assertClose(expected, actual, relativeTolerance);
+
+                // a branch length change without a change of topology
+                scaleRootHeight(1.01);
+                assertClose(expected, actual, relativeTolerance);
+
+                if ((n + m) % 2 == 0) {
+                    treeModel.restoreModelState();
+                    expected.restoreModelState();
+                    actual.restoreModelState();
+                } else {
+                    treeModel.acceptModelState();
+                    expected.acceptModelState();
+                    actual.acceptModelState();
+                }
+                assertClose(expected, actual, relativeTolerance);
+
+                // the restored or accepted partials are used for the next change
+                scaleRootHeight(1.0 / 1.01);
+                assertClose(expected, actual, relativeTolerance);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Scales the height of the root, compares the likelihoods and accepts the change.
+     */
+    protected void moveRoot(TreeLikelihood expected, TreeLikelihood actual, double scale, double relativeTolerance) {
+        expected.storeModelState();
+        actual.storeModelState();
+        treeModel.storeModelState();
+
+        scaleRootHeight(scale);
+        assertClose(expected, actual, relativeTolerance);
+
+        treeModel.acceptModelState();
+        expected.acceptModelState();
+        actual.acceptModelState();
+    }
+
+    protected void assertClose(TreeLikelihood expected, TreeLikelihood actual, double relativeTolerance) {
+        final double logL = expected.getLogLikelihood();
+        assertEquals(logL, actual.getLogLikelihood(), Math.abs(logL) * relativeTolerance);
+    }
+
+    protected void scaleRootHeight(double scale) {
+        final NodeRef root = treeModel.getRoot();
+        treeModel.setNodeHeight(root, treeModel.getNodeHeight(root) * scale);
+    }
+
+    protected void swap(NodeRef i, NodeRef j, NodeRef iP, NodeRef jP) {
+        treeModel.beginTreeEdit();
+        treeModel.removeChild(iP, i);
+        treeModel.removeChild(jP, j);
+        treeModel.addChild(jP, i);
+        treeModel.addChild(iP, j);
+        treeModel.endTreeEdit();
+    }
+}
@@ -0,0 +1,256 @@
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.ArbitraryBranchRates;
+import dr.evomodel.sitemodel.GammaSiteModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.HKY;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+import dr.evomodel.treelikelihood.TreeLikelihoodComponents;
+import dr.evomodel.treelikelihood.TreeRearrangementScorer;
+import dr.evomodelxml.substmodel.HKYParser;
+import dr.inference.model.Parameter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the candidate scores of TreeRearrangementScorer with the tree likelihood of the
+ * same rearrangements applied to the tree model.
+ */
+public class TreeRearrangementScorerTest extends TreeLikelihoodAssert {
+
+    private TreeLikelihood treeLikelihood;
+    private Parameter kappa;
+    private Parameter rates;
+
+    public TreeRearrangementScorerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        createAlignment(PRIMATES_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        treeModel = createPrimateTreeModel();
+
+        Parameter freqs = new Parameter.Default(alignment.getStateFrequencies());
+        kappa = new Parameter.Default(HKYParser.KAPPA, 29.739445, 0, 100);
+
+        FrequencyModel f = new FrequencyModel(Nucleotides.INSTANCE, freqs);
+        HKY hky = new HKY(kappa, f);
+
+        GammaSiteModel siteModel = new GammaSiteModel(hky, 0.5, 4);
+
+        rates = new Parameter.Default(treeModel.getNodeCount() - 1, 1.0);
+        ArbitraryBranchRates branchRates = new ArbitraryBranchRates(treeModel, rates, false, false, true);
+        for (int i = 0; i < rates.getDimension(); i++) {
+            rates.setParameterValue(i, 0.5 + 0.1 * i);
+        }
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        treeLikelihood = new TreeLikelihood(patterns, treeModel, siteModel, branchRates, null,
+                false, false, true, false, false);
+    }
+
+    public void testRegrafts() {
+        final double logLikelihood = treeLikelihood.getLogLikelihood();
+        TreeRearrangementScorer scorer = createScorer(1);
+        scorer.update(treeModel);
+        assertEquals(logLikelihood, scorer.getLogLikelihood(), 1E-8);
+
+        for (int n = 0; n < treeModel.getNodeCount(); n++) {
+            final NodeRef i = treeModel.getNode(n);
+            if (treeModel.isRoot(i) || treeModel.isRoot(treeModel.getParent(i))) {
+                continue;
+            }
+            final NodeRef iP = treeModel.getParent(i);
+            final double heightIP = treeModel.getNodeHeight(iP);
+
+            List<Integer> targets = new ArrayList<Integer>();
+            for (int m = 0; m < treeModel.getNodeCount(); m++) {
+                final NodeRef j = treeModel.getNode(m);
+                if (!treeModel.isRoot(j) && i != j && treeModel.getParent(j) != iP
+                        && treeModel.getNodeHeight(j) < heightIP
+                        && heightIP < treeModel.getNodeHeight(treeModel.getParent(j))) {
+                    targets.add(m);
+                }
+            }
+
+            final double[] scores = scorer.scoreRegrafts(i, toArray(targets));
+            for (int k = 0; k < scores.length; k++) {
+                final NodeRef brother = getOtherChild(iP, i);
+                final NodeRef grandfather = treeModel.getParent(iP);
+                final NodeRef j = treeModel.getNode(targets.get(k));
+
+                regraft(i, j);
+                assertEquals(treeLikelihood.getLogLikelihood(), scores[k], 1E-8);
+                regraft(i, brother);
+                assertEquals(grandfather, treeModel.getParent(iP));
+            }
+        }
+        assertEquals(logLikelihood, treeLikelihood.getLogLikelihood(), 1E-8);
+    }
+
+    public void testSwaps() {
+        TreeRearrangementScorer scorer = createScorer(1);
+        scorer.update(treeModel);
+
+        for (int n = 0; n < treeModel.getNodeCount(); n++) {
+            final NodeRef i = treeModel.getNode(n);
+            if (treeModel.isRoot(i)) {
+                continue;
+            }
+            final NodeRef iP = treeModel.getParent(i);
+
+            List<Integer> targets = new ArrayList<Integer>();
+            for (int m = 0; m < treeModel.getNodeCount(); m++) {
+                final NodeRef j = treeModel.getNode(m);
+                if (!treeModel.isRoot(j) && treeModel.getParent(j) != iP
+                        && treeModel.getNodeHeight(j) < treeModel.getNodeHeight(iP)
+                        && treeModel.getNodeHeight(i) < treeModel.getNodeHeight(treeModel.getParent(j))) {
+                    targets.add(m);
+                }
+            }
+
+            final double[] scores = scorer.scoreSwaps(i, toArray(targets));
+            for (int k = 0; k < scores.length; k++) {
+                final NodeRef j = treeModel.getNode(targets.get(k));
+                final NodeRef jP = treeModel.getParent(j);
+
+                swap(i, j, iP, jP);
+                assertEquals(treeLikelihood.getLogLikelihood(), scores[k], 1E-8);
+                swap(i, j, jP, iP);
+            }
+        }
+    }
+
+    public void testThreads() {
+        TreeRearrangementScorer serial = createScorer(1);
+        TreeRearrangementScorer parallel = createScorer(3);
+        serial.update(treeModel);
+        parallel.update(treeModel);
+
+        for (int n = 0; n < treeModel.getNodeCount(); n++) {
+            final NodeRef i = treeModel.getNode(n);
+            if (treeModel.isRoot(i) || treeModel.isRoot(treeModel.getParent(i))) {
+                continue;
+            }
+            final double heightIP = treeModel.getNodeHeight(treeModel.getParent(i));
+            List<Integer> targets = new ArrayList<Integer>();
+            for (int m = 0; m < treeModel.getNodeCount(); m++) {
+                final NodeRef j = treeModel.getNode(m);
+                if (!treeModel.isRoot(j) && i != j && treeModel.getParent(j) != treeModel.getParent(i)
+                        && treeModel.getNodeHeight(j) < heightIP
+                        && heightIP < treeModel.getNodeHeight(treeModel.getParent(j))) {
+                    targets.add(m);
+                }
+            }
+
+            final double[] expected = serial.scoreRegrafts(i, toArray(targets));
+            final double[] actual = parallel.scoreRegrafts(i, toArray(targets));
+            for (int k = 0; k < expected.length; k++) {
+                assertEquals(expected[k], actual[k], 1E-10);
+            }
+        }
+    }
+
+    public void testRepeatedUpdates() {
+        TreeRearrangementScorer scorer = createScorer(1);
+        scorer.update(treeModel);
+
+        // a node height, which changes the branches above and below it
+        NodeRef node = treeModel.getNode(treeModel.getExternalNodeCount());
+        if (treeModel.isRoot(node)) {
+            node = treeModel.getNode(treeModel.getExternalNodeCount() + 1);
+        }
+        final double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        final double upper = treeModel.getNodeHeight(treeModel.getParent(node));
+        treeModel.setNodeHeight(node, 0.25 * lower + 0.75 * upper);
+        assertUpdate(scorer);
+
+        // a branch rate
+        rates.setParameterValue(2, 1.7);
+        assertUpdate(scorer);
+
+        // the topology
+        for (int n = 0; n < treeModel.getNodeCount(); n++) {
+            final NodeRef i = treeModel.getNode(n);
+            if (treeModel.isRoot(i) || treeModel.isRoot(treeModel.getParent(i))) {
+                continue;
+            }
+            final NodeRef iP = treeModel.getParent(i);
+            final double heightIP = treeModel.getNodeHeight(iP);
+            for (int m = 0; m < treeModel.getNodeCount(); m++) {
+                final NodeRef j = treeModel.getNode(m);
+                if (!treeModel.isRoot(j) && i != j && treeModel.getParent(j) != iP
+                        && treeModel.getNodeHeight(j) < heightIP
+                        && heightIP < treeModel.getNodeHeight(treeModel.getParent(j))) {
+                    final NodeRef brother = getOtherChild(iP, i);
+                    regraft(i, j);
+                    assertUpdate(scorer);
+                    regraft(i, brother);
+                    assertUpdate(scorer);
+                }
+            }
+        }
+
+        // the substitution model
+        kappa.setParameterValue(0, 5.0);
+        assertUpdate(scorer);
+
+        // nothing at all
+        assertUpdate(scorer);
+    }
+
+    private void assertUpdate(TreeRearrangementScorer scorer) {
+        scorer.update(treeModel);
+        assertEquals(treeLikelihood.getLogLikelihood(), scorer.getLogLikelihood(), 1E-8);
+
+        TreeRearrangementScorer fresh = createScorer(1);
+        fresh.update(treeModel);
+        assertEquals(fresh.getLogLikelihood(), scorer.getLogLikelihood(), 1E-10);
+    }
+
+    private TreeRearrangementScorer createScorer(int threads) {
+        List<TreeLikelihoodComponents> partitions = new ArrayList<TreeLikelihoodComponents>();
+        partitions.add(treeLikelihood.getLikelihoodComponents());
+        return new TreeRearrangementScorer(partitions, threads);
+    }
+
+    private int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int k = 0; k < array.length; k++) {
+            array[k] = list.get(k);
+        }
+        return array;
+    }
+
+    private NodeRef getOtherChild(NodeRef parent, NodeRef child) {
+        if (treeModel.getChild(parent, 0) == child) {
+            return treeModel.getChild(parent, 1);
+        }
+        return treeModel.getChild(parent, 0);
+    }
+
+    /* moves i and its parent onto the branch above j */
+    private void regraft(NodeRef i, NodeRef j) {
+        final NodeRef iP = treeModel.getParent(i);
+        final NodeRef brother = getOtherChild(iP, i);
+        final NodeRef grandfather = treeModel.getParent(iP);
+        final NodeRef jP = treeModel.getParent(j);
+
+        treeModel.beginTreeEdit();
+        treeModel.removeChild(iP, brother);
+        treeModel.removeChild(grandfather, iP);
+        treeModel.addChild(grandfather, brother);
+        treeModel.removeChild(jP, j);
+        treeModel.addChild(iP, j);
+        treeModel.addChild(jP, iP);
+        treeModel.endTreeEdit();
+    }
+}
@@ -0,0 +1,58 @@
+package test.dr.geo;
+
+import dr.geo.BinnedKernelDensityEstimator2D;
+import dr.geo.KernelDensityEstimator2D;
+import dr.geo.contouring.ContourPath;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the binned estimate is close to the direct kernel density estimate.
+ */
+public class BinnedKernelDensityEstimator2DTest extends TestCase {
+
+    public BinnedKernelDensityEstimator2DTest(String name) {
+        super(name);
+    }
+
+    public void testDensity() {
+        MathUtils.setSeed(666);
+        final double[][] sample = bimodalSample(2000);
+
+        KernelDensityEstimator2D expected = new KernelDensityEstimator2D(sample[0], sample[1], 50);
+        KernelDensityEstimator2D actual = new BinnedKernelDensityEstimator2D(sample[0], sample[1], 50);
+
+        double[][] z0 = expected.getKDE();
+        double[][] z1 = actual.getKDE();
+        double max = 0;
+        for (double[] row : z0) {
+            for (double value : row) {
+                max = Math.max(max, value);
+            }
+        }
+        for (int i = 0; i < z0.length; i++) {
+            for (int j = 0; j < z0[i].length; j++) {
+                assertEquals(z0[i][j], z1[i][j], 0.02 * max);
+            }
+        }
+
+        assertEquals(expected.findLevelCorrespondingToMass(0.8), actual.findLevelCorrespondingToMass(0.8),
+                0.02 * max);
+    }
+
+    private double[][] bimodalSample(int n) {
+        double[][] sample = new double[2][n];
+        for (int k = 0; k < n; k++) {
+            final boolean first = MathUtils.nextDouble() < 0.6;
+            sample[0][k] = (first ? -1.0 : 2.0) + MathUtils.nextGaussian() * (first ? 0.5 : 1.0);
+            sample[1][k] = (first ? 3.0 : 0.0) + MathUtils.nextGaussian() * 0.8;
+        }
+        return sample;
+    }
+
+    public static Test suite() {
+        return new TestSuite(BinnedKernelDensityEstimator2DTest.class);
+    }
+}
@@ -0,0 +1,72 @@
+package test.dr.geo;
+
+import dr.geo.Polygon2D;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that point-in-polygon queries on a polygon with many edges, which use a grid, agree with a
+ * ray-cast over every edge.
+ */
+public class PolygonIndexTest extends TestCase {
+
+    public PolygonIndexTest(String name) {
+        super(name);
+    }
+
+    public void testContains() {
+        MathUtils.setSeed(666);
+
+        // a jagged star, like a detailed coastline
+        final int n = 5000;
+        double[] x = new double[n + 1];
+        double[] y = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            final double angle = 2 * Math.PI * i / n;
+            final double radius = 10 + 3 * Math.sin(37 * angle) + MathUtils.nextDouble();
+            x[i] = radius * Math.cos(angle) - 100;
+            y[i] = radius * Math.sin(angle) + 40;
+        }
+        x[n] = x[0];
+        y[n] = y[0];
+        Polygon2D polygon = new Polygon2D(x, y);
+
+        int inside = 0;
+        for (int k = 0; k < 100000; k++) {
+            final double px;
+            final double py;
+            if (k % 10 == 0) {
+                // on a vertex, or level with one
+                final int i = MathUtils.nextInt(n);
+                px = k % 20 == 0 ? x[i] : x[i] + MathUtils.nextGaussian();
+                py = y[i];
+            } else {
+                px = MathUtils.uniform(-116, -84);
+                py = MathUtils.uniform(24, 56);
+            }
+            final boolean expected = rayCast(x, y, n, px, py);
+            assertEquals(expected, polygon.containsPoint2D(px, py));
+            if (expected) {
+                inside++;
+            }
+        }
+        assertTrue(inside > 10000);
+    }
+
+    private static boolean rayCast(double[] x, double[] y, int length, double inX, double inY) {
+        boolean contains = false;
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            if ((((y[i] <= inY) && (inY < y[j])) ||
+                    ((y[j] <= inY) && (inY < y[i]))) &&
+                    (inX < (x[j] - x[i]) * (inY - y[i]) / (y[j] - y[i]) + x[i]))
+                contains = !contains;
+        }
+        return contains;
+    }
+
+    public static Test suite() {
+        return new TestSuite(PolygonIndexTest.class);
+    }
+}
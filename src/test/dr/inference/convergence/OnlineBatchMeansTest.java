@@ -0,0 +1,72 @@
+package test.dr.inference.convergence;
+
+import dr.inference.convergence.OnlineBatchMeans;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the online batch means estimate of the effective sample size of an autoregressive series,
+ * for which it is known.
+ */
+public class OnlineBatchMeansTest extends TestCase {
+
+    public OnlineBatchMeansTest(String name) {
+        super(name);
+    }
+
+    public void testMeanAndVariance() {
+        MathUtils.setSeed(5);
+        final int n = 1000;
+        double[] values = new double[n];
+        OnlineBatchMeans batchMeans = new OnlineBatchMeans();
+        for (int i = 0; i < n; i++) {
+            values[i] = 1000.0 + MathUtils.nextGaussian();
+            batchMeans.add(values[i]);
+        }
+
+        double mean = 0.0;
+        for (double value : values) {
+            mean += value / n;
+        }
+        double variance = 0.0;
+        for (double value : values) {
+            variance += (value - mean) * (value - mean) / (n - 1);
+        }
+        assertEquals(n, batchMeans.getCount());
+        assertEquals(mean, batchMeans.getMean(), 1e-10);
+        assertEquals(variance, batchMeans.getVariance(), 1e-10);
+    }
+
+    public void testESS() {
+        MathUtils.setSeed(7);
+        final int n = 400000;
+        final double[] rhos = {0.0, 0.5, 0.9};
+        for (double rho : rhos) {
+            OnlineBatchMeans batchMeans = new OnlineBatchMeans();
+            assertFalse(batchMeans.isEstimable());
+            double x = 0.0;
+            for (int i = 0; i < n; i++) {
+                x = rho * x + MathUtils.nextGaussian();
+                batchMeans.add(x);
+            }
+            assertTrue(batchMeans.isEstimable());
+            final double expected = n * (1.0 - rho) / (1.0 + rho);
+            assertEquals(1.0, batchMeans.getESS() / expected, 0.3);
+        }
+    }
+
+    public void testConstant() {
+        OnlineBatchMeans batchMeans = new OnlineBatchMeans(4);
+        for (int i = 0; i < 100; i++) {
+            batchMeans.add(2.5);
+        }
+        assertEquals(2.5, batchMeans.getMean(), 0.0);
+        assertEquals(100.0, batchMeans.getESS(), 0.0);
+    }
+
+    public static Test suite() {
+        return new TestSuite(OnlineBatchMeansTest.class);
+    }
+}
@@ -0,0 +1,68 @@
+package test.dr.inference.convergence;
+
+import dr.inference.convergence.PotentialScaleReduction;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the online potential scale reduction factors against a direct computation from the samples.
+ */
+public class PotentialScaleReductionTest extends TestCase {
+
+    public PotentialScaleReductionTest(String name) {
+        super(name);
+    }
+
+    public void testPSRF() {
+        MathUtils.setSeed(11);
+        final int m = 4;
+        final int n = 2000;
+        // the first value mixes well, the second has a chain stuck elsewhere
+        double[][][] samples = new double[m][n][2];
+        for (int j = 0; j < m; j++) {
+            for (int k = 0; k < n; k++) {
+                samples[j][k][0] = MathUtils.nextGaussian();
+                samples[j][k][1] = MathUtils.nextGaussian() + (j == 0 ? 3.0 : 0.0);
+            }
+        }
+
+        PotentialScaleReduction psrf = new PotentialScaleReduction(m, 2);
+        assertTrue(Double.isNaN(psrf.getPSRF(0)));
+        for (int k = 0; k < n; k++) {
+            for (int j = 0; j < m; j++) {
+                psrf.add(j, samples[j][k]);
+            }
+        }
+
+        for (int i = 0; i < 2; i++) {
+            double[] means = new double[m];
+            double within = 0.0;
+            for (int j = 0; j < m; j++) {
+                for (int k = 0; k < n; k++) {
+                    means[j] += samples[j][k][i] / n;
+                }
+                for (int k = 0; k < n; k++) {
+                    within += (samples[j][k][i] - means[j]) * (samples[j][k][i] - means[j]) / (n - 1) / m;
+                }
+            }
+            double grandMean = 0.0;
+            for (double mean : means) {
+                grandMean += mean / m;
+            }
+            double between = 0.0;
+            for (double mean : means) {
+                between += n * (mean - grandMean) * (mean - grandMean) / (m - 1);
+            }
+            final double expected = Math.sqrt(((n - 1.0) / n * within + between / n) / within);
+            assertEquals(expected, psrf.getPSRF(i), 1e-10);
+        }
+        assertEquals(1.0, psrf.getPSRF(0), 0.01);
+        assertTrue(psrf.getPSRF(1) > 1.5);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PotentialScaleReductionTest.class);
+    }
+}
@@ -0,0 +1,153 @@
+package test.dr.inference.mcmc;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.mcmc.ModelReplicator;
+import dr.inference.model.Parameter;
+import dr.util.Identifiable;
+import dr.xml.ObjectNotFoundException;
+import dr.xml.ObjectStore;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks that the state of one copy of a model is given to another by the ids of its objects.
+ */
+public class ModelReplicatorTest extends TestCase {
+
+    public ModelReplicatorTest(String name) {
+        super(name);
+    }
+
+    public void testCopyState() throws Exception {
+        TreeModel fromTree = new TreeModel("tree",
+                new NewickImporter("((A:1.0,B:1.0):2.0,(C:0.5,(D:0.25,E:0.25):0.25):2.5);").importTree(null));
+        // the tips in another order and the internal nodes with other numbers
+        TreeModel toTree = new TreeModel("tree",
+                new NewickImporter("(E:3.0,(D:2.0,(C:1.5,(B:1.0,A:1.0):0.5):0.5):1.0);").importTree(null));
+
+        Map<String, Object> from = new HashMap<String, Object>();
+        from.put("tree", fromTree);
+        from.put("rate", new Parameter.Default(new double[]{1.5, 2.5}));
+        from.put("other", new Parameter.Default(1, 3.0));
+
+        Map<String, Object> to = new HashMap<String, Object>();
+        to.put("tree", toTree);
+        Parameter rate = new Parameter.Default(new double[]{0.0, 0.0});
+        to.put("rate", rate);
+        Parameter mismatched = new Parameter.Default(new double[]{7.0, 7.0});
+        to.put("other", mismatched);
+
+        ModelReplicator.copyState(createStore(from), createStore(to));
+
+        assertEquals(Tree.Utils.uniqueNewick(fromTree, fromTree.getRoot()),
+                Tree.Utils.uniqueNewick(toTree, toTree.getRoot()));
+        assertEquals(3.0, toTree.getNodeHeight(toTree.getRoot()), 0.0);
+        assertTrue(Arrays.equals(getHeights(fromTree), getHeights(toTree)));
+        for (int i = 0; i < toTree.getExternalNodeCount(); i++) {
+            assertEquals(0.0, toTree.getNodeHeight(toTree.getExternalNode(i)), 0.0);
+        }
+
+        assertEquals(1.5, rate.getParameterValue(0), 0.0);
+        assertEquals(2.5, rate.getParameterValue(1), 0.0);
+        // parameters of other dimensions are left alone
+        assertEquals(7.0, mismatched.getParameterValue(0), 0.0);
+    }
+
+    public void testCopyStateAfterRootChanges() throws Exception {
+        final String newick = "((A:1.0,B:1.0):2.0,(C:0.5,(D:0.25,E:0.25):0.25):2.5);";
+        TreeModel fromTree = new TreeModel("tree", new NewickImporter(newick).importTree(null));
+        TreeModel toTree = new TreeModel("tree", new NewickImporter(newick).importTree(null));
+
+        // each node made the root swaps its parameters with the old root, so after two moves of the
+        // root the parameters are not where a single move would put them
+        NodeRef c = getTip(fromTree, "C");
+        reroot(fromTree, fromTree.getParent(c), c);
+        NodeRef e = getTip(fromTree, "E");
+        reroot(fromTree, fromTree.getParent(e), e);
+
+        Map<String, Object> from = new HashMap<String, Object>();
+        from.put("tree", fromTree);
+        Map<String, Object> to = new HashMap<String, Object>();
+        to.put("tree", toTree);
+        ModelReplicator.copyState(createStore(from), createStore(to));
+
+        assertEquals(Tree.Utils.uniqueNewick(fromTree, fromTree.getRoot()),
+                Tree.Utils.uniqueNewick(toTree, toTree.getRoot()));
+        for (int i = 0; i < fromTree.getNodeCount(); i++) {
+            final TreeModel.Node fromNode = (TreeModel.Node) fromTree.getNode(i);
+            final TreeModel.Node toNode = (TreeModel.Node) toTree.getNode(i);
+            assertEquals(fromNode.heightParameter.getId(), toNode.heightParameter.getId());
+            assertEquals(fromTree.getNodeHeight(fromNode), toTree.getNodeHeight(toNode), 0.0);
+        }
+    }
+
+    private NodeRef getTip(TreeModel tree, String taxonId) {
+        return tree.getExternalNode(tree.getTaxonIndex(taxonId));
+    }
+
+    /**
+     * Makes a child of the root the root, giving the old root one of its children.
+     */
+    private void reroot(TreeModel tree, NodeRef child, NodeRef grandchild) {
+        final NodeRef root = tree.getRoot();
+        final double height = tree.getNodeHeight(root) + 1.0;
+        tree.beginTreeEdit();
+        tree.removeChild(root, child);
+        tree.removeChild(child, grandchild);
+        tree.addChild(root, grandchild);
+        tree.addChild(child, root);
+        tree.setRoot(child);
+        tree.endTreeEdit();
+        tree.setNodeHeight(child, height);
+    }
+
+    private double[] getHeights(Tree tree) {
+        double[] heights = new double[tree.getInternalNodeCount()];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = tree.getNodeHeight(tree.getInternalNode(i));
+        }
+        Arrays.sort(heights);
+        return heights;
+    }
+
+    private ObjectStore createStore(final Map<String, Object> objects) {
+        return new ObjectStore() {
+            public Object getObjectById(Object uid) throws ObjectNotFoundException {
+                if (!objects.containsKey(uid)) {
+                    throw new ObjectNotFoundException("Object with uid=" + uid + " not found in ObjectStore");
+                }
+                return objects.get(uid);
+            }
+
+            public boolean hasObjectId(Object uid) {
+                return objects.containsKey(uid);
+            }
+
+            public void addIdentifiableObject(Identifiable object, boolean force) {
+                objects.put(object.getId(), object);
+            }
+
+            public Set getIdSet() {
+                return objects.keySet();
+            }
+
+            public Collection getObjects() {
+                return objects.values();
+            }
+        };
+    }
+
+    public static Test suite() {
+        return new TestSuite(ModelReplicatorTest.class);
+    }
+}
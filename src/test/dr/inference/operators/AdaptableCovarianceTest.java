@@ -0,0 +1,95 @@
+package test.dr.inference.operators;
+
+import dr.inference.operators.AdaptableCovariance;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the rank one updated covariance of the adaptable variance operators against a direct
+ * computation.
+ */
+public class AdaptableCovarianceTest extends TestCase {
+
+    public AdaptableCovarianceTest(String name) {
+        super(name);
+    }
+
+    public void testMeanAndCovariance() {
+        MathUtils.setSeed(17);
+        final int dim = 4;
+        final int n = 500;
+        double[][] samples = new double[n][dim];
+        for (int k = 0; k < n; k++) {
+            if (k > 0 && MathUtils.nextDouble() < 0.6) {
+                // a rejected proposal repeats the state
+                System.arraycopy(samples[k - 1], 0, samples[k], 0, dim);
+            } else {
+                for (int i = 0; i < dim; i++) {
+                    samples[k][i] = (i + 1) * MathUtils.nextGaussian() + (i > 0 ? samples[k][i - 1] : 0.0);
+                }
+            }
+        }
+
+        AdaptableCovariance covariance = new AdaptableCovariance(dim);
+        // samples from before a reset are forgotten
+        covariance.addSample(new double[]{10.0, 10.0, 10.0, 10.0});
+        covariance.addSample(new double[]{-10.0, 10.0, 10.0, 10.0});
+        covariance.reset();
+        for (double[] sample : samples) {
+            covariance.addSample(sample);
+        }
+        assertEquals(n, covariance.getSampleCount());
+
+        double[] mean = new double[dim];
+        for (double[] sample : samples) {
+            for (int i = 0; i < dim; i++) {
+                mean[i] += sample[i] / n;
+            }
+        }
+        double[] actualMean = covariance.getMean();
+        double[][] actual = covariance.getCovariance();
+        for (int i = 0; i < dim; i++) {
+            assertEquals(mean[i], actualMean[i], 1e-10);
+            for (int j = 0; j < dim; j++) {
+                double expected = 0.0;
+                for (double[] sample : samples) {
+                    expected += (sample[i] - mean[i]) * (sample[j] - mean[j]) / n;
+                }
+                assertEquals(expected, actual[i][j], 1e-9);
+            }
+        }
+    }
+
+    public void testRankOneUpdate() {
+        double[][] lower = {{2.0}, {1.0, 3.0}, {-1.0, 0.5, 1.5}};
+        double[] v = {0.5, -2.0, 1.0};
+
+        double[][] expected = new double[3][3];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                for (int k = 0; k <= Math.min(i, j); k++) {
+                    expected[i][j] += lower[i][k] * lower[j][k];
+                }
+                expected[i][j] += v[i] * v[j];
+            }
+        }
+
+        AdaptableCovariance.rankOneUpdate(lower, v);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lower[i][i] > 0.0);
+            for (int j = 0; j < 3; j++) {
+                double product = 0.0;
+                for (int k = 0; k <= Math.min(i, j); k++) {
+                    product += lower[i][k] * lower[j][k];
+                }
+                assertEquals(expected[i][j], product, 1e-12);
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(AdaptableCovarianceTest.class);
+    }
+}
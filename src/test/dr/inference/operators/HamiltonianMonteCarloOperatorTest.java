@@ -0,0 +1,142 @@
+package test.dr.inference.operators;
+
+import dr.inference.distribution.MultivariateDistributionLikelihood;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.GradientWrtParameterProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.HamiltonianMonteCarloOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.trace.Trace;
+import dr.math.MathUtils;
+import dr.math.distributions.MultivariateNormalDistribution;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples an axis-aligned bivariate normal with very different scales, using both the
+ * analytic and the numerical gradient, and checks the sample moments.
+ */
+public class HamiltonianMonteCarloOperatorTest extends TestCase {
+
+    private static final double[] VARIANCE = {1.0, 25.0};
+
+    public HamiltonianMonteCarloOperatorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+
+        x = new Parameter.Default("x", new double[]{1.0, -1.0});
+        x.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, VARIANCE.length));
+
+        double[][] precision = new double[VARIANCE.length][VARIANCE.length];
+        for (int i = 0; i < VARIANCE.length; i++) {
+            precision[i][i] = 1.0 / VARIANCE[i];
+        }
+        likelihood = new MultivariateDistributionLikelihood(
+                new MultivariateNormalDistribution(new double[VARIANCE.length], precision));
+        likelihood.addData(x);
+    }
+
+    public void testAnalyticGradient() {
+
+        GradientWrtParameterProvider gradient = new GradientWrtParameterProvider() {
+            public Likelihood getLikelihood() {
+                return likelihood;
+            }
+
+            public Parameter getParameter() {
+                return x;
+            }
+
+            public int getDimension() {
+                return x.getDimension();
+            }
+
+            public double[] getGradientLogDensity() {
+                double[] g = new double[x.getDimension()];
+                for (int i = 0; i < g.length; i++) {
+                    g[i] = -x.getParameterValue(i) / VARIANCE[i];
+                }
+                return g;
+            }
+        };
+
+        List<GradientWrtParameterProvider> gradients = new ArrayList<GradientWrtParameterProvider>();
+        gradients.add(gradient);
+        checkMoments(gradients, 20000);
+    }
+
+    public void testNumericalGradient() {
+        checkMoments(new ArrayList<GradientWrtParameterProvider>(), 10000);
+    }
+
+    private void checkMoments(List<GradientWrtParameterProvider> gradients, int chainLength) {
+
+        HamiltonianMonteCarloOperator operator =
+                new HamiltonianMonteCarloOperator(x, gradients, 0.1, 5, chainLength / 10, 0.8, 1.0);
+
+        assertTrue(operator.isAdaptive());
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(operator);
+
+        ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+        MCLogger[] loggers = {new MCLogger(formatter, 5, false)};
+        loggers[0].add(x);
+
+        MCMC mcmc = new MCMC("hmc");
+        mcmc.init(new MCMCOptions(chainLength), likelihood, schedule, loggers);
+        mcmc.run();
+
+        List<Trace> traces = formatter.getTraces();
+        for (int i = 0; i < VARIANCE.length; i++) {
+            // skip the state column and the adaptation phase
+            Trace trace = traces.get(i + 1);
+            final int burnin = trace.getValuesSize() / 5;
+            final int n = trace.getValuesSize() - burnin;
+
+            double sum = 0.0;
+            double sumSq = 0.0;
+            for (int j = burnin; j < trace.getValuesSize(); j++) {
+                final double value = (Double) trace.getValue(j);
+                sum += value;
+                sumSq += value * value;
+            }
+            final double mean = sum / n;
+            final double variance = sumSq / n - mean * mean;
+
+            final double sd = Math.sqrt(VARIANCE[i]);
+            assertEquals("mean of x" + (i + 1), 0.0, mean, 0.15 * sd);
+            assertEquals("variance of x" + (i + 1), VARIANCE[i], variance, 0.2 * VARIANCE[i]);
+        }
+
+        assertTrue(operator.getAcceptCount() > operator.getRejectCount());
+
+        // the adaptation is over, and a fresh copy can take what was adapted
+        assertFalse(operator.isAdaptive());
+        HamiltonianMonteCarloOperator copy =
+                new HamiltonianMonteCarloOperator(x, gradients, 0.1, 5, chainLength / 10, 0.8, 1.0);
+        copy.copyAdaptedState(operator);
+        assertFalse(copy.isAdaptive());
+        assertEquals(operator.getStepSize(), copy.getStepSize(), 0.0);
+    }
+
+    public static Test suite() {
+        return new TestSuite(HamiltonianMonteCarloOperatorTest.class);
+    }
+
+    private Parameter x;
+    private MultivariateDistributionLikelihood likelihood;
+}
@@ -0,0 +1,99 @@
+package test.dr.inference.operators;
+
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorFailedException;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the operators of a simple schedule are chosen in proportion to their weights.
+ */
+public class SimpleOperatorScheduleTest extends TestCase {
+
+    public SimpleOperatorScheduleTest(String name) {
+        super(name);
+    }
+
+    public void testWeightedChoice() {
+        MathUtils.setSeed(1);
+        final double[] weights = {3.0, 0.25, 1.0, 0.5, 1.75, 10.0, 0.5};
+        SimpleOperatorSchedule schedule = createSchedule(weights);
+
+        final int n = 200000;
+        int[] counts = new int[weights.length];
+        for (int i = 0; i < n; i++) {
+            counts[schedule.getNextOperatorIndex()]++;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals(weights[i] / 17.0, (double) counts[i] / n, 0.005);
+        }
+
+        // changes of weight are only read when the schedule is told of them
+        schedule.getOperator(1).setWeight(16.75);
+        assertEquals(0.25 / 17.0, schedule.getSelectionProbability(1), 1e-12);
+        schedule.operatorsHasBeenUpdated();
+        assertEquals(0.5, schedule.getSelectionProbability(1), 1e-12);
+    }
+
+    public void testSequential() {
+        SimpleOperatorSchedule schedule = createSchedule(new double[]{2.0, 1.0, 3.0});
+        schedule.setSequential(true);
+        final int[] expected = {0, 0, 1, 2, 2, 2, 0, 0};
+        for (int index : expected) {
+            assertEquals(index, schedule.getNextOperatorIndex());
+        }
+    }
+
+    public void testAdaptiveWeights() throws OperatorFailedException {
+        MathUtils.setSeed(2);
+        SimpleOperatorSchedule schedule = createSchedule(new double[]{1.0, 1.0, 1.0});
+        schedule.setAdaptiveWeights(true);
+
+        // the first operator is always accepted, the second half the time and the last never
+        final double[] acceptance = {1.0, 0.5, 0.0};
+        for (int i = 0; i < 4 * SimpleOperatorSchedule.FIRST_ADAPTATION; i++) {
+            MCMCOperator op = schedule.getOperator(schedule.getNextOperatorIndex());
+            int index = op == schedule.getOperator(0) ? 0 : (op == schedule.getOperator(1) ? 1 : 2);
+            op.operate();
+            if (MathUtils.nextDouble() < acceptance[index]) {
+                op.accept(0.0);
+            } else {
+                op.reject();
+            }
+        }
+        assertEquals(2.0 / 3.1, schedule.getSelectionProbability(0), 0.02);
+        assertEquals(1.0 / 3.1, schedule.getSelectionProbability(1), 0.02);
+        // but no operator is left out
+        assertEquals(0.1 / 3.1, schedule.getSelectionProbability(2), 1e-10);
+    }
+
+    private SimpleOperatorSchedule createSchedule(double[] weights) {
+        SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+        for (double weight : weights) {
+            SimpleMCMCOperator operator = new SimpleMCMCOperator() {
+                public String getOperatorName() {
+                    return "test";
+                }
+
+                public String getPerformanceSuggestion() {
+                    return "";
+                }
+
+                public double doOperation() throws OperatorFailedException {
+                    return 0.0;
+                }
+            };
+            operator.setWeight(weight);
+            schedule.addOperator(operator);
+        }
+        return schedule;
+    }
+
+    public static Test suite() {
+        return new TestSuite(SimpleOperatorScheduleTest.class);
+    }
+}
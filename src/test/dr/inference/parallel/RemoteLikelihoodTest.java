@@ -0,0 +1,151 @@
+package test.dr.inference.parallel;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.parallel.RemoteCompoundLikelihood;
+import dr.inference.parallel.RemoteLikelihood;
+import dr.inference.parallel.RemoteLikelihoodWorker;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that a remote likelihood follows the changes, stores and restores of its parameters.
+ */
+public class RemoteLikelihoodTest extends TestCase {
+
+    public RemoteLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void testStoreRestore() throws Exception {
+        Parameter x = new Parameter.Default("x", new double[]{0.1, 0.2, 0.3});
+        RemoteLikelihood remote = startWorker(x, normalLikelihood(x.getParameterValues()));
+        DistributionLikelihood local = normalLikelihood(x);
+
+        assertEquals(local.calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+
+        // rejected move
+        remote.storeModelState();
+        x.setParameterValue(1, 2.0);
+        assertEquals(local.calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+        remote.restoreModelState();
+        assertEquals(local.calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+
+        // the worker must have restored its copy too
+        remote.storeModelState();
+        x.setParameterValue(0, -1.0);
+        assertEquals(local.calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+        remote.acceptModelState();
+
+        // a change whose result is never read
+        remote.storeModelState();
+        x.setParameterValue(2, 1.5);
+        remote.requestLogLikelihood();
+        x.setParameterValue(2, 0.5);
+        assertEquals(local.calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+
+        remote.makeDirty();
+        assertEquals(local.calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+        remote.terminate();
+    }
+
+    public void testCompound() throws Exception {
+        Parameter x = new Parameter.Default("x", new double[]{0.1, 0.2});
+        Parameter y = new Parameter.Default("y", new double[]{1.0, -0.5, 0.7});
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(startWorker(x, normalLikelihood(x.getParameterValues())));
+        likelihoods.add(startWorker(y, normalLikelihood(y.getParameterValues())));
+        likelihoods.add(normalLikelihood(x));
+        RemoteCompoundLikelihood compound = new RemoteCompoundLikelihood(likelihoods);
+
+        DistributionLikelihood localX = normalLikelihood(x);
+        DistributionLikelihood localY = normalLikelihood(y);
+
+        for (int i = 0; i < 10; i++) {
+            compound.getModel().storeModelState();
+            x.setParameterValue(i % 2, i * 0.1);
+            y.setParameterValue(i % 3, -i * 0.2);
+            assertEquals(2 * localX.calculateLogLikelihood() + localY.calculateLogLikelihood(),
+                    compound.getLogLikelihood(), 1e-12);
+            if (i % 2 == 0) {
+                compound.getModel().restoreModelState();
+            } else {
+                compound.getModel().acceptModelState();
+            }
+        }
+        assertEquals(2 * localX.calculateLogLikelihood() + localY.calculateLogLikelihood(),
+                compound.getLogLikelihood(), 1e-12);
+    }
+
+    public void testSocket() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        Parameter x = new Parameter.Default("x", new double[]{0.5, 1.5});
+        final Parameter y = new Parameter.Default("y", x.getParameterValues());
+        Thread thread = new Thread(new RemoteLikelihoodWorker(normalLikelihood(y),
+                Collections.singletonList(y), port));
+        thread.start();
+
+        RemoteLikelihood remote = RemoteLikelihood.connect("remote", Collections.singletonList(x),
+                "localhost", port, 10000);
+        x.setParameterValue(1, 0.25);
+        assertEquals(normalLikelihood(x).calculateLogLikelihood(), remote.getLogLikelihood(), 1e-12);
+        remote.terminate();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+    }
+
+    private RemoteLikelihood startWorker(Parameter parameter, final DistributionLikelihood workerLikelihood)
+            throws IOException {
+        final Parameter workerParameter = (Parameter) workerLikelihood.getDataList().get(0);
+
+        final PipedInputStream toWorker = new PipedInputStream(1 << 16);
+        final PipedInputStream fromWorker = new PipedInputStream(1 << 16);
+        final PipedOutputStream masterOut = new PipedOutputStream(toWorker);
+        final PipedOutputStream workerOut = new PipedOutputStream(fromWorker);
+
+        final RemoteLikelihoodWorker worker = new RemoteLikelihoodWorker(workerLikelihood,
+                Collections.singletonList(workerParameter), 0);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    worker.serve(toWorker, workerOut);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        return new RemoteLikelihood(parameter.getId(), Collections.singletonList(parameter), fromWorker, masterOut);
+    }
+
+    private DistributionLikelihood normalLikelihood(double[] values) {
+        return normalLikelihood(new Parameter.Default(values));
+    }
+
+    private DistributionLikelihood normalLikelihood(Parameter parameter) {
+        DistributionLikelihood likelihood = new DistributionLikelihood(new NormalDistribution(0.0, 1.0));
+        likelihood.addData(parameter);
+        return likelihood;
+    }
+
+    public static Test suite() {
+        return new TestSuite(RemoteLikelihoodTest.class);
+    }
+}
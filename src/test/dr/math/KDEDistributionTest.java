@@ -1,6 +1,7 @@
 package test.dr.math;
 
 import dr.math.MathUtils;
+import dr.math.distributions.GammaKDEDistribution;
 import dr.math.distributions.NormalKDEDistribution;
 import dr.math.matrixAlgebra.Vector;
 
@@ -52,17 +53,43 @@ public class KDEDistributionTest extends MathTestCase {
         double shape = 4;
         double scale = 5;
 
-        double[] values = new double[length];
+        MathUtils.setSeed(666);
+        Double[] values = new Double[length];
         for (int i = 0; i < length; i++) {
-            values[i] = MathUtils.nextGamma(shape, scale);
+            values[i] = MathUtils.nextGamma(shape, 1.0 / scale); // mean 20
         }
 
-
 //        GammaKDEDistribution kde = new GammaKDEDistribution(values);
 //             System.err.println("prediction: at 2.02: "+kde.pdf(2.02177)+" at 0.405: "+kde.pdf(0.4046729)+" at 0.15: "+kde.pdf(0.1502078));
 //     System.err.println("sm: "+kde.sampleMean());
-        // TODO Need test values
 
+        GammaKDEDistribution kde = new GammaKDEDistribution(values);
+
+        // the exact sum against the definition of the kernels, beyond twice the bandwidth
+        final double x = 21.3;
+        final double kernelShape = x / kde.getBandWidth();
+        double pdf = 0.0;
+        for (Double value : values) {
+            pdf += Math.pow(value, kernelShape - 1) * Math.exp(-value / kde.getBandWidth()) /
+                    (Math.pow(kde.getBandWidth(), kernelShape) * cern.jet.stat.Gamma.gamma(kernelShape));
+        }
+        assertEquals(Math.log(pdf / length), kde.exactLogPdf(x), 1E-8);
+
+        // the interpolated density against the exact one, within the grid and beyond it
+        double integral = 0.0;
+        final double step = 0.05;
+        for (double y = step / 2; y < 150.0; y += step) {
+            final double exact = kde.exactLogPdf(y);
+            if (exact > -20.0) {
+                assertEquals(exact, kde.logPdf(y), 2 * GammaKDEDistribution.GRID_TOLERANCE);
+            }
+            integral += kde.pdf(y) * step;
+        }
+        assertEquals(1.0, integral, 0.01);
+        assertEquals(kde.exactLogPdf(1000.0), kde.logPdf(1000.0), 0.0);
+
+        kde.setExact(true);
+        assertEquals(kde.exactLogPdf(7.7), kde.logPdf(7.7), 0.0);
     }
 
     private static double[] rBandWidth = { 12.24266 };
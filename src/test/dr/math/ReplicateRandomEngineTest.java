@@ -0,0 +1,52 @@
+package test.dr.math;
+
+import dr.math.ReplicateRandomEngine;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the generators of replicates are reproducible and use all 64 bits of their seeds.
+ */
+public class ReplicateRandomEngineTest extends TestCase {
+
+    public ReplicateRandomEngineTest(String name) {
+        super(name);
+    }
+
+    public void testReproducible() {
+        ReplicateRandomEngine a = new ReplicateRandomEngine(123, 4, 5);
+        ReplicateRandomEngine b = new ReplicateRandomEngine(123, 4, 5);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(a.nextInt(), b.nextInt());
+        }
+    }
+
+    public void testReplicatesDiffer() {
+        assertFalse(firstInts(new ReplicateRandomEngine(123, 4, 5))
+                .equals(firstInts(new ReplicateRandomEngine(123, 5, 4))));
+        assertFalse(firstInts(new ReplicateRandomEngine(123, 4))
+                .equals(firstInts(new ReplicateRandomEngine(124, 4))));
+    }
+
+    public void testUpperBitsOfSeed() {
+        // without replicate numbers the seed of the batch seeds the generator as it is
+        final long seed = ReplicateRandomEngine.getReplicateSeed(123, 4);
+        final long other = seed ^ (1L << 40);
+        assertEquals(seed, ReplicateRandomEngine.getReplicateSeed(seed));
+        assertFalse(firstInts(new ReplicateRandomEngine(seed))
+                .equals(firstInts(new ReplicateRandomEngine(other))));
+    }
+
+    private static String firstInts(ReplicateRandomEngine random) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            builder.append(random.nextInt()).append(' ');
+        }
+        return builder.toString();
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReplicateRandomEngineTest.class);
+    }
+}